@@ -1,50 +1,166 @@
 package ru.vladtop46.proxy;
 
+import ru.vladtop46.proxy.admin.AdminServer;
+import ru.vladtop46.proxy.admin.AnalyticsEndpoint;
+import ru.vladtop46.proxy.admin.ConnectionsEndpoint;
+import ru.vladtop46.proxy.admin.ListenersEndpoint;
+import ru.vladtop46.proxy.analytics.TrafficAnalytics;
+import ru.vladtop46.proxy.analytics.WindowedHeavyHitters;
+import ru.vladtop46.proxy.breaker.CircuitBreakerRegistry;
+import ru.vladtop46.proxy.cache.CachePeerGroup;
+import ru.vladtop46.proxy.cache.ResponseCache;
+import ru.vladtop46.proxy.capture.TrafficRecorder;
+import ru.vladtop46.proxy.compression.ResponseCompressor;
 import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.download.RangeAccelerator;
 import ru.vladtop46.proxy.handler.ProxyHandlerFactory;
+import ru.vladtop46.proxy.handler.ProxyServices;
+import ru.vladtop46.proxy.jfr.AccessCheckEvent;
+import ru.vladtop46.proxy.jfr.ConnectionAcceptedEvent;
+import ru.vladtop46.proxy.jfr.RecordingController;
+import ru.vladtop46.proxy.limit.AdmissionController;
+import ru.vladtop46.proxy.listener.Acceptor;
+import ru.vladtop46.proxy.listener.ListenAddress;
 import ru.vladtop46.proxy.logging.ProxyLogger;
-import ru.vladtop46.proxy.security.AccessControl;
+import ru.vladtop46.proxy.memory.MemoryBudget;
+import ru.vladtop46.proxy.model.ConnectionInfo;
+import ru.vladtop46.proxy.prefetch.Prefetcher;
+import ru.vladtop46.proxy.registry.ConnectionRegistry;
+import ru.vladtop46.proxy.reload.ConfigWatcher;
+import ru.vladtop46.proxy.reload.PolicySnapshot;
+import ru.vladtop46.proxy.shaping.TrafficShaper;
+import ru.vladtop46.proxy.socks.Socks5Protocol;
+import ru.vladtop46.proxy.timeout.ConnectionReaper;
+import ru.vladtop46.proxy.tls.TlsHandshaker;
+import ru.vladtop46.proxy.upstream.ParentProxyPool;
+import ru.vladtop46.proxy.warmstart.HostTable;
+import ru.vladtop46.proxy.warmstart.WarmStart;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class ProxyServer {
+    // Ответ SOCKS5-клиенту, которому отказал контроллер допуска
+    private static final byte[] SOCKS_REJECTION = Socks5Protocol.rejection(Socks5Protocol.REP_GENERAL_FAILURE);
+
     private final String configPath;
-    private final AtomicReference<ProxyConfig> configRef;
+    // Единственная точка публикации политики для цикла приема и обработчиков
+    private final AtomicReference<PolicySnapshot> policyRef;
     private final ProxyLogger logger;
     private final ProxyHandlerFactory handlerFactory;
-    private AccessControl accessControl;
+    private final AdmissionController admissionController;
+    private final ConnectionReaper connectionReaper;
+    private final TrafficShaper trafficShaper;
+    private final ConnectionRegistry connectionRegistry;
+    private final TrafficAnalytics trafficAnalytics;
+    private final ParentProxyPool upstreamPool;
+    private final CircuitBreakerRegistry circuitBreakers;
+    private final ResponseCache responseCache;
+    private final CachePeerGroup cachePeers;
+    private final RangeAccelerator rangeAccelerator;
+    private final ResponseCompressor responseCompressor;
+    private final TrafficRecorder trafficRecorder;
+    private final MemoryBudget memoryBudget;
+    private final Prefetcher prefetcher;
+    private final HostTable hostTable;
+    private final WarmStart warmStart;
+    // null, если TLS-листенер выключен или ключ не загрузился
+    private final TlsHandshaker tlsHandshaker;
+    private final AdminServer adminServer;
+    private final RecordingController recordingController;
     private final AtomicBoolean running = new AtomicBoolean(true);
-    private long lastConfigModTime = 0;
-
-    // Интервал проверки обновлений конфига (в миллисекундах)
-    private static final long CONFIG_CHECK_INTERVAL = 10000; // 10 секунд
-
-    // Флаг для настройки автоматического обновления конфига
-    private boolean autoReloadConfig = false;
+    private final AtomicBoolean warmStartSaved = new AtomicBoolean();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final List<Acceptor> acceptors = new CopyOnWriteArrayList<>();
+    private final AtomicLong reloadCount = new AtomicLong();
+    private final AtomicLong reloadFailures = new AtomicLong();
+    private volatile ConfigWatcher configWatcher;
 
     public ProxyServer(String configPath) {
         this.configPath = configPath;
-        ProxyConfig initialConfig = ProxyConfig.loadConfig(configPath);
-        this.configRef = new AtomicReference<>(initialConfig);
+        PolicySnapshot initialPolicy = PolicySnapshot.load(configPath, 1);
+        ProxyConfig initialConfig = initialPolicy.getConfig();
+        this.policyRef = new AtomicReference<>(initialPolicy);
         this.logger = new ProxyLogger(initialConfig.getServer().getLogsDirectory());
-        this.handlerFactory = new ProxyHandlerFactory(configRef);
-        this.accessControl = new AccessControl(initialConfig);
+        this.connectionReaper = new ConnectionReaper(initialConfig.getTimeouts(), logger);
+        this.admissionController = new AdmissionController(initialConfig.getLimiter(),
+                connectionReaper.getWheel(), logger);
+        this.trafficShaper = new TrafficShaper(initialConfig.getShaping());
+        this.connectionRegistry = new ConnectionRegistry();
+        this.trafficAnalytics = new TrafficAnalytics(initialConfig.getAnalytics());
+        this.upstreamPool = new ParentProxyPool(initialConfig.getUpstream(), logger);
+        this.circuitBreakers = new CircuitBreakerRegistry(initialConfig.getCircuitBreaker(), logger);
+        this.memoryBudget = new MemoryBudget(initialConfig.getMemory());
+        this.responseCache = new ResponseCache(initialConfig.getCache(), memoryBudget);
+        this.cachePeers = new CachePeerGroup(initialConfig.getCache(), logger);
+        this.rangeAccelerator = new RangeAccelerator(initialConfig.getSegmentedDownload(), memoryBudget, logger);
+        this.responseCompressor = new ResponseCompressor(initialConfig.getCompression());
+        this.trafficRecorder = new TrafficRecorder(initialConfig.getCapture(), logger);
+        this.prefetcher = new Prefetcher(initialConfig.getPrefetch(), upstreamPool);
+        this.hostTable = new HostTable(initialConfig.getWarmStart().getMaxHosts());
+        this.warmStart = new WarmStart(initialConfig.getWarmStart(), hostTable, admissionController.getLimiter(),
+                logger);
+        this.tlsHandshaker = createTlsHandshaker(initialConfig.getTls());
+        this.handlerFactory = new ProxyHandlerFactory(policyRef, new ProxyServices()
+                .setLimiter(admissionController.getLimiter())
+                .setAdmission(admissionController)
+                .setReaper(connectionReaper)
+                .setShaper(trafficShaper)
+                .setRegistry(connectionRegistry)
+                .setAnalytics(trafficAnalytics)
+                .setUpstreamPool(upstreamPool)
+                .setCircuitBreakers(circuitBreakers)
+                .setResponseCache(responseCache)
+                .setCachePeers(cachePeers)
+                .setRangeAccelerator(rangeAccelerator)
+                .setResponseCompressor(responseCompressor)
+                .setTrafficRecorder(trafficRecorder)
+                .setMemoryBudget(memoryBudget)
+                .setPrefetcher(prefetcher)
+                .setHostTable(hostTable));
+        this.adminServer = new AdminServer(initialConfig.getAdmin(), logger);
+        new ConnectionsEndpoint(connectionRegistry).register(adminServer);
+        new AnalyticsEndpoint(trafficAnalytics).register(adminServer);
+        new ListenersEndpoint(acceptors).register(adminServer);
+        this.recordingController = new RecordingController(initialConfig.getServer().getLogsDirectory(), logger);
+        checkMemoryLimits(initialConfig);
+        logUrlFilterCacheError(initialPolicy);
+        logger.log(String.format("Policy loaded in %d ms%s", initialPolicy.getBuildMillis(),
+                initialPolicy.getAccessControl().isUrlFilterCached() ? " (URL filter from warm-start cache)" : ""));
+        // Снимок сохраняется и при остановке JVM сигналом, не только по команде exit
+        Runtime.getRuntime().addShutdownHook(new Thread(this::saveWarmStart, "warm-start-save"));
+    }
+
+    /**
+     * Сохраняет снимок теплого старта один раз: по команде exit или при
+     * остановке JVM, смотря что случится раньше
+     */
+    private void saveWarmStart() {
+        if (warmStartSaved.compareAndSet(false, true)) {
+            warmStart.save(policyRef.get().getAccessControl());
+        }
+    }
 
+    private TlsHandshaker createTlsHandshaker(ProxyConfig.TlsSettings settings) {
+        if (!settings.isEnabled()) {
+            return null;
+        }
         try {
-            Path path = Paths.get(configPath);
-            if (Files.exists(path)) {
-                this.lastConfigModTime = Files.getLastModifiedTime(path).toMillis();
-            }
+            return new TlsHandshaker(settings, logger);
         } catch (Exception e) {
-            logger.log("Error getting config file modification time: " + e.getMessage());
+            logger.log("TLS listener disabled: cannot load keystore " + settings.getKeystoreFile()
+                    + ": " + e.getMessage());
+            return null;
         }
     }
 
@@ -52,42 +168,54 @@ public class ProxyServer {
         try {
             // Запускаем поток для прослушивания команд консоли
             startCommandListener();
+            adminServer.start();
+            upstreamPool.start();
 
             // Запускаем поток для проверки изменений конфига
-            if (autoReloadConfig) {
-                startConfigWatcher();
+            ProxyConfig config = policyRef.get().getConfig();
+            if (config.getServer().isAutoReloadConfig()) {
+                startConfigWatcher(config.getServer().getReloadDebounceMs());
             }
 
-            ProxyConfig config = configRef.get();
-            ServerSocket serverSocket = new ServerSocket(config.getServer().getPort());
-            logger.log(String.format("Proxy server is running on port: %d", config.getServer().getPort()));
+            // Снимок читается в фоне: соединения принимаются сразу
+            warmStart.loadInBackground();
+            openAcceptors(config.getServer().getListen(), config.getServer(), this::handleAccepted, "Proxy server");
+            if (config.getSocks().isEnabled()) {
+                openAcceptors(config.getSocks().getListen(), config.getServer(), this::handleAcceptedSocks,
+                        "SOCKS5 proxy");
+            }
+            if (tlsHandshaker != null) {
+                openAcceptors(config.getTls().getListen(), config.getServer(), this::handleAcceptedTls,
+                        "TLS proxy");
+            }
+            if (acceptors.isEmpty()) {
+                logger.log("Server error: no listen address could be opened");
+                adminServer.stop();
+                return;
+            }
             logger.log("Type 'reload' to reload configuration or 'exit' to stop the server");
 
-            while (running.get()) {
-                try {
-                    // Установка таймаута для возможности проверки флага running
-                    serverSocket.setSoTimeout(1000);
-                    Socket clientSocket = serverSocket.accept();
-
-                    // Проверка доступа по IP
-                    if (!accessControl.isIpAllowed(clientSocket.getInetAddress())) {
-                        logger.log(String.format("Access denied for IP: %s",
-                                clientSocket.getInetAddress().getHostAddress()));
-                        clientSocket.close();
-                    } else {
-                        // Создаем новый поток обработки только для разрешенных соединений
-                        new Thread(handlerFactory.createHandler(clientSocket)).start();
-                    }
-                } catch (java.net.SocketTimeoutException e) {
-                    // Игнорируем таймаут - это нормально, позволяет проверить флаг running
-                } catch (Exception e) {
-                    if (running.get()) {
-                        logger.log("Connection error: " + e.getMessage());
-                    }
-                }
-            }
+            // Главный поток ждет команды остановки, соединения принимают потоки приемщиков
+            stopped.await();
 
-            serverSocket.close();
+            for (Acceptor acceptor : acceptors) {
+                acceptor.stop();
+            }
+            for (Acceptor acceptor : acceptors) {
+                acceptor.join();
+            }
+            adminServer.stop();
+            upstreamPool.stop();
+            saveWarmStart();
+            cachePeers.closeConnections();
+            trafficRecorder.close();
+            prefetcher.close();
+            if (tlsHandshaker != null) {
+                tlsHandshaker.close();
+            }
+            if (configWatcher != null) {
+                configWatcher.stop();
+            }
             logger.log("Server stopped");
 
         } catch (Exception e) {
@@ -96,31 +224,198 @@ public class ProxyServer {
     }
 
     /**
-     * Метод для перезагрузки конфигурации
+     * Открывает приемщики на адресах из конфигурации
+     * @param listen адреса; если список пуст, используется server.port
+     * @param settings общие параметры приема
+     * @param onAccept обработка принятого соединения
+     * @param label название листенера для лога
      */
-    public void reloadConfig() {
-        try {
-            ProxyConfig newConfig = ProxyConfig.loadConfig(configPath);
-            configRef.set(newConfig);
+    private void openAcceptors(List<String> listen, ProxyConfig.ServerSettings settings,
+                               Consumer<Socket> onAccept, String label) {
+        List<String> addresses = listen == null || listen.isEmpty()
+                ? List.of(String.valueOf(settings.getPort()))
+                : listen;
+        int perAddress = Math.max(1, settings.getAcceptorsPerAddress());
+        boolean reusePort = perAddress > 1 && Acceptor.isReusePortSupported();
+        if (perAddress > 1 && !reusePort) {
+            logger.log("SO_REUSEPORT is not supported, using one acceptor per address");
+            perAddress = 1;
+        }
+
+        for (String value : addresses) {
+            try {
+                InetSocketAddress address = ListenAddress.parse(value);
+                for (int i = 0; i < perAddress; i++) {
+                    Acceptor acceptor = Acceptor.open(address, i, settings.getAcceptBacklog(), reusePort,
+                            onAccept, admissionController::drainQueue, logger);
+                    acceptors.add(acceptor);
+                    acceptor.start();
+                }
+                logger.log(String.format("%s is running on %s (acceptors: %d, backlog: %d)",
+                        label, ListenAddress.format(address), perAddress, settings.getAcceptBacklog()));
+            } catch (Exception e) {
+                logger.log("Cannot listen on " + value + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleAccepted(Socket clientSocket) {
+        handleAccepted(clientSocket, false);
+    }
+
+    private void handleAcceptedSocks(Socket clientSocket) {
+        handleAccepted(clientSocket, true);
+    }
+
+    /**
+     * Соединение TLS-листенера: IP проверяется до рукопожатия, само
+     * рукопожатие уходит в пул, обработчик получает уже защищенный сокет
+     */
+    private void handleAcceptedTls(Socket clientSocket) {
+        // Полная проверка с событиями JFR повторится после рукопожатия
+        if (!policyRef.get().getAccessControl().isIpAllowed(clientSocket.getInetAddress())) {
+            logger.log(String.format("Access denied for IP: %s",
+                    clientSocket.getInetAddress().getHostAddress()));
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                // Закрываем молча
+            }
+            return;
+        }
+        tlsHandshaker.handshake(clientSocket, this::handleAccepted);
+    }
+
+    /**
+     * Обрабатывает принятое соединение в потоке приемщика
+     */
+    private void handleAccepted(Socket clientSocket, boolean socks5) {
+        admissionController.drainQueue();
+
+        // Один снимок политики на соединение: и проверка IP, и обработчик видят одну версию
+        PolicySnapshot policy = policyRef.get();
+
+        // Проверка доступа по IP
+        if (!isIpAllowed(policy, clientSocket)) {
+            logger.log(String.format("Access denied for IP: %s",
+                    clientSocket.getInetAddress().getHostAddress()));
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                // Закрываем молча
+            }
+        } else {
+            // Обработка разрешенных соединений в пределах адаптивного лимита
+            if (socks5) {
+                admissionController.submit(clientSocket, handlerFactory.createSocksHandler(clientSocket, policy),
+                        SOCKS_REJECTION);
+            } else {
+                admissionController.submit(clientSocket, handlerFactory.createHandler(clientSocket, policy));
+            }
+        }
+    }
+
+    /**
+     * Проверяет IP клиента и публикует JFR-события приема соединения
+     */
+    private boolean isIpAllowed(PolicySnapshot policy, Socket clientSocket) {
+        AccessCheckEvent checkEvent = new AccessCheckEvent();
+        checkEvent.begin();
+        boolean allowed = policy.getAccessControl().isIpAllowed(clientSocket.getInetAddress());
+        checkEvent.end();
+        if (checkEvent.shouldCommit()) {
+            checkEvent.kind = "IP";
+            checkEvent.subject = clientSocket.getInetAddress().getHostAddress();
+            checkEvent.allowed = allowed;
+            checkEvent.commit();
+        }
 
-            // Обновляем AccessControl с новой конфигурацией
-            this.accessControl = new AccessControl(newConfig);
+        ConnectionAcceptedEvent acceptedEvent = new ConnectionAcceptedEvent();
+        if (acceptedEvent.shouldCommit()) {
+            acceptedEvent.clientAddress = clientSocket.getRemoteSocketAddress().toString();
+            acceptedEvent.allowed = allowed;
+            acceptedEvent.commit();
+        }
+        return allowed;
+    }
+
+    /**
+     * Метод для перезагрузки конфигурации.
+     * <p>
+     * Новый снимок политики собирается целиком в вызывающем потоке (консоль
+     * или наблюдатель за файлами), цикл приема в это время продолжает работать
+     * со старым снимком. При ошибке старая политика остается в силе.
+     */
+    public synchronized void reloadConfig() {
+        try {
+            PolicySnapshot current = policyRef.get();
+            PolicySnapshot newPolicy = PolicySnapshot.load(configPath, current.getGeneration() + 1);
+            policyRef.set(newPolicy);
+            logUrlFilterCacheError(newPolicy);
 
-            // Уведомляем фабрику обработчиков об обновлении конфигурации
-            handlerFactory.updateAccessControl();
+            // Новые лимиты полосы применяются и к уже открытым соединениям
+            trafficShaper.update(newPolicy.getConfig().getShaping());
+            upstreamPool.update(newPolicy.getConfig().getUpstream());
+            circuitBreakers.update(newPolicy.getConfig().getCircuitBreaker());
+            responseCache.update(newPolicy.getConfig().getCache());
+            cachePeers.update(newPolicy.getConfig().getCache());
+            rangeAccelerator.update(newPolicy.getConfig().getSegmentedDownload());
+            responseCompressor.update(newPolicy.getConfig().getCompression());
+            trafficRecorder.update(newPolicy.getConfig().getCapture());
+            memoryBudget.update(newPolicy.getConfig().getMemory());
+            checkMemoryLimits(newPolicy.getConfig());
+            prefetcher.update(newPolicy.getConfig().getPrefetch());
+            warmStart.update(newPolicy.getConfig().getWarmStart());
+            if (tlsHandshaker != null) {
+                tlsHandshaker.update(newPolicy.getConfig().getTls());
+            }
 
-            // Обновление последнего времени модификации
-            Path path = Paths.get(configPath);
-            if (Files.exists(path)) {
-                this.lastConfigModTime = Files.getLastModifiedTime(path).toMillis();
+            // Набор файлов списков мог измениться
+            if (configWatcher != null) {
+                configWatcher.watch(newPolicy.getSourceFiles());
             }
 
-            logger.log("Configuration reloaded successfully");
+            reloadCount.incrementAndGet();
+            logger.log(String.format("Configuration reloaded successfully in %d ms (generation %d)",
+                    newPolicy.getBuildMillis(), newPolicy.getGeneration()));
         } catch (Exception e) {
+            reloadFailures.incrementAndGet();
             logger.log("Error reloading configuration: " + e.getMessage());
         }
     }
 
+    /**
+     * Предупреждает, если лимит памяти соединения меньше буферов, которые
+     * соединению разрешено держать: такие ответы не кешируются, загрузки не
+     * ускоряются, а тела HTTP/2 отклоняются
+     */
+    private void checkMemoryLimits(ProxyConfig config) {
+        if (!config.getMemory().isEnabled()) {
+            return;
+        }
+        long perConnection = config.getMemory().getPerConnectionMaxBytes();
+        ProxyConfig.SegmentedDownloadSettings segmented = config.getSegmentedDownload();
+        checkMemoryLimit(perConnection, config.getCache().isEnabled(), "cache.maxObjectBytes",
+                config.getCache().getMaxObjectBytes());
+        checkMemoryLimit(perConnection, segmented.isEnabled(), "segmentedDownload.maxBufferedBytes + segmentBytes",
+                segmented.getMaxBufferedBytes() + segmented.getSegmentBytes());
+        checkMemoryLimit(perConnection, config.getHttp2().isEnabled(), "http2.maxBufferedBodyBytes",
+                config.getHttp2().getMaxBufferedBodyBytes());
+    }
+
+    private void checkMemoryLimit(long perConnection, boolean enabled, String name, long bytes) {
+        if (enabled && bytes > perConnection) {
+            logger.log(String.format("Memory: perConnectionMaxBytes=%d is below %s=%d", perConnection, name, bytes));
+        }
+    }
+
+    private void logUrlFilterCacheError(PolicySnapshot policy) {
+        String error = policy.getAccessControl().getUrlFilterCacheError();
+        if (error != null) {
+            logger.log(error);
+        }
+    }
+
     /**
      * Запускает отдельный поток для прослушивания команд из консоли
      */
@@ -146,7 +441,9 @@ public class ProxyServer {
     /**
      * Обрабатывает команды консоли
      */
-    private void processCommand(String command) {
+    private void processCommand(String commandLine) {
+        String[] args = commandLine.split("\\s+");
+        String command = args[0];
         switch (command) {
             case "reload":
                 logger.log("Reloading configuration...");
@@ -155,12 +452,61 @@ public class ProxyServer {
             case "exit":
                 logger.log("Stopping server...");
                 running.set(false);
+                stopped.countDown();
                 break;
             case "status":
                 logger.log("Server is running. Current config: " + configPath);
+                logger.log(String.format("Connections: active=%d, total=%d, terminated=%d",
+                        connectionRegistry.size(), connectionRegistry.getTotalRegistered(),
+                        connectionRegistry.getTerminatedCount()));
+                for (Acceptor acceptor : acceptors) {
+                    logger.log(acceptor.getStatus());
+                }
+                logger.log(admissionController.getStatus());
+                logger.log(connectionReaper.getStatus());
+                logger.log(trafficShaper.getStatus());
+                logger.log(upstreamPool.getStatus());
+                logger.log(circuitBreakers.getStatus());
+                logger.log(responseCache.getStatus());
+                logger.log(cachePeers.getStatus());
+                logger.log(rangeAccelerator.getStatus());
+                logger.log(responseCompressor.getStatus());
+                logger.log(trafficRecorder.getStatus());
+                logger.log(memoryBudget.getStatus());
+                logger.log(prefetcher.getStatus());
+                logger.log(hostTable.getStatus());
+                logger.log(warmStart.getStatus());
+                if (tlsHandshaker != null) {
+                    logger.log(tlsHandshaker.getStatus());
+                }
+                PolicySnapshot policy = policyRef.get();
+                logger.log(String.format("Policy: generation=%d, build=%d ms, reloads=%d, failed=%d, age=%ds",
+                        policy.getGeneration(), policy.getBuildMillis(), reloadCount.get(), reloadFailures.get(),
+                        (System.currentTimeMillis() - policy.getCreatedAt()) / 1000));
+                logger.log("Compiled blocklist entries: " + policy.getAccessControl().getCompiledBlocklistEntries() +
+                        ", URL filter rules: " + policy.getAccessControl().getUrlRuleCount());
+                break;
+            case "connections":
+                printConnections(args);
+                break;
+            case "jfr":
+                recordingController.handleCommand(args);
+                break;
+            case "top":
+                printTop(args);
+                break;
+            case "kill":
+                if (args.length < 2) {
+                    logger.log("Usage: kill <connection id>");
+                } else if (connectionRegistry.terminate(args[1])) {
+                    logger.log("Connection " + args[1] + " terminated");
+                } else {
+                    logger.log("Connection " + args[1] + " not found");
+                }
                 break;
             case "help":
-                logger.log("Available commands: reload, exit, status, help");
+                logger.log("Available commands: reload, exit, status, connections [bytes|age|hosts] [client ip], " +
+                        "top [hosts|clients] [window seconds], kill <id>, jfr start|stop|dump|status, help");
                 break;
             default:
                 logger.log("Unknown command. Type 'help' for available commands");
@@ -169,34 +515,72 @@ public class ProxyServer {
     }
 
     /**
-     * Запускает поток для проверки изменений конфигурационного файла
+     * Выводит активные соединения: connections [bytes|age|hosts] [client ip]
      */
-    private void startConfigWatcher() {
-        Thread watcherThread = new Thread(() -> {
-            try {
-                while (running.get()) {
-                    try {
-                        Path path = Paths.get(configPath);
-                        if (Files.exists(path)) {
-                            long currentModTime = Files.getLastModifiedTime(path).toMillis();
-                            if (currentModTime > lastConfigModTime) {
-                                logger.log("Configuration file was modified, reloading...");
-                                reloadConfig();
-                            }
-                        }
-                    } catch (Exception e) {
-                        logger.log("Error checking config file: " + e.getMessage());
-                    }
+    private void printConnections(String[] args) {
+        String sortBy = args.length > 1 ? args[1] : "bytes";
+        String clientIp = args.length > 2 ? args[2] : null;
+        int limit = 20;
 
-                    Thread.sleep(CONFIG_CHECK_INTERVAL);
-                }
-            } catch (InterruptedException e) {
-                // Thread interrupted, exit
+        if ("hosts".equals(sortBy)) {
+            for (ConnectionRegistry.HostSummary host : connectionRegistry.topHosts(clientIp, limit)) {
+                logger.log(String.format("  %-40s connections=%d bytes=%d",
+                        host.getHost(), host.getConnections(), host.getBytes()));
             }
-        });
-        watcherThread.setDaemon(true);
-        watcherThread.start();
-        logger.log("Config watcher started (interval: " + (CONFIG_CHECK_INTERVAL / 1000) + " seconds)");
+            return;
+        }
+        if (!"bytes".equals(sortBy) && !"age".equals(sortBy)) {
+            logger.log("Usage: connections [bytes|age|hosts] [client ip]");
+            return;
+        }
+
+        List<ConnectionInfo> connections = connectionRegistry.top(sortBy, clientIp, limit);
+        logger.log(String.format("Active connections: %d (showing %d)", connectionRegistry.size(), connections.size()));
+        for (ConnectionInfo info : connections) {
+            logger.log(String.format("  %s %s -> %s:%d [%s] age=%ds in=%d out=%d %s",
+                    info.getId(), info.getClientIp(), info.getTargetHost(), info.getTargetPort(),
+                    info.getConnectionType(), info.getAgeMillis() / 1000,
+                    info.getBytesFromClient(), info.getBytesToClient(), info.getStatus()));
+        }
+    }
+
+    /**
+     * Выводит самые нагруженные хосты или клиентов: top [hosts|clients] [window seconds]
+     */
+    private void printTop(String[] args) {
+        if (!trafficAnalytics.isEnabled()) {
+            logger.log("Traffic analytics is disabled");
+            return;
+        }
+        String kind = args.length > 1 ? args[1] : "hosts";
+        try {
+            long window = args.length > 2 ? Long.parseLong(args[2]) : 60;
+            List<WindowedHeavyHitters.HeavyHitter> top = trafficAnalytics.top(kind, window, 10);
+            logger.log(String.format("Top %s for the last %d s:", kind,
+                    Math.min(window, trafficAnalytics.getMaxWindowSeconds())));
+            for (WindowedHeavyHitters.HeavyHitter hitter : top) {
+                logger.log(String.format("  %-40s ~%d bytes", hitter.getKey(), hitter.getWeight()));
+            }
+        } catch (IllegalArgumentException e) {
+            logger.log("Usage: top [hosts|clients] [window seconds]");
+        }
+    }
+
+    /**
+     * Запускает наблюдение за конфигурационным файлом и файлами списков
+     */
+    private void startConfigWatcher(long debounceMillis) {
+        try {
+            configWatcher = new ConfigWatcher(() -> {
+                logger.log("Configuration or list files were modified, reloading...");
+                reloadConfig();
+            }, debounceMillis, logger);
+            configWatcher.watch(policyRef.get().getSourceFiles());
+            configWatcher.start();
+            logger.log("Config watcher started (debounce: " + debounceMillis + " ms)");
+        } catch (Exception e) {
+            logger.log("Cannot start config watcher: " + e.getMessage());
+        }
     }
 
     public static void main(String[] args) {
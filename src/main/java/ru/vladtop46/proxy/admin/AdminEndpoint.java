@@ -0,0 +1,17 @@
+package ru.vladtop46.proxy.admin;
+
+import java.util.Map;
+
+/**
+ * Обработчик одного пути административного HTTP-интерфейса
+ */
+@FunctionalInterface
+public interface AdminEndpoint {
+    /**
+     * @param method HTTP-метод запроса
+     * @param params параметры строки запроса
+     * @return тело ответа в формате JSON
+     * @throws IllegalArgumentException при некорректных параметрах (ответ 400)
+     */
+    String handle(String method, Map<String, String> params);
+}
@@ -0,0 +1,102 @@
+package ru.vladtop46.proxy.admin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.logging.ProxyLogger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * Административный HTTP-интерфейс на отдельном порту.
+ * Компоненты сервера регистрируют свои пути через {@link #addEndpoint}.
+ */
+public class AdminServer {
+    private final ProxyConfig.AdminSettings settings;
+    private final ProxyLogger logger;
+    private final Map<String, AdminEndpoint> endpoints = new HashMap<>();
+    private HttpServer httpServer;
+
+    public AdminServer(ProxyConfig.AdminSettings settings, ProxyLogger logger) {
+        this.settings = settings;
+        this.logger = logger;
+    }
+
+    /**
+     * Регистрирует обработчик пути; вызывается до {@link #start()}
+     */
+    public void addEndpoint(String path, AdminEndpoint endpoint) {
+        endpoints.put(path, endpoint);
+    }
+
+    public void start() {
+        if (!settings.isEnabled()) {
+            return;
+        }
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(settings.getBindAddress(), settings.getPort()), 16);
+            for (Map.Entry<String, AdminEndpoint> entry : endpoints.entrySet()) {
+                AdminEndpoint endpoint = entry.getValue();
+                httpServer.createContext(entry.getKey(), exchange -> handle(exchange, endpoint));
+            }
+            httpServer.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "admin-http");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            httpServer.start();
+            logger.log(String.format("Admin endpoint is running on %s:%d",
+                    settings.getBindAddress(), settings.getPort()));
+        } catch (IOException e) {
+            logger.log("Admin endpoint error: " + e.getMessage());
+        }
+    }
+
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+    }
+
+    private void handle(HttpExchange exchange, AdminEndpoint endpoint) throws IOException {
+        int code = 200;
+        String body;
+        try {
+            body = endpoint.handle(exchange.getRequestMethod(), parseQuery(exchange.getRequestURI().getRawQuery()));
+        } catch (IllegalArgumentException e) {
+            code = 400;
+            body = "{\"error\":" + Json.quote(e.getMessage()) + "}";
+        } catch (Exception e) {
+            code = 500;
+            body = "{\"error\":" + Json.quote(String.valueOf(e.getMessage())) + "}";
+        }
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq >= 0 ? pair.substring(0, eq) : pair;
+            String value = eq >= 0 ? pair.substring(eq + 1) : "";
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+}
@@ -0,0 +1,49 @@
+package ru.vladtop46.proxy.admin;
+
+import ru.vladtop46.proxy.analytics.TrafficAnalytics;
+import ru.vladtop46.proxy.analytics.WindowedHeavyHitters;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Путь /top: самые нагруженные хосты и клиенты в скользящем окне
+ */
+public class AnalyticsEndpoint {
+    private final TrafficAnalytics analytics;
+
+    public AnalyticsEndpoint(TrafficAnalytics analytics) {
+        this.analytics = analytics;
+    }
+
+    public void register(AdminServer adminServer) {
+        adminServer.addEndpoint("/top", this::top);
+    }
+
+    private String top(String method, Map<String, String> params) {
+        String kind = params.getOrDefault("kind", "hosts");
+        long window;
+        int limit;
+        try {
+            window = Long.parseLong(params.getOrDefault("window", "60"));
+            limit = Math.max(1, Integer.parseInt(params.getOrDefault("limit", "10")));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("window and limit must be numbers");
+        }
+
+        List<WindowedHeavyHitters.HeavyHitter> top = analytics.top(kind, window, limit);
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"kind\":").append(Json.quote(kind))
+                .append(",\"windowSeconds\":").append(Math.min(window, analytics.getMaxWindowSeconds()))
+                .append(",\"top\":[");
+        for (int i = 0; i < top.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"key\":").append(Json.quote(top.get(i).getKey()))
+                    .append(",\"bytes\":").append(top.get(i).getWeight())
+                    .append('}');
+        }
+        return sb.append("]}").toString();
+    }
+}
@@ -0,0 +1,96 @@
+package ru.vladtop46.proxy.admin;
+
+import ru.vladtop46.proxy.model.ConnectionInfo;
+import ru.vladtop46.proxy.registry.ConnectionRegistry;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Пути /connections, /connections/hosts и /connections/kill
+ */
+public class ConnectionsEndpoint {
+    private static final int DEFAULT_LIMIT = 50;
+
+    private final ConnectionRegistry registry;
+
+    public ConnectionsEndpoint(ConnectionRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void register(AdminServer adminServer) {
+        adminServer.addEndpoint("/connections", this::list);
+        adminServer.addEndpoint("/connections/hosts", this::hosts);
+        adminServer.addEndpoint("/connections/kill", this::kill);
+    }
+
+    private String list(String method, Map<String, String> params) {
+        String sortBy = params.getOrDefault("sort", "bytes");
+        if (!"bytes".equals(sortBy) && !"age".equals(sortBy)) {
+            throw new IllegalArgumentException("sort must be 'bytes' or 'age'");
+        }
+        List<ConnectionInfo> connections = registry.top(sortBy, params.get("ip"), parseLimit(params));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"active\":").append(registry.size())
+                .append(",\"total\":").append(registry.getTotalRegistered())
+                .append(",\"connections\":[");
+        for (int i = 0; i < connections.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            appendConnection(sb, connections.get(i));
+        }
+        return sb.append("]}").toString();
+    }
+
+    private String hosts(String method, Map<String, String> params) {
+        List<ConnectionRegistry.HostSummary> hosts = registry.topHosts(params.get("ip"), parseLimit(params));
+
+        StringBuilder sb = new StringBuilder("{\"hosts\":[");
+        for (int i = 0; i < hosts.size(); i++) {
+            ConnectionRegistry.HostSummary host = hosts.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"host\":").append(Json.quote(host.getHost()))
+                    .append(",\"connections\":").append(host.getConnections())
+                    .append(",\"bytes\":").append(host.getBytes())
+                    .append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    private String kill(String method, Map<String, String> params) {
+        if (!"POST".equals(method)) {
+            throw new IllegalArgumentException("use POST /connections/kill?id=<id>");
+        }
+        String id = params.get("id");
+        if (id == null || id.isEmpty()) {
+            throw new IllegalArgumentException("missing 'id' parameter");
+        }
+        return "{\"id\":" + Json.quote(id) + ",\"terminated\":" + registry.terminate(id) + "}";
+    }
+
+    private static int parseLimit(Map<String, String> params) {
+        try {
+            return Math.max(1, Integer.parseInt(params.getOrDefault("limit", String.valueOf(DEFAULT_LIMIT))));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("limit must be a number");
+        }
+    }
+
+    private static void appendConnection(StringBuilder sb, ConnectionInfo info) {
+        sb.append("{\"id\":").append(Json.quote(info.getId()))
+                .append(",\"clientIp\":").append(Json.quote(info.getClientIp()))
+                .append(",\"clientPort\":").append(info.getClientPort())
+                .append(",\"targetHost\":").append(Json.quote(info.getTargetHost()))
+                .append(",\"targetPort\":").append(info.getTargetPort())
+                .append(",\"type\":").append(Json.quote(info.getConnectionType()))
+                .append(",\"status\":").append(Json.quote(info.getStatus()))
+                .append(",\"ageMs\":").append(info.getAgeMillis())
+                .append(",\"bytesFromClient\":").append(info.getBytesFromClient())
+                .append(",\"bytesToClient\":").append(info.getBytesToClient())
+                .append('}');
+    }
+}
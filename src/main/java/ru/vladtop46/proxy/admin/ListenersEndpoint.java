@@ -0,0 +1,42 @@
+package ru.vladtop46.proxy.admin;
+
+import ru.vladtop46.proxy.listener.Acceptor;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Путь /listeners: счетчики и скорость приема по каждому приемщику
+ */
+public class ListenersEndpoint {
+    private final List<Acceptor> acceptors;
+
+    /**
+     * @param acceptors живой список приемщиков сервера
+     */
+    public ListenersEndpoint(List<Acceptor> acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    public void register(AdminServer adminServer) {
+        adminServer.addEndpoint("/listeners", this::listeners);
+    }
+
+    private String listeners(String method, Map<String, String> params) {
+        StringBuilder sb = new StringBuilder("{\"acceptors\":[");
+        boolean first = true;
+        for (Acceptor acceptor : acceptors) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"name\":").append(Json.quote(acceptor.getName()))
+                    .append(",\"accepted\":").append(acceptor.getAccepted())
+                    .append(",\"acceptsPerSecond\":").append(acceptor.getAcceptRate())
+                    .append(",\"peakAcceptsPerSecond\":").append(acceptor.getPeakAcceptRate())
+                    .append(",\"errors\":").append(acceptor.getErrors())
+                    .append('}');
+        }
+        return sb.append("]}").toString();
+    }
+}
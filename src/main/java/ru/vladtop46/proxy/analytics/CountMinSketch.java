@@ -0,0 +1,57 @@
+package ru.vladtop46.proxy.analytics;
+
+import java.util.Arrays;
+
+/**
+ * Count-min sketch: оценка суммарного веса ключа сверху в фиксированной памяти.
+ * Не потокобезопасен, синхронизация - на стороне вызывающего.
+ */
+public class CountMinSketch {
+    private final int depth;
+    private final int mask;
+    private final long[][] table;
+
+    /**
+     * @param width ширина строки (округляется до степени двойки)
+     * @param depth число независимых хеш-функций
+     */
+    public CountMinSketch(int width, int depth) {
+        int size = Integer.highestOneBit(Math.max(16, width) * 2 - 1);
+        this.depth = Math.max(1, depth);
+        this.mask = size - 1;
+        this.table = new long[this.depth][size];
+    }
+
+    public void add(String key, long weight) {
+        int hash = key.hashCode();
+        for (int row = 0; row < depth; row++) {
+            table[row][index(hash, row)] += weight;
+        }
+    }
+
+    public long estimate(String key) {
+        int hash = key.hashCode();
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, table[row][index(hash, row)]);
+        }
+        return min;
+    }
+
+    public void clear() {
+        for (long[] row : table) {
+            Arrays.fill(row, 0);
+        }
+    }
+
+    private int index(int hash, int row) {
+        // Перемешивание murmur3 с отдельной солью для каждой строки
+        int h = hash ^ (0x9E3779B9 * (row + 1));
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+}
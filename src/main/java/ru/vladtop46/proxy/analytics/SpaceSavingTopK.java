@@ -0,0 +1,52 @@
+package ru.vladtop46.proxy.analytics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Алгоритм Space-Saving: хранит не более capacity кандидатов в тяжеловесы.
+ * Новый ключ при заполнении вытесняет минимальный и наследует его счетчик.
+ * Не потокобезопасен, синхронизация - на стороне вызывающего.
+ */
+public class SpaceSavingTopK {
+    private final int capacity;
+    private final Map<String, long[]> counters;
+
+    public SpaceSavingTopK(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.counters = new HashMap<>(this.capacity * 2);
+    }
+
+    public void add(String key, long weight) {
+        long[] counter = counters.get(key);
+        if (counter != null) {
+            counter[0] += weight;
+            return;
+        }
+        if (counters.size() < capacity) {
+            counters.put(key, new long[]{weight});
+            return;
+        }
+
+        String minKey = null;
+        long[] minCounter = null;
+        for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+            if (minCounter == null || entry.getValue()[0] < minCounter[0]) {
+                minKey = entry.getKey();
+                minCounter = entry.getValue();
+            }
+        }
+        counters.remove(minKey);
+        minCounter[0] += weight;
+        counters.put(key, minCounter);
+    }
+
+    public Set<String> keys() {
+        return counters.keySet();
+    }
+
+    public void clear() {
+        counters.clear();
+    }
+}
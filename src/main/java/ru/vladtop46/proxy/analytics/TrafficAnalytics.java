@@ -0,0 +1,66 @@
+package ru.vladtop46.proxy.analytics;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Потоковая статистика трафика: самые нагруженные целевые хосты и клиенты
+ * по переданным байтам в скользящем окне
+ */
+public class TrafficAnalytics {
+    private final boolean enabled;
+    private final WindowedHeavyHitters hosts;
+    private final WindowedHeavyHitters clients;
+
+    public TrafficAnalytics(ProxyConfig.AnalyticsSettings settings) {
+        this.enabled = settings.isEnabled();
+        long slotMillis = TimeUnit.SECONDS.toMillis(Math.max(1, settings.getSlotSeconds()));
+        this.hosts = new WindowedHeavyHitters(slotMillis, settings.getSlots(),
+                settings.getSketchWidth(), settings.getSketchDepth(), settings.getCandidates());
+        this.clients = new WindowedHeavyHitters(slotMillis, settings.getSlots(),
+                settings.getSketchWidth(), settings.getSketchDepth(), settings.getCandidates());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Учитывает переданные байты
+     * @param targetHost целевой хост или null, если он еще не известен
+     * @param clientIp IP клиента
+     * @param bytes число байт с момента предыдущего вызова для соединения
+     */
+    public void record(String targetHost, String clientIp, long bytes) {
+        if (!enabled || bytes <= 0) {
+            return;
+        }
+        if (targetHost != null) {
+            hosts.add(targetHost.toLowerCase(), bytes);
+        }
+        clients.add(clientIp, bytes);
+    }
+
+    /**
+     * @param kind "hosts" или "clients"
+     * @param windowSeconds длина окна в секундах
+     * @param limit число записей
+     */
+    public List<WindowedHeavyHitters.HeavyHitter> top(String kind, long windowSeconds, int limit) {
+        WindowedHeavyHitters source;
+        if ("hosts".equals(kind)) {
+            source = hosts;
+        } else if ("clients".equals(kind)) {
+            source = clients;
+        } else {
+            throw new IllegalArgumentException("kind must be 'hosts' or 'clients'");
+        }
+        return source.top(TimeUnit.SECONDS.toMillis(windowSeconds), limit);
+    }
+
+    public long getMaxWindowSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(hosts.getWindowMillis());
+    }
+}
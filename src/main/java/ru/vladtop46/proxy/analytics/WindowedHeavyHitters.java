@@ -0,0 +1,116 @@
+package ru.vladtop46.proxy.analytics;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Тяжеловесы в скользящем окне: кольцо временных слотов, в каждом
+ * count-min sketch и Space-Saving кандидаты. Память не зависит от числа
+ * различных ключей.
+ */
+public class WindowedHeavyHitters {
+    private final long slotMillis;
+    private final Slot[] slots;
+
+    public WindowedHeavyHitters(long slotMillis, int slotCount, int sketchWidth, int sketchDepth, int candidates) {
+        this.slotMillis = Math.max(1, slotMillis);
+        this.slots = new Slot[Math.max(1, slotCount)];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(sketchWidth, sketchDepth, candidates);
+        }
+    }
+
+    public void add(String key, long weight) {
+        long epoch = System.currentTimeMillis() / slotMillis;
+        Slot slot = slots[(int) (epoch % slots.length)];
+        synchronized (slot) {
+            if (slot.epoch != epoch) {
+                slot.reset(epoch);
+            }
+            slot.sketch.add(key, weight);
+            slot.topK.add(key, weight);
+        }
+    }
+
+    /**
+     * Возвращает самые тяжелые ключи за последние windowMillis
+     * @param windowMillis длина окна (не больше полного кольца)
+     * @param limit число ключей
+     */
+    public List<HeavyHitter> top(long windowMillis, int limit) {
+        long currentEpoch = System.currentTimeMillis() / slotMillis;
+        long slotsInWindow = Math.min(slots.length, Math.max(1, (windowMillis + slotMillis - 1) / slotMillis));
+        long oldestEpoch = currentEpoch - slotsInWindow + 1;
+
+        // Собираем кандидатов со всех слотов окна, оценку суммируем по скетчам
+        List<Slot> windowSlots = new ArrayList<>();
+        Set<String> candidates = new HashSet<>();
+        for (Slot slot : slots) {
+            synchronized (slot) {
+                if (slot.epoch >= oldestEpoch && slot.epoch <= currentEpoch) {
+                    windowSlots.add(slot);
+                    candidates.addAll(slot.topK.keys());
+                }
+            }
+        }
+
+        List<HeavyHitter> result = new ArrayList<>(candidates.size());
+        for (String key : candidates) {
+            long estimate = 0;
+            for (Slot slot : windowSlots) {
+                synchronized (slot) {
+                    if (slot.epoch >= oldestEpoch) {
+                        estimate += slot.sketch.estimate(key);
+                    }
+                }
+            }
+            result.add(new HeavyHitter(key, estimate));
+        }
+        result.sort((a, b) -> Long.compare(b.getWeight(), a.getWeight()));
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    public long getWindowMillis() {
+        return slotMillis * slots.length;
+    }
+
+    private static class Slot {
+        private final CountMinSketch sketch;
+        private final SpaceSavingTopK topK;
+        private long epoch = -1;
+
+        private Slot(int sketchWidth, int sketchDepth, int candidates) {
+            this.sketch = new CountMinSketch(sketchWidth, sketchDepth);
+            this.topK = new SpaceSavingTopK(candidates);
+        }
+
+        private void reset(long newEpoch) {
+            sketch.clear();
+            topK.clear();
+            epoch = newEpoch;
+        }
+    }
+
+    /**
+     * Ключ и оценка его веса сверху
+     */
+    public static class HeavyHitter {
+        private final String key;
+        private final long weight;
+
+        public HeavyHitter(String key, long weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+    }
+}
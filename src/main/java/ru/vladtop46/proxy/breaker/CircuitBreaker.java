@@ -0,0 +1,188 @@
+package ru.vladtop46.proxy.breaker;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+
+import java.util.Arrays;
+
+/**
+ * Автомат защиты одного источника (host:port).
+ * <p>
+ * CLOSED: запросы идут, ошибки считаются в скользящем окне windowMs из
+ * {@value #WINDOW_BUCKETS} корзин; при достижении порога автомат размыкается. OPEN: запросы сразу отклоняются до истечения паузы.
+ * HALF_OPEN: пропускается один пробный запрос; успех замыкает автомат,
+ * ошибка снова размыкает его с удвоенной паузой. Ошибка разрешения имени
+ * размыкает автомат сразу - это отрицательный кеш DNS.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    // Число корзин скользящего окна ошибок; окно сдвигается на одну корзину
+    static final int WINDOW_BUCKETS = 10;
+
+    private final String key;
+    private State state = State.CLOSED;
+    private final int[] bucketFailures = new int[WINDOW_BUCKETS];
+    // Номер интервала, к которому относятся ошибки корзины
+    private final long[] bucketEpochs = new long[WINDOW_BUCKETS];
+    private long bucketMillis;
+    private long lastFailureAt;
+    private long openUntil;
+    private long openMillis;
+    private long probeStartedAt;
+    private int failureStatus = 502;
+    private String lastError;
+    private long rejected;
+
+    CircuitBreaker(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Можно ли сейчас обратиться к источнику. В полуоткрытом состоянии
+     * разрешение получает только один пробный запрос.
+     */
+    public synchronized boolean tryAcquire(ProxyConfig.CircuitBreakerSettings settings, long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now < openUntil) {
+                    rejected++;
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probeStartedAt = now;
+                return true;
+            default:
+                // Пробный запрос мог потеряться (клиент ушел) - тогда разрешаем новый
+                if (now - probeStartedAt > Math.max(settings.getOpenMs(), openMillis)) {
+                    probeStartedAt = now;
+                    return true;
+                }
+                rejected++;
+                return false;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        clearWindow();
+        openMillis = 0;
+        lastError = null;
+    }
+
+    /**
+     * @param status код ответа клиенту при быстром отказе: 502 или 504
+     * @param immediate разомкнуть сразу, не дожидаясь порога
+     * @param immediateOpenMs пауза для немедленного размыкания
+     * @return true если этой ошибкой автомат разомкнут
+     */
+    public synchronized boolean recordFailure(ProxyConfig.CircuitBreakerSettings settings, long now, int status,
+                                              String error, boolean immediate, long immediateOpenMs) {
+        failureStatus = status;
+        lastError = error;
+        lastFailureAt = now;
+        if (state == State.HALF_OPEN) {
+            // Проба не удалась: пауза растет до максимума
+            openMillis = Math.min(Math.max(settings.getOpenMs(), openMillis * 2), settings.getMaxOpenMs());
+            open(now, openMillis);
+            return true;
+        }
+        if (state == State.OPEN) {
+            return false;
+        }
+        if (immediate) {
+            open(now, immediateOpenMs);
+            return true;
+        }
+
+        if (countFailure(now, settings.getWindowMs()) >= Math.max(1, settings.getFailureThreshold())) {
+            openMillis = settings.getOpenMs();
+            open(now, openMillis);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Добавляет ошибку в текущую корзину
+     * @return число ошибок за последние windowMs с точностью до одной корзины
+     */
+    private int countFailure(long now, long windowMs) {
+        long width = Math.max(1, windowMs / WINDOW_BUCKETS);
+        if (width != bucketMillis) {
+            // Окно изменено перезагрузкой конфигурации: старые корзины несопоставимы
+            clearWindow();
+            bucketMillis = width;
+        }
+        long epoch = now / width;
+        int index = (int) (epoch % WINDOW_BUCKETS);
+        if (bucketEpochs[index] != epoch) {
+            bucketEpochs[index] = epoch;
+            bucketFailures[index] = 0;
+        }
+        bucketFailures[index]++;
+
+        int total = 0;
+        for (int i = 0; i < WINDOW_BUCKETS; i++) {
+            if (epoch - bucketEpochs[i] < WINDOW_BUCKETS) {
+                total += bucketFailures[i];
+            }
+        }
+        return total;
+    }
+
+    private void clearWindow() {
+        Arrays.fill(bucketFailures, 0);
+        Arrays.fill(bucketEpochs, 0);
+    }
+
+    private void open(long now, long millis) {
+        state = State.OPEN;
+        openUntil = now + millis;
+        clearWindow();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Код ответа для быстрого отказа: 504 если источник не отвечал, иначе 502
+     */
+    public synchronized int getFailureStatus() {
+        return failureStatus;
+    }
+
+    public synchronized String getLastError() {
+        return lastError;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public synchronized long getOpenRemainingMillis(long now) {
+        return state == State.OPEN ? Math.max(0, openUntil - now) : 0;
+    }
+
+    /**
+     * Автомат без истории, который можно удалить из реестра
+     */
+    synchronized boolean isIdle(long now) {
+        return state == State.CLOSED && (lastFailureAt == 0 || now - lastFailureAt > 60_000L);
+    }
+
+    /**
+     * Время последней ошибки; по нему выбирается жертва, когда свободных автоматов нет
+     */
+    synchronized long getLastFailureAt() {
+        return lastFailureAt;
+    }
+}
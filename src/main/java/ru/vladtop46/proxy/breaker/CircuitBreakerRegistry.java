@@ -0,0 +1,165 @@
+package ru.vladtop46.proxy.breaker;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.logging.ProxyLogger;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Автоматы защиты по источникам (host:port).
+ * <p>
+ * Неудачные соединения и ответы считаются по каждому источнику; пока
+ * автомат разомкнут, обработчик сразу отвечает клиенту 502 или 504 и не
+ * тратит поток и сокет на заведомо недоступный источник. Число записей
+ * ограничено: при переполнении удаляются замкнутые автоматы без недавних
+ * ошибок, а если таких нет - автомат с самой давней ошибкой.
+ */
+public class CircuitBreakerRegistry {
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final ProxyLogger logger;
+    private volatile ProxyConfig.CircuitBreakerSettings settings;
+
+    public CircuitBreakerRegistry(ProxyConfig.CircuitBreakerSettings settings, ProxyLogger logger) {
+        this.settings = settings;
+        this.logger = logger;
+    }
+
+    public void update(ProxyConfig.CircuitBreakerSettings settings) {
+        this.settings = settings;
+    }
+
+    public boolean isEnabled() {
+        return settings.isEnabled();
+    }
+
+    /**
+     * Проверяет автомат источника перед соединением
+     * @throws CircuitOpenException если автомат разомкнут
+     */
+    public void acquire(String host, int port) throws CircuitOpenException {
+        ProxyConfig.CircuitBreakerSettings current = settings;
+        if (!current.isEnabled()) {
+            return;
+        }
+        CircuitBreaker breaker = breakers.get(key(host, port));
+        if (breaker == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (!breaker.tryAcquire(current, now)) {
+            throw new CircuitOpenException(breaker.getKey(), breaker.getFailureStatus(),
+                    breaker.getOpenRemainingMillis(now));
+        }
+    }
+
+    /**
+     * Источник ответил: автомат замыкается
+     */
+    public void recordSuccess(String host, int port) {
+        if (!settings.isEnabled()) {
+            return;
+        }
+        CircuitBreaker breaker = breakers.get(key(host, port));
+        if (breaker == null) {
+            return;
+        }
+        boolean wasOpen = breaker.getState() != CircuitBreaker.State.CLOSED;
+        breaker.recordSuccess();
+        if (wasOpen) {
+            logger.log("Circuit closed for " + breaker.getKey());
+        }
+    }
+
+    /**
+     * Ошибка соединения или ответа источника
+     * @param status код ответа клиенту на время размыкания: 502 или 504
+     */
+    public void recordFailure(String host, int port, IOException error, int status) {
+        ProxyConfig.CircuitBreakerSettings current = settings;
+        if (!current.isEnabled() || error instanceof CircuitOpenException) {
+            return;
+        }
+        String key = key(host, port);
+        CircuitBreaker breaker = breakers.get(key);
+        if (breaker == null) {
+            if (breakers.size() >= current.getMaxEntries()) {
+                evictIdle();
+            }
+            breaker = breakers.computeIfAbsent(key, CircuitBreaker::new);
+        }
+
+        boolean unresolved = error instanceof UnknownHostException;
+        if (breaker.recordFailure(current, System.currentTimeMillis(), status, error.getMessage(),
+                unresolved, current.getNegativeDnsTtlMs())) {
+            logger.log("Circuit opened for " + key + (unresolved ? " (unresolved host)" : "") + ": "
+                    + error.getMessage());
+        }
+    }
+
+    /**
+     * Код ответа клиенту для ошибки источника: 504 для таймаута, иначе 502
+     */
+    public static int statusFor(IOException error) {
+        if (error instanceof CircuitOpenException) {
+            return ((CircuitOpenException) error).getStatusCode();
+        }
+        return error instanceof SocketTimeoutException ? 504 : 502;
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        if (breakers.values().removeIf(breaker -> breaker.isIdle(now))) {
+            return;
+        }
+        String oldest = null;
+        long oldestFailure = Long.MAX_VALUE;
+        for (Map.Entry<String, CircuitBreaker> entry : breakers.entrySet()) {
+            long failureAt = entry.getValue().getLastFailureAt();
+            if (failureAt < oldestFailure) {
+                oldestFailure = failureAt;
+                oldest = entry.getKey();
+            }
+        }
+        if (oldest != null) {
+            breakers.remove(oldest);
+        }
+    }
+
+    private static String key(String host, int port) {
+        return host.toLowerCase() + ":" + port;
+    }
+
+    public String getStatus() {
+        if (!settings.isEnabled()) {
+            return "Circuit breakers: disabled";
+        }
+        long now = System.currentTimeMillis();
+        List<String> open = new ArrayList<>();
+        long rejected = 0;
+        for (CircuitBreaker breaker : breakers.values()) {
+            rejected += breaker.getRejected();
+            CircuitBreaker.State state = breaker.getState();
+            if (state == CircuitBreaker.State.OPEN) {
+                open.add(breaker.getKey() + "[" + breaker.getOpenRemainingMillis(now) + " ms]");
+            } else if (state == CircuitBreaker.State.HALF_OPEN) {
+                open.add(breaker.getKey() + "[probe]");
+            }
+        }
+        StringBuilder sb = new StringBuilder(String.format("Circuit breakers: tracked=%d, open=%d, fast-failed=%d",
+                breakers.size(), open.size(), rejected));
+        int shown = Math.min(open.size(), 10);
+        for (int i = 0; i < shown; i++) {
+            sb.append(i == 0 ? " - " : ", ").append(open.get(i));
+        }
+        if (open.size() > shown) {
+            sb.append(", ...");
+        }
+        return sb.toString();
+    }
+}
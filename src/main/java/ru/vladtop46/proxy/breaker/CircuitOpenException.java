@@ -0,0 +1,33 @@
+package ru.vladtop46.proxy.breaker;
+
+import java.io.IOException;
+
+/**
+ * Соединение с источником не устанавливалось: его автомат защиты разомкнут
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final long retryAfterMillis;
+
+    public CircuitOpenException(String key, int statusCode, long retryAfterMillis) {
+        super("Circuit open for " + key + ", retry in " + retryAfterMillis + " ms");
+        this.statusCode = statusCode;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Код ответа клиенту: 502 или 504
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Значение заголовка Retry-After: секунды до пробного запроса, не меньше одной
+     */
+    public long getRetryAfterSeconds() {
+        return Math.max(1, (retryAfterMillis + 999) / 1000);
+    }
+}
@@ -0,0 +1,148 @@
+package ru.vladtop46.proxy.cache;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Соседний узел кеша: адрес его прокси-порта и пул постоянных соединений к нему.
+ * После сетевой ошибки узел исключается из кольца на {@code peerRetryMs},
+ * его ключи на это время обслуживают следующие по кольцу узлы.
+ */
+public class CachePeer {
+    private final String name;
+    private final InetSocketAddress address;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long downUntil;
+
+    CachePeer(String name, InetSocketAddress address) {
+        this.name = name;
+        this.address = address;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    InetAddress getInetAddress() {
+        return address.getAddress();
+    }
+
+    boolean isUsable(long now) {
+        return now >= downUntil;
+    }
+
+    /**
+     * Постоянное соединение из пула или новое
+     */
+    public Connection borrow(int connectTimeoutMs) throws IOException {
+        Connection connection = idle.pollFirst();
+        if (connection != null) {
+            idleCount.decrementAndGet();
+            return connection;
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, connectTimeoutMs);
+            socket.setTcpNoDelay(true);
+            return new Connection(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Возвращает соединение в пул; лишние и непригодные соединения закрываются
+     * @param reusable ответ прочитан полностью и соединение можно использовать снова
+     */
+    public void release(Connection connection, boolean reusable, int maxIdle) {
+        if (reusable && idleCount.get() < maxIdle) {
+            idleCount.incrementAndGet();
+            idle.offerFirst(connection);
+        } else {
+            connection.close();
+        }
+    }
+
+    public void recordForwarded() {
+        forwarded.incrementAndGet();
+    }
+
+    /**
+     * Сетевая ошибка: узел выводится из кольца, простаивающие соединения закрываются
+     */
+    public void markDown(long retryMillis) {
+        failures.incrementAndGet();
+        downUntil = System.currentTimeMillis() + retryMillis;
+        closeIdle();
+    }
+
+    void closeIdle() {
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            connection.close();
+        }
+    }
+
+    long getForwarded() {
+        return forwarded.get();
+    }
+
+    long getFailures() {
+        return failures.get();
+    }
+
+    int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * Соединение с узлом; буфер чтения живет вместе с сокетом, так как
+     * в нем могут остаться байты следующего ответа
+     */
+    public static final class Connection implements Closeable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        public Socket getSocket() {
+            return socket;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Уже закрыт
+            }
+        }
+    }
+}
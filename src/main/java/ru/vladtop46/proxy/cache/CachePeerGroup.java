@@ -0,0 +1,221 @@
+package ru.vladtop46.proxy.cache;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.listener.ListenAddress;
+import ru.vladtop46.proxy.logging.ProxyLogger;
+import ru.vladtop46.proxy.upstream.ConsistentHashRing;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Группа узлов совместного кеша.
+ * <p>
+ * Ключи кеша распределяются согласованным хешированием по всем узлам,
+ * включая этот. Промах по ключу, которым владеет другой узел, уходит к
+ * владельцу, и объект хранится только у него. При добавлении или выпадении
+ * узла меняют владельца лишь ключи этого узла.
+ */
+public class CachePeerGroup {
+    /**
+     * Заголовок запроса от соседнего узла; такие запросы дальше не пересылаются
+     */
+    public static final String PEER_HEADER = "X-Proxy-Peer";
+
+    private final ProxyLogger logger;
+    private final AtomicLong forwardFailures = new AtomicLong();
+    // Постоянные соединения от соседних узлов, обслуживаемые этим узлом
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    private volatile State state;
+
+    public CachePeerGroup(ProxyConfig.CacheSettings settings, ProxyLogger logger) {
+        this.logger = logger;
+        this.state = new State(settings, new HashMap<>(), logger);
+    }
+
+    /**
+     * Применяет новый список узлов, сохраняя пулы соединений оставшихся
+     */
+    public void update(ProxyConfig.CacheSettings settings) {
+        State previous = state;
+        Map<String, CachePeer> existing = new HashMap<>(previous.peers);
+        state = new State(settings, existing, logger);
+        for (Map.Entry<String, CachePeer> entry : previous.peers.entrySet()) {
+            if (!state.peers.containsKey(entry.getKey())) {
+                entry.getValue().closeIdle();
+            }
+        }
+    }
+
+    /**
+     * Соединение от соседнего узла перешло в постоянный режим
+     */
+    public void registerInbound(Socket socket) {
+        inbound.add(socket);
+    }
+
+    public void unregisterInbound(Socket socket) {
+        inbound.remove(socket);
+    }
+
+    /**
+     * Закрывает постоянные соединения в обе стороны при остановке узла: соседи
+     * сразу замечают его выпадение, а ожидающие обработчики завершаются
+     */
+    public void closeConnections() {
+        for (CachePeer peer : state.peers.values()) {
+            peer.closeIdle();
+        }
+        for (Socket socket : inbound) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Уже закрыт
+            }
+        }
+        inbound.clear();
+    }
+
+    public boolean isEnabled() {
+        State current = state;
+        return current.settings.isEnabled() && current.self != null && current.peers.size() > 1;
+    }
+
+    /**
+     * Адрес принадлежит одному из соседних узлов. Только их запросам с
+     * заголовком {@link #PEER_HEADER} доверяется: такой запрос не пересылается
+     * дальше и держит соединение открытым.
+     */
+    public boolean isPeerAddress(InetAddress remote) {
+        State current = state;
+        if (!isEnabled() || remote == null) {
+            return false;
+        }
+        for (CachePeer peer : current.peers.values()) {
+            if (peer != current.self && remote.equals(peer.getInetAddress())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Имя этого узла в группе или null
+     */
+    public String getSelfName() {
+        CachePeer self = state.self;
+        return self != null ? self.getName() : null;
+    }
+
+    /**
+     * Узел-владелец ключа, если это не текущий узел
+     * @return соседний узел или null, если ключ принадлежит этому узлу
+     */
+    public CachePeer ownerOf(String key) {
+        State current = state;
+        if (!isEnabled()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        CachePeer owner = current.ring.get(key, peer -> peer == current.self || peer.isUsable(now));
+        return owner == current.self ? null : owner;
+    }
+
+    public int getConnectTimeoutMs() {
+        return state.settings.getPeerConnectTimeoutMs();
+    }
+
+    public int getMaxIdleConnections() {
+        return state.settings.getPeerIdleConnections();
+    }
+
+    /**
+     * Узел не ответил: его ключи временно обслуживаются следующими по кольцу
+     */
+    public void recordFailure(CachePeer peer, String reason) {
+        forwardFailures.incrementAndGet();
+        peer.markDown(state.settings.getPeerRetryMs());
+        logger.log("Cache peer " + peer.getName() + " unavailable for "
+                + state.settings.getPeerRetryMs() + " ms: " + reason);
+    }
+
+    public String getStatus() {
+        if (!isEnabled()) {
+            return "Cache peers: disabled";
+        }
+        State current = state;
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder("Cache peers (self ").append(current.self.getName())
+                .append(", forward failures=").append(forwardFailures.get()).append("):");
+        for (CachePeer peer : current.peers.values()) {
+            if (peer == current.self) {
+                continue;
+            }
+            sb.append(String.format(" %s[%s, forwarded=%d, failures=%d, idle=%d]", peer.getName(),
+                    peer.isUsable(now) ? "up" : "down", peer.getForwarded(), peer.getFailures(),
+                    peer.getIdleCount()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Неизменяемый состав группы, заменяется целиком при перезагрузке
+     */
+    private static final class State {
+        private final ProxyConfig.CacheSettings settings;
+        private final Map<String, CachePeer> peers;
+        private final CachePeer self;
+        private final ConsistentHashRing<CachePeer> ring;
+
+        private State(ProxyConfig.CacheSettings settings, Map<String, CachePeer> existing, ProxyLogger logger) {
+            this.settings = settings;
+            Map<String, CachePeer> map = new HashMap<>();
+            String selfName = null;
+            if (settings.getSelf() != null && !settings.getSelf().isBlank()) {
+                selfName = nameOf(settings.getSelf(), logger);
+            }
+            List<String> values = new ArrayList<>();
+            if (settings.getPeers() != null) {
+                values.addAll(settings.getPeers());
+            }
+            if (selfName != null) {
+                values.add(settings.getSelf());
+            }
+            for (String value : values) {
+                String name = nameOf(value, logger);
+                if (name == null || map.containsKey(name)) {
+                    continue;
+                }
+                CachePeer peer = existing.get(name);
+                if (peer == null) {
+                    InetSocketAddress address = ListenAddress.parse(value);
+                    peer = new CachePeer(name, address);
+                }
+                map.put(name, peer);
+            }
+            this.peers = Map.copyOf(map);
+            this.self = selfName != null ? map.get(selfName) : null;
+            this.ring = new ConsistentHashRing<>(new ArrayList<>(peers.values()), CachePeer::getName,
+                    settings.getVirtualNodes());
+        }
+
+        private static String nameOf(String value, ProxyLogger logger) {
+            try {
+                InetSocketAddress address = ListenAddress.parse(value);
+                return address.getHostString() + ":" + address.getPort();
+            } catch (IllegalArgumentException e) {
+                logger.log("Invalid cache peer address: " + value);
+                return null;
+            }
+        }
+    }
+}
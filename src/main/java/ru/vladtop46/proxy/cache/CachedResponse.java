@@ -0,0 +1,41 @@
+package ru.vladtop46.proxy.cache;
+
+/**
+ * Ответ в кеше: заголовки без полей соединения и тело целиком
+ */
+public final class CachedResponse {
+    private final HttpHead head;
+    private final byte[] body;
+    private final long storedAt;
+    private final long expiresAt;
+
+    CachedResponse(HttpHead head, byte[] body, long storedAt, long expiresAt) {
+        this.head = head;
+        this.body = body;
+        this.storedAt = storedAt;
+        this.expiresAt = expiresAt;
+    }
+
+    public HttpHead getHead() {
+        return head;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public boolean isFresh(long now) {
+        return now < expiresAt;
+    }
+
+    /**
+     * Возраст ответа в секундах для заголовка Age
+     */
+    public long getAgeSeconds(long now) {
+        return Math.max(0, (now - storedAt) / 1000);
+    }
+
+    long getSize() {
+        return body.length + head.estimateSize();
+    }
+}
@@ -0,0 +1,268 @@
+package ru.vladtop46.proxy.cache;
+
+import ru.vladtop46.proxy.filter.HeaderBlock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Стартовая строка и заголовки HTTP-сообщения, прочитанные побайтно,
+ * чтобы тело ответа дальше передавалось без перекодирования
+ */
+public final class HttpHead {
+    private static final int MAX_HEAD_BYTES = 64 * 1024;
+    // Заголовки одного соединения, которые не хранятся в кеше и не пересылаются дальше
+    private static final Set<String> HOP_BY_HOP = Set.of("connection", "keep-alive", "proxy-connection",
+            "transfer-encoding", "te", "trailer", "upgrade");
+
+    private final String firstLine;
+    private final List<String> names;
+    private final List<String> values;
+
+    private HttpHead(String firstLine, List<String> names, List<String> values) {
+        this.firstLine = firstLine;
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * Читает заголовки до пустой строки
+     * @return заголовки или null, если соединение закрыто до первого байта
+     */
+    public static HttpHead read(InputStream in) throws IOException {
+        String firstLine = readLine(in, true);
+        if (firstLine == null) {
+            return null;
+        }
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        int total = firstLine.length();
+        String line;
+        while (!(line = readLine(in, false)).isEmpty()) {
+            total += line.length();
+            if (total > MAX_HEAD_BYTES) {
+                throw new IOException("Response headers too large");
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                names.add(line.substring(0, colon).trim());
+                values.add(line.substring(colon + 1).trim());
+            }
+        }
+        return new HttpHead(firstLine, names, values);
+    }
+
+    /**
+     * Заголовки из блока, прочитанного и, возможно, измененного фильтрами
+     */
+    public static HttpHead from(HeaderBlock block) {
+        int size = block.size();
+        List<String> names = new ArrayList<>(size);
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            names.add(block.name(i));
+            values.add(block.value(i));
+        }
+        return new HttpHead(block.getFirstLine(), names, values);
+    }
+
+    private static String readLine(InputStream in, boolean eofAllowed) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                if (eofAllowed && sb.length() == 0) {
+                    return null;
+                }
+                throw new IOException("Connection closed inside headers");
+            }
+            if (b != '\r') {
+                sb.append((char) b);
+            }
+            if (sb.length() > MAX_HEAD_BYTES) {
+                throw new IOException("Header line too long");
+            }
+        }
+        return sb.toString();
+    }
+
+    public String getFirstLine() {
+        return firstLine;
+    }
+
+    /**
+     * Код ответа из статусной строки или -1
+     */
+    public int getStatusCode() {
+        String[] parts = firstLine.split(" ");
+        try {
+            return parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Значение первого заголовка с таким именем без учета регистра или null
+     */
+    public String get(String name) {
+        for (int i = 0; i < names.size(); i++) {
+            if (names.get(i).equalsIgnoreCase(name)) {
+                return values.get(i);
+            }
+        }
+        return null;
+    }
+
+    public boolean contains(String name) {
+        return get(name) != null;
+    }
+
+    /**
+     * Длина тела из Content-Length или -1
+     */
+    public long getContentLength() {
+        String value = get("content-length");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Тело передается чанками: его конец определяется разбором, а не длиной
+     */
+    public boolean isChunked() {
+        String value = get("transfer-encoding");
+        return value != null && value.toLowerCase().contains("chunked");
+    }
+
+    /**
+     * Число заголовков
+     */
+    public int size() {
+        return names.size();
+    }
+
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    public String getValue(int index) {
+        return values.get(index);
+    }
+
+    /**
+     * Заголовки по именам в нижнем регистре; из повторяющихся остается последний
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> map = new HashMap<>(Math.max(16, names.size() * 2));
+        for (int i = 0; i < names.size(); i++) {
+            map.put(names.get(i).toLowerCase(), values.get(i));
+        }
+        return map;
+    }
+
+    /**
+     * Копия без заголовков одного соединения, пригодная для хранения
+     */
+    public HttpHead withoutHopByHop() {
+        List<String> keptNames = new ArrayList<>();
+        List<String> keptValues = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            if (!HOP_BY_HOP.contains(names.get(i).toLowerCase())) {
+                keptNames.add(names.get(i));
+                keptValues.add(values.get(i));
+            }
+        }
+        return new HttpHead(firstLine, keptNames, keptValues);
+    }
+
+    /**
+     * Копия без заголовков с указанными именами (в нижнем регистре)
+     */
+    public HttpHead without(String... dropped) {
+        Set<String> drop = Set.of(dropped);
+        List<String> keptNames = new ArrayList<>();
+        List<String> keptValues = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            if (!drop.contains(names.get(i).toLowerCase())) {
+                keptNames.add(names.get(i));
+                keptValues.add(values.get(i));
+            }
+        }
+        return new HttpHead(firstLine, keptNames, keptValues);
+    }
+
+    /**
+     * Копия с другой стартовой строкой, например статусом 206 вместо 200
+     */
+    public HttpHead withFirstLine(String line) {
+        return new HttpHead(line, names, values);
+    }
+
+    /**
+     * Сериализует заголовки с заменой Connection и дополнительными строками
+     * @param connection значение заголовка Connection или null, чтобы оставить исходные
+     * @param extra дополнительные строки заголовков вида "Name: value"
+     */
+    public byte[] toBytes(String connection, String... extra) {
+        StringBuilder sb = new StringBuilder(firstLine).append("\r\n");
+        for (int i = 0; i < names.size(); i++) {
+            if (connection != null && isConnectionHeader(names.get(i))) {
+                continue;
+            }
+            sb.append(names.get(i)).append(": ").append(values.get(i)).append("\r\n");
+        }
+        if (connection != null) {
+            sb.append("Connection: ").append(connection).append("\r\n");
+        }
+        for (String line : extra) {
+            sb.append(line).append("\r\n");
+        }
+        sb.append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isConnectionHeader(String name) {
+        return name.equalsIgnoreCase("connection") || name.equalsIgnoreCase("keep-alive")
+                || name.equalsIgnoreCase("proxy-connection");
+    }
+
+    /**
+     * Примерный размер заголовков в памяти для учета объема кеша
+     */
+    int estimateSize() {
+        int size = firstLine.length();
+        for (int i = 0; i < names.size(); i++) {
+            size += names.get(i).length() + values.get(i).length() + 4;
+        }
+        return size;
+    }
+
+    /**
+     * Читает тело известной длины целиком
+     */
+    public static byte[] readBody(InputStream in, int length) throws IOException {
+        byte[] body = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(body, offset, length - offset);
+            if (read == -1) {
+                throw new IOException("Connection closed after " + offset + " of " + length + " bytes");
+            }
+            offset += read;
+        }
+        return body;
+    }
+}
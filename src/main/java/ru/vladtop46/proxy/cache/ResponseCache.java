@@ -0,0 +1,226 @@
+package ru.vladtop46.proxy.cache;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.memory.MemoryBudget;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кеш ответов на GET в памяти с вытеснением давно не использованных записей.
+ * <p>
+ * Кешируются только ответы 200 с известной длиной тела и явной свежестью
+ * (Cache-Control max-age/s-maxage) либо свежестью по умолчанию из конфига.
+ * Ответы с Set-Cookie, Vary или запретом хранения не кешируются.
+ * Записи занимают бюджет памяти, пока их не вытеснят; если бюджета не
+ * хватает, вытесняются старые записи, а новая при нехватке не сохраняется.
+ */
+public class ResponseCache {
+    private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final MemoryBudget memory;
+    private volatile ProxyConfig.CacheSettings settings;
+    private long totalBytes;
+
+    /**
+     * @param memory бюджет памяти или null
+     */
+    public ResponseCache(ProxyConfig.CacheSettings settings, MemoryBudget memory) {
+        this.settings = settings;
+        this.memory = memory;
+    }
+
+    public void update(ProxyConfig.CacheSettings settings) {
+        this.settings = settings;
+        synchronized (this) {
+            if (!settings.isEnabled()) {
+                entries.values().forEach(this::dropped);
+                entries.clear();
+            } else {
+                evictTo(settings.getMaxBytes());
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return settings.isEnabled();
+    }
+
+    /**
+     * Ключ кеша: абсолютный URL без фрагмента
+     */
+    public static String key(String host, int port, String url) {
+        String path = url;
+        if (url.regionMatches(true, 0, "http://", 0, 7)) {
+            int slash = url.indexOf('/', 7);
+            path = slash >= 0 ? url.substring(slash) : "/";
+        }
+        int hash = path.indexOf('#');
+        if (hash >= 0) {
+            path = path.substring(0, hash);
+        }
+        return "http://" + host.toLowerCase() + (port == 80 ? "" : ":" + port) + path;
+    }
+
+    /**
+     * Можно ли ответить на запрос из кеша или сохранить ответ на него
+     * @param headers заголовки запроса с именами в нижнем регистре
+     */
+    public static boolean isRequestCacheable(String method, Map<String, String> headers) {
+        if (!"GET".equals(method) || headers.containsKey("authorization") || headers.containsKey("range")
+                || headers.containsKey("content-length") || headers.containsKey("transfer-encoding")) {
+            return false;
+        }
+        String cacheControl = headers.getOrDefault("cache-control", "").toLowerCase();
+        return !cacheControl.contains("no-store") && !cacheControl.contains("no-cache")
+                && !headers.getOrDefault("pragma", "").toLowerCase().contains("no-cache");
+    }
+
+    /**
+     * Срок свежести ответа
+     * @return миллисекунды или 0, если ответ нельзя сохранять
+     */
+    public long freshnessMillis(HttpHead response) {
+        ProxyConfig.CacheSettings current = settings;
+        long length = response.getContentLength();
+        if (response.getStatusCode() != 200 || length < 0 || length > current.getMaxObjectBytes()
+                || response.isChunked() || response.contains("set-cookie") || response.contains("vary")) {
+            return 0;
+        }
+        String cacheControl = response.get("cache-control");
+        if (cacheControl == null) {
+            return current.getDefaultTtlMs();
+        }
+        long maxAge = -1;
+        for (String directive : cacheControl.toLowerCase().split(",")) {
+            String value = directive.trim();
+            if (value.equals("no-store") || value.equals("no-cache") || value.equals("private")) {
+                return 0;
+            }
+            if (value.startsWith("s-maxage=")) {
+                // s-maxage для общих кешей важнее max-age
+                maxAge = parseSeconds(value.substring(9));
+                break;
+            }
+            if (value.startsWith("max-age=")) {
+                maxAge = parseSeconds(value.substring(8));
+            }
+        }
+        return maxAge >= 0 ? maxAge * 1000 : current.getDefaultTtlMs();
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Свежий ответ по ключу или null; устаревшая запись удаляется
+     */
+    public CachedResponse get(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            CachedResponse cached = entries.get(key);
+            if (cached != null && !cached.isFresh(now)) {
+                entries.remove(key);
+                dropped(cached);
+                cached = null;
+            }
+            if (cached != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+            }
+            return cached;
+        }
+    }
+
+    /**
+     * Сохраняет ответ, вытесняя давно не использованные записи
+     * @param ttlMillis срок свежести из {@link #freshnessMillis}
+     */
+    public void put(String key, HttpHead head, byte[] body, long ttlMillis) {
+        ProxyConfig.CacheSettings current = settings;
+        long now = System.currentTimeMillis();
+        CachedResponse response = new CachedResponse(head.withoutHopByHop(), body, now, now + ttlMillis);
+        if (!current.isEnabled() || response.getSize() > current.getMaxBytes()) {
+            return;
+        }
+        synchronized (this) {
+            CachedResponse previous = entries.remove(key);
+            if (previous != null) {
+                dropped(previous);
+            }
+            if (!reserveMemory(response.getSize())) {
+                return;
+            }
+            entries.put(key, response);
+            totalBytes += response.getSize();
+            evictTo(current.getMaxBytes());
+        }
+        stores.incrementAndGet();
+    }
+
+    /**
+     * Резервирует память под запись, вытесняя старые записи, пока бюджета не хватает
+     */
+    private boolean reserveMemory(long bytes) {
+        if (memory == null) {
+            return true;
+        }
+        Iterator<CachedResponse> iterator = entries.values().iterator();
+        while (!memory.tryReserveResident(bytes)) {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            dropped(iterator.next());
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+        return true;
+    }
+
+    private void evictTo(long maxBytes) {
+        Iterator<CachedResponse> iterator = entries.values().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            dropped(iterator.next());
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Запись удалена из кеша: ее размер и память возвращаются
+     */
+    private void dropped(CachedResponse response) {
+        totalBytes -= response.getSize();
+        if (memory != null) {
+            memory.releaseResident(response.getSize());
+        }
+    }
+
+    public String getStatus() {
+        if (!settings.isEnabled()) {
+            return "Cache: disabled";
+        }
+        int count;
+        long bytes;
+        synchronized (this) {
+            count = entries.size();
+            bytes = totalBytes;
+        }
+        long hitCount = hits.get();
+        long lookups = hitCount + misses.get();
+        return String.format("Cache: entries=%d, size=%d/%d KB, hits=%d, misses=%d, hit rate=%.1f%%, stored=%d, evicted=%d",
+                count, bytes / 1024, settings.getMaxBytes() / 1024, hitCount, misses.get(),
+                lookups == 0 ? 0.0 : hitCount * 100.0 / lookups, stores.get(), evictions.get());
+    }
+}
@@ -0,0 +1,198 @@
+package ru.vladtop46.proxy.capture;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Двоичный формат файла записи трафика.
+ * <p>
+ * Файл начинается с сигнатуры {@code WPCAP} и номера версии, дальше идут
+ * записи: длина записи и поля. Числа кодируются varint, строки - длиной и
+ * UTF-8. Файл только дописывается; запись, оборванная остановкой процесса,
+ * пропускается при чтении.
+ */
+public final class CaptureFormat {
+    private static final byte[] MAGIC = {'W', 'P', 'C', 'A', 'P'};
+    private static final int VERSION = 1;
+    // Защита от поврежденного файла при чтении
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+    private CaptureFormat() {
+    }
+
+    /**
+     * Заголовок файла; пишется в пустой файл
+     */
+    static void writeFileHeader(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+    }
+
+    /**
+     * Дописывает запись в буфер вместе с ее длиной
+     */
+    static void writeRecord(ByteArrayOutputStream out, CaptureRecord record) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        body.write(record.getKind().ordinal());
+        writeVarLong(body, record.getStartMicros());
+        writeString(body, record.getConnectionId());
+        writeString(body, record.getClientIp());
+        writeString(body, record.getMethod());
+        writeString(body, record.getTarget());
+        Map<String, String> headers = record.getHeaders();
+        writeVarLong(body, headers.size());
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            writeString(body, header.getKey());
+            writeString(body, header.getValue());
+        }
+        // Неизвестные значения (-1) хранятся как 0
+        writeVarLong(body, record.getStatus() + 1L);
+        writeVarLong(body, record.getResponseMicros() + 1);
+        writeVarLong(body, record.getDurationMicros());
+        writeVarLong(body, record.getBytesUp());
+        writeVarLong(body, record.getBytesDown());
+        writeBytes(body, record.getRequestBody());
+        writeBytes(body, record.getResponseBody());
+
+        writeBytes(out, body.toByteArray());
+    }
+
+    /**
+     * Последовательное чтение записей из файла
+     */
+    public static final class Reader {
+        private final InputStream in;
+
+        /**
+         * @throws IOException файл не является записью трафика
+         */
+        public Reader(InputStream in) throws IOException {
+            this.in = in;
+            byte[] magic = new byte[MAGIC.length];
+            readFully(in, magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a traffic capture file");
+            }
+            int version = in.read();
+            if (version != VERSION) {
+                throw new IOException("Unsupported capture format version " + version);
+            }
+        }
+
+        /**
+         * @return следующая запись или null в конце файла
+         */
+        public CaptureRecord next() throws IOException {
+            long length;
+            try {
+                length = readVarLong(in);
+            } catch (EOFException e) {
+                return null;
+            }
+            if (length < 0 || length > MAX_RECORD_BYTES) {
+                throw new IOException("Corrupted capture record of " + length + " bytes");
+            }
+            byte[] data = new byte[(int) length];
+            try {
+                readFully(in, data);
+            } catch (EOFException e) {
+                // Запись оборвана при остановке
+                return null;
+            }
+            return decode(data);
+        }
+
+        private static CaptureRecord decode(byte[] data) throws IOException {
+            InputStream record = new ByteArrayInputStream(data);
+            int kind = record.read();
+            if (kind < 0 || kind >= CaptureRecord.Kind.values().length) {
+                throw new IOException("Unknown capture record kind " + kind);
+            }
+            long startMicros = readVarLong(record);
+            String connectionId = readString(record);
+            String clientIp = readString(record);
+            String method = readString(record);
+            String target = readString(record);
+            long headerCount = readVarLong(record);
+            Map<String, String> headers = new LinkedHashMap<>();
+            for (long i = 0; i < headerCount; i++) {
+                headers.put(readString(record), readString(record));
+            }
+            int status = (int) readVarLong(record) - 1;
+            long responseMicros = readVarLong(record) - 1;
+            long durationMicros = readVarLong(record);
+            long bytesUp = readVarLong(record);
+            long bytesDown = readVarLong(record);
+            byte[] requestBody = readBytes(record);
+            byte[] responseBody = readBytes(record);
+            return new CaptureRecord(CaptureRecord.Kind.values()[kind], startMicros, connectionId, clientIp,
+                    method, target, headers, status, responseMicros, durationMicros, bytesUp, bytesDown,
+                    requestBody, responseBody);
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        writeBytes(out, (value == null ? "" : value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] value) {
+        writeVarLong(out, value.length);
+        out.write(value, 0, value.length);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(InputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > MAX_RECORD_BYTES) {
+            throw new IOException("Corrupted capture field of " + length + " bytes");
+        }
+        byte[] data = new byte[(int) length];
+        readFully(in, data);
+        return data;
+    }
+
+    private static void readFully(InputStream in, byte[] target) throws IOException {
+        int offset = 0;
+        while (offset < target.length) {
+            int read = in.read(target, offset, target.length - offset);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+}
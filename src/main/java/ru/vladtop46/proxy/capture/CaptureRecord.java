@@ -0,0 +1,225 @@
+package ru.vladtop46.proxy.capture;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Запись об одном запросе или сессии: метаданные, заголовки, тайминги и
+ * начало тела в каждую сторону.
+ * <p>
+ * Заполняется обработчиком соединения, после {@link TrafficRecorder#submit}
+ * не изменяется. Образцы тела могут дописываться потоками пересылки WebSocket.
+ */
+public class CaptureRecord {
+    public enum Kind {
+        HTTP, CONNECT, WEBSOCKET
+    }
+
+    private final Kind kind;
+    private final long startMicros;
+    private final long startNanos;
+    private final String connectionId;
+    private final String clientIp;
+    private final String method;
+    private final String target;
+    private final Map<String, String> headers;
+    private final int maxBodyBytes;
+    private int status = -1;
+    private long responseMicros = -1;
+    private long durationMicros;
+    private long bytesUp;
+    private long bytesDown;
+    private byte[] requestBody;
+    private int requestBodyLength;
+    private byte[] responseBody;
+    private int responseBodyLength;
+
+    CaptureRecord(Kind kind, long startMicros, String connectionId, String clientIp, String method, String target,
+                  Map<String, String> headers, int maxBodyBytes) {
+        this.kind = kind;
+        this.startMicros = startMicros;
+        this.startNanos = System.nanoTime();
+        this.connectionId = connectionId;
+        this.clientIp = clientIp;
+        this.method = method;
+        this.target = target;
+        this.headers = new LinkedHashMap<>(headers);
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Запись, прочитанная из файла
+     */
+    CaptureRecord(Kind kind, long startMicros, String connectionId, String clientIp, String method, String target,
+                  Map<String, String> headers, int status, long responseMicros, long durationMicros,
+                  long bytesUp, long bytesDown, byte[] requestBody, byte[] responseBody) {
+        this.kind = kind;
+        this.startMicros = startMicros;
+        this.startNanos = 0;
+        this.connectionId = connectionId;
+        this.clientIp = clientIp;
+        this.method = method;
+        this.target = target;
+        this.headers = headers;
+        this.maxBodyBytes = 0;
+        this.status = status;
+        this.responseMicros = responseMicros;
+        this.durationMicros = durationMicros;
+        this.bytesUp = bytesUp;
+        this.bytesDown = bytesDown;
+        this.requestBody = requestBody;
+        this.requestBodyLength = requestBody.length;
+        this.responseBody = responseBody;
+        this.responseBodyLength = responseBody.length;
+    }
+
+    /**
+     * Клиенту отправлен заголовок ответа; учитывается только первый вызов
+     */
+    public synchronized void responseStarted(int status) {
+        if (responseMicros < 0) {
+            this.status = status;
+            this.responseMicros = (System.nanoTime() - startNanos) / 1000;
+        }
+    }
+
+    /**
+     * Сохраняет начало тела, если запись тел включена
+     * @param fromClient данные запроса, иначе ответа
+     */
+    public void sampleBody(boolean fromClient, byte[] data, int offset, int length) {
+        if (maxBodyBytes <= 0) {
+            return;
+        }
+        synchronized (this) {
+            int stored = fromClient ? requestBodyLength : responseBodyLength;
+            int count = Math.min(length, maxBodyBytes - stored);
+            if (count <= 0) {
+                return;
+            }
+            byte[] target = bodyBuffer(fromClient);
+            System.arraycopy(data, offset, target, stored, count);
+            if (fromClient) {
+                requestBodyLength += count;
+            } else {
+                responseBodyLength += count;
+            }
+        }
+    }
+
+    /**
+     * То же для символьного пути пересылки: символы сохраняются как байты ISO-8859-1
+     */
+    public void sampleBody(boolean fromClient, char[] data, int offset, int length) {
+        if (maxBodyBytes <= 0) {
+            return;
+        }
+        synchronized (this) {
+            int stored = fromClient ? requestBodyLength : responseBodyLength;
+            int count = Math.min(length, maxBodyBytes - stored);
+            if (count <= 0) {
+                return;
+            }
+            byte[] target = bodyBuffer(fromClient);
+            for (int i = 0; i < count; i++) {
+                target[stored + i] = (byte) data[offset + i];
+            }
+            if (fromClient) {
+                requestBodyLength += count;
+            } else {
+                responseBodyLength += count;
+            }
+        }
+    }
+
+    private byte[] bodyBuffer(boolean fromClient) {
+        if (fromClient) {
+            if (requestBody == null) {
+                requestBody = new byte[maxBodyBytes];
+            }
+            return requestBody;
+        }
+        if (responseBody == null) {
+            responseBody = new byte[maxBodyBytes];
+        }
+        return responseBody;
+    }
+
+    /**
+     * Запрос завершен
+     * @param bytesUp байты от клиента (тело запроса, данные туннеля)
+     * @param bytesDown байты клиенту
+     */
+    synchronized void finish(long bytesUp, long bytesDown) {
+        this.durationMicros = (System.nanoTime() - startNanos) / 1000;
+        this.bytesUp = bytesUp;
+        this.bytesDown = bytesDown;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Время начала, микросекунды от эпохи
+     */
+    public long getStartMicros() {
+        return startMicros;
+    }
+
+    public String getConnectionId() {
+        return connectionId;
+    }
+
+    public String getClientIp() {
+        return clientIp;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * Код ответа или -1, если ответ не был отправлен
+     */
+    public synchronized int getStatus() {
+        return status;
+    }
+
+    /**
+     * Время до заголовка ответа в микросекундах или -1
+     */
+    public synchronized long getResponseMicros() {
+        return responseMicros;
+    }
+
+    public synchronized long getDurationMicros() {
+        return durationMicros;
+    }
+
+    public synchronized long getBytesUp() {
+        return bytesUp;
+    }
+
+    public synchronized long getBytesDown() {
+        return bytesDown;
+    }
+
+    public synchronized byte[] getRequestBody() {
+        return requestBody == null ? new byte[0] : Arrays.copyOf(requestBody, requestBodyLength);
+    }
+
+    public synchronized byte[] getResponseBody() {
+        return responseBody == null ? new byte[0] : Arrays.copyOf(responseBody, responseBodyLength);
+    }
+}
@@ -0,0 +1,250 @@
+package ru.vladtop46.proxy.capture;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.logging.ProxyLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Запись трафика в файл для последующего воспроизведения.
+ * <p>
+ * Обработчики только кладут готовые записи в ограниченную очередь и никогда
+ * не ждут диска: при переполнении запись отбрасывается и учитывается.
+ * Кодирование и запись выполняет один фоновый поток пачками, файл
+ * сбрасывается на диск, когда очередь опустела.
+ */
+public class TrafficRecorder {
+    private static final int BATCH_SIZE = 512;
+    // Микросекунды эпохи из монотонных часов: интервалы между записями не зависят от коррекции времени
+    private static final long CLOCK_BASE_MICROS = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+    // Заголовки с учетными данными; на диск попадают только с captureCredentials
+    private static final Set<String> CREDENTIAL_HEADERS = Set.of("authorization", "proxy-authorization",
+            "cookie", "set-cookie");
+    private static final String REDACTED = "[redacted]";
+
+    private final ProxyLogger logger;
+    private final BlockingQueue<CaptureRecord> queue;
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private volatile ProxyConfig.CaptureSettings settings;
+    private volatile boolean running = true;
+    private volatile String lastError;
+    private Thread writer;
+
+    // Состояние фонового потока
+    private OutputStream out;
+    private String openFile;
+    private long fileBytes;
+
+    /**
+     * Размер очереди задается при запуске и при перезагрузке не меняется
+     */
+    public TrafficRecorder(ProxyConfig.CaptureSettings settings, ProxyLogger logger) {
+        this.settings = settings;
+        this.logger = logger;
+        this.queue = new ArrayBlockingQueue<>(Math.max(16, settings.getQueueSize()));
+        if (settings.isEnabled()) {
+            startWriter();
+        }
+    }
+
+    public synchronized void update(ProxyConfig.CaptureSettings settings) {
+        this.settings = settings;
+        if (settings.isEnabled()) {
+            startWriter();
+        }
+    }
+
+    public boolean isEnabled() {
+        return settings.isEnabled();
+    }
+
+    /**
+     * Начинает запись запроса. Значения заголовков с учетными данными
+     * заменяются, если их запись не включена явно.
+     * @return запись или null, если запись трафика выключена
+     */
+    public CaptureRecord begin(CaptureRecord.Kind kind, String connectionId, String clientIp, String method,
+                               String target, Map<String, String> headers) {
+        ProxyConfig.CaptureSettings current = settings;
+        if (!current.isEnabled()) {
+            return null;
+        }
+        return new CaptureRecord(kind, nowMicros(), connectionId, clientIp, method, target,
+                current.isCaptureCredentials() ? headers : redact(headers),
+                current.isCaptureBodies() ? Math.max(0, current.getMaxBodyBytes()) : 0);
+    }
+
+    private static Map<String, String> redact(Map<String, String> headers) {
+        Map<String, String> result = new LinkedHashMap<>(headers);
+        for (Map.Entry<String, String> header : result.entrySet()) {
+            if (CREDENTIAL_HEADERS.contains(header.getKey().toLowerCase())) {
+                header.setValue(REDACTED);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Завершает запись и ставит ее в очередь; не блокируется
+     */
+    public void submit(CaptureRecord record, long bytesUp, long bytesDown) {
+        record.finish(bytesUp, bytesDown);
+        if (!settings.isEnabled() || !queue.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static long nowMicros() {
+        return CLOCK_BASE_MICROS + System.nanoTime() / 1000;
+    }
+
+    private synchronized void startWriter() {
+        if (writer != null || !running) {
+            return;
+        }
+        writer = new Thread(this::writeLoop, "capture-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void writeLoop() {
+        List<CaptureRecord> batch = new ArrayList<>(BATCH_SIZE);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+        try {
+            while (running || !queue.isEmpty()) {
+                CaptureRecord first = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (!settings.isEnabled()) {
+                        closeFile();
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (CaptureRecord record : batch) {
+                    CaptureFormat.writeRecord(buffer, record);
+                }
+                write(buffer, batch.size());
+                buffer.reset();
+                batch.clear();
+                if (queue.isEmpty() && out != null) {
+                    flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeFile();
+        }
+    }
+
+    private void write(ByteArrayOutputStream buffer, int count) {
+        ProxyConfig.CaptureSettings current = settings;
+        try {
+            if (out == null || !current.getFile().equals(openFile)) {
+                closeFile();
+                openFile(current.getFile());
+            }
+            if (fileBytes + buffer.size() > current.getMaxFileBytes()) {
+                dropped.addAndGet(count);
+                return;
+            }
+            buffer.writeTo(out);
+            fileBytes += buffer.size();
+            bytesWritten.addAndGet(buffer.size());
+            recorded.addAndGet(count);
+        } catch (IOException e) {
+            dropped.addAndGet(count);
+            reportError(e);
+            closeFile();
+        }
+    }
+
+    private void openFile(String file) throws IOException {
+        Path path = Paths.get(file);
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        out = new FileOutputStream(path.toFile(), true);
+        openFile = file;
+        fileBytes = Files.size(path);
+        if (fileBytes == 0) {
+            CaptureFormat.writeFileHeader(out);
+        }
+    }
+
+    private void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            reportError(e);
+            closeFile();
+        }
+    }
+
+    private void closeFile() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            reportError(e);
+        }
+        out = null;
+        openFile = null;
+    }
+
+    private void reportError(IOException e) {
+        // В лог попадает только смена ошибки, чтобы недоступный диск не засыпал лог
+        if (!String.valueOf(e.getMessage()).equals(lastError)) {
+            lastError = String.valueOf(e.getMessage());
+            logger.log("Traffic capture error: " + lastError);
+        }
+    }
+
+    /**
+     * Дописывает очередь и закрывает файл; вызывается при остановке сервера
+     */
+    public void close() {
+        Thread current;
+        synchronized (this) {
+            running = false;
+            current = writer;
+        }
+        if (current != null) {
+            try {
+                current.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public String getStatus() {
+        ProxyConfig.CaptureSettings current = settings;
+        if (!current.isEnabled()) {
+            return String.format("Traffic capture: disabled (recorded=%d, dropped=%d)", recorded.get(), dropped.get());
+        }
+        return String.format("Traffic capture: file=%s, recorded=%d, dropped=%d, written=%d bytes, queue=%d%s",
+                current.getFile(), recorded.get(), dropped.get(), bytesWritten.get(), queue.size(),
+                lastError != null ? ", last error: " + lastError : "");
+    }
+}
@@ -0,0 +1,48 @@
+package ru.vladtop46.proxy.compression;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Пул объектов Deflater. Каждый Deflater держит нативную память zlib,
+ * поэтому они переиспользуются, а лишние сразу освобождаются.
+ */
+class DeflaterPool {
+    private final ConcurrentLinkedDeque<Deflater> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger created = new AtomicInteger();
+
+    /**
+     * Deflater с заданным уровнем в формате без заголовка zlib
+     */
+    Deflater borrow(int level) {
+        Deflater deflater = idle.pollFirst();
+        if (deflater == null) {
+            created.incrementAndGet();
+            deflater = new Deflater(level, true);
+        } else {
+            idleCount.decrementAndGet();
+            deflater.setLevel(level);
+        }
+        return deflater;
+    }
+
+    void release(Deflater deflater, int maxIdle) {
+        if (idleCount.get() < maxIdle) {
+            deflater.reset();
+            idleCount.incrementAndGet();
+            idle.offerFirst(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    int getIdleCount() {
+        return idleCount.get();
+    }
+
+    int getCreated() {
+        return created.get();
+    }
+}
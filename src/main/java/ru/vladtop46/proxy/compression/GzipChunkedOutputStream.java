@@ -0,0 +1,160 @@
+package ru.vladtop46.proxy.compression;
+
+import ru.vladtop46.proxy.download.ByteSink;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Поток, сжимающий тело ответа в gzip и передающий его клиенту частями
+ * Transfer-Encoding: chunked. Каждая порция сжатых данных уходит одной частью;
+ * {@link #flush()} выталкивает накопленное в zlib, чтобы клиент получал
+ * медленно идущий ответ без задержки.
+ */
+public class GzipChunkedOutputStream extends OutputStream {
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final ResponseCompressor compressor;
+    private final ByteSink sink;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[8192];
+    private long bytesIn;
+    private long bytesOut;
+    private boolean headerWritten;
+    private boolean closed;
+    private boolean finishing;
+
+    GzipChunkedOutputStream(ResponseCompressor compressor, Deflater deflater, ByteSink sink) {
+        this.compressor = compressor;
+        this.deflater = deflater;
+        this.sink = sink;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (length == 0) {
+            return;
+        }
+        long start = compressor.threadCpuNanos();
+        crc.update(data, offset, length);
+        deflater.setInput(data, offset, length);
+        bytesIn += length;
+        drain(Deflater.NO_FLUSH, start);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (!closed && bytesIn > 0) {
+            drain(Deflater.SYNC_FLUSH, compressor.threadCpuNanos());
+        }
+    }
+
+    /**
+     * Завершает поток gzip и пишет последнюю пустую часть.
+     * Deflater возвращается в пул; сокет клиента не закрывается.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            long start = compressor.threadCpuNanos();
+            finishing = true;
+            deflater.finish();
+            drain(Deflater.NO_FLUSH, start);
+            writeTrailer();
+            sink.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1), 0, 5);
+        } finally {
+            finish();
+        }
+    }
+
+    /**
+     * Освобождает Deflater без записи окончания, например при обрыве соединения
+     */
+    public void abandon() {
+        if (!closed) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        closed = true;
+        compressor.release(deflater, bytesIn, bytesOut);
+    }
+
+    private void drain(int flushMode, long cpuStart) throws IOException {
+        // Заголовок и сжатые данные из одного вызова уходят одной частью
+        int offset = 0;
+        if (!headerWritten) {
+            System.arraycopy(GZIP_HEADER, 0, buffer, 0, GZIP_HEADER.length);
+            offset = GZIP_HEADER.length;
+            headerWritten = true;
+        }
+        while (true) {
+            offset += deflater.deflate(buffer, offset, buffer.length - offset, flushMode);
+            if (offset < buffer.length && isDrained(flushMode)) {
+                break;
+            }
+            if (offset == buffer.length) {
+                writeChunk(offset, cpuStart);
+                cpuStart = compressor.threadCpuNanos();
+                offset = 0;
+            }
+        }
+        writeChunk(offset, cpuStart);
+    }
+
+    /**
+     * Вывод zlib исчерпан: при SYNC_FLUSH это значит, что буфер заполнен не до конца
+     */
+    private boolean isDrained(int flushMode) {
+        if (deflater.finished()) {
+            return true;
+        }
+        return flushMode == Deflater.SYNC_FLUSH || !finishing && deflater.needsInput();
+    }
+
+    private void writeChunk(int length, long cpuStart) throws IOException {
+        compressor.recordCpu(compressor.threadCpuNanos() - cpuStart);
+        if (length == 0) {
+            return;
+        }
+        byte[] size = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        sink.write(size, 0, size.length);
+        sink.write(buffer, 0, length);
+        sink.write(new byte[]{'\r', '\n'}, 0, 2);
+        bytesOut += length;
+    }
+
+    private void writeTrailer() throws IOException {
+        byte[] trailer = new byte[8];
+        writeInt(trailer, 0, (int) crc.getValue());
+        writeInt(trailer, 4, (int) bytesIn);
+        byte[] size = "8\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        sink.write(size, 0, size.length);
+        sink.write(trailer, 0, trailer.length);
+        sink.write(new byte[]{'\r', '\n'}, 0, 2);
+        bytesOut += trailer.length;
+    }
+
+    private static void writeInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) value;
+        target[offset + 1] = (byte) (value >> 8);
+        target[offset + 2] = (byte) (value >> 16);
+        target[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,172 @@
+package ru.vladtop46.proxy.compression;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.download.ByteSink;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Сжатие несжатых текстовых ответов gzip на лету.
+ * <p>
+ * Время процессора, потраченное на сжатие всеми соединениями, считается по
+ * секундным окнам. Пока бюджет окна исчерпан, новые ответы передаются без
+ * сжатия; уже начатые дожимаются до конца.
+ */
+public class ResponseCompressor {
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+
+    private final DeflaterPool pool = new DeflaterPool();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean cpuTimeSupported;
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong overBudget = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong cpuNanos = new AtomicLong();
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final AtomicLong windowCpuNanos = new AtomicLong();
+    private volatile ProxyConfig.CompressionSettings settings;
+
+    public ResponseCompressor(ProxyConfig.CompressionSettings settings) {
+        this.settings = settings;
+        this.cpuTimeSupported = threads.isCurrentThreadCpuTimeSupported();
+    }
+
+    public void update(ProxyConfig.CompressionSettings settings) {
+        this.settings = settings;
+    }
+
+    public boolean isEnabled() {
+        return settings.isEnabled();
+    }
+
+    /**
+     * Принимает ли клиент gzip: кодировка gzip или * в Accept-Encoding без q=0
+     */
+    public static boolean acceptsGzip(Map<String, String> requestHeaders) {
+        String acceptEncoding = requestHeaders.get("accept-encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String part : acceptEncoding.toLowerCase().split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim();
+            if (!coding.equals("gzip") && !coding.equals("*")) {
+                continue;
+            }
+            boolean rejected = false;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        rejected = Double.parseDouble(param.substring(2)) <= 0;
+                    } catch (NumberFormatException e) {
+                        rejected = true;
+                    }
+                }
+            }
+            if (!rejected) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Подходит ли ответ для сжатия: тип из списка, тело не сжато и не меньше порога
+     * @param responseHeaders заголовки ответа в нижнем регистре
+     */
+    public boolean isCompressible(int statusCode, Map<String, String> responseHeaders) {
+        ProxyConfig.CompressionSettings current = settings;
+        if (!current.isEnabled() || statusCode != 200 || responseHeaders.containsKey("content-encoding")
+                || responseHeaders.containsKey("content-range")) {
+            return false;
+        }
+        String cacheControl = responseHeaders.get("cache-control");
+        if (cacheControl != null && cacheControl.toLowerCase().contains("no-transform")) {
+            return false;
+        }
+        String contentLength = responseHeaders.get("content-length");
+        if (contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength.trim()) < current.getMinSizeBytes()) {
+                    return false;
+                }
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        String contentType = responseHeaders.get("content-type");
+        if (contentType == null || current.getContentTypes() == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        for (String prefix : current.getContentTypes()) {
+            if (type.startsWith(prefix.toLowerCase())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Начинает сжатый ответ, если бюджет процессора не исчерпан
+     * @param sink получатель частей chunked-ответа
+     * @return поток сжатия или null, если ответ нужно передать как есть
+     */
+    public GzipChunkedOutputStream open(ByteSink sink) {
+        ProxyConfig.CompressionSettings current = settings;
+        if (windowCpuNanos(System.nanoTime()) >= current.getCpuBudgetMsPerSecond() * 1_000_000L) {
+            overBudget.incrementAndGet();
+            return null;
+        }
+        compressed.incrementAndGet();
+        return new GzipChunkedOutputStream(this, pool.borrow(current.getLevel()), sink);
+    }
+
+    /**
+     * Процессорное время текущего потока; без поддержки JVM - настенное время
+     */
+    long threadCpuNanos() {
+        return cpuTimeSupported ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    void recordCpu(long nanos) {
+        cpuNanos.addAndGet(nanos);
+        windowCpuNanos(System.nanoTime());
+        windowCpuNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Время процессора в текущем окне; устаревшее окно сбрасывается
+     */
+    private long windowCpuNanos(long now) {
+        long start = windowStart.get();
+        if (now - start >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+            windowCpuNanos.set(0);
+        }
+        return windowCpuNanos.get();
+    }
+
+    void release(Deflater deflater, long in, long out) {
+        bytesIn.addAndGet(in);
+        bytesOut.addAndGet(out);
+        pool.release(deflater, settings.getPoolSize());
+    }
+
+    public String getStatus() {
+        if (!settings.isEnabled()) {
+            return "Compression: disabled";
+        }
+        long in = bytesIn.get();
+        long out = bytesOut.get();
+        return String.format("Compression: responses=%d, skipped over budget=%d, in=%d bytes, out=%d bytes, "
+                        + "saved=%d bytes (%.1f%%), cpu=%d ms, deflaters=%d (idle %d)",
+                compressed.get(), overBudget.get(), in, out, in - out, in > 0 ? 100.0 * (in - out) / in : 0.0,
+                cpuNanos.get() / 1_000_000, pool.getCreated(), pool.getIdleCount());
+    }
+}
@@ -4,6 +4,7 @@ import org.yaml.snakeyaml.Yaml;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class ProxyConfig {
@@ -12,6 +13,26 @@ public class ProxyConfig {
     private WebSocketSettings websocket;
     private List<String> blockedDomains;
     private ErrorPageSettings errorPage;
+    private LimiterSettings limiter = new LimiterSettings();
+    private TimeoutSettings timeouts = new TimeoutSettings();
+    private ShapingSettings shaping = new ShapingSettings();
+    private AdminSettings admin = new AdminSettings();
+    private AnalyticsSettings analytics = new AnalyticsSettings();
+    private BlocklistSettings blocklists = new BlocklistSettings();
+    private UrlFilterSettings urlFilter = new UrlFilterSettings();
+    private SocksSettings socks = new SocksSettings();
+    private UpstreamSettings upstream = new UpstreamSettings();
+    private CircuitBreakerSettings circuitBreaker = new CircuitBreakerSettings();
+    private CacheSettings cache = new CacheSettings();
+    private SegmentedDownloadSettings segmentedDownload = new SegmentedDownloadSettings();
+    private CompressionSettings compression = new CompressionSettings();
+    private Http2Settings http2 = new Http2Settings();
+    private CaptureSettings capture = new CaptureSettings();
+    private FilterSettings filters = new FilterSettings();
+    private MemorySettings memory = new MemorySettings();
+    private TlsSettings tls = new TlsSettings();
+    private PrefetchSettings prefetch = new PrefetchSettings();
+    private WarmStartSettings warmStart = new WarmStartSettings();
 
     // Геттеры и сеттеры для основных полей
     public ServerSettings getServer() {
@@ -54,9 +75,174 @@ public class ProxyConfig {
         this.errorPage = errorPage;
     }
 
+    public LimiterSettings getLimiter() {
+        return limiter;
+    }
+
+    public void setLimiter(LimiterSettings limiter) {
+        this.limiter = limiter;
+    }
+
+    public TimeoutSettings getTimeouts() {
+        return timeouts;
+    }
+
+    public void setTimeouts(TimeoutSettings timeouts) {
+        this.timeouts = timeouts;
+    }
+
+    public ShapingSettings getShaping() {
+        return shaping;
+    }
+
+    public void setShaping(ShapingSettings shaping) {
+        this.shaping = shaping;
+    }
+
+    public AdminSettings getAdmin() {
+        return admin;
+    }
+
+    public void setAdmin(AdminSettings admin) {
+        this.admin = admin;
+    }
+
+    public AnalyticsSettings getAnalytics() {
+        return analytics;
+    }
+
+    public void setAnalytics(AnalyticsSettings analytics) {
+        this.analytics = analytics;
+    }
+
+    public BlocklistSettings getBlocklists() {
+        return blocklists;
+    }
+
+    public void setBlocklists(BlocklistSettings blocklists) {
+        this.blocklists = blocklists;
+    }
+
+    public UrlFilterSettings getUrlFilter() {
+        return urlFilter;
+    }
+
+    public void setUrlFilter(UrlFilterSettings urlFilter) {
+        this.urlFilter = urlFilter;
+    }
+
+    public SocksSettings getSocks() {
+        return socks;
+    }
+
+    public void setSocks(SocksSettings socks) {
+        this.socks = socks;
+    }
+
+    public UpstreamSettings getUpstream() {
+        return upstream;
+    }
+
+    public void setUpstream(UpstreamSettings upstream) {
+        this.upstream = upstream;
+    }
+
+    public CircuitBreakerSettings getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public void setCircuitBreaker(CircuitBreakerSettings circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public CacheSettings getCache() {
+        return cache;
+    }
+
+    public void setCache(CacheSettings cache) {
+        this.cache = cache;
+    }
+
+    public SegmentedDownloadSettings getSegmentedDownload() {
+        return segmentedDownload;
+    }
+
+    public void setSegmentedDownload(SegmentedDownloadSettings segmentedDownload) {
+        this.segmentedDownload = segmentedDownload;
+    }
+
+    public CompressionSettings getCompression() {
+        return compression;
+    }
+
+    public void setCompression(CompressionSettings compression) {
+        this.compression = compression;
+    }
+
+    public Http2Settings getHttp2() {
+        return http2;
+    }
+
+    public void setHttp2(Http2Settings http2) {
+        this.http2 = http2;
+    }
+
+    public CaptureSettings getCapture() {
+        return capture;
+    }
+
+    public void setCapture(CaptureSettings capture) {
+        this.capture = capture;
+    }
+
+    public FilterSettings getFilters() {
+        return filters;
+    }
+
+    public void setFilters(FilterSettings filters) {
+        this.filters = filters;
+    }
+
+    public MemorySettings getMemory() {
+        return memory;
+    }
+
+    public void setMemory(MemorySettings memory) {
+        this.memory = memory;
+    }
+
+    public TlsSettings getTls() {
+        return tls;
+    }
+
+    public void setTls(TlsSettings tls) {
+        this.tls = tls;
+    }
+
+    public PrefetchSettings getPrefetch() {
+        return prefetch;
+    }
+
+    public void setPrefetch(PrefetchSettings prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    public WarmStartSettings getWarmStart() {
+        return warmStart;
+    }
+
+    public void setWarmStart(WarmStartSettings warmStart) {
+        this.warmStart = warmStart;
+    }
+
     public static class ServerSettings {
         private int port = 8023;
         private String logsDirectory = "logs";
+        private boolean autoReloadConfig = true;
+        private long reloadDebounceMs = 500;
+        private List<String> listen = new ArrayList<>();
+        private int acceptBacklog = 1024;
+        private int acceptorsPerAddress = 1;
 
         public int getPort() {
             return port;
@@ -73,6 +259,49 @@ public class ProxyConfig {
         public void setLogsDirectory(String logsDirectory) {
             this.logsDirectory = logsDirectory;
         }
+
+        public boolean isAutoReloadConfig() {
+            return autoReloadConfig;
+        }
+
+        public void setAutoReloadConfig(boolean autoReloadConfig) {
+            this.autoReloadConfig = autoReloadConfig;
+        }
+
+        public long getReloadDebounceMs() {
+            return reloadDebounceMs;
+        }
+
+        public void setReloadDebounceMs(long reloadDebounceMs) {
+            this.reloadDebounceMs = reloadDebounceMs;
+        }
+
+        /**
+         * Адреса прослушивания; если список пуст, используется port на всех интерфейсах
+         */
+        public List<String> getListen() {
+            return listen;
+        }
+
+        public void setListen(List<String> listen) {
+            this.listen = listen;
+        }
+
+        public int getAcceptBacklog() {
+            return acceptBacklog;
+        }
+
+        public void setAcceptBacklog(int acceptBacklog) {
+            this.acceptBacklog = acceptBacklog;
+        }
+
+        public int getAcceptorsPerAddress() {
+            return acceptorsPerAddress;
+        }
+
+        public void setAcceptorsPerAddress(int acceptorsPerAddress) {
+            this.acceptorsPerAddress = acceptorsPerAddress;
+        }
     }
 
     public static class SecuritySettings {
@@ -138,6 +367,1227 @@ public class ProxyConfig {
         }
     }
 
+    public static class LimiterSettings {
+        private boolean enabled = true;
+        private int initialLimit = 64;
+        private int minLimit = 8;
+        private int maxLimit = 1024;
+        private int queueSize = 256;
+        private long maxQueueTimeMs = 2000;
+        private double smoothing = 0.2;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getInitialLimit() {
+            return initialLimit;
+        }
+
+        public void setInitialLimit(int initialLimit) {
+            this.initialLimit = initialLimit;
+        }
+
+        public int getMinLimit() {
+            return minLimit;
+        }
+
+        public void setMinLimit(int minLimit) {
+            this.minLimit = minLimit;
+        }
+
+        public int getMaxLimit() {
+            return maxLimit;
+        }
+
+        public void setMaxLimit(int maxLimit) {
+            this.maxLimit = maxLimit;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public void setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+        }
+
+        public long getMaxQueueTimeMs() {
+            return maxQueueTimeMs;
+        }
+
+        public void setMaxQueueTimeMs(long maxQueueTimeMs) {
+            this.maxQueueTimeMs = maxQueueTimeMs;
+        }
+
+        public double getSmoothing() {
+            return smoothing;
+        }
+
+        public void setSmoothing(double smoothing) {
+            this.smoothing = smoothing;
+        }
+    }
+
+    public static class TimeoutSettings {
+        private long handshakeTimeoutMs = 10000;
+        private int connectTimeoutMs = 10000;
+        private long httpIdleTimeoutMs = 60000;
+        private long httpMaxLifetimeMs = 600000;
+        private long tunnelIdleTimeoutMs = 300000;
+        private long tunnelMaxLifetimeMs = 0;
+        private long webSocketIdleTimeoutMs = 600000;
+        private long webSocketMaxLifetimeMs = 0;
+        private long tickMs = 100;
+        private int wheelSize = 512;
+
+        public long getHandshakeTimeoutMs() {
+            return handshakeTimeoutMs;
+        }
+
+        public void setHandshakeTimeoutMs(long handshakeTimeoutMs) {
+            this.handshakeTimeoutMs = handshakeTimeoutMs;
+        }
+
+        public int getConnectTimeoutMs() {
+            return connectTimeoutMs;
+        }
+
+        public void setConnectTimeoutMs(int connectTimeoutMs) {
+            this.connectTimeoutMs = connectTimeoutMs;
+        }
+
+        public long getHttpIdleTimeoutMs() {
+            return httpIdleTimeoutMs;
+        }
+
+        public void setHttpIdleTimeoutMs(long httpIdleTimeoutMs) {
+            this.httpIdleTimeoutMs = httpIdleTimeoutMs;
+        }
+
+        public long getHttpMaxLifetimeMs() {
+            return httpMaxLifetimeMs;
+        }
+
+        public void setHttpMaxLifetimeMs(long httpMaxLifetimeMs) {
+            this.httpMaxLifetimeMs = httpMaxLifetimeMs;
+        }
+
+        public long getTunnelIdleTimeoutMs() {
+            return tunnelIdleTimeoutMs;
+        }
+
+        public void setTunnelIdleTimeoutMs(long tunnelIdleTimeoutMs) {
+            this.tunnelIdleTimeoutMs = tunnelIdleTimeoutMs;
+        }
+
+        public long getTunnelMaxLifetimeMs() {
+            return tunnelMaxLifetimeMs;
+        }
+
+        public void setTunnelMaxLifetimeMs(long tunnelMaxLifetimeMs) {
+            this.tunnelMaxLifetimeMs = tunnelMaxLifetimeMs;
+        }
+
+        public long getWebSocketIdleTimeoutMs() {
+            return webSocketIdleTimeoutMs;
+        }
+
+        public void setWebSocketIdleTimeoutMs(long webSocketIdleTimeoutMs) {
+            this.webSocketIdleTimeoutMs = webSocketIdleTimeoutMs;
+        }
+
+        public long getWebSocketMaxLifetimeMs() {
+            return webSocketMaxLifetimeMs;
+        }
+
+        public void setWebSocketMaxLifetimeMs(long webSocketMaxLifetimeMs) {
+            this.webSocketMaxLifetimeMs = webSocketMaxLifetimeMs;
+        }
+
+        public long getTickMs() {
+            return tickMs;
+        }
+
+        public void setTickMs(long tickMs) {
+            this.tickMs = tickMs;
+        }
+
+        public int getWheelSize() {
+            return wheelSize;
+        }
+
+        public void setWheelSize(int wheelSize) {
+            this.wheelSize = wheelSize;
+        }
+    }
+
+    public static class ShapingSettings {
+        private boolean enabled = false;
+        private boolean strictPriority = true;
+        private long burstBytes = 65536;
+        private long globalBytesPerSecond = 0;
+        private long perClientBytesPerSecond = 0;
+        private long httpBytesPerSecond = 0;
+        private long httpsBytesPerSecond = 0;
+        private long webSocketBytesPerSecond = 0;
+        private long webRtcBytesPerSecond = 0;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public boolean isStrictPriority() {
+            return strictPriority;
+        }
+
+        public void setStrictPriority(boolean strictPriority) {
+            this.strictPriority = strictPriority;
+        }
+
+        public long getBurstBytes() {
+            return burstBytes;
+        }
+
+        public void setBurstBytes(long burstBytes) {
+            this.burstBytes = burstBytes;
+        }
+
+        public long getGlobalBytesPerSecond() {
+            return globalBytesPerSecond;
+        }
+
+        public void setGlobalBytesPerSecond(long globalBytesPerSecond) {
+            this.globalBytesPerSecond = globalBytesPerSecond;
+        }
+
+        public long getPerClientBytesPerSecond() {
+            return perClientBytesPerSecond;
+        }
+
+        public void setPerClientBytesPerSecond(long perClientBytesPerSecond) {
+            this.perClientBytesPerSecond = perClientBytesPerSecond;
+        }
+
+        public long getHttpBytesPerSecond() {
+            return httpBytesPerSecond;
+        }
+
+        public void setHttpBytesPerSecond(long httpBytesPerSecond) {
+            this.httpBytesPerSecond = httpBytesPerSecond;
+        }
+
+        public long getHttpsBytesPerSecond() {
+            return httpsBytesPerSecond;
+        }
+
+        public void setHttpsBytesPerSecond(long httpsBytesPerSecond) {
+            this.httpsBytesPerSecond = httpsBytesPerSecond;
+        }
+
+        public long getWebSocketBytesPerSecond() {
+            return webSocketBytesPerSecond;
+        }
+
+        public void setWebSocketBytesPerSecond(long webSocketBytesPerSecond) {
+            this.webSocketBytesPerSecond = webSocketBytesPerSecond;
+        }
+
+        public long getWebRtcBytesPerSecond() {
+            return webRtcBytesPerSecond;
+        }
+
+        public void setWebRtcBytesPerSecond(long webRtcBytesPerSecond) {
+            this.webRtcBytesPerSecond = webRtcBytesPerSecond;
+        }
+    }
+
+    public static class AdminSettings {
+        private boolean enabled = false;
+        private String bindAddress = "127.0.0.1";
+        private int port = 8024;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getBindAddress() {
+            return bindAddress;
+        }
+
+        public void setBindAddress(String bindAddress) {
+            this.bindAddress = bindAddress;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+    }
+
+    public static class AnalyticsSettings {
+        private boolean enabled = true;
+        private int slotSeconds = 10;
+        private int slots = 90;
+        private int sketchWidth = 2048;
+        private int sketchDepth = 4;
+        private int candidates = 64;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getSlotSeconds() {
+            return slotSeconds;
+        }
+
+        public void setSlotSeconds(int slotSeconds) {
+            this.slotSeconds = slotSeconds;
+        }
+
+        public int getSlots() {
+            return slots;
+        }
+
+        public void setSlots(int slots) {
+            this.slots = slots;
+        }
+
+        public int getSketchWidth() {
+            return sketchWidth;
+        }
+
+        public void setSketchWidth(int sketchWidth) {
+            this.sketchWidth = sketchWidth;
+        }
+
+        public int getSketchDepth() {
+            return sketchDepth;
+        }
+
+        public void setSketchDepth(int sketchDepth) {
+            this.sketchDepth = sketchDepth;
+        }
+
+        public int getCandidates() {
+            return candidates;
+        }
+
+        public void setCandidates(int candidates) {
+            this.candidates = candidates;
+        }
+    }
+
+    public static class BlocklistSettings {
+        private List<String> files = new ArrayList<>();
+        private boolean includeSubdomains = true;
+
+        public List<String> getFiles() {
+            return files;
+        }
+
+        public void setFiles(List<String> files) {
+            this.files = files;
+        }
+
+        public boolean isIncludeSubdomains() {
+            return includeSubdomains;
+        }
+
+        public void setIncludeSubdomains(boolean includeSubdomains) {
+            this.includeSubdomains = includeSubdomains;
+        }
+    }
+
+    public static class UrlFilterSettings {
+        private List<String> rules = new ArrayList<>();
+        private List<String> ruleFiles = new ArrayList<>();
+
+        public List<String> getRules() {
+            return rules;
+        }
+
+        public void setRules(List<String> rules) {
+            this.rules = rules;
+        }
+
+        public List<String> getRuleFiles() {
+            return ruleFiles;
+        }
+
+        public void setRuleFiles(List<String> ruleFiles) {
+            this.ruleFiles = ruleFiles;
+        }
+    }
+
+    public static class SocksSettings {
+        private boolean enabled = false;
+        private List<String> listen = new ArrayList<>(List.of("127.0.0.1:1080"));
+        private boolean udpEnabled = true;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public List<String> getListen() {
+            return listen;
+        }
+
+        public void setListen(List<String> listen) {
+            this.listen = listen;
+        }
+
+        public boolean isUdpEnabled() {
+            return udpEnabled;
+        }
+
+        public void setUdpEnabled(boolean udpEnabled) {
+            this.udpEnabled = udpEnabled;
+        }
+    }
+
+    public static class UpstreamSettings {
+        private boolean enabled = false;
+        private String strategy = "least-outstanding";
+        private List<String> proxies = new ArrayList<>();
+        private String defaultRoute = "parent";
+        private List<String> directDomains = new ArrayList<>();
+        private List<String> parentDomains = new ArrayList<>();
+        private int connectTimeoutMs = 5000;
+        private long healthCheckIntervalMs = 5000;
+        private int healthCheckTimeoutMs = 2000;
+        private int maxFailures = 3;
+        private int virtualNodes = 160;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getStrategy() {
+            return strategy;
+        }
+
+        public void setStrategy(String strategy) {
+            this.strategy = strategy;
+        }
+
+        public List<String> getProxies() {
+            return proxies;
+        }
+
+        public void setProxies(List<String> proxies) {
+            this.proxies = proxies;
+        }
+
+        public String getDefaultRoute() {
+            return defaultRoute;
+        }
+
+        public void setDefaultRoute(String defaultRoute) {
+            this.defaultRoute = defaultRoute;
+        }
+
+        public List<String> getDirectDomains() {
+            return directDomains;
+        }
+
+        public void setDirectDomains(List<String> directDomains) {
+            this.directDomains = directDomains;
+        }
+
+        public List<String> getParentDomains() {
+            return parentDomains;
+        }
+
+        public void setParentDomains(List<String> parentDomains) {
+            this.parentDomains = parentDomains;
+        }
+
+        public int getConnectTimeoutMs() {
+            return connectTimeoutMs;
+        }
+
+        public void setConnectTimeoutMs(int connectTimeoutMs) {
+            this.connectTimeoutMs = connectTimeoutMs;
+        }
+
+        public long getHealthCheckIntervalMs() {
+            return healthCheckIntervalMs;
+        }
+
+        public void setHealthCheckIntervalMs(long healthCheckIntervalMs) {
+            this.healthCheckIntervalMs = healthCheckIntervalMs;
+        }
+
+        public int getHealthCheckTimeoutMs() {
+            return healthCheckTimeoutMs;
+        }
+
+        public void setHealthCheckTimeoutMs(int healthCheckTimeoutMs) {
+            this.healthCheckTimeoutMs = healthCheckTimeoutMs;
+        }
+
+        public int getMaxFailures() {
+            return maxFailures;
+        }
+
+        public void setMaxFailures(int maxFailures) {
+            this.maxFailures = maxFailures;
+        }
+
+        public int getVirtualNodes() {
+            return virtualNodes;
+        }
+
+        public void setVirtualNodes(int virtualNodes) {
+            this.virtualNodes = virtualNodes;
+        }
+    }
+
+    public static class CircuitBreakerSettings {
+        private boolean enabled = true;
+        private int failureThreshold = 5;
+        private long windowMs = 10000;
+        private long openMs = 5000;
+        private long maxOpenMs = 60000;
+        private long negativeDnsTtlMs = 30000;
+        private int maxEntries = 10000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getFailureThreshold() {
+            return failureThreshold;
+        }
+
+        public void setFailureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+        }
+
+        public long getWindowMs() {
+            return windowMs;
+        }
+
+        public void setWindowMs(long windowMs) {
+            this.windowMs = windowMs;
+        }
+
+        public long getOpenMs() {
+            return openMs;
+        }
+
+        public void setOpenMs(long openMs) {
+            this.openMs = openMs;
+        }
+
+        public long getMaxOpenMs() {
+            return maxOpenMs;
+        }
+
+        public void setMaxOpenMs(long maxOpenMs) {
+            this.maxOpenMs = maxOpenMs;
+        }
+
+        public long getNegativeDnsTtlMs() {
+            return negativeDnsTtlMs;
+        }
+
+        public void setNegativeDnsTtlMs(long negativeDnsTtlMs) {
+            this.negativeDnsTtlMs = negativeDnsTtlMs;
+        }
+
+        public int getMaxEntries() {
+            return maxEntries;
+        }
+
+        public void setMaxEntries(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+    }
+
+    public static class CacheSettings {
+        private boolean enabled = false;
+        private long maxBytes = 67108864;
+        private int maxObjectBytes = 8388608;
+        private long defaultTtlMs = 0;
+        private List<String> peers = new ArrayList<>();
+        private String self = "";
+        private int virtualNodes = 160;
+        private int peerConnectTimeoutMs = 1000;
+        private int peerIdleConnections = 8;
+        private long peerRetryMs = 5000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public int getMaxObjectBytes() {
+            return maxObjectBytes;
+        }
+
+        public void setMaxObjectBytes(int maxObjectBytes) {
+            this.maxObjectBytes = maxObjectBytes;
+        }
+
+        public long getDefaultTtlMs() {
+            return defaultTtlMs;
+        }
+
+        public void setDefaultTtlMs(long defaultTtlMs) {
+            this.defaultTtlMs = defaultTtlMs;
+        }
+
+        public List<String> getPeers() {
+            return peers;
+        }
+
+        public void setPeers(List<String> peers) {
+            this.peers = peers;
+        }
+
+        public String getSelf() {
+            return self;
+        }
+
+        public void setSelf(String self) {
+            this.self = self;
+        }
+
+        public int getVirtualNodes() {
+            return virtualNodes;
+        }
+
+        public void setVirtualNodes(int virtualNodes) {
+            this.virtualNodes = virtualNodes;
+        }
+
+        public int getPeerConnectTimeoutMs() {
+            return peerConnectTimeoutMs;
+        }
+
+        public void setPeerConnectTimeoutMs(int peerConnectTimeoutMs) {
+            this.peerConnectTimeoutMs = peerConnectTimeoutMs;
+        }
+
+        public int getPeerIdleConnections() {
+            return peerIdleConnections;
+        }
+
+        public void setPeerIdleConnections(int peerIdleConnections) {
+            this.peerIdleConnections = peerIdleConnections;
+        }
+
+        public long getPeerRetryMs() {
+            return peerRetryMs;
+        }
+
+        public void setPeerRetryMs(long peerRetryMs) {
+            this.peerRetryMs = peerRetryMs;
+        }
+    }
+
+    public static class SegmentedDownloadSettings {
+        private boolean enabled = false;
+        private long minSizeBytes = 16777216;
+        private int connections = 4;
+        private int segmentBytes = 1048576;
+        private long maxBufferedBytes = 8388608;
+        private int readTimeoutMs = 30000;
+        private long partialCacheBytes = 134217728;
+        private long partialTtlMs = 600000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getMinSizeBytes() {
+            return minSizeBytes;
+        }
+
+        public void setMinSizeBytes(long minSizeBytes) {
+            this.minSizeBytes = minSizeBytes;
+        }
+
+        public int getConnections() {
+            return connections;
+        }
+
+        public void setConnections(int connections) {
+            this.connections = connections;
+        }
+
+        public int getSegmentBytes() {
+            return segmentBytes;
+        }
+
+        public void setSegmentBytes(int segmentBytes) {
+            this.segmentBytes = segmentBytes;
+        }
+
+        public long getMaxBufferedBytes() {
+            return maxBufferedBytes;
+        }
+
+        public void setMaxBufferedBytes(long maxBufferedBytes) {
+            this.maxBufferedBytes = maxBufferedBytes;
+        }
+
+        public int getReadTimeoutMs() {
+            return readTimeoutMs;
+        }
+
+        public void setReadTimeoutMs(int readTimeoutMs) {
+            this.readTimeoutMs = readTimeoutMs;
+        }
+
+        public long getPartialCacheBytes() {
+            return partialCacheBytes;
+        }
+
+        public void setPartialCacheBytes(long partialCacheBytes) {
+            this.partialCacheBytes = partialCacheBytes;
+        }
+
+        public long getPartialTtlMs() {
+            return partialTtlMs;
+        }
+
+        public void setPartialTtlMs(long partialTtlMs) {
+            this.partialTtlMs = partialTtlMs;
+        }
+    }
+
+    public static class CompressionSettings {
+        private boolean enabled = false;
+        private int level = 6;
+        private long minSizeBytes = 1024;
+        private List<String> contentTypes = new ArrayList<>(List.of("text/", "application/json", "application/javascript", "application/xml", "image/svg+xml"));
+        private long cpuBudgetMsPerSecond = 500;
+        private int poolSize = 32;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public void setLevel(int level) {
+            this.level = level;
+        }
+
+        public long getMinSizeBytes() {
+            return minSizeBytes;
+        }
+
+        public void setMinSizeBytes(long minSizeBytes) {
+            this.minSizeBytes = minSizeBytes;
+        }
+
+        public List<String> getContentTypes() {
+            return contentTypes;
+        }
+
+        public void setContentTypes(List<String> contentTypes) {
+            this.contentTypes = contentTypes;
+        }
+
+        public long getCpuBudgetMsPerSecond() {
+            return cpuBudgetMsPerSecond;
+        }
+
+        public void setCpuBudgetMsPerSecond(long cpuBudgetMsPerSecond) {
+            this.cpuBudgetMsPerSecond = cpuBudgetMsPerSecond;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+    }
+
+    public static class Http2Settings {
+        private boolean enabled = false;
+        private int maxConcurrentStreams = 100;
+        private int initialWindowSize = 1048576;
+        private int connectionWindowSize = 16777216;
+        private int maxHeaderListSize = 65536;
+        private int maxBufferedBodyBytes = 16777216;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaxConcurrentStreams() {
+            return maxConcurrentStreams;
+        }
+
+        public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+            this.maxConcurrentStreams = maxConcurrentStreams;
+        }
+
+        public int getInitialWindowSize() {
+            return initialWindowSize;
+        }
+
+        public void setInitialWindowSize(int initialWindowSize) {
+            this.initialWindowSize = initialWindowSize;
+        }
+
+        public int getConnectionWindowSize() {
+            return connectionWindowSize;
+        }
+
+        public void setConnectionWindowSize(int connectionWindowSize) {
+            this.connectionWindowSize = connectionWindowSize;
+        }
+
+        public int getMaxHeaderListSize() {
+            return maxHeaderListSize;
+        }
+
+        public void setMaxHeaderListSize(int maxHeaderListSize) {
+            this.maxHeaderListSize = maxHeaderListSize;
+        }
+
+        public int getMaxBufferedBodyBytes() {
+            return maxBufferedBodyBytes;
+        }
+
+        public void setMaxBufferedBodyBytes(int maxBufferedBodyBytes) {
+            this.maxBufferedBodyBytes = maxBufferedBodyBytes;
+        }
+    }
+
+    public static class CaptureSettings {
+        private boolean enabled = false;
+        private String file = "capture/traffic.wpcap";
+        private boolean captureBodies = false;
+        private boolean captureCredentials = false;
+        private int maxBodyBytes = 4096;
+        private int queueSize = 10000;
+        private long maxFileBytes = 1073741824;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public void setFile(String file) {
+            this.file = file;
+        }
+
+        public boolean isCaptureBodies() {
+            return captureBodies;
+        }
+
+        public void setCaptureBodies(boolean captureBodies) {
+            this.captureBodies = captureBodies;
+        }
+
+        public boolean isCaptureCredentials() {
+            return captureCredentials;
+        }
+
+        public void setCaptureCredentials(boolean captureCredentials) {
+            this.captureCredentials = captureCredentials;
+        }
+
+        public int getMaxBodyBytes() {
+            return maxBodyBytes;
+        }
+
+        public void setMaxBodyBytes(int maxBodyBytes) {
+            this.maxBodyBytes = maxBodyBytes;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public void setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+        }
+
+        public long getMaxFileBytes() {
+            return maxFileBytes;
+        }
+
+        public void setMaxFileBytes(long maxFileBytes) {
+            this.maxFileBytes = maxFileBytes;
+        }
+    }
+
+    public static class FilterSettings {
+        private List<String> chain = new ArrayList<>();
+
+        public List<String> getChain() {
+            return chain;
+        }
+
+        public void setChain(List<String> chain) {
+            this.chain = chain;
+        }
+    }
+
+    public static class MemorySettings {
+        private boolean enabled = false;
+        private long maxBytes = 268435456;
+        private long perConnectionMaxBytes = 33554432;
+        private int highWatermarkPercent = 90;
+        private long waitTimeoutMs = 5000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        public long getPerConnectionMaxBytes() {
+            return perConnectionMaxBytes;
+        }
+
+        public void setPerConnectionMaxBytes(long perConnectionMaxBytes) {
+            this.perConnectionMaxBytes = perConnectionMaxBytes;
+        }
+
+        public int getHighWatermarkPercent() {
+            return highWatermarkPercent;
+        }
+
+        public void setHighWatermarkPercent(int highWatermarkPercent) {
+            this.highWatermarkPercent = highWatermarkPercent;
+        }
+
+        public long getWaitTimeoutMs() {
+            return waitTimeoutMs;
+        }
+
+        public void setWaitTimeoutMs(long waitTimeoutMs) {
+            this.waitTimeoutMs = waitTimeoutMs;
+        }
+    }
+
+    public static class TlsSettings {
+        private boolean enabled = false;
+        private List<String> listen = new ArrayList<>(List.of("0.0.0.0:8443"));
+        private String keystoreFile = "tls/proxy.p12";
+        private String keystorePassword = "changeit";
+        private String keystoreType = "PKCS12";
+        private String keyPassword = "";
+        private List<String> protocols = new ArrayList<>(List.of("TLSv1.3", "TLSv1.2"));
+        private int sessionCacheSize = 20000;
+        private int sessionTimeoutSeconds = 86400;
+        private int handshakeThreads = 4;
+        private int handshakeQueueSize = 256;
+        private int handshakeTimeoutMs = 10000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public List<String> getListen() {
+            return listen;
+        }
+
+        public void setListen(List<String> listen) {
+            this.listen = listen;
+        }
+
+        public String getKeystoreFile() {
+            return keystoreFile;
+        }
+
+        public void setKeystoreFile(String keystoreFile) {
+            this.keystoreFile = keystoreFile;
+        }
+
+        public String getKeystorePassword() {
+            return keystorePassword;
+        }
+
+        public void setKeystorePassword(String keystorePassword) {
+            this.keystorePassword = keystorePassword;
+        }
+
+        public String getKeystoreType() {
+            return keystoreType;
+        }
+
+        public void setKeystoreType(String keystoreType) {
+            this.keystoreType = keystoreType;
+        }
+
+        public String getKeyPassword() {
+            return keyPassword;
+        }
+
+        public void setKeyPassword(String keyPassword) {
+            this.keyPassword = keyPassword;
+        }
+
+        public List<String> getProtocols() {
+            return protocols;
+        }
+
+        public void setProtocols(List<String> protocols) {
+            this.protocols = protocols;
+        }
+
+        public int getSessionCacheSize() {
+            return sessionCacheSize;
+        }
+
+        public void setSessionCacheSize(int sessionCacheSize) {
+            this.sessionCacheSize = sessionCacheSize;
+        }
+
+        public int getSessionTimeoutSeconds() {
+            return sessionTimeoutSeconds;
+        }
+
+        public void setSessionTimeoutSeconds(int sessionTimeoutSeconds) {
+            this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+        }
+
+        public int getHandshakeThreads() {
+            return handshakeThreads;
+        }
+
+        public void setHandshakeThreads(int handshakeThreads) {
+            this.handshakeThreads = handshakeThreads;
+        }
+
+        public int getHandshakeQueueSize() {
+            return handshakeQueueSize;
+        }
+
+        public void setHandshakeQueueSize(int handshakeQueueSize) {
+            this.handshakeQueueSize = handshakeQueueSize;
+        }
+
+        public int getHandshakeTimeoutMs() {
+            return handshakeTimeoutMs;
+        }
+
+        public void setHandshakeTimeoutMs(int handshakeTimeoutMs) {
+            this.handshakeTimeoutMs = handshakeTimeoutMs;
+        }
+    }
+
+    public static class PrefetchSettings {
+        private boolean enabled = false;
+        private boolean preconnect = true;
+        private int maxHostsPerPage = 16;
+        private int maxScanBytes = 262144;
+        private int threads = 4;
+        private int queueSize = 64;
+        private int maxIdleConnections = 32;
+        private int idleTimeoutMs = 10000;
+        private int recentSeconds = 30;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public boolean isPreconnect() {
+            return preconnect;
+        }
+
+        public void setPreconnect(boolean preconnect) {
+            this.preconnect = preconnect;
+        }
+
+        public int getMaxHostsPerPage() {
+            return maxHostsPerPage;
+        }
+
+        public void setMaxHostsPerPage(int maxHostsPerPage) {
+            this.maxHostsPerPage = maxHostsPerPage;
+        }
+
+        public int getMaxScanBytes() {
+            return maxScanBytes;
+        }
+
+        public void setMaxScanBytes(int maxScanBytes) {
+            this.maxScanBytes = maxScanBytes;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public void setThreads(int threads) {
+            this.threads = threads;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public void setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+        }
+
+        public int getMaxIdleConnections() {
+            return maxIdleConnections;
+        }
+
+        public void setMaxIdleConnections(int maxIdleConnections) {
+            this.maxIdleConnections = maxIdleConnections;
+        }
+
+        public int getIdleTimeoutMs() {
+            return idleTimeoutMs;
+        }
+
+        public void setIdleTimeoutMs(int idleTimeoutMs) {
+            this.idleTimeoutMs = idleTimeoutMs;
+        }
+
+        public int getRecentSeconds() {
+            return recentSeconds;
+        }
+
+        public void setRecentSeconds(int recentSeconds) {
+            this.recentSeconds = recentSeconds;
+        }
+    }
+
+    public static class WarmStartSettings {
+        private boolean enabled = false;
+        private String directory = "state";
+        private int maxHosts = 512;
+        private int maxAgeSeconds = 3600;
+        private int refreshThreads = 4;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        public int getMaxHosts() {
+            return maxHosts;
+        }
+
+        public void setMaxHosts(int maxHosts) {
+            this.maxHosts = maxHosts;
+        }
+
+        public int getMaxAgeSeconds() {
+            return maxAgeSeconds;
+        }
+
+        public void setMaxAgeSeconds(int maxAgeSeconds) {
+            this.maxAgeSeconds = maxAgeSeconds;
+        }
+
+        public int getRefreshThreads() {
+            return refreshThreads;
+        }
+
+        public void setRefreshThreads(int refreshThreads) {
+            this.refreshThreads = refreshThreads;
+        }
+    }
+
     public static ProxyConfig loadConfig(String path) {
         try (InputStream input = Files.newInputStream(Paths.get(path))) {
             Yaml yaml = new Yaml();
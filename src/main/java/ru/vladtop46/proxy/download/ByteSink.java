@@ -0,0 +1,11 @@
+package ru.vladtop46.proxy.download;
+
+import java.io.IOException;
+
+/**
+ * Получатель тела ответа; обработчик соединения учитывает в нем трафик и ограничение полосы
+ */
+@FunctionalInterface
+public interface ByteSink {
+    void write(byte[] data, int offset, int length) throws IOException;
+}
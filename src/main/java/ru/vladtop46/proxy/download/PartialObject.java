@@ -0,0 +1,87 @@
+package ru.vladtop46.proxy.download;
+
+import ru.vladtop46.proxy.cache.HttpHead;
+
+/**
+ * Частично загруженный объект: заголовки исходного ответа и сегменты
+ * фиксированного размера, часть из которых может отсутствовать
+ */
+public final class PartialObject {
+    private final String validator;
+    private final long totalLength;
+    private final int segmentBytes;
+    private final HttpHead head;
+    private final byte[][] segments;
+    private final long expiresAt;
+    private long storedBytes;
+
+    PartialObject(String validator, long totalLength, int segmentBytes, HttpHead head, long expiresAt) {
+        this.validator = validator;
+        this.totalLength = totalLength;
+        this.segmentBytes = segmentBytes;
+        this.head = head.withoutHopByHop();
+        this.segments = new byte[(int) ((totalLength + segmentBytes - 1) / segmentBytes)][];
+        this.expiresAt = expiresAt;
+    }
+
+    public String getValidator() {
+        return validator;
+    }
+
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    boolean isFresh(long now) {
+        return now < expiresAt;
+    }
+
+    /**
+     * @return прирост занятой памяти в байтах
+     */
+    synchronized int putSegment(int index, byte[] data) {
+        if (index < 0 || index >= segments.length || segments[index] != null) {
+            return 0;
+        }
+        segments[index] = data;
+        storedBytes += data.length;
+        return data.length;
+    }
+
+    synchronized long getStoredBytes() {
+        return storedBytes;
+    }
+
+    /**
+     * Все ли сегменты диапазона [from, to] на месте
+     */
+    synchronized boolean covers(long from, long to) {
+        for (int i = (int) (from / segmentBytes); i <= (int) (to / segmentBytes); i++) {
+            if (segments[i] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Сегмент с данным номером или null
+     */
+    synchronized byte[] getSegment(int index) {
+        return segments[index];
+    }
+
+    int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    /**
+     * Заголовки ответа 206 на диапазон [from, to]
+     */
+    byte[] partialHead(long from, long to, String extra) {
+        return head.withFirstLine("HTTP/1.1 206 Partial Content")
+                .without("content-length", "content-range")
+                .toBytes("close", "Content-Range: bytes " + from + "-" + to + "/" + totalLength,
+                        "Content-Length: " + (to - from + 1), extra);
+    }
+}
@@ -0,0 +1,173 @@
+package ru.vladtop46.proxy.download;
+
+import ru.vladtop46.proxy.cache.HttpHead;
+import ru.vladtop46.proxy.memory.MemoryBudget;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Частично загруженные объекты в памяти с вытеснением давно не использованных.
+ * Объект привязан к валидатору ответа: при смене ETag/Last-Modified он заменяется.
+ * Сегменты занимают бюджет памяти, пока объект не вытеснен.
+ */
+class PartialObjectStore {
+    private final LinkedHashMap<String, PartialObject> objects = new LinkedHashMap<>(64, 0.75f, true);
+    private final MemoryBudget memory;
+    private long totalBytes;
+
+    /**
+     * @param memory бюджет памяти или null
+     */
+    PartialObjectStore(MemoryBudget memory) {
+        this.memory = memory;
+    }
+
+    /**
+     * Объект для сохранения сегментов загрузки; существующий объект с другим
+     * валидатором или длиной заменяется новым
+     */
+    synchronized PartialObject open(String key, String validator, long totalLength, int segmentBytes,
+                                    HttpHead head, long ttlMillis) {
+        long now = System.currentTimeMillis();
+        PartialObject object = objects.get(key);
+        if (object != null && object.isFresh(now) && object.getValidator().equals(validator)
+                && object.getTotalLength() == totalLength && object.getSegmentBytes() == segmentBytes) {
+            return object;
+        }
+        if (object != null) {
+            remove(key, object);
+        }
+        object = new PartialObject(validator, totalLength, segmentBytes, head, now + ttlMillis);
+        objects.put(key, object);
+        return object;
+    }
+
+    /**
+     * Сохраняет сегмент, вытесняя другие объекты при нехватке места или памяти
+     * @return false если сегмент не поместился
+     */
+    synchronized boolean putSegment(String key, PartialObject object, int index, byte[] data, long maxBytes) {
+        if (objects.get(key) != object) {
+            // Объект уже вытеснен или заменен
+            return false;
+        }
+        Iterator<Map.Entry<String, PartialObject>> iterator = objects.entrySet().iterator();
+        while (totalBytes + data.length > maxBytes && iterator.hasNext()) {
+            PartialObject other = iterator.next().getValue();
+            if (other != object) {
+                dropped(other);
+                iterator.remove();
+            }
+        }
+        if (totalBytes + data.length > maxBytes) {
+            return false;
+        }
+        if (memory != null) {
+            iterator = objects.entrySet().iterator();
+            while (!memory.tryReserveResident(data.length)) {
+                PartialObject other = iterator.hasNext() ? iterator.next().getValue() : null;
+                if (other == null) {
+                    return false;
+                }
+                if (other != object) {
+                    dropped(other);
+                    iterator.remove();
+                }
+            }
+        }
+        int added = object.putSegment(index, data);
+        totalBytes += added;
+        if (memory != null && added < data.length) {
+            memory.releaseResident(data.length - added);
+        }
+        return true;
+    }
+
+    private void remove(String key, PartialObject object) {
+        objects.remove(key);
+        dropped(object);
+    }
+
+    /**
+     * Объект удален из хранилища: его сегменты и память возвращаются
+     */
+    private void dropped(PartialObject object) {
+        long stored = object.getStoredBytes();
+        totalBytes -= stored;
+        if (memory != null && stored > 0) {
+            memory.releaseResident(stored);
+        }
+    }
+
+    synchronized void clear() {
+        objects.values().forEach(this::dropped);
+        objects.clear();
+    }
+
+    /**
+     * Ищет загруженный участок для запроса Range клиента
+     * @param rangeHeader значение заголовка Range; поддерживается один диапазон
+     * @param ifRange значение If-Range клиента или null
+     * @return участок или null, если его нет в памяти целиком
+     */
+    synchronized PartialRange find(String key, String rangeHeader, String ifRange) {
+        PartialObject object = objects.get(key);
+        if (object == null) {
+            return null;
+        }
+        if (!object.isFresh(System.currentTimeMillis())) {
+            remove(key, object);
+            return null;
+        }
+        if (ifRange != null && !ifRange.equals(object.getValidator())) {
+            return null;
+        }
+        long[] range = parseRange(rangeHeader, object.getTotalLength());
+        if (range == null || !object.covers(range[0], range[1])) {
+            return null;
+        }
+        return new PartialRange(object, range[0], range[1]);
+    }
+
+    /**
+     * Разбирает единственный диапазон "bytes=a-b", "bytes=a-" или "bytes=-n"
+     * @return [from, to] включительно или null
+     */
+    static long[] parseRange(String header, long totalLength) {
+        String value = header.trim().toLowerCase();
+        if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = value.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            long from;
+            long to;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                from = Math.max(0, totalLength - suffix);
+                to = totalLength - 1;
+            } else {
+                from = Long.parseLong(spec.substring(0, dash));
+                to = dash == spec.length() - 1 ? totalLength - 1
+                        : Math.min(totalLength - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            return from <= to && from < totalLength ? new long[]{from, to} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    synchronized int size() {
+        return objects.size();
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+}
@@ -0,0 +1,50 @@
+package ru.vladtop46.proxy.download;
+
+import java.io.IOException;
+
+/**
+ * Участок частично загруженного объекта, готовый к отправке клиенту
+ */
+public final class PartialRange {
+    private final PartialObject object;
+    private final long from;
+    private final long to;
+
+    PartialRange(PartialObject object, long from, long to) {
+        this.object = object;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Заголовки ответа 206 с дополнительной строкой заголовка
+     */
+    public byte[] head(String extra) {
+        return object.partialHead(from, to, extra);
+    }
+
+    public long length() {
+        return to - from + 1;
+    }
+
+    /**
+     * Передает участок по сегментам без промежуточного копирования
+     */
+    public void writeTo(ByteSink sink) throws IOException {
+        int segmentBytes = object.getSegmentBytes();
+        long position = from;
+        while (position <= to) {
+            int index = (int) (position / segmentBytes);
+            byte[] segment = object.getSegment(index);
+            int offset = (int) (position - (long) index * segmentBytes);
+            int length = (int) Math.min(segment.length - offset, to - position + 1);
+            sink.write(segment, offset, length);
+            position += length;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "bytes " + from + "-" + to + "/" + object.getTotalLength();
+    }
+}
@@ -0,0 +1,208 @@
+package ru.vladtop46.proxy.download;
+
+import ru.vladtop46.proxy.cache.HttpHead;
+import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.logging.ProxyLogger;
+import ru.vladtop46.proxy.memory.MemoryBudget;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ускоритель больших загрузок.
+ * <p>
+ * Если источник отдает большой объект с Accept-Ranges: bytes и валидатором,
+ * первый сегмент передается клиенту прямо из исходного ответа, а остальные
+ * параллельно запрашиваются диапазонами по нескольким соединениям и
+ * отправляются клиенту по порядку. Загруженные сегменты сохраняются, и
+ * запросы Range клиентов к ним обслуживаются из памяти.
+ */
+public class RangeAccelerator {
+    private final ProxyLogger logger;
+    private final PartialObjectStore store;
+    private final ExecutorService executor;
+    private final AtomicLong accelerated = new AtomicLong();
+    private final AtomicLong rangeRequests = new AtomicLong();
+    private final AtomicLong rangeBytes = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong aborted = new AtomicLong();
+    private final AtomicLong partialHits = new AtomicLong();
+    private final AtomicLong partialMisses = new AtomicLong();
+    private volatile ProxyConfig.SegmentedDownloadSettings settings;
+
+    /**
+     * @param memory бюджет памяти для сохраненных сегментов или null
+     */
+    public RangeAccelerator(ProxyConfig.SegmentedDownloadSettings settings, MemoryBudget memory,
+                            ProxyLogger logger) {
+        this.settings = settings;
+        this.logger = logger;
+        this.store = new PartialObjectStore(memory);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "range-fetch-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void update(ProxyConfig.SegmentedDownloadSettings settings) {
+        ProxyConfig.SegmentedDownloadSettings previous = this.settings;
+        this.settings = settings;
+        if (!settings.isEnabled() || settings.getPartialCacheBytes() <= 0
+                || settings.getSegmentBytes() != previous.getSegmentBytes()) {
+            store.clear();
+        }
+    }
+
+    public boolean isEnabled() {
+        return settings.isEnabled();
+    }
+
+    /**
+     * Запрос, ответ на который можно ускорять: GET без тела
+     */
+    public static boolean isEligibleRequest(String method, Map<String, String> headers) {
+        return "GET".equalsIgnoreCase(method) && !headers.containsKey("content-length")
+                && !headers.containsKey("transfer-encoding");
+    }
+
+    /**
+     * Подходит ли ответ источника для параллельной загрузки
+     */
+    public boolean accepts(HttpHead head) {
+        ProxyConfig.SegmentedDownloadSettings current = settings;
+        String acceptRanges = head.get("accept-ranges");
+        return current.isEnabled() && head.getStatusCode() == 200
+                && acceptRanges != null && acceptRanges.trim().equalsIgnoreCase("bytes")
+                && !head.isChunked() && head.getContentLength() >= current.getMinSizeBytes()
+                && head.getContentLength() > current.getSegmentBytes()
+                && !head.contains("content-encoding") && validatorOf(head) != null;
+    }
+
+    /**
+     * Сколько памяти загрузка держит вне очереди: окно сегментов и сегмент,
+     * который сейчас отправляется клиенту
+     */
+    public long getBufferBytes(HttpHead head) {
+        ProxyConfig.SegmentedDownloadSettings current = settings;
+        return Math.min(head.getContentLength(), windowBytes(current) + current.getSegmentBytes());
+    }
+
+    /**
+     * Окно загрузки в байтах: целое число сегментов, не меньше одного
+     */
+    static long windowBytes(ProxyConfig.SegmentedDownloadSettings settings) {
+        return Math.max(1, settings.getMaxBufferedBytes() / settings.getSegmentBytes()) * settings.getSegmentBytes();
+    }
+
+    /**
+     * Участок объекта для запроса Range клиента, если он уже загружен
+     */
+    public PartialRange findPartial(String key, Map<String, String> headers) {
+        String range = headers.get("range");
+        if (range == null || settings.getPartialCacheBytes() <= 0) {
+            return null;
+        }
+        PartialRange hit = store.find(key, range, headers.get("if-range"));
+        if (hit != null) {
+            partialHits.incrementAndGet();
+        } else {
+            partialMisses.incrementAndGet();
+        }
+        return hit;
+    }
+
+    /**
+     * Передает клиенту тело ответа, догружая его диапазонами параллельно.
+     * Заголовки ответа к этому моменту уже отправлены клиенту.
+     * @param key ключ объекта для хранения сегментов
+     * @param requestLine строка запроса в форме пути
+     * @param headers заголовки запроса клиента
+     * @param origin адрес источника для запросов диапазонов
+     * @param connectTimeoutMs таймаут соединения с источником
+     * @param head заголовки исходного ответа
+     * @param body тело исходного ответа
+     * @param originConnection исходное соединение; закрывается после первого сегмента
+     * @param sink получатель тела
+     */
+    public void transfer(String key, String requestLine, Map<String, String> headers, InetSocketAddress origin,
+                         int connectTimeoutMs, HttpHead head, InputStream body, Closeable originConnection,
+                         ByteSink sink) throws IOException {
+        ProxyConfig.SegmentedDownloadSettings current = settings;
+        PartialObject partial = null;
+        if (current.getPartialCacheBytes() > 0 && isShareable(headers, head)) {
+            partial = store.open(key, validatorOf(head), head.getContentLength(), current.getSegmentBytes(),
+                    head, current.getPartialTtlMs());
+        }
+        accelerated.incrementAndGet();
+        SegmentedDownload download = new SegmentedDownload(this, current, key, partial, requestLine, headers,
+                origin, connectTimeoutMs, validatorOf(head), head.getContentLength());
+        try {
+            download.run(executor, body, originConnection, sink);
+        } catch (IOException e) {
+            aborted.incrementAndGet();
+            throw e;
+        }
+    }
+
+    void storeSegment(String key, PartialObject partial, int index, byte[] data) {
+        if (partial != null) {
+            store.putSegment(key, partial, index, data, settings.getPartialCacheBytes());
+        }
+    }
+
+    void recordRange(long bytes) {
+        rangeRequests.incrementAndGet();
+        rangeBytes.addAndGet(bytes);
+    }
+
+    void recordFallback(String key, int index, String reason) {
+        fallbacks.incrementAndGet();
+        logger.log("Segment " + index + " of " + key + " refetched: " + reason);
+    }
+
+    /**
+     * Сильный ETag, иначе Last-Modified; слабый ETag не годится для If-Range
+     */
+    static String validatorOf(HttpHead head) {
+        String etag = head.get("etag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag.trim();
+        }
+        String lastModified = head.get("last-modified");
+        return lastModified != null ? lastModified.trim() : null;
+    }
+
+    /**
+     * Можно ли отдавать сохраненные сегменты другим клиентам
+     */
+    private static boolean isShareable(Map<String, String> headers, HttpHead head) {
+        if (headers.containsKey("authorization") || head.contains("set-cookie")) {
+            return false;
+        }
+        String cacheControl = head.get("cache-control");
+        if (cacheControl == null) {
+            return true;
+        }
+        String value = cacheControl.toLowerCase();
+        return !value.contains("private") && !value.contains("no-store");
+    }
+
+    public String getStatus() {
+        if (!settings.isEnabled()) {
+            return "Segmented download: disabled";
+        }
+        return String.format("Segmented download: accelerated=%d, aborted=%d, range requests=%d (%d bytes), "
+                        + "refetched=%d, partial objects=%d (%d bytes), partial hits=%d, misses=%d",
+                accelerated.get(), aborted.get(), rangeRequests.get(), rangeBytes.get(), fallbacks.get(),
+                store.size(), store.getTotalBytes(), partialHits.get(), partialMisses.get());
+    }
+}
@@ -0,0 +1,313 @@
+package ru.vladtop46.proxy.download;
+
+import ru.vladtop46.proxy.cache.HttpHead;
+import ru.vladtop46.proxy.config.ProxyConfig;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Одна ускоренная загрузка.
+ * <p>
+ * Объект делится на сегменты по {@code segmentBytes}. Сегмент 0 читается из
+ * исходного ответа, остальные забирают рабочие потоки по порядку номеров.
+ * Поток берет следующий сегмент, только если тот не дальше окна от сегмента,
+ * который сейчас отправляется клиенту, поэтому в памяти вне очереди лежит не
+ * больше {@code maxBufferedBytes}. Сегмент, который рабочему потоку не удалось
+ * загрузить, обработчик клиента загружает сам.
+ */
+class SegmentedDownload {
+    private final RangeAccelerator accelerator;
+    private final String key;
+    private final PartialObject partial;
+    private final String requestPrefix;
+    private final InetSocketAddress origin;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final String validator;
+    private final long totalLength;
+    private final int segmentBytes;
+    private final int segmentCount;
+    private final int window;
+    private final int workers;
+
+    // Состояние под монитором this
+    private final Map<Integer, byte[]> ready = new HashMap<>();
+    private final Set<Integer> failed = new HashSet<>();
+    private final Map<Integer, String> failures = new HashMap<>();
+    private int nextToClaim = 1;
+    private int nextToWrite;
+    private boolean aborted;
+
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    SegmentedDownload(RangeAccelerator accelerator, ProxyConfig.SegmentedDownloadSettings settings, String key,
+                      PartialObject partial, String requestLine, Map<String, String> headers,
+                      InetSocketAddress origin, int connectTimeoutMs, String validator, long totalLength) {
+        this.accelerator = accelerator;
+        this.key = key;
+        this.partial = partial;
+        this.origin = origin;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = settings.getReadTimeoutMs();
+        this.validator = validator;
+        this.totalLength = totalLength;
+        this.segmentBytes = settings.getSegmentBytes();
+        this.segmentCount = (int) ((totalLength + segmentBytes - 1) / segmentBytes);
+        this.window = (int) (RangeAccelerator.windowBytes(settings) / segmentBytes);
+        this.workers = Math.max(1, settings.getConnections() - 1);
+        this.requestPrefix = requestPrefix(requestLine, headers);
+    }
+
+    void run(ExecutorService executor, InputStream body, Closeable originConnection, ByteSink sink)
+            throws IOException {
+        for (int i = 0; i < Math.min(workers, segmentCount - 1); i++) {
+            executor.execute(this::work);
+        }
+        try {
+            byte[] first = new byte[(int) Math.min(segmentBytes, totalLength)];
+            readFully(body, first, sink);
+            // Остаток исходного ответа не нужен: он придет диапазонами
+            originConnection.close();
+            accelerator.storeSegment(key, partial, 0, first);
+            advance();
+
+            for (int index = 1; index < segmentCount; index++) {
+                byte[] data = await(index);
+                if (data == null) {
+                    accelerator.recordFallback(key, index, failureOf(index));
+                    data = fetchDirect(index);
+                }
+                sink.write(data, 0, data.length);
+                accelerator.storeSegment(key, partial, index, data);
+                advance();
+            }
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Передает первый сегмент клиенту по мере чтения
+     */
+    private static void readFully(InputStream in, byte[] target, ByteSink sink) throws IOException {
+        int offset = 0;
+        while (offset < target.length) {
+            int read = in.read(target, offset, Math.min(8192, target.length - offset));
+            if (read == -1) {
+                throw new IOException("Response truncated: " + (target.length - offset) + " bytes missing");
+            }
+            sink.write(target, offset, read);
+            offset += read;
+        }
+    }
+
+    private void work() {
+        RangeConnection connection = null;
+        try {
+            int index;
+            while ((index = claim()) >= 0) {
+                byte[] data = null;
+                String error = null;
+                for (int attempt = 0; attempt < 2 && data == null; attempt++) {
+                    try {
+                        if (connection == null) {
+                            connection = new RangeConnection();
+                        }
+                        data = connection.fetch(index);
+                        if (!connection.isReusable()) {
+                            connection.close();
+                            connection = null;
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        error = e.getMessage();
+                        if (connection != null) {
+                            connection.close();
+                            connection = null;
+                        }
+                    }
+                }
+                deliver(index, data, error);
+            }
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Номер следующего сегмента для рабочего потока; ждет, пока он попадет в окно
+     * @return номер или -1, если сегменты кончились или загрузка прервана
+     */
+    private synchronized int claim() {
+        while (!aborted && nextToClaim < segmentCount && nextToClaim >= nextToWrite + window) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+        if (aborted || nextToClaim >= segmentCount) {
+            return -1;
+        }
+        return nextToClaim++;
+    }
+
+    private synchronized void deliver(int index, byte[] data, String error) {
+        if (data != null) {
+            ready.put(index, data);
+        } else {
+            failed.add(index);
+            failures.put(index, error);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Ждет сегмент от рабочего потока
+     * @return данные или null, если поток не смог его загрузить
+     */
+    private synchronized byte[] await(int index) throws IOException {
+        while (!ready.containsKey(index) && !failed.contains(index)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for segment " + index);
+            }
+        }
+        return ready.remove(index);
+    }
+
+    private synchronized String failureOf(int index) {
+        return String.valueOf(failures.remove(index));
+    }
+
+    private synchronized void advance() {
+        nextToWrite++;
+        notifyAll();
+    }
+
+    /**
+     * Останавливает рабочие потоки и закрывает их соединения
+     */
+    private void abort() {
+        synchronized (this) {
+            aborted = true;
+            ready.clear();
+            notifyAll();
+        }
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Уже закрыт
+            }
+        }
+    }
+
+    private byte[] fetchDirect(int index) throws IOException {
+        RangeConnection connection = new RangeConnection();
+        try {
+            return connection.fetch(index);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Строка запроса и заголовки клиента без заголовков соединения и диапазона
+     */
+    private static String requestPrefix(String requestLine, Map<String, String> headers) {
+        StringBuilder sb = new StringBuilder(requestLine).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey();
+            if (!name.startsWith("proxy-") && !name.startsWith("x-proxy-") && !name.equals("connection")
+                    && !name.equals("keep-alive") && !name.equals("range") && !name.equals("if-range")) {
+                sb.append(name).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Постоянное соединение с источником для запросов диапазонов
+     */
+    private final class RangeConnection implements Closeable {
+        private final Socket socket = new Socket();
+        private final InputStream in;
+        private final OutputStream out;
+        private boolean reusable = true;
+
+        private RangeConnection() throws IOException {
+            sockets.add(socket);
+            try {
+                socket.connect(origin, connectTimeoutMs);
+                socket.setSoTimeout(readTimeoutMs);
+                socket.setTcpNoDelay(true);
+                in = new BufferedInputStream(socket.getInputStream());
+                out = socket.getOutputStream();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        byte[] fetch(int index) throws IOException {
+            long from = (long) index * segmentBytes;
+            long to = Math.min(totalLength, from + segmentBytes) - 1;
+            String request = requestPrefix + "range: bytes=" + from + "-" + to + "\r\n"
+                    + "if-range: " + validator + "\r\n"
+                    + "connection: keep-alive\r\n\r\n";
+            out.write(request.getBytes());
+            out.flush();
+
+            HttpHead head = HttpHead.read(in);
+            if (head == null) {
+                throw new IOException("connection closed by origin");
+            }
+            String contentRange = head.get("content-range");
+            String expected = "bytes " + from + "-" + to + "/" + totalLength;
+            if (head.getStatusCode() != 206 || contentRange == null || !contentRange.trim().equals(expected)) {
+                // Объект изменился или источник не поддерживает диапазон
+                reusable = false;
+                throw new IOException("unexpected range response: " + head.getFirstLine() + " " + contentRange);
+            }
+            if (head.getContentLength() != to - from + 1) {
+                reusable = false;
+                throw new IOException("unexpected range length: " + head.getContentLength());
+            }
+            byte[] data = HttpHead.readBody(in, (int) (to - from + 1));
+            reusable = !"close".equalsIgnoreCase(head.get("connection"));
+            accelerator.recordRange(data.length);
+            return data;
+        }
+
+        boolean isReusable() {
+            return reusable;
+        }
+
+        @Override
+        public void close() {
+            sockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Уже закрыт
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package ru.vladtop46.proxy.filter;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Неизменяемая цепочка фильтров, собранная из настроек.
+ * <p>
+ * Для каждого этапа заранее отобраны фильтры, переопределившие его метод,
+ * поэтому пустая цепочка и цепочка из одних фильтров заголовков не
+ * добавляют работы передаче тел. Цепочка строится при сборке снимка
+ * политики и меняется вместе с ним при перезагрузке.
+ */
+public final class FilterChain {
+    public static final FilterChain EMPTY = new FilterChain(Collections.emptyList(), Collections.emptyList());
+
+    private final List<String> specs;
+    private final HttpFilter[] connectionFilters;
+    private final HttpFilter[] requestFilters;
+    private final HttpFilter[] responseFilters;
+    private final HttpFilter[] bodyFilters;
+
+    public FilterChain(List<HttpFilter> filters) {
+        this(filters, Collections.emptyList());
+    }
+
+    private FilterChain(List<HttpFilter> filters, List<String> specs) {
+        this.specs = specs;
+        List<HttpFilter> connection = new ArrayList<>();
+        List<HttpFilter> request = new ArrayList<>();
+        List<HttpFilter> response = new ArrayList<>();
+        List<HttpFilter> body = new ArrayList<>();
+        for (HttpFilter filter : filters) {
+            if (overrides(filter, "onConnectionOpen", FilterContext.class)
+                    || overrides(filter, "onConnectionClose", FilterContext.class)) {
+                connection.add(filter);
+            }
+            if (overrides(filter, "onRequestHeaders", FilterContext.class, HeaderBlock.class)) {
+                request.add(filter);
+            }
+            if (overrides(filter, "onResponseHeaders", FilterContext.class, HeaderBlock.class)) {
+                response.add(filter);
+            }
+            if (overrides(filter, "onBodyChunk", FilterContext.class, boolean.class, byte[].class,
+                    int.class, int.class)) {
+                body.add(filter);
+            }
+        }
+        this.connectionFilters = connection.toArray(new HttpFilter[0]);
+        this.requestFilters = request.toArray(new HttpFilter[0]);
+        this.responseFilters = response.toArray(new HttpFilter[0]);
+        this.bodyFilters = body.toArray(new HttpFilter[0]);
+    }
+
+    private static boolean overrides(HttpFilter filter, String method, Class<?>... parameters) {
+        try {
+            return filter.getClass().getMethod(method, parameters).getDeclaringClass() != HttpFilter.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Собирает цепочку из строк настроек, по фильтру на строку:
+     * <pre>
+     * set-request-header Name value
+     * remove-request-header Name
+     * set-response-header Name value
+     * remove-response-header Name
+     * route host target[:port]
+     * class com.example.MyFilter [аргументы]
+     * </pre>
+     * Класс загружается через конструктор от String[] или без аргументов.
+     * @throws IllegalArgumentException строка не распознана или класс не загружен
+     */
+    public static FilterChain build(List<String> specs) {
+        if (specs == null || specs.isEmpty()) {
+            return EMPTY;
+        }
+        List<HttpFilter> filters = new ArrayList<>();
+        for (String spec : specs) {
+            filters.add(parse(spec.trim()));
+        }
+        return new FilterChain(filters, List.copyOf(specs));
+    }
+
+    private static HttpFilter parse(String spec) {
+        String[] parts = spec.split("\\s+", 3);
+        String name = parts[0].toLowerCase();
+        switch (name) {
+            case "set-request-header":
+            case "set-response-header":
+                require(spec, parts, 3);
+                return HeaderRewriteFilter.create(name.startsWith("set-request"), parts[1], parts[2]);
+            case "remove-request-header":
+            case "remove-response-header":
+                require(spec, parts, 2);
+                return HeaderRewriteFilter.create(name.startsWith("remove-request"), parts[1], null);
+            case "route":
+                require(spec, parts, 3);
+                return new RouteFilter(parts[1], parts[2].trim());
+            case "class":
+                require(spec, parts, 2);
+                return instantiate(parts[1], parts.length > 2 ? parts[2].trim().split("\\s+") : new String[0]);
+            default:
+                throw new IllegalArgumentException("Unknown filter: " + spec);
+        }
+    }
+
+    private static void require(String spec, String[] parts, int count) {
+        if (parts.length < count) {
+            throw new IllegalArgumentException("Filter needs " + (count - 1) + " argument(s): " + spec);
+        }
+    }
+
+    private static HttpFilter instantiate(String className, String[] args) {
+        try {
+            Class<? extends HttpFilter> type = Class.forName(className).asSubclass(HttpFilter.class);
+            try {
+                Constructor<? extends HttpFilter> constructor = type.getConstructor(String[].class);
+                return constructor.newInstance((Object) args);
+            } catch (NoSuchMethodException e) {
+                if (args.length > 0) {
+                    throw new IllegalArgumentException("Filter " + className + " takes no arguments");
+                }
+                return type.getConstructor().newInstance();
+            }
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Cannot load filter " + className + ": " + e, e);
+        }
+    }
+
+    public boolean isEmpty() {
+        return connectionFilters.length == 0 && requestFilters.length == 0
+                && responseFilters.length == 0 && bodyFilters.length == 0;
+    }
+
+    public boolean hasRequestFilters() {
+        return requestFilters.length > 0;
+    }
+
+    public boolean hasResponseFilters() {
+        return responseFilters.length > 0;
+    }
+
+    /**
+     * В цепочке есть фильтры тел: передача должна отдавать им каждую часть
+     */
+    public boolean hasBodyFilters() {
+        return bodyFilters.length > 0;
+    }
+
+    public void connectionOpen(FilterContext context) {
+        for (HttpFilter filter : connectionFilters) {
+            filter.onConnectionOpen(context);
+        }
+    }
+
+    /**
+     * Пропускает заголовки запроса через фильтры до первого отказа
+     */
+    public void requestHeaders(FilterContext context, HeaderBlock headers) {
+        for (HttpFilter filter : requestFilters) {
+            filter.onRequestHeaders(context, headers);
+            if (context.isRejected()) {
+                return;
+            }
+        }
+    }
+
+    public void responseHeaders(FilterContext context, HeaderBlock headers) {
+        for (HttpFilter filter : responseFilters) {
+            filter.onResponseHeaders(context, headers);
+        }
+    }
+
+    public void bodyChunk(FilterContext context, boolean fromClient, byte[] data, int offset, int length) {
+        for (HttpFilter filter : bodyFilters) {
+            filter.onBodyChunk(context, fromClient, data, offset, length);
+        }
+    }
+
+    /**
+     * Вызывает все фильтры закрытия, даже если какой-то из них завершился ошибкой
+     */
+    public void connectionClose(FilterContext context) {
+        RuntimeException failure = null;
+        for (HttpFilter filter : connectionFilters) {
+            try {
+                filter.onConnectionClose(context);
+            } catch (RuntimeException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Строки настроек, из которых собрана цепочка
+     */
+    public List<String> getSpecs() {
+        return specs;
+    }
+}
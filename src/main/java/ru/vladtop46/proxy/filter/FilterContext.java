@@ -0,0 +1,71 @@
+package ru.vladtop46.proxy.filter;
+
+import ru.vladtop46.proxy.model.ConnectionInfo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Состояние одного соединения, доступное фильтрам
+ */
+public class FilterContext {
+    private final ConnectionInfo connInfo;
+    private final Map<String, Object> attributes = new HashMap<>();
+    private int rejectStatus;
+    private String rejectReason;
+
+    public FilterContext(ConnectionInfo connInfo) {
+        this.connInfo = connInfo;
+    }
+
+    public String getConnectionId() {
+        return connInfo.getId();
+    }
+
+    public String getClientIp() {
+        return connInfo.getClientIp();
+    }
+
+    /**
+     * Хост назначения; до разбора заголовков запроса - null
+     */
+    public String getTargetHost() {
+        return connInfo.getTargetHost();
+    }
+
+    public String getConnectionType() {
+        return connInfo.getConnectionType();
+    }
+
+    /**
+     * Значение, сохраненное фильтром для этого соединения
+     */
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    /**
+     * Отклоняет запрос: клиент получит ответ с этим кодом, к источнику
+     * запрос не уйдет, следующие фильтры не вызываются
+     */
+    public void reject(int status, String reason) {
+        this.rejectStatus = status;
+        this.rejectReason = reason;
+    }
+
+    public boolean isRejected() {
+        return rejectStatus > 0;
+    }
+
+    public int getRejectStatus() {
+        return rejectStatus;
+    }
+
+    public String getRejectReason() {
+        return rejectReason;
+    }
+}
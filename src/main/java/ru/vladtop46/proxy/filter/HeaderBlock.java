@@ -0,0 +1,509 @@
+package ru.vladtop46.proxy.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Стартовая строка и заголовки HTTP-сообщения поверх прочитанных байтов.
+ * <p>
+ * При разборе запоминаются только границы имен и значений; строки создаются
+ * по запросу, а сравнение имен ({@link #nameEquals}) не выделяет память.
+ * Первое изменение переводит блок на списки строк, неизмененный блок
+ * записывается дальше исходными байтами.
+ */
+public final class HeaderBlock {
+    private static final int MAX_HEAD_BYTES = 64 * 1024;
+
+    // Исходные байты и границы строк; data == null для блока, собранного из строк
+    private final byte[] data;
+    private final int length;
+    private int firstLineEnd;
+    private int count;
+    private int[] bounds;
+
+    // Содержимое после первого изменения
+    private String firstLine;
+    private List<String> names;
+    private List<String> values;
+    private boolean modified;
+
+    private HeaderBlock(byte[] data, int length) {
+        this.data = data;
+        this.length = length;
+    }
+
+    /**
+     * Читает заголовки до пустой строки, не заглядывая в тело. Поток с
+     * поддержкой mark читается блоками, лишнее возвращается через reset.
+     * @return заголовки или null, если соединение закрыто до первого байта
+     */
+    public static HeaderBlock read(InputStream in) throws IOException {
+        return in.markSupported() ? readMarked(in) : readBytewise(in);
+    }
+
+    private static HeaderBlock readMarked(InputStream in) throws IOException {
+        in.mark(MAX_HEAD_BYTES);
+        byte[] buffer = new byte[1024];
+        int length = 0;
+        int scanned = 0;
+        int lineLength = 0;
+        while (true) {
+            if (length == buffer.length) {
+                if (length >= MAX_HEAD_BYTES) {
+                    throw new IOException("Headers too large");
+                }
+                buffer = Arrays.copyOf(buffer, Math.min(length * 2, MAX_HEAD_BYTES));
+            }
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                if (length == 0) {
+                    return null;
+                }
+                throw new IOException("Connection closed inside headers");
+            }
+            length += read;
+            for (; scanned < length; scanned++) {
+                byte b = buffer[scanned];
+                if (b == '\n') {
+                    if (lineLength == 0) {
+                        int headLength = scanned + 1;
+                        // Прочитанное после пустой строки относится к телу
+                        in.reset();
+                        skipFully(in, headLength);
+                        return parse(buffer, headLength);
+                    }
+                    lineLength = 0;
+                } else if (b != '\r') {
+                    lineLength++;
+                }
+            }
+        }
+    }
+
+    private static void skipFully(InputStream in, int count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new IOException("Cannot skip headers");
+            }
+            count -= (int) skipped;
+        }
+    }
+
+    private static HeaderBlock readBytewise(InputStream in) throws IOException {
+        byte[] buffer = new byte[1024];
+        int length = 0;
+        int lineLength = 0;
+        int b;
+        while (true) {
+            b = in.read();
+            if (b == -1) {
+                if (length == 0) {
+                    return null;
+                }
+                throw new IOException("Connection closed inside headers");
+            }
+            if (length == buffer.length) {
+                if (length >= MAX_HEAD_BYTES) {
+                    throw new IOException("Headers too large");
+                }
+                buffer = Arrays.copyOf(buffer, Math.min(length * 2, MAX_HEAD_BYTES));
+            }
+            buffer[length++] = (byte) b;
+            if (b == '\n') {
+                if (lineLength == 0) {
+                    break;
+                }
+                lineLength = 0;
+            } else if (b != '\r') {
+                lineLength++;
+            }
+        }
+        return parse(buffer, length);
+    }
+
+    /**
+     * Разбирает заголовки, уже лежащие в буфере; массив не копируется
+     * @param length длина заголовков вместе с завершающей пустой строкой
+     */
+    public static HeaderBlock parse(byte[] data, int length) {
+        HeaderBlock block = new HeaderBlock(data, length);
+        block.index();
+        return block;
+    }
+
+    /**
+     * Блок из уже прочитанных строк вида "Name: value"
+     */
+    public static HeaderBlock fromLines(String firstLine, List<String> lines) {
+        HeaderBlock block = new HeaderBlock(null, 0);
+        block.firstLine = firstLine;
+        block.names = new ArrayList<>(lines.size());
+        block.values = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                block.names.add(line.substring(0, colon).trim());
+                block.values.add(line.substring(colon + 1).trim());
+            }
+        }
+        return block;
+    }
+
+    private void index() {
+        bounds = new int[32];
+        int pos = lineEnd(0);
+        firstLineEnd = trimEnd(0, pos);
+        pos++;
+        while (pos < length) {
+            int end = lineEnd(pos);
+            int lineEnd = trimEnd(pos, end);
+            if (lineEnd == pos) {
+                break;
+            }
+            int colon = pos;
+            while (colon < lineEnd && data[colon] != ':') {
+                colon++;
+            }
+            if (colon > pos && colon < lineEnd) {
+                if ((count + 1) * 4 > bounds.length) {
+                    bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                }
+                int valueStart = colon + 1;
+                while (valueStart < lineEnd && isSpace(data[valueStart])) {
+                    valueStart++;
+                }
+                int i = count * 4;
+                bounds[i] = skipSpaces(pos, colon);
+                bounds[i + 1] = trimEnd(pos, colon);
+                bounds[i + 2] = valueStart;
+                bounds[i + 3] = lineEnd;
+                count++;
+            }
+            pos = end + 1;
+        }
+    }
+
+    private int lineEnd(int from) {
+        int pos = from;
+        while (pos < length && data[pos] != '\n') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int skipSpaces(int from, int end) {
+        while (from < end && isSpace(data[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && (isSpace(data[end - 1]) || data[end - 1] == '\r')) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    public String getFirstLine() {
+        return names != null ? firstLine : text(0, firstLineEnd);
+    }
+
+    public void setFirstLine(String line) {
+        materialize();
+        firstLine = line;
+    }
+
+    /**
+     * Число заголовков
+     */
+    public int size() {
+        return names != null ? names.size() : count;
+    }
+
+    /**
+     * Сравнивает имя заголовка с именем в нижнем регистре без создания строк
+     */
+    public boolean nameEquals(int index, String lowerName) {
+        if (names != null) {
+            return names.get(index).equalsIgnoreCase(lowerName);
+        }
+        int start = bounds[index * 4];
+        int end = bounds[index * 4 + 1];
+        if (end - start != lowerName.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            int b = data[i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerName.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Номер первого заголовка с таким именем (в нижнем регистре) или -1
+     */
+    public int indexOf(String lowerName) {
+        int size = size();
+        for (int i = 0; i < size; i++) {
+            if (nameEquals(i, lowerName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String name(int index) {
+        return names != null ? names.get(index) : text(bounds[index * 4], bounds[index * 4 + 1]);
+    }
+
+    public String value(int index) {
+        return names != null ? values.get(index) : text(bounds[index * 4 + 2], bounds[index * 4 + 3]);
+    }
+
+    /**
+     * Значение первого заголовка с таким именем (в нижнем регистре) или null
+     */
+    public String get(String lowerName) {
+        int index = indexOf(lowerName);
+        return index >= 0 ? value(index) : null;
+    }
+
+    public boolean contains(String lowerName) {
+        return indexOf(lowerName) >= 0;
+    }
+
+    /**
+     * Заменяет все заголовки с этим именем одним; новый встает на место первого
+     */
+    public void set(String name, String value) {
+        String lowerName = name.toLowerCase();
+        int index = indexOf(lowerName);
+        if (index < 0) {
+            add(name, value);
+            return;
+        }
+        materialize();
+        names.set(index, name);
+        values.set(index, value);
+        for (int i = names.size() - 1; i > index; i--) {
+            if (names.get(i).equalsIgnoreCase(lowerName)) {
+                names.remove(i);
+                values.remove(i);
+            }
+        }
+    }
+
+    public void add(String name, String value) {
+        materialize();
+        names.add(name);
+        values.add(value);
+    }
+
+    /**
+     * Удаляет все заголовки с этим именем
+     * @return хотя бы один заголовок был удален
+     */
+    public boolean remove(String name) {
+        String lowerName = name.toLowerCase();
+        if (indexOf(lowerName) < 0) {
+            return false;
+        }
+        materialize();
+        for (int i = names.size() - 1; i >= 0; i--) {
+            if (names.get(i).equalsIgnoreCase(lowerName)) {
+                names.remove(i);
+                values.remove(i);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Блок изменен фильтрами и должен быть собран заново
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    private void materialize() {
+        modified = true;
+        if (names != null) {
+            return;
+        }
+        List<String> parsedNames = new ArrayList<>(count + 4);
+        List<String> parsedValues = new ArrayList<>(count + 4);
+        for (int i = 0; i < count; i++) {
+            parsedNames.add(name(i));
+            parsedValues.add(value(i));
+        }
+        firstLine = text(0, firstLineEnd);
+        names = parsedNames;
+        values = parsedValues;
+    }
+
+    private String text(int start, int end) {
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Записывает блок вместе с пустой строкой; неизмененный блок - исходными байтами
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (names == null) {
+            out.write(data, 0, length);
+        } else {
+            out.write(toBytes());
+        }
+    }
+
+    public byte[] toBytes() {
+        if (names == null) {
+            return Arrays.copyOf(data, length);
+        }
+        StringBuilder sb = new StringBuilder(firstLine).append("\r\n");
+        for (int i = 0; i < names.size(); i++) {
+            sb.append(names.get(i)).append(": ").append(values.get(i)).append("\r\n");
+        }
+        sb.append("\r\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Заголовки по именам в нижнем регистре; из повторяющихся остается последний
+     */
+    public Map<String, String> toMap() {
+        int size = size();
+        Map<String, String> map = new HashMap<>(Math.max(16, size * 2));
+        for (int i = 0; i < size; i++) {
+            map.put(name(i).toLowerCase(), value(i));
+        }
+        return map;
+    }
+
+    /**
+     * Заголовки как карта по именам в нижнем регистре без копирования: значения
+     * создаются при обращении. Из повторяющихся заголовков виден первый.
+     * Удаление через карту удаляет заголовок из блока.
+     */
+    public Map<String, String> asMap() {
+        return new MapView();
+    }
+
+    /**
+     * Первое вхождение своего имени среди заголовков
+     */
+    private boolean isFirstOccurrence(int index) {
+        String lowerName = null;
+        for (int i = 0; i < index; i++) {
+            if (lowerName == null) {
+                lowerName = name(index).toLowerCase();
+            }
+            if (nameEquals(i, lowerName)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Строки заголовков вида "Name: value" без стартовой строки
+     */
+    public List<String> toLines() {
+        int size = size();
+        List<String> lines = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            lines.add(name(i) + ": " + value(i));
+        }
+        return lines;
+    }
+
+    private final class MapView extends AbstractMap<String, String> {
+        @Override
+        public String get(Object key) {
+            return key instanceof String ? HeaderBlock.this.get(((String) key).toLowerCase()) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && indexOf(((String) key).toLowerCase()) >= 0;
+        }
+
+        @Override
+        public String remove(Object key) {
+            String value = get(key);
+            if (value != null) {
+                HeaderBlock.this.remove((String) key);
+            }
+            return value;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<>() {
+                        private int next = advance(0);
+
+                        private int advance(int from) {
+                            int size = HeaderBlock.this.size();
+                            while (from < size && !isFirstOccurrence(from)) {
+                                from++;
+                            }
+                            return from;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < HeaderBlock.this.size();
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            int index = next;
+                            next = advance(index + 1);
+                            return new SimpleImmutableEntry<>(name(index).toLowerCase(), value(index));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int distinct = 0;
+                    for (int i = 0; i < HeaderBlock.this.size(); i++) {
+                        if (isFirstOccurrence(i)) {
+                            distinct++;
+                        }
+                    }
+                    return distinct;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ru.vladtop46.proxy.filter;
+
+/**
+ * Установка или удаление заголовка запроса либо ответа
+ */
+abstract class HeaderRewriteFilter implements HttpFilter {
+    private final String name;
+    private final String value;
+
+    private HeaderRewriteFilter(String name, String value) {
+        this.name = name;
+        this.value = value;
+    }
+
+    /**
+     * @param request менять запрос, иначе ответ
+     * @param value новое значение или null, чтобы удалить заголовок
+     */
+    static HttpFilter create(boolean request, String name, String value) {
+        // Фильтр переопределяет только свой этап, чтобы цепочка не вызывала его на другом
+        if (request) {
+            return new HeaderRewriteFilter(name, value) {
+                @Override
+                public void onRequestHeaders(FilterContext context, HeaderBlock headers) {
+                    rewrite(headers);
+                }
+            };
+        }
+        return new HeaderRewriteFilter(name, value) {
+            @Override
+            public void onResponseHeaders(FilterContext context, HeaderBlock headers) {
+                rewrite(headers);
+            }
+        };
+    }
+
+    void rewrite(HeaderBlock headers) {
+        if (value != null) {
+            headers.set(name, value);
+        } else {
+            headers.remove(name);
+        }
+    }
+}
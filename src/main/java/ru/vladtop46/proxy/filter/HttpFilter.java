@@ -0,0 +1,47 @@
+package ru.vladtop46.proxy.filter;
+
+/**
+ * Фильтр запросов и ответов в цепочке {@link FilterChain}.
+ * <p>
+ * Все методы необязательны. Цепочка вызывает только переопределенные
+ * методы: фильтр без {@link #onBodyChunk} не замедляет передачу тел,
+ * а обработчик вообще не обращается к цепочке на этапах, для которых в
+ * ней нет фильтров. Экземпляр фильтра общий для всех соединений и должен
+ * быть потокобезопасным; состояние соединения хранится в {@link FilterContext}.
+ */
+public interface HttpFilter {
+
+    /**
+     * Клиент подключился, запрос еще не прочитан
+     */
+    default void onConnectionOpen(FilterContext context) {
+    }
+
+    /**
+     * Заголовки запроса прочитаны; фильтр может изменить их, стартовую строку
+     * (например, адрес назначения) или отклонить запрос через
+     * {@link FilterContext#reject}
+     */
+    default void onRequestHeaders(FilterContext context, HeaderBlock headers) {
+    }
+
+    /**
+     * Заголовки ответа источника перед отправкой клиенту
+     */
+    default void onResponseHeaders(FilterContext context, HeaderBlock headers) {
+    }
+
+    /**
+     * Очередная часть тела запроса или ответа. Данные можно менять на месте
+     * без изменения длины; туннели и WebSocket через фильтры не проходят.
+     * @param fromClient часть тела запроса, иначе ответа
+     */
+    default void onBodyChunk(FilterContext context, boolean fromClient, byte[] data, int offset, int length) {
+    }
+
+    /**
+     * Соединение закрыто
+     */
+    default void onConnectionClose(FilterContext context) {
+    }
+}
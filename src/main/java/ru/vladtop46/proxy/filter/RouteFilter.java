@@ -0,0 +1,51 @@
+package ru.vladtop46.proxy.filter;
+
+/**
+ * Направляет запросы к хосту на другой адрес: меняет Host и абсолютный
+ * адрес в стартовой строке, для CONNECT - адрес туннеля. Проверки доступа
+ * выполняются уже для нового адреса.
+ */
+final class RouteFilter implements HttpFilter {
+    private final String host;
+    private final String target;
+
+    /**
+     * @param host хост запроса без порта
+     * @param target новый адрес вида host[:port]
+     */
+    RouteFilter(String host, String target) {
+        this.host = host.toLowerCase();
+        this.target = target;
+    }
+
+    @Override
+    public void onRequestHeaders(FilterContext context, HeaderBlock headers) {
+        String value = headers.get("host");
+        if (value == null || !hostName(value).equalsIgnoreCase(host)) {
+            return;
+        }
+        headers.set("Host", target);
+
+        String[] parts = headers.getFirstLine().split(" ");
+        if (parts.length != 3) {
+            return;
+        }
+        String url = parts[1];
+        if ("CONNECT".equalsIgnoreCase(parts[0])) {
+            // Без порта в адресе маршрута сохраняется порт туннеля
+            int colon = url.lastIndexOf(':');
+            url = target.indexOf(':') < 0 && colon > 0 ? target + url.substring(colon) : target;
+        } else if (url.regionMatches(true, 0, "http://", 0, 7)) {
+            int slash = url.indexOf('/', 7);
+            url = "http://" + target + (slash >= 0 ? url.substring(slash) : "/");
+        } else {
+            return;
+        }
+        headers.setFirstLine(parts[0] + " " + url + " " + parts[2]);
+    }
+
+    private static String hostName(String authority) {
+        int colon = authority.lastIndexOf(':');
+        return colon > 0 && authority.indexOf(']') < colon ? authority.substring(0, colon) : authority;
+    }
+}
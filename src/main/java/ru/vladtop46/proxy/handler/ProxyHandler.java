@@ -1,49 +1,211 @@
 package ru.vladtop46.proxy.handler;
 
+import ru.vladtop46.proxy.analytics.TrafficAnalytics;
+import ru.vladtop46.proxy.breaker.CircuitBreakerRegistry;
+import ru.vladtop46.proxy.breaker.CircuitOpenException;
+import ru.vladtop46.proxy.cache.CachePeer;
+import ru.vladtop46.proxy.cache.CachePeerGroup;
+import ru.vladtop46.proxy.cache.CachedResponse;
+import ru.vladtop46.proxy.cache.HttpHead;
+import ru.vladtop46.proxy.cache.ResponseCache;
+import ru.vladtop46.proxy.capture.CaptureRecord;
+import ru.vladtop46.proxy.capture.TrafficRecorder;
+import ru.vladtop46.proxy.compression.GzipChunkedOutputStream;
+import ru.vladtop46.proxy.compression.ResponseCompressor;
 import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.download.ByteSink;
+import ru.vladtop46.proxy.download.PartialRange;
+import ru.vladtop46.proxy.download.RangeAccelerator;
+import ru.vladtop46.proxy.filter.FilterChain;
+import ru.vladtop46.proxy.filter.FilterContext;
+import ru.vladtop46.proxy.filter.HeaderBlock;
+import ru.vladtop46.proxy.http2.Http2Connection;
+import ru.vladtop46.proxy.jfr.AccessCheckEvent;
+import ru.vladtop46.proxy.jfr.HeadersCompletedEvent;
+import ru.vladtop46.proxy.jfr.TunnelClosedEvent;
+import ru.vladtop46.proxy.jfr.UpstreamConnectEvent;
+import ru.vladtop46.proxy.jfr.WebSocketFramesEvent;
+import ru.vladtop46.proxy.limit.AdaptiveConcurrencyLimiter;
+import ru.vladtop46.proxy.limit.AdmissionAware;
+import ru.vladtop46.proxy.limit.AdmissionController;
 import ru.vladtop46.proxy.model.ConnectionInfo;
+import ru.vladtop46.proxy.prefetch.HtmlHostScanner;
+import ru.vladtop46.proxy.prefetch.Prefetcher;
 import ru.vladtop46.proxy.security.AccessControl;
 import ru.vladtop46.proxy.logging.ProxyLogger;
+import ru.vladtop46.proxy.memory.MemoryBudget;
+import ru.vladtop46.proxy.memory.MemoryExhaustedException;
+import ru.vladtop46.proxy.registry.ConnectionRegistry;
+import ru.vladtop46.proxy.shaping.TrafficShaper;
+import ru.vladtop46.proxy.socks.Socks5Protocol;
+import ru.vladtop46.proxy.socks.UdpAssociation;
+import ru.vladtop46.proxy.timeout.ConnectionReaper;
+import ru.vladtop46.proxy.upstream.ParentProxy;
+import ru.vladtop46.proxy.upstream.ParentProxyPool;
+import ru.vladtop46.proxy.upstream.ParentRefusedException;
+import ru.vladtop46.proxy.warmstart.HostTable;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ProxyHandler implements Runnable {
+public class ProxyHandler implements Runnable, AdmissionAware {
     private static final int BUFFER_SIZE = 8192;
     private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    // Объем трафика, после которого соединение отчитывается в аналитику
+    private static final long ANALYTICS_REPORT_BYTES = 1024 * 1024;
+    // Число WebSocket-фреймов в одном JFR-событии
+    private static final int JFR_FRAME_BATCH = 100;
+    // Заголовок запроса от соседнего узла кеша в нижнем регистре, как в разобранных заголовках
+    private static final String PEER_HEADER = CachePeerGroup.PEER_HEADER.toLowerCase();
+    // Оценка буферов пересылки соединения: по буферу чтения и буферу потока в каждую сторону
+    private static final int RELAY_MEMORY = 4 * BUFFER_SIZE;
+    // Сохраненный адрес хоста мог устареть: долго его не ждем
+    private static final int RESTORED_CONNECT_TIMEOUT_MS = 1000;
 
     private final Socket clientSocket;
     private final ProxyConfig config;
     private final AccessControl accessControl;
     private final ConnectionInfo connInfo;
     private final ProxyLogger logger;
-    private boolean isWebSocket = false;
-
-    public ProxyHandler(Socket clientSocket, ProxyConfig config, AccessControl accessControl) {
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final ConnectionReaper reaper;
+    private final TrafficShaper shaper;
+    private final ConnectionRegistry registry;
+    private final TrafficAnalytics analytics;
+    private final AtomicLong reportedBytes = new AtomicLong();
+    private final boolean socks5;
+    private final ParentProxyPool upstreamPool;
+    private final CircuitBreakerRegistry circuitBreakers;
+    private final ResponseCache responseCache;
+    private final CachePeerGroup cachePeers;
+    private final RangeAccelerator rangeAccelerator;
+    private final ResponseCompressor responseCompressor;
+    private final TrafficRecorder trafficRecorder;
+    private final MemoryBudget memoryBudget;
+    private final Prefetcher prefetcher;
+    private final HostTable hostTable;
+    // Нужны обработчикам потоков HTTP/2 этого соединения
+    private final ProxyServices services;
+    private final FilterChain filters;
+    // Родительский прокси, через который идет соединение; освобождается при закрытии
+    private ParentProxy parentProxy;
+    private ConnectionReaper.WatchedConnection watch;
+    private ConnectionRegistry.LiveConnection liveConnection;
+    private TrafficShaper.Flow shapedFlow;
+    // Запись первого запроса соединения, если включена запись трафика
+    private CaptureRecord capture;
+    // null, если цепочка фильтров пуста
+    private FilterContext filterContext;
+    private MemoryBudget.Account memory;
+    private boolean relayMemoryReserved;
+    // Поиск хостов для прогрева в текущем HTML-ответе
+    private HtmlHostScanner htmlScanner;
+    // Возвращает слот лимита; задается контроллером допуска
+    private Runnable slotRelease;
+
+    /**
+     * @param services общие сервисы сервера
+     * @param socks5 соединение принято SOCKS5-листенером
+     * @param filters цепочка фильтров из снимка политики
+     */
+    public ProxyHandler(Socket clientSocket, ProxyConfig config, AccessControl accessControl,
+                        ProxyServices services, boolean socks5, FilterChain filters) {
         this.clientSocket = clientSocket;
         this.config = config;
         this.accessControl = accessControl;
+        this.limiter = services.getLimiter();
+        this.reaper = services.getReaper();
+        this.shaper = services.getShaper();
+        this.registry = services.getRegistry();
+        this.analytics = services.getAnalytics();
+        this.upstreamPool = services.getUpstreamPool();
+        this.circuitBreakers = services.getCircuitBreakers();
+        this.responseCache = services.getResponseCache();
+        this.cachePeers = services.getCachePeers();
+        this.rangeAccelerator = services.getRangeAccelerator();
+        this.responseCompressor = services.getResponseCompressor();
+        this.trafficRecorder = services.getTrafficRecorder();
+        this.memoryBudget = services.getMemoryBudget();
+        this.prefetcher = services.getPrefetcher();
+        this.hostTable = services.getHostTable();
+        this.services = services;
+        this.filters = filters;
+        this.socks5 = socks5;
         this.connInfo = new ConnectionInfo(clientSocket);
         this.logger = new ProxyLogger(config.getServer().getLogsDirectory());
     }
 
+    @Override
+    public void setSlotRelease(Runnable releaseSlot) {
+        this.slotRelease = releaseSlot;
+    }
+
+    /**
+     * Соединение с апстримом установлено и дальше только пересылает байты:
+     * слот лимита больше не нужен
+     */
+    private void releaseAdmissionSlot() {
+        if (slotRelease != null) {
+            slotRelease.run();
+        }
+    }
+
     @Override
     public void run() {
+        if (registry != null) {
+            liveConnection = registry.register(connInfo, clientSocket);
+        }
+        if (reaper != null) {
+            watch = reaper.watch(connInfo, clientSocket);
+        }
+        HeadersCompletedEvent requestHeadersEvent = new HeadersCompletedEvent();
+        requestHeadersEvent.begin();
+        if (memoryBudget != null) {
+            memory = memoryBudget.open();
+        }
         try {
-            BufferedReader clientReader = new BufferedReader(
-                    new InputStreamReader(clientSocket.getInputStream()));
+            if (!filters.isEmpty()) {
+                filterContext = new FilterContext(connInfo);
+                filters.connectionOpen(filterContext);
+            }
+            if (socks5) {
+                handleSocks5();
+                return;
+            }
+
+            InputStream clientIn = new BufferedInputStream(clientSocket.getInputStream());
+            if (config.getHttp2().isEnabled() && Http2Connection.hasPreface(clientIn)) {
+                connInfo.setConnectionType("HTTP2");
+                activateTimeouts();
+                logStatus("HTTP2_PRIOR_KNOWLEDGE");
+                openHttp2(clientIn).serve();
+                return;
+            }
+
+            // Заголовки читаются побайтно, тело дальше читается через clientReader
+            HeaderBlock requestHead = HeaderBlock.read(clientIn);
+            BufferedReader clientReader = new BufferedReader(new InputStreamReader(clientIn));
             BufferedWriter clientWriter = new BufferedWriter(
                     new OutputStreamWriter(clientSocket.getOutputStream()));
 
-            String requestLine = clientReader.readLine();
-            if (requestLine == null || requestLine.isEmpty()) {
+            if (requestHead == null || requestHead.getFirstLine().isEmpty()) {
                 logStatus("EMPTY_REQUEST");
                 return;
             }
+            if (filterContext != null && filters.hasRequestFilters()) {
+                filters.requestHeaders(filterContext, requestHead);
+                if (filterContext.isRejected()) {
+                    rejectRequest(requestHead.getFirstLine());
+                    return;
+                }
+            }
 
+            String requestLine = requestHead.getFirstLine();
             String[] requestParts = requestLine.split(" ");
             if (requestParts.length != 3) {
                 logStatus("INVALID_REQUEST_FORMAT");
@@ -54,17 +216,39 @@ public class ProxyHandler implements Runnable {
             String url = requestParts[1];
             logStatus("REQUEST_RECEIVED: " + method + " " + url);
 
-            Map<String, String> headers = readHeaders(clientReader);
+            Map<String, String> headers = requestHead.asMap();
+            if (headers.containsKey(PEER_HEADER) && !isFromCachePeer()) {
+                // Заголовок узла кеша от обычного клиента ничего не значит
+                headers.remove(PEER_HEADER);
+            }
+            requestHeadersEvent.end();
+            if (requestHeadersEvent.shouldCommit()) {
+                requestHeadersEvent.connectionId = connInfo.getId();
+                requestHeadersEvent.phase = "REQUEST";
+                requestHeadersEvent.firstLine = requestLine;
+                requestHeadersEvent.headerCount = headers.size();
+                requestHeadersEvent.commit();
+            }
+            startCapture(method, url, headers);
+
             String host = headers.get("host");
             if (host != null) {
-                String[] hostParts = host.split(":");
-                connInfo.setTargetHost(hostParts[0]);
-                connInfo.setTargetPort(hostParts.length > 1 ?
-                        Integer.parseInt(hostParts[1]) : ("CONNECT".equals(method) ? 443 : 80));
+                setTarget(host, method);
 
                 // Проверка доступа к домену
-                if (!accessControl.isDomainAllowed(connInfo.getTargetHost())) {
+                if (!isDomainAllowed(connInfo.getTargetHost())) {
                     logStatus("DOMAIN_BLOCKED: " + connInfo.getTargetHost());
+                    markResponse(403);
+                    clientWriter.write(accessControl.getErrorPage());
+                    clientWriter.flush();
+                    return;
+                }
+
+                // Проверка URL по правилам фильтрации
+                String fullUrl = fullRequestUrl(method, url, host);
+                if (!isUrlAllowed(fullUrl)) {
+                    logStatus("URL_BLOCKED: " + fullUrl);
+                    markResponse(403);
                     clientWriter.write(accessControl.getErrorPage());
                     clientWriter.flush();
                     return;
@@ -72,49 +256,260 @@ public class ProxyHandler implements Runnable {
             }
 
             // Обработка соединения в зависимости от типа
-            if (isWebSocketUpgrade(headers)) {
+            if (isH2cUpgrade(method, headers) && !clientReader.ready()) {
+                connInfo.setConnectionType("HTTP2");
+                activateTimeouts();
+                logStatus("HTTP2_UPGRADE");
+                // Потоки HTTP/2 записываются своими обработчиками
+                capture = null;
+                openHttp2(clientIn).serveUpgrade(requestLine, headers);
+            } else if (isWebSocketUpgrade(headers)) {
                 if (!config.getWebsocket().isEnabled()) {
                     logStatus("WEBSOCKET_DISABLED");
                     return;
                 }
                 connInfo.setConnectionType("WEBSOCKET");
+                activateTimeouts();
                 logStatus("WEBSOCKET_UPGRADE_REQUESTED");
                 handleWebSocket(headers, clientSocket);
             } else if ("CONNECT".equalsIgnoreCase(method)) {
                 connInfo.setConnectionType("HTTPS");
+                activateTimeouts();
                 logStatus("HTTPS_TUNNEL_REQUESTED");
                 handleConnectMethod(url, clientWriter, clientReader);
             } else {
                 connInfo.setConnectionType("HTTP");
+                activateTimeouts();
                 logStatus("HTTP_REQUEST_STARTED");
-                handleHttpMethod(requestLine, headers, clientReader, clientWriter);
+                if (host != null && responseCache != null && responseCache.isEnabled()
+                        && ResponseCache.isRequestCacheable(method, headers)) {
+                    handleCacheableGet(url, requestLine, headers, clientReader);
+                } else if (host != null && rangeAccelerator != null && rangeAccelerator.isEnabled()
+                        && RangeAccelerator.isEligibleRequest(method, headers)) {
+                    handleAcceleratedGet(url, requestLine, headers);
+                } else {
+                    handleHttpMethod(requestLine, headers, clientReader, clientWriter);
+                }
             }
         } catch (IOException e) {
             logStatus("ERROR: " + e.getMessage());
         } finally {
+            if (filterContext != null) {
+                closeFilters();
+            }
+            if (watch != null) {
+                watch.close();
+            }
+            if (registry != null) {
+                registry.deregister(connInfo);
+            }
+            reportTraffic(0);
+            releaseParentProxy();
+            closeShapedFlow();
+            if (memory != null) {
+                memory.close();
+            }
+            if (capture != null) {
+                trafficRecorder.submit(capture, connInfo.getBytesFromClient(), connInfo.getBytesToClient());
+            }
             try {
-                if (!isWebSocket) {
-                    clientSocket.close();
-                    logStatus("CONNECTION_CLOSED");
-                }
+                clientSocket.close();
+                logStatus("CONNECTION_CLOSED");
             } catch (IOException e) {
                 logStatus("ERROR_CLOSING: " + e.getMessage());
             }
         }
     }
 
-    private Map<String, String> readHeaders(BufferedReader reader) throws IOException {
-        Map<String, String> headers = new HashMap<>();
+    /**
+     * Соединение HTTP/2: каждый поток обслуживается отдельным обработчиком
+     * с теми же сервисами, что и обычное соединение. Потоки проходят допуск
+     * по лимиту сами, поэтому слот соединения освобождается.
+     */
+    private Http2Connection openHttp2(InputStream clientIn) throws IOException {
+        releaseAdmissionSlot();
+        AdmissionController admission = services.getAdmission();
+        return new Http2Connection(clientSocket, clientIn, config.getHttp2(),
+                stream -> new ProxyHandler(stream, config, accessControl, services, false, filters),
+                admission != null ? admission::submit : (stream, handler) -> new Thread(handler).start(),
+                memory, this::touch, this::logStatus, connInfo.getId());
+    }
+
+    /**
+     * Запрос на переход к h2c. Запросы с телом не обновляются: тело пришлось бы
+     * прочитать до перехода.
+     */
+    private boolean isH2cUpgrade(String method, Map<String, String> headers) {
+        if (!config.getHttp2().isEnabled() || "CONNECT".equalsIgnoreCase(method)) {
+            return false;
+        }
+        return headers.getOrDefault("upgrade", "").toLowerCase().contains("h2c")
+                && headers.containsKey("http2-settings")
+                && !headers.containsKey("content-length")
+                && !headers.containsKey("transfer-encoding");
+    }
+
+    /**
+     * Начинает запись запроса, если включена запись трафика
+     */
+    private void startCapture(String method, String url, Map<String, String> headers) {
+        if (trafficRecorder == null || !trafficRecorder.isEnabled()) {
+            return;
+        }
+        CaptureRecord.Kind kind = "CONNECT".equalsIgnoreCase(method) ? CaptureRecord.Kind.CONNECT
+                : isWebSocketUpgrade(headers) ? CaptureRecord.Kind.WEBSOCKET
+                : CaptureRecord.Kind.HTTP;
+        capture = trafficRecorder.begin(kind, connInfo.getId(), connInfo.getClientIp(), method, url, headers);
+    }
+
+    private void markResponse(int status) {
+        if (capture != null) {
+            capture.responseStarted(status);
+        }
+    }
+
+    /**
+     * Ответ на запрос, отклоненный фильтром
+     */
+    private void rejectRequest(String requestLine) throws IOException {
+        int status = filterContext.getRejectStatus();
+        String reason = filterContext.getRejectReason() != null ? filterContext.getRejectReason() : "Rejected";
+        logStatus("FILTER_REJECTED: " + status + " " + requestLine);
+        markResponse(status);
+        OutputStream out = clientSocket.getOutputStream();
+        out.write(("HTTP/1.1 " + status + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes());
+        out.flush();
+    }
+
+    private void closeFilters() {
+        try {
+            filters.connectionClose(filterContext);
+        } catch (RuntimeException e) {
+            logStatus("FILTER_ERROR: " + e);
+        }
+    }
+
+    private boolean hasBodyFilters() {
+        return filterContext != null && filters.hasBodyFilters();
+    }
+
+    /**
+     * Отдает часть тела фильтрам тел; данные меняются на месте
+     */
+    private void filterBody(boolean fromClient, byte[] data, int offset, int length) {
+        if (hasBodyFilters()) {
+            filters.bodyChunk(filterContext, fromClient, data, offset, length);
+        }
+    }
+
+    /**
+     * Пишет часть тела символьного пути. При фильтрах тел символы кодируются
+     * той же кодировкой, что и у writer, фильтры получают эти байты, и дальше
+     * уходят именно они, минуя writer.
+     * @param out поток, в который пишет writer
+     */
+    private void writeBody(boolean fromClient, char[] data, int length, Writer writer,
+                           OutputStream out) throws IOException {
+        if (!hasBodyFilters()) {
+            writer.write(data, 0, length);
+            return;
+        }
+        byte[] bytes = new String(data, 0, length).getBytes(Charset.defaultCharset());
+        filters.bodyChunk(filterContext, fromClient, bytes, 0, bytes.length);
+        writer.flush();
+        out.write(bytes);
+    }
+
+    /**
+     * Пропускает заголовки ответа через фильтры ответов; блок меняется на месте
+     */
+    private void filterResponse(HeaderBlock head) {
+        if (filterContext != null && filters.hasResponseFilters()) {
+            filters.responseHeaders(filterContext, head);
+        }
+    }
+
+    private void sampleBody(boolean fromClient, byte[] data, int offset, int length) {
+        if (capture != null) {
+            capture.sampleBody(fromClient, data, offset, length);
+        }
+    }
+
+    private void sampleBody(boolean fromClient, char[] data, int offset, int length) {
+        if (capture != null) {
+            capture.sampleBody(fromClient, data, offset, length);
+        }
+    }
+
+    /**
+     * Начинает поиск хостов для прогрева, если ответ - несжатая HTML-страница
+     */
+    private void openHtmlScanner(int statusCode, Map<String, String> responseHeaders) {
+        htmlScanner = null;
+        if (prefetcher == null || !prefetcher.isEnabled() || statusCode != 200) {
+            return;
+        }
+        String contentType = responseHeaders.get("content-type");
+        String encoding = responseHeaders.get("content-encoding");
+        if (contentType == null || !contentType.toLowerCase().startsWith("text/html")
+                || (encoding != null && !encoding.equalsIgnoreCase("identity"))) {
+            return;
+        }
+        htmlScanner = prefetcher.openScanner(connInfo.getTargetHost(), connInfo.getTargetPort(), accessControl,
+                config.getTimeouts().getConnectTimeoutMs());
+    }
+
+    private void scanHtml(byte[] data, int offset, int length) {
+        if (htmlScanner != null) {
+            htmlScanner.feed(data, offset, length);
+            if (htmlScanner.isDone()) {
+                htmlScanner = null;
+            }
+        }
+    }
+
+    private void scanHtml(char[] data, int offset, int length) {
+        if (htmlScanner != null) {
+            htmlScanner.feed(data, offset, length);
+            if (htmlScanner.isDone()) {
+                htmlScanner = null;
+            }
+        }
+    }
+
+    /**
+     * Резервирует буферы пересылки один раз на соединение до подключения к
+     * источнику: при нехватке памяти клиент получает 503, а не OOM у всех
+     */
+    private void reserveRelayMemory() throws MemoryExhaustedException {
+        if (memory != null && !relayMemoryReserved) {
+            memory.reserve(RELAY_MEMORY);
+            relayMemoryReserved = true;
+        }
+    }
+
+    private void setTarget(String host, String method) {
+        String[] hostParts = host.split(":");
+        connInfo.setTargetHost(hostParts[0]);
+        connInfo.setTargetPort(hostParts.length > 1 ?
+                Integer.parseInt(hostParts[1]) : ("CONNECT".equals(method) ? 443 : 80));
+    }
+
+    private void releaseParentProxy() {
+        if (parentProxy != null) {
+            parentProxy.release();
+            parentProxy = null;
+        }
+    }
+
+    private HeaderBlock readHead(BufferedReader reader, String firstLine) throws IOException {
+        List<String> lines = new ArrayList<>();
         String line;
         while ((line = reader.readLine()) != null && !line.isEmpty()) {
-            int colonIndex = line.indexOf(':');
-            if (colonIndex > 0) {
-                String key = line.substring(0, colonIndex).trim().toLowerCase();
-                String value = line.substring(colonIndex + 1).trim();
-                headers.put(key, value);
-            }
+            lines.add(line);
         }
-        return headers;
+        return HeaderBlock.fromLines(firstLine, lines);
     }
 
     private void handleWebSocket(Map<String, String> headers, Socket clientSocket) throws IOException {
@@ -129,14 +524,25 @@ public class ProxyHandler implements Runnable {
             return;
         }
 
+        long connectStart = System.nanoTime();
+        Socket upstream;
         try {
-            Socket serverSocket = new Socket(connInfo.getTargetHost(), connInfo.getTargetPort());
+            upstream = connectUpstream(true);
+        } catch (IOException e) {
+            sendGatewayError(e);
+            return;
+        }
+        try (Socket serverSocket = upstream) {
+            recordUpstreamLatency(connectStart);
             logStatus("WEBSOCKET_SERVER_CONNECTED");
 
             // Отправляем заголовки WebSocket серверу
             sendWebSocketHeaders(headers, serverSocket);
 
-            // Запускаем обработку WebSocket фреймов
+            openShapedFlow(isWebRTC ? "WEBRTC" : "WEBSOCKET");
+            releaseAdmissionSlot();
+
+            // Запускаем обработку WebSocket фреймов и ждем закрытия обеих сторон
             startWebSocketThreads(serverSocket, clientSocket, isWebRTC);
 
         } catch (Exception e) {
@@ -174,6 +580,10 @@ public class ProxyHandler implements Runnable {
                         isWebRTC);
             } catch (IOException e) {
                 logStatus("WEBSOCKET_S2C_ERROR: " + e.getMessage());
+            } finally {
+                // Закрытие одной стороны должно завершить и встречный поток
+                closeQuietly(clientSocket);
+                closeQuietly(serverSocket);
             }
         });
 
@@ -185,13 +595,35 @@ public class ProxyHandler implements Runnable {
                         isWebRTC);
             } catch (IOException e) {
                 logStatus("WEBSOCKET_C2S_ERROR: " + e.getMessage());
+            } finally {
+                closeQuietly(clientSocket);
+                closeQuietly(serverSocket);
             }
         });
 
-        isWebSocket = true;
+        TunnelClosedEvent tunnelEvent = new TunnelClosedEvent();
+        tunnelEvent.begin();
         logStatus(isWebRTC ? "WEBRTC_STREAMS_ESTABLISHED" : "WEBSOCKET_STREAMS_ESTABLISHED");
         serverToClient.start();
         clientToServer.start();
+
+        try {
+            serverToClient.join();
+            clientToServer.join();
+            commitTunnelClosed(tunnelEvent);
+            logStatus(isWebRTC ? "WEBRTC_STREAMS_CLOSED" : "WEBSOCKET_STREAMS_CLOSED");
+        } catch (InterruptedException e) {
+            logStatus("WEBSOCKET_INTERRUPTED");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Сокет уже закрыт
+        }
     }
 
     // Остальные методы из оригинального кода остаются теми же,
@@ -205,40 +637,500 @@ public class ProxyHandler implements Runnable {
                 status));
     }
 
+    private void shutdownOutputQuietly(Socket socket) {
+        try {
+            if (!socket.isClosed() && !socket.isOutputShutdown()) {
+                socket.shutdownOutput();
+            }
+        } catch (IOException e) {
+            // Сокет уже закрыт
+        }
+    }
+
+    /**
+     * Подключается к целевому серверу напрямую или через родительский прокси
+     * и привязывает сокет к отслеживанию соединения. Пока автомат защиты
+     * цели разомкнут, соединение не устанавливается.
+     * @param tunnel нужен прозрачный поток до цели; через родительский прокси открывается CONNECT
+     * @throws CircuitOpenException если автомат защиты цели разомкнут
+     */
+    private Socket connectUpstream(boolean tunnel) throws IOException {
+        reserveRelayMemory();
+        if (circuitBreakers != null) {
+            circuitBreakers.acquire(connInfo.getTargetHost(), connInfo.getTargetPort());
+        }
+        boolean viaParent = upstreamPool != null && upstreamPool.isEnabled()
+                && !upstreamPool.routesDirect(connInfo.getTargetHost());
+        try {
+            Socket serverSocket = viaParent ? connectViaParent(tunnel) : connectDirect();
+            if (tunnel) {
+                // Для туннеля ответа источника не видно: успехом считается само соединение
+                recordOriginSuccess();
+            }
+            return serverSocket;
+        } catch (IOException e) {
+            // Отказ родительского прокси - не ошибка источника; его учитывает пул
+            if (!viaParent || e instanceof ParentRefusedException) {
+                recordOriginFailure(e);
+            }
+            throw e;
+        }
+    }
+
+    private Socket connectDirect() throws IOException {
+        UpstreamConnectEvent event = new UpstreamConnectEvent();
+        event.begin();
+        // Соединение, открытое заранее по ссылке с прошедшей страницы
+        Socket prefetched = prefetcher != null
+                ? prefetcher.claim(connInfo.getTargetHost(), connInfo.getTargetPort()) : null;
+        Socket serverSocket = prefetched;
+        try {
+            if (serverSocket == null) {
+                serverSocket = connectOrigin();
+            } else {
+                logStatus("UPSTREAM_PREFETCHED");
+            }
+            event.success = true;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.connectionId = connInfo.getId();
+                event.connectionType = connInfo.getConnectionType();
+                event.host = connInfo.getTargetHost();
+                event.port = connInfo.getTargetPort();
+                event.commit();
+            }
+        }
+        attachUpstream(serverSocket);
+        return serverSocket;
+    }
+
+    /**
+     * Открывает соединение с источником и учитывает его в таблице хостов.
+     * Сразу после теплого старта подключение идет по сохраненному адресу
+     * без ожидания DNS; если адрес устарел, имя разрешается обычным путем.
+     */
+    private Socket connectOrigin() throws IOException {
+        String host = connInfo.getTargetHost();
+        int port = connInfo.getTargetPort();
+        int timeout = config.getTimeouts().getConnectTimeoutMs();
+        long start = System.nanoTime();
+        InetAddress restored = hostTable != null ? hostTable.restoredAddress(host) : null;
+        if (restored != null) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(restored, port), Math.min(timeout, RESTORED_CONNECT_TIMEOUT_MS));
+                hostTable.recordConnect(host, restored, System.nanoTime() - start);
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+                hostTable.forgetRestored(host);
+                logStatus("RESTORED_ADDRESS_FAILED: " + restored.getHostAddress());
+                start = System.nanoTime();
+            }
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        if (hostTable != null) {
+            hostTable.recordConnect(host, socket.getInetAddress(), System.nanoTime() - start);
+        }
+        return socket;
+    }
+
+    private void recordOriginSuccess() {
+        if (circuitBreakers != null) {
+            circuitBreakers.recordSuccess(connInfo.getTargetHost(), connInfo.getTargetPort());
+        }
+    }
+
+    /**
+     * Ответ 502-504 источника (или его шлюза) считается ошибкой, остальные - успехом
+     */
+    private void recordOriginResponse(String statusLine) {
+        String[] parts = statusLine.split(" ");
+        int status = parts.length > 1 ? parseStatus(parts[1]) : -1;
+        markResponse(status);
+        if (status >= 502 && status <= 504) {
+            recordOriginFailure(new IOException("HTTP " + status));
+        } else {
+            recordOriginSuccess();
+        }
+    }
+
+    private void recordOriginFailure(IOException e) {
+        if (circuitBreakers != null) {
+            circuitBreakers.recordFailure(connInfo.getTargetHost(), connInfo.getTargetPort(), e, gatewayStatus(e));
+        }
+    }
+
+    /**
+     * Код ответа клиенту при ошибке источника: 504 если источник не ответил вовремя, иначе 502
+     */
+    private static int gatewayStatus(IOException e) {
+        if (e instanceof MemoryExhaustedException) {
+            return 503;
+        }
+        if (e instanceof ParentRefusedException && ((ParentRefusedException) e).getStatusCode() == 504) {
+            return 504;
+        }
+        return CircuitBreakerRegistry.statusFor(e);
+    }
+
+    /**
+     * Отвечает клиенту 502/504; вызывается, пока клиенту еще ничего не отправлено
+     */
+    private void sendGatewayError(IOException e) {
+        int status = gatewayStatus(e);
+        markResponse(status);
+        String reason = status == 504 ? "Gateway Timeout" : status == 503 ? "Service Unavailable" : "Bad Gateway";
+        String body = status + " " + reason + "\r\n";
+        StringBuilder response = new StringBuilder();
+        response.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        if (e instanceof CircuitOpenException) {
+            response.append("Retry-After: ").append(((CircuitOpenException) e).getRetryAfterSeconds()).append("\r\n");
+        } else if (status == 503) {
+            response.append("Retry-After: 1\r\n");
+        }
+        response.append("Content-Type: text/plain\r\n")
+                .append("Content-Length: ").append(body.length()).append("\r\n")
+                .append("Connection: close\r\n")
+                .append("\r\n")
+                .append(body);
+        try {
+            OutputStream out = clientSocket.getOutputStream();
+            out.write(response.toString().getBytes());
+            out.flush();
+        } catch (IOException ignored) {
+            // Клиент уже отключился
+        }
+        logStatus((e instanceof CircuitOpenException ? "CIRCUIT_OPEN: "
+                : e instanceof MemoryExhaustedException ? "MEMORY_EXHAUSTED: " : "UPSTREAM_FAILED: ")
+                + status + " " + e.getMessage());
+    }
+
+    /**
+     * Подключение через пул родительских прокси; при сетевой ошибке
+     * делается одна попытка через другой прокси
+     */
+    private Socket connectViaParent(boolean tunnel) throws IOException {
+        ParentProxy failed = null;
+        IOException lastError = null;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            ParentProxy parent = upstreamPool.select(connInfo.getTargetHost(), failed);
+            if (parent == null) {
+                break;
+            }
+
+            UpstreamConnectEvent event = new UpstreamConnectEvent();
+            event.begin();
+            parent.acquire();
+            Socket serverSocket = new Socket();
+            try {
+                serverSocket.connect(parent.getAddress(), upstreamPool.getConnectTimeoutMs());
+                if (tunnel) {
+                    openParentTunnel(serverSocket, parent);
+                }
+                event.success = true;
+                upstreamPool.recordSuccess(parent);
+                parentProxy = parent;
+                attachUpstream(serverSocket);
+                logStatus("UPSTREAM_PARENT: " + parent.getName());
+                return serverSocket;
+            } catch (ParentRefusedException e) {
+                // Прокси исправен, но не смог открыть туннель: повтор через другой не поможет
+                parent.release();
+                serverSocket.close();
+                throw e;
+            } catch (IOException e) {
+                parent.release();
+                serverSocket.close();
+                upstreamPool.recordFailure(parent, e.getMessage());
+                logStatus("UPSTREAM_PARENT_FAILED: " + parent.getName() + " - " + e.getMessage());
+                failed = parent;
+                lastError = e;
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.connectionId = connInfo.getId();
+                    event.connectionType = connInfo.getConnectionType();
+                    event.host = parent.getHost();
+                    event.port = parent.getPort();
+                    event.commit();
+                }
+            }
+        }
+        throw lastError != null ? lastError
+                : new IOException("No healthy parent proxy for " + connInfo.getTargetHost());
+    }
+
+    /**
+     * Открывает туннель до цели через родительский прокси. Ответ читается
+     * побайтно, чтобы не захватить данные, идущие сразу за заголовками.
+     * Ответ ждется не дольше таймаута подключения: зависший прокси
+     * считается неисправным, и делается попытка через другой.
+     */
+    private void openParentTunnel(Socket serverSocket, ParentProxy parent) throws IOException {
+        String target = connInfo.getTargetHost() + ":" + connInfo.getTargetPort();
+        OutputStream out = serverSocket.getOutputStream();
+        out.write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes());
+        out.flush();
+        int previousTimeout = serverSocket.getSoTimeout();
+        serverSocket.setSoTimeout(config.getTimeouts().getConnectTimeoutMs());
+
+        InputStream in = serverSocket.getInputStream();
+        StringBuilder statusLine = new StringBuilder();
+        boolean statusDone = false;
+        // Последние четыре байта ответа: ищем конец заголовков \r\n\r\n
+        int window = 0;
+        int b;
+        while (window != 0x0D0A0D0A && (b = in.read()) != -1) {
+            window = (window << 8) | b;
+            if (b == '\r' || b == '\n') {
+                statusDone = true;
+            } else if (!statusDone) {
+                statusLine.append((char) b);
+            }
+        }
+        if (window != 0x0D0A0D0A) {
+            // Так прокси обычно сообщают о недоступной цели; сам прокси соединение принял
+            throw new ParentRefusedException(parent.getName(), 502, "connection closed during CONNECT");
+        }
+
+        String[] parts = statusLine.toString().split(" ");
+        int status = parts.length > 1 ? parseStatus(parts[1]) : -1;
+        if (status != 200) {
+            throw new ParentRefusedException(parent.getName(), status, statusLine.toString());
+        }
+        serverSocket.setSoTimeout(previousTimeout);
+    }
+
+    private static int parseStatus(String code) {
+        try {
+            return Integer.parseInt(code);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Строка запроса для отправки наверх: родительскому прокси нужна абсолютная форма URL
+     */
+    private String upstreamRequestLine(String requestLine) {
+        if (parentProxy == null) {
+            return requestLine;
+        }
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3 || !parts[1].startsWith("/")) {
+            return requestLine;
+        }
+        String authority = connInfo.getTargetPort() == 80 ? connInfo.getTargetHost()
+                : connInfo.getTargetHost() + ":" + connInfo.getTargetPort();
+        return parts[0] + " http://" + authority + parts[1] + " " + parts[2];
+    }
+
+    private boolean isDomainAllowed(String domain) {
+        AccessCheckEvent event = new AccessCheckEvent();
+        event.begin();
+        boolean allowed = accessControl.isDomainAllowed(domain);
+        event.end();
+        if (event.shouldCommit()) {
+            event.connectionId = connInfo.getId();
+            event.kind = "DOMAIN";
+            event.subject = domain;
+            event.allowed = allowed;
+            event.commit();
+        }
+        return allowed;
+    }
+
+    private boolean isUrlAllowed(String fullUrl) {
+        AccessCheckEvent event = new AccessCheckEvent();
+        event.begin();
+        boolean allowed = accessControl.isUrlAllowed(fullUrl);
+        event.end();
+        if (event.shouldCommit()) {
+            event.connectionId = connInfo.getId();
+            event.kind = "URL";
+            event.subject = fullUrl;
+            event.allowed = allowed;
+            event.commit();
+        }
+        return allowed;
+    }
+
+    /**
+     * Восстанавливает полный URL запроса для проверки правилами фильтрации
+     */
+    private static String fullRequestUrl(String method, String url, String host) {
+        if ("CONNECT".equalsIgnoreCase(method)) {
+            return "https://" + url + "/";
+        }
+        if (url.startsWith("/")) {
+            return "http://" + host + url;
+        }
+        return url;
+    }
+
+    private void commitTunnelClosed(TunnelClosedEvent event) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.connectionId = connInfo.getId();
+            event.connectionType = connInfo.getConnectionType();
+            event.host = connInfo.getTargetHost();
+            event.bytesFromClient = connInfo.getBytesFromClient();
+            event.bytesToClient = connInfo.getBytesToClient();
+            event.commit();
+        }
+    }
+
+    private WebSocketFramesEvent newFrameBatch() {
+        WebSocketFramesEvent batch = new WebSocketFramesEvent();
+        batch.begin();
+        return batch;
+    }
+
+    private void commitFrameBatch(WebSocketFramesEvent batch, String direction, boolean isWebRTC) {
+        batch.end();
+        if (batch.frames > 0 && batch.shouldCommit()) {
+            batch.connectionId = connInfo.getId();
+            batch.direction = direction;
+            batch.webRtc = isWebRTC;
+            batch.commit();
+        }
+    }
+
+    private void activateTimeouts() {
+        if (watch != null) {
+            watch.activate(connInfo.getConnectionType());
+        }
+    }
+
+    private void attachUpstream(Socket serverSocket) {
+        if (watch != null) {
+            watch.setUpstream(serverSocket);
+        }
+        if (liveConnection != null) {
+            liveConnection.setUpstream(serverSocket);
+        }
+    }
+
+    private void openShapedFlow(String connectionType) {
+        if (shaper != null) {
+            closeShapedFlow();
+            shapedFlow = shaper.openFlow(connInfo.getClientIp(), connectionType);
+        }
+    }
+
+    private void closeShapedFlow() {
+        if (shapedFlow != null) {
+            shapedFlow.close();
+            shapedFlow = null;
+        }
+    }
+
+    private void throttle(int bytes) {
+        if (shapedFlow != null) {
+            shapedFlow.acquire(bytes);
+        }
+    }
+
+    private void countBytes(boolean fromClient, int bytes) {
+        if (fromClient) {
+            connInfo.addBytesFromClient(bytes);
+        } else {
+            connInfo.addBytesToClient(bytes);
+        }
+        reportTraffic(ANALYTICS_REPORT_BYTES);
+    }
+
+    /**
+     * Передает в аналитику байты, накопленные с прошлого отчета,
+     * если их не меньше порога
+     */
+    private void reportTraffic(long threshold) {
+        if (analytics == null) {
+            return;
+        }
+        long total = connInfo.getTotalBytes();
+        long reported = reportedBytes.get();
+        long delta = total - reported;
+        if (delta > 0 && delta >= threshold && reportedBytes.compareAndSet(reported, total)) {
+            analytics.record(connInfo.getTargetHost(), connInfo.getClientIp(), delta);
+        }
+    }
+
+    private void touch() {
+        if (watch != null) {
+            watch.touch();
+        }
+    }
+
+    private void recordUpstreamLatency(long startNanos) {
+        if (limiter != null) {
+            limiter.recordLatency(System.nanoTime() - startNanos);
+        }
+    }
+
     private void handleWebSocketFrames(InputStream in, OutputStream out,
                                        String direction, boolean isWebRTC) throws IOException {
         byte[] buffer = new byte[BUFFER_SIZE];
         int bytesRead;
         long totalBytes = 0;
+        boolean fromClient = direction.startsWith("CLIENT");
+        WebSocketFramesEvent batch = newFrameBatch();
 
-        while ((bytesRead = in.read(buffer)) != -1) {
-            totalBytes += bytesRead;
+        try {
+            while ((bytesRead = in.read(buffer)) != -1) {
+                touch();
+                countBytes(fromClient, bytesRead);
+                sampleBody(fromClient, buffer, 0, bytesRead);
+                if (!fromClient) {
+                    // Первые байты от сервера - ответ на запрос обновления
+                    markResponse(101);
+                }
+                totalBytes += bytesRead;
 
-            if (bytesRead >= 2) {
-                byte frameInfo = buffer[0];
-                byte maskAndLength = buffer[1];
+                batch.frames++;
+                batch.bytes += bytesRead;
+                if (batch.frames >= JFR_FRAME_BATCH) {
+                    commitFrameBatch(batch, direction, isWebRTC);
+                    batch = newFrameBatch();
+                }
 
-                int opcode = frameInfo & 0x0F;
-                boolean isFinal = (frameInfo & 0x80) != 0;
-                boolean isMasked = (maskAndLength & 0x80) != 0;
+                if (bytesRead >= 2) {
+                    byte frameInfo = buffer[0];
+                    byte maskAndLength = buffer[1];
 
-                if (isWebRTC) {
-                    handleWebRTCFrame(buffer, bytesRead, opcode, isMasked, direction);
-                }
+                    int opcode = frameInfo & 0x0F;
+                    boolean isFinal = (frameInfo & 0x80) != 0;
+                    boolean isMasked = (maskAndLength & 0x80) != 0;
 
-                String frameType = getWebSocketFrameType(opcode);
-                String connectionType = isWebRTC ? "WEBRTC" : "WEBSOCKET";
-                logStatus(String.format("%s_FRAME [%s]: type=%s, final=%b, masked=%b, length=%d",
-                        connectionType, direction, frameType, isFinal, isMasked, bytesRead));
-            }
+                    if (isWebRTC) {
+                        handleWebRTCFrame(buffer, bytesRead, opcode, isMasked, direction);
+                    }
 
-            out.write(buffer, 0, bytesRead);
-            out.flush();
+                    String frameType = getWebSocketFrameType(opcode);
+                    String connectionType = isWebRTC ? "WEBRTC" : "WEBSOCKET";
+                    logStatus(String.format("%s_FRAME [%s]: type=%s, final=%b, masked=%b, length=%d",
+                            connectionType, direction, frameType, isFinal, isMasked, bytesRead));
+                }
+
+                throttle(bytesRead);
+                out.write(buffer, 0, bytesRead);
+                out.flush();
 
-            if (totalBytes % (BUFFER_SIZE * 100) == 0) {
-                logStatus(String.format("%s_TRANSFER [%s]: %d bytes transferred",
-                        isWebRTC ? "WEBRTC" : "WEBSOCKET", direction, totalBytes));
+                if (totalBytes % (BUFFER_SIZE * 100) == 0) {
+                    logStatus(String.format("%s_TRANSFER [%s]: %d bytes transferred",
+                            isWebRTC ? "WEBRTC" : "WEBSOCKET", direction, totalBytes));
+                }
             }
+        } finally {
+            commitFrameBatch(batch, direction, isWebRTC);
         }
     }
 
@@ -271,18 +1163,25 @@ public class ProxyHandler implements Runnable {
 
     private void handleHttpMethod(String requestLine, Map<String, String> headers,
                                   BufferedReader clientReader, BufferedWriter clientWriter) throws IOException {
-        try (Socket serverSocket = new Socket()) {
-            serverSocket.connect(new InetSocketAddress(connInfo.getTargetHost(),
-                    connInfo.getTargetPort()));
+        long upstreamStart = System.nanoTime();
+        Socket upstream;
+        try {
+            upstream = connectUpstream(false);
+        } catch (IOException e) {
+            sendGatewayError(e);
+            return;
+        }
+        try (Socket serverSocket = upstream) {
+            openShapedFlow("HTTP");
             logStatus("HTTP_SERVER_CONNECTED");
 
             BufferedWriter serverWriter = new BufferedWriter(
                     new OutputStreamWriter(serverSocket.getOutputStream()));
-            BufferedReader serverReader = new BufferedReader(
-                    new InputStreamReader(serverSocket.getInputStream()));
+            // Ответ читается байтами: сжатие и фильтры тела получают данные источника как есть
+            InputStream serverIn = new BufferedInputStream(serverSocket.getInputStream());
 
             // Send request headers
-            serverWriter.write(requestLine + "\r\n");
+            serverWriter.write(upstreamRequestLine(requestLine) + "\r\n");
             for (Map.Entry<String, String> header : headers.entrySet()) {
                 if (!header.getKey().toLowerCase().startsWith("proxy-")) {
                     serverWriter.write(header.getKey() + ": " + header.getValue() + "\r\n");
@@ -296,16 +1195,468 @@ public class ProxyHandler implements Runnable {
             if (headers.containsKey("content-length")) {
                 int contentLength = Integer.parseInt(headers.get("content-length"));
                 logStatus("HTTP_SENDING_BODY: " + contentLength + " bytes");
-                transferRequestBody(clientReader, serverWriter, contentLength);
+                transferRequestBody(clientReader, serverWriter, serverSocket.getOutputStream(), contentLength);
             }
 
             // Read and transfer response
             logStatus("HTTP_READING_RESPONSE");
-            String statusLine = serverReader.readLine();
-            if (statusLine != null) {
-                logStatus("HTTP_RESPONSE: " + statusLine);
-                transferHttpResponse(serverReader, clientWriter, statusLine);
+            HeaderBlock responseHead;
+            try {
+                responseHead = HeaderBlock.read(serverIn);
+                if (responseHead == null) {
+                    throw new IOException("Empty response from " + connInfo.getTargetHost());
+                }
+            } catch (IOException e) {
+                recordOriginFailure(e);
+                sendGatewayError(e);
+                return;
+            }
+            String statusLine = responseHead.getFirstLine();
+            recordUpstreamLatency(upstreamStart);
+            recordOriginResponse(statusLine);
+            logStatus("HTTP_RESPONSE: " + statusLine);
+            transferHttpResponse(serverIn, responseHead, clientWriter, isGzipAllowed(requestLine, headers));
+        }
+    }
+
+    /**
+     * GET, ответ на который можно взять из кеша. Соседний узел кеша держит
+     * соединение открытым и присылает по нему следующие запросы.
+     */
+    private void handleCacheableGet(String url, String requestLine, Map<String, String> headers,
+                                    BufferedReader clientReader) throws IOException {
+        boolean fromPeer = headers.containsKey(PEER_HEADER);
+        boolean keepAlive = serveCacheable(url, requestLine, headers, fromPeer);
+        if (!fromPeer || !keepAlive || cachePeers == null) {
+            return;
+        }
+        cachePeers.registerInbound(clientSocket);
+        try {
+            servePeerRequests(clientReader);
+        } finally {
+            cachePeers.unregisterInbound(clientSocket);
+        }
+    }
+
+    /**
+     * Соединение пришло с адреса одного из узлов кеша, и режим пиров включен
+     */
+    private boolean isFromCachePeer() {
+        return cachePeers != null && cachePeers.isPeerAddress(clientSocket.getInetAddress());
+    }
+
+    /**
+     * Следующие запросы соседнего узла по тому же соединению. Каждый проходит
+     * те же фильтры запроса и проверки домена и URL, что и первый.
+     */
+    private void servePeerRequests(BufferedReader clientReader) throws IOException {
+        boolean keepAlive = true;
+        while (keepAlive) {
+            releaseParentProxy();
+            String firstLine = clientReader.readLine();
+            if (firstLine == null || firstLine.isEmpty()) {
+                return;
+            }
+            HeaderBlock head = readHead(clientReader, firstLine);
+            touch();
+            if (filterContext != null && filters.hasRequestFilters()) {
+                filters.requestHeaders(filterContext, head);
+                if (filterContext.isRejected()) {
+                    rejectRequest(head.getFirstLine());
+                    return;
+                }
+            }
+
+            String nextLine = head.getFirstLine();
+            String[] parts = nextLine.split(" ");
+            Map<String, String> nextHeaders = head.asMap();
+            String host = nextHeaders.get("host");
+            if (parts.length != 3 || host == null || !nextHeaders.containsKey(PEER_HEADER)
+                    || !ResponseCache.isRequestCacheable(parts[0], nextHeaders)) {
+                logStatus("CACHE_PEER_BAD_REQUEST: " + nextLine);
+                return;
+            }
+            logStatus("REQUEST_RECEIVED: " + parts[0] + " " + parts[1]);
+            setTarget(host, parts[0]);
+            if (!isDomainAllowed(connInfo.getTargetHost())) {
+                logStatus("DOMAIN_BLOCKED: " + connInfo.getTargetHost());
+                clientSocket.getOutputStream().write(accessControl.getErrorPage().getBytes());
+                return;
+            }
+            String fullUrl = fullRequestUrl(parts[0], parts[1], host);
+            if (!isUrlAllowed(fullUrl)) {
+                logStatus("URL_BLOCKED: " + fullUrl);
+                clientSocket.getOutputStream().write(accessControl.getErrorPage().getBytes());
+                return;
+            }
+            keepAlive = serveCacheable(parts[1], nextLine, nextHeaders, true);
+        }
+    }
+
+    /**
+     * Отвечает из кеша, от узла-владельца ключа или от источника с сохранением в кеш
+     * @param fromPeer запрос пришел от соседнего узла и дальше не пересылается
+     * @return ответ ограничен по длине и соединение можно использовать снова
+     */
+    private boolean serveCacheable(String url, String requestLine, Map<String, String> headers,
+                                   boolean fromPeer) throws IOException {
+        String key = ResponseCache.key(connInfo.getTargetHost(), connInfo.getTargetPort(), url);
+        CachedResponse cached = responseCache.get(key);
+        if (cached != null) {
+            openShapedFlow("HTTP");
+            long now = System.currentTimeMillis();
+            markResponse(cached.getHead().getStatusCode());
+            sendCacheableResponse(cached.getHead(), cached.getBody(), null, cached.getBody().length, fromPeer,
+                    isGzipAllowed(requestLine, headers), fromPeer ? "keep-alive" : "close",
+                    "Age: " + cached.getAgeSeconds(now), "X-Cache: " + cacheLabel("HIT"));
+            logStatus("CACHE_HIT: " + key);
+            return true;
+        }
+
+        if (!fromPeer && cachePeers != null) {
+            CachePeer owner = cachePeers.ownerOf(key);
+            if (owner != null && fetchFromPeer(owner, key, requestLine, headers)) {
+                return false;
+            }
+        }
+        return fetchFromOrigin(key, requestLine, headers, fromPeer);
+    }
+
+    /**
+     * GET в обход кеша ответов: запрос Range к уже загруженному участку большого
+     * объекта обслуживается из памяти, остальное уходит к источнику, где
+     * большой ответ может быть загружен параллельно
+     */
+    private void handleAcceleratedGet(String url, String requestLine, Map<String, String> headers)
+            throws IOException {
+        String key = ResponseCache.key(connInfo.getTargetHost(), connInfo.getTargetPort(), url);
+        PartialRange range = rangeAccelerator.findPartial(key, headers);
+        if (range == null) {
+            fetchFromOrigin(key, requestLine, headers, false);
+            return;
+        }
+        openShapedFlow("HTTP");
+        OutputStream clientOut = clientSocket.getOutputStream();
+        markResponse(206);
+        clientOut.write(range.head("X-Cache: " + cacheLabel("PARTIAL-HIT")));
+        range.writeTo(clientSink(clientOut));
+        clientOut.flush();
+        logStatus("PARTIAL_HIT: " + key + " " + range);
+    }
+
+    /**
+     * Пересылает промах узлу-владельцу ключа по постоянному соединению.
+     * Устаревшее соединение из пула заменяется новым один раз.
+     * @return false если узел недоступен и запрос нужно выполнить самому
+     */
+    private boolean fetchFromPeer(CachePeer owner, String key, String requestLine, Map<String, String> headers)
+            throws IOException {
+        byte[] request = forwardedRequest("GET " + key + " HTTP/1.1", headers, "keep-alive",
+                PEER_HEADER + ": " + cachePeers.getSelfName());
+        for (int attempt = 0; attempt < 2; attempt++) {
+            CachePeer.Connection connection;
+            HttpHead head;
+            try {
+                connection = owner.borrow(cachePeers.getConnectTimeoutMs());
+            } catch (IOException e) {
+                cachePeers.recordFailure(owner, e.getMessage());
+                return false;
+            }
+            try {
+                connection.getOutputStream().write(request);
+                connection.getOutputStream().flush();
+                head = HttpHead.read(connection.getInputStream());
+                if (head == null) {
+                    throw new IOException("connection closed by peer");
+                }
+            } catch (IOException e) {
+                connection.close();
+                if (attempt == 0) {
+                    continue;
+                }
+                cachePeers.recordFailure(owner, e.getMessage());
+                return false;
+            }
+
+            owner.recordForwarded();
+            markResponse(head.getStatusCode());
+            logStatus("CACHE_PEER: " + owner.getName() + " " + head.getFirstLine());
+            openShapedFlow("HTTP");
+            boolean reusable = false;
+            try {
+                long length = head.getContentLength();
+                sendCacheableResponse(head, null, connection.getInputStream(), length, false,
+                        isGzipAllowed(requestLine, headers), "close");
+                reusable = length >= 0 && !"close".equalsIgnoreCase(head.get("connection"));
+            } finally {
+                owner.release(connection, reusable, cachePeers.getMaxIdleConnections());
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Запрашивает объект у источника; подходящий ответ читается целиком и сохраняется в кеш
+     * @return ответ ограничен по длине и соединение с клиентом можно использовать снова
+     */
+    private boolean fetchFromOrigin(String key, String requestLine, Map<String, String> headers,
+                                    boolean fromPeer) throws IOException {
+        long upstreamStart = System.nanoTime();
+        Socket upstream;
+        try {
+            upstream = connectUpstream(false);
+        } catch (IOException e) {
+            sendGatewayError(e);
+            return false;
+        }
+        try (Socket serverSocket = upstream) {
+            openShapedFlow("HTTP");
+            OutputStream serverOut = serverSocket.getOutputStream();
+            // Источник закрывает соединение после ответа: тело без длины читается до EOF
+            serverOut.write(forwardedRequest(cacheRequestLine(key, requestLine), headers, "close"));
+            serverOut.flush();
+
+            InputStream serverIn = new BufferedInputStream(serverSocket.getInputStream());
+            HeaderBlock responseHead;
+            try {
+                responseHead = HeaderBlock.read(serverIn);
+                if (responseHead == null) {
+                    throw new IOException("Empty response from " + connInfo.getTargetHost());
+                }
+            } catch (IOException e) {
+                recordOriginFailure(e);
+                sendGatewayError(e);
+                return false;
+            }
+            recordUpstreamLatency(upstreamStart);
+            recordOriginResponse(responseHead.getFirstLine());
+            logStatus("HTTP_RESPONSE: " + responseHead.getFirstLine());
+            // Фильтры работают с прочитанным блоком, в кеш попадает уже отфильтрованный ответ
+            filterResponse(responseHead);
+            HttpHead head = HttpHead.from(responseHead);
+
+            OutputStream clientOut = clientSocket.getOutputStream();
+            long ttl = responseCache != null && responseCache.isEnabled() ? responseCache.freshnessMillis(head) : 0;
+            // Тело для кеша читается целиком: без свободной памяти ответ просто пересылается
+            long fill = head.getContentLength();
+            if (ttl > 0 && memory != null && !memory.tryReserve(fill)) {
+                logStatus("CACHE_SKIPPED_MEMORY: " + key + " (" + fill + " bytes)");
+                ttl = 0;
+            }
+            if (ttl > 0) {
+                byte[] body;
+                try {
+                    body = HttpHead.readBody(serverIn, (int) fill);
+                } finally {
+                    // Дальше тело учитывает кеш, пока запись не вытеснят
+                    if (memory != null) {
+                        memory.release(fill);
+                    }
+                }
+                responseCache.put(key, head, body, ttl);
+                sendCacheableResponse(head.withoutHopByHop(), body, null, body.length, fromPeer,
+                        isGzipAllowed(requestLine, headers), fromPeer ? "keep-alive" : "close",
+                        "X-Cache: " + cacheLabel("MISS"));
+                logStatus("CACHE_STORED: " + key + " (" + body.length + " bytes, ttl " + ttl + " ms)");
+                return true;
+            }
+
+            boolean accelerate = parentProxy == null && rangeAccelerator != null && rangeAccelerator.accepts(head);
+            long window = accelerate ? rangeAccelerator.getBufferBytes(head) : 0;
+            if (accelerate && memory != null && !memory.tryReserve(window)) {
+                logStatus("SEGMENTED_SKIPPED_MEMORY: " + key + " (" + window + " bytes)");
+                accelerate = false;
+            }
+            if (accelerate) {
+                try {
+                    clientOut.write(head.toBytes(fromPeer ? "keep-alive" : "close",
+                            "X-Cache: " + cacheLabel("MISS")));
+                    logStatus("SEGMENTED_DOWNLOAD: " + key + " (" + head.getContentLength() + " bytes)");
+                    rangeAccelerator.transfer(key, cacheRequestLine(key, requestLine), headers,
+                            (InetSocketAddress) serverSocket.getRemoteSocketAddress(),
+                            config.getTimeouts().getConnectTimeoutMs(), head, serverIn, serverSocket,
+                            clientSink(clientOut));
+                    clientOut.flush();
+                } finally {
+                    if (memory != null) {
+                        memory.release(window);
+                    }
+                }
+                return true;
+            }
+
+            long length = head.isChunked() ? -1 : head.getContentLength();
+            sendCacheableResponse(head, null, serverIn, length, fromPeer, isGzipAllowed(requestLine, headers),
+                    fromPeer && length >= 0 ? "keep-alive" : "close", "X-Cache: " + cacheLabel("MISS"));
+            return length >= 0;
+        }
+    }
+
+    /**
+     * Клиент примет сжатый ответ: запрос HTTP/1.1 не HEAD с gzip в Accept-Encoding
+     */
+    private boolean isGzipAllowed(String requestLine, Map<String, String> headers) {
+        return responseCompressor != null && responseCompressor.isEnabled()
+                && !"HEAD".equalsIgnoreCase(requestLine.split(" ")[0]) && requestLine.endsWith("HTTP/1.1")
+                && ResponseCompressor.acceptsGzip(headers);
+    }
+
+    /**
+     * Отдает клиенту ответ на кешируемый GET. Тело из кеша, от узла кеша или
+     * от источника проходит те же сжатие и поиск хостов для прогрева, что и в
+     * {@link #transferHttpResponse}. Ответ соседнему узлу уходит как есть:
+     * он сохраняет его в свой кеш и сожмет сам.
+     * @param body тело целиком или null, если оно читается из in
+     * @param in поток после заголовков, если body == null
+     * @param length длина тела или -1, если тело в in разбито на части или идет до закрытия
+     * @param connection значение Connection несжатого ответа
+     * @param extra дополнительные строки заголовков
+     */
+    private void sendCacheableResponse(HttpHead head, byte[] body, InputStream in, long length, boolean fromPeer,
+                                       boolean gzipAllowed, String connection, String... extra) throws IOException {
+        OutputStream clientOut = clientSocket.getOutputStream();
+        GzipChunkedOutputStream gzip = null;
+        Map<String, String> responseHeaders = null;
+        if (!fromPeer) {
+            responseHeaders = head.toMap();
+            openHtmlScanner(head.getStatusCode(), responseHeaders);
+            if (gzipAllowed && responseCompressor.isCompressible(head.getStatusCode(), responseHeaders)) {
+                gzip = responseCompressor.open(clientSink(clientOut, false));
+            }
+        }
+        if (gzip == null) {
+            clientOut.write(head.toBytes(connection, extra));
+            if (body != null) {
+                writeToClient(clientOut, body, body.length);
+            } else {
+                relayBody(in, clientOut, length);
+            }
+            clientOut.flush();
+            return;
+        }
+
+        List<String> lines = new ArrayList<>(Arrays.asList(extra));
+        lines.addAll(gzipHeaders(responseHeaders));
+        clientOut.write(head.without("content-length", "transfer-encoding", "vary", "etag")
+                .toBytes("close", lines.toArray(new String[0])));
+        if (body != null) {
+            // Кешированное тело общее для всех клиентов: сжатие читает его в свой буфер
+            transferCompressedResponse(new ByteArrayInputStream(body), gzip, body.length, false);
+        } else {
+            transferCompressedResponse(in, gzip, length, head.isChunked());
+        }
+    }
+
+    /**
+     * Строка запроса к источнику по ключу кеша: абсолютная форма для
+     * родительского прокси, путь для прямого соединения
+     */
+    private String cacheRequestLine(String key, String requestLine) {
+        String[] parts = requestLine.split(" ");
+        String target = key;
+        if (parentProxy == null) {
+            int slash = key.indexOf('/', "http://".length());
+            target = slash >= 0 ? key.substring(slash) : "/";
+        }
+        return parts[0] + " " + target + " " + parts[parts.length - 1];
+    }
+
+    /**
+     * Запрос для отправки наверх без заголовков соединения и служебных заголовков прокси
+     */
+    private static byte[] forwardedRequest(String requestLine, Map<String, String> headers, String connection,
+                                           String... extra) {
+        StringBuilder sb = new StringBuilder(requestLine).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey();
+            if (!name.startsWith("proxy-") && !name.equals("connection") && !name.equals("keep-alive")
+                    && !name.equals(PEER_HEADER)) {
+                sb.append(name).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        sb.append("connection: ").append(connection).append("\r\n");
+        for (String line : extra) {
+            sb.append(line).append("\r\n");
+        }
+        sb.append("\r\n");
+        return sb.toString().getBytes();
+    }
+
+    private String cacheLabel(String result) {
+        String self = cachePeers != null && cachePeers.isEnabled() ? cachePeers.getSelfName() : null;
+        return self != null ? result + " from " + self : result;
+    }
+
+    private void writeToClient(OutputStream out, byte[] data, int length) throws IOException {
+        for (int offset = 0; offset < length; offset += BUFFER_SIZE) {
+            int count = Math.min(BUFFER_SIZE, length - offset);
+            byte[] chunk = data;
+            int from = offset;
+            if (hasBodyFilters()) {
+                // Тело из кеша общее для всех клиентов: фильтры меняют копию
+                chunk = Arrays.copyOfRange(data, offset, offset + count);
+                from = 0;
+                filterBody(false, chunk, 0, count);
+            }
+            throttle(count);
+            out.write(chunk, from, count);
+            countBytes(false, count);
+            sampleBody(false, chunk, from, count);
+            scanHtml(chunk, from, count);
+            touch();
+        }
+    }
+
+    /**
+     * Запись клиенту с ограничением полосы и учетом трафика
+     */
+    private ByteSink clientSink(OutputStream out) {
+        return clientSink(out, true);
+    }
+
+    /**
+     * @param filtered отдавать тело фильтрам тел; сжатый поток фильтруется до сжатия
+     */
+    private ByteSink clientSink(OutputStream out, boolean filtered) {
+        return (data, offset, length) -> {
+            if (filtered && hasBodyFilters()) {
+                // Участки загрузки могут читать и другие клиенты: фильтры меняют копию
+                data = Arrays.copyOfRange(data, offset, offset + length);
+                offset = 0;
+                filterBody(false, data, 0, length);
+            }
+            throttle(length);
+            out.write(data, offset, length);
+            countBytes(false, length);
+            sampleBody(false, data, offset, length);
+            touch();
+        };
+    }
+
+    /**
+     * Передает тело ответа побайтно
+     * @param length длина тела или -1, чтобы читать до закрытия соединения
+     */
+    private void relayBody(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = length;
+        while (length < 0 || remaining > 0) {
+            int read = in.read(buffer, 0, length < 0 ? BUFFER_SIZE : (int) Math.min(BUFFER_SIZE, remaining));
+            if (read == -1) {
+                if (length >= 0) {
+                    throw new IOException("Response truncated: " + remaining + " bytes missing");
+                }
+                break;
             }
+            touch();
+            countBytes(false, read);
+            filterBody(false, buffer, 0, read);
+            sampleBody(false, buffer, 0, read);
+            scanHtml(buffer, 0, read);
+            throttle(read);
+            out.write(buffer, 0, read);
+            remaining -= read;
         }
     }
 
@@ -315,48 +1666,261 @@ public class ProxyHandler implements Runnable {
         connInfo.setTargetHost(urlParts[0]);
         connInfo.setTargetPort(urlParts.length > 1 ? Integer.parseInt(urlParts[1]) : 443);
 
-        try (Socket serverSocket = new Socket(connInfo.getTargetHost(), connInfo.getTargetPort())) {
+        long connectStart = System.nanoTime();
+        Socket upstream;
+        try {
+            upstream = connectUpstream(true);
+        } catch (IOException e) {
+            sendGatewayError(e);
+            return;
+        }
+        try (Socket serverSocket = upstream) {
+            recordUpstreamLatency(connectStart);
+            openShapedFlow("HTTPS");
             logStatus("HTTPS_TUNNEL_ESTABLISHED");
 
             // Send connection established response
+            markResponse(200);
             clientWriter.write("HTTP/1.1 200 Connection Established\r\n");
             clientWriter.write("Proxy-Agent: ProxyServer\r\n");
             clientWriter.write("\r\n");
             clientWriter.flush();
 
-            // Create bidirectional streams
-            Thread clientToServer = new Thread(() -> {
-                try {
-                    transferData(clientSocket.getInputStream(),
-                            serverSocket.getOutputStream(),
-                            "CLIENT->SERVER");
-                } catch (IOException e) {
-                    logStatus("HTTPS_C2S_ERROR: " + e.getMessage());
-                }
-            });
+            releaseAdmissionSlot();
+            relayTunnel(serverSocket, "HTTPS");
+        }
+    }
 
-            Thread serverToClient = new Thread(() -> {
-                try {
-                    transferData(serverSocket.getInputStream(),
-                            clientSocket.getOutputStream(),
-                            "SERVER->CLIENT");
-                } catch (IOException e) {
-                    logStatus("HTTPS_S2C_ERROR: " + e.getMessage());
+    /**
+     * Двунаправленная пересылка байтов между клиентом и сервером до закрытия
+     * обеих сторон; общая для HTTP CONNECT и SOCKS5 CONNECT
+     * @param label префикс статусов в логе
+     */
+    private void relayTunnel(Socket serverSocket, String label) {
+        Thread clientToServer = new Thread(() -> {
+            try {
+                transferData(clientSocket.getInputStream(),
+                        serverSocket.getOutputStream(),
+                        "CLIENT->SERVER");
+            } catch (IOException e) {
+                logStatus(label + "_C2S_ERROR: " + e.getMessage());
+            } finally {
+                // Передаем EOF серверу, чтобы он закрыл свою сторону
+                shutdownOutputQuietly(serverSocket);
+            }
+        });
+
+        Thread serverToClient = new Thread(() -> {
+            try {
+                transferData(serverSocket.getInputStream(),
+                        clientSocket.getOutputStream(),
+                        "SERVER->CLIENT");
+            } catch (IOException e) {
+                logStatus(label + "_S2C_ERROR: " + e.getMessage());
+            } finally {
+                shutdownOutputQuietly(clientSocket);
+            }
+        });
+
+        TunnelClosedEvent tunnelEvent = new TunnelClosedEvent();
+        tunnelEvent.begin();
+        clientToServer.start();
+        serverToClient.start();
+
+        try {
+            clientToServer.join();
+            serverToClient.join();
+            commitTunnelClosed(tunnelEvent);
+            logStatus(label + "_TUNNEL_CLOSED");
+        } catch (InterruptedException e) {
+            logStatus(label + "_TUNNEL_INTERRUPTED");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Соединение с SOCKS5-листенера: CONNECT идет через тот же туннель и те же
+     * проверки доступа, что и HTTP CONNECT, UDP ASSOCIATE - через {@link UdpAssociation}
+     */
+    private void handleSocks5() throws IOException {
+        InputStream in = clientSocket.getInputStream();
+        OutputStream out = clientSocket.getOutputStream();
+        if (!Socks5Protocol.negotiate(in, out)) {
+            logStatus("SOCKS5_NO_ACCEPTABLE_METHOD");
+            return;
+        }
+
+        Socks5Protocol.Request request = Socks5Protocol.readRequest(in);
+        logStatus("SOCKS5_REQUEST: " + request);
+        if (request.getHost() == null) {
+            Socks5Protocol.writeReply(out, Socks5Protocol.REP_ADDRESS_TYPE_NOT_SUPPORTED, null);
+            return;
+        }
+
+        switch (request.getCommand()) {
+            case Socks5Protocol.CMD_CONNECT:
+                handleSocksConnect(request, out);
+                break;
+            case Socks5Protocol.CMD_UDP_ASSOCIATE:
+                if (!config.getSocks().isUdpEnabled()) {
+                    Socks5Protocol.writeReply(out, Socks5Protocol.REP_COMMAND_NOT_SUPPORTED, null);
+                    logStatus("SOCKS5_UDP_DISABLED");
+                    break;
                 }
-            });
+                handleSocksUdpAssociate(request, in, out);
+                break;
+            default:
+                Socks5Protocol.writeReply(out, Socks5Protocol.REP_COMMAND_NOT_SUPPORTED, null);
+                logStatus("SOCKS5_COMMAND_NOT_SUPPORTED");
+                break;
+        }
+    }
+
+    private void handleSocksConnect(Socks5Protocol.Request request, OutputStream out) throws IOException {
+        connInfo.setTargetHost(request.getHost());
+        connInfo.setTargetPort(request.getPort());
+        if (!isSocksDestinationAllowed(request.getHost(), request.getPort())) {
+            logStatus("DOMAIN_BLOCKED: " + request.getHost());
+            Socks5Protocol.writeReply(out, Socks5Protocol.REP_NOT_ALLOWED, null);
+            return;
+        }
 
-            clientToServer.start();
-            serverToClient.start();
+        connInfo.setConnectionType("SOCKS5");
+        activateTimeouts();
 
-            try {
-                clientToServer.join();
-                serverToClient.join();
-                logStatus("HTTPS_TUNNEL_CLOSED");
-            } catch (InterruptedException e) {
-                logStatus("HTTPS_TUNNEL_INTERRUPTED");
-                Thread.currentThread().interrupt();
+        long connectStart = System.nanoTime();
+        Socket serverSocket;
+        try {
+            serverSocket = connectUpstream(true);
+        } catch (IOException e) {
+            logStatus("SOCKS5_CONNECT_FAILED: " + e.getMessage());
+            Socks5Protocol.writeReply(out, replyCodeFor(e), null);
+            return;
+        }
+
+        try (serverSocket) {
+            recordUpstreamLatency(connectStart);
+            openShapedFlow("HTTPS");
+            Socks5Protocol.writeReply(out, Socks5Protocol.REP_SUCCEEDED,
+                    (InetSocketAddress) serverSocket.getLocalSocketAddress());
+            logStatus("SOCKS5_TUNNEL_ESTABLISHED");
+            releaseAdmissionSlot();
+            relayTunnel(serverSocket, "SOCKS5");
+        }
+    }
+
+    /**
+     * Назначение SOCKS5 (CONNECT или UDP) проверяется как цель HTTP CONNECT:
+     * по домену и по правилам фильтрации URL
+     */
+    private boolean isSocksDestinationAllowed(String host, int port) {
+        return isDomainAllowed(host) && isUrlAllowed(fullRequestUrl("CONNECT", host + ":" + port, null));
+    }
+
+    private static int replyCodeFor(IOException e) {
+        if (e instanceof CircuitOpenException) {
+            return ((CircuitOpenException) e).getStatusCode() == 504
+                    ? Socks5Protocol.REP_TTL_EXPIRED : Socks5Protocol.REP_HOST_UNREACHABLE;
+        }
+        if (e instanceof UnknownHostException || e instanceof NoRouteToHostException) {
+            return Socks5Protocol.REP_HOST_UNREACHABLE;
+        }
+        if (e instanceof ConnectException) {
+            return Socks5Protocol.REP_CONNECTION_REFUSED;
+        }
+        if (e instanceof SocketTimeoutException) {
+            return Socks5Protocol.REP_TTL_EXPIRED;
+        }
+        return Socks5Protocol.REP_GENERAL_FAILURE;
+    }
+
+    /**
+     * Разрешает назначение UDP через автоматы защиты, как и соединение с
+     * источником: неразрешившееся имя размыкает автомат на время
+     * негативного кеша DNS, и повторные попытки отвечают сразу
+     */
+    private InetSocketAddress resolveUdpDestination(String host, int port) throws IOException {
+        if (circuitBreakers != null) {
+            circuitBreakers.acquire(host, port);
+        }
+        InetSocketAddress resolved = new InetSocketAddress(host, port);
+        if (resolved.isUnresolved()) {
+            UnknownHostException error = new UnknownHostException(host);
+            if (circuitBreakers != null) {
+                circuitBreakers.recordFailure(host, port, error, CircuitBreakerRegistry.statusFor(error));
+            }
+            logStatus("SOCKS5_UDP_UNRESOLVED: " + host);
+            throw error;
+        }
+        return resolved;
+    }
+
+    /**
+     * UDP ASSOCIATE: ассоциация живет, пока открыто управляющее TCP-соединение
+     */
+    private void handleSocksUdpAssociate(Socks5Protocol.Request request, InputStream in,
+                                         OutputStream out) throws IOException {
+        connInfo.setTargetHost(request.getHost());
+        connInfo.setTargetPort(request.getPort());
+        connInfo.setConnectionType("SOCKS5_UDP");
+        activateTimeouts();
+        // Голос и видео идут с приоритетом WebRTC
+        openShapedFlow("WEBRTC");
+
+        UdpAssociation association;
+        try {
+            association = UdpAssociation.open(clientSocket.getLocalAddress(), clientSocket.getInetAddress(),
+                    new UdpAssociation.PacketListener() {
+                        @Override
+                        public boolean isDestinationAllowed(String host, int port) {
+                            boolean allowed = isSocksDestinationAllowed(host, port);
+                            logStatus((allowed ? "SOCKS5_UDP_DESTINATION: " : "SOCKS5_UDP_BLOCKED: ")
+                                    + host + ":" + port);
+                            return allowed;
+                        }
+
+                        @Override
+                        public InetSocketAddress resolve(String host, int port) throws IOException {
+                            return resolveUdpDestination(host, port);
+                        }
+
+                        @Override
+                        public void onPacket(boolean fromClient, int bytes) {
+                            touch();
+                            countBytes(fromClient, bytes);
+                            throttle(bytes);
+                        }
+                    });
+        } catch (IOException e) {
+            logStatus("SOCKS5_UDP_SETUP_ERROR: " + e.getMessage());
+            Socks5Protocol.writeReply(out, Socks5Protocol.REP_GENERAL_FAILURE, null);
+            return;
+        }
+
+        TunnelClosedEvent tunnelEvent = new TunnelClosedEvent();
+        tunnelEvent.begin();
+        Thread relay = new Thread(association, "udp-" + connInfo.getId());
+        try (association) {
+            Socks5Protocol.writeReply(out, Socks5Protocol.REP_SUCCEEDED, association.getClientFacingAddress());
+            logStatus("SOCKS5_UDP_ASSOCIATED: " + association.getClientFacingAddress());
+            releaseAdmissionSlot();
+            relay.start();
+
+            // Клиент больше ничего не присылает по TCP; EOF или закрытие сокета завершают ассоциацию
+            while (in.read() != -1) {
+                touch();
             }
+        } catch (IOException e) {
+            // Соединение закрыто клиентом или сборщиком зависших соединений
+        }
+
+        try {
+            relay.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        commitTunnelClosed(tunnelEvent);
+        logStatus("SOCKS5_UDP_CLOSED: dropped=" + association.getDroppedPackets());
     }
 
     private boolean isWebSocketUpgrade(Map<String, String> headers) {
@@ -370,7 +1934,7 @@ public class ProxyHandler implements Runnable {
     }
 
     private void transferRequestBody(BufferedReader clientReader, BufferedWriter serverWriter,
-                                     int contentLength) throws IOException {
+                                     OutputStream serverOut, int contentLength) throws IOException {
         char[] buffer = new char[BUFFER_SIZE];
         int remaining = contentLength;
         int totalTransferred = 0;
@@ -378,8 +1942,12 @@ public class ProxyHandler implements Runnable {
         while (remaining > 0) {
             int read = clientReader.read(buffer, 0, Math.min(BUFFER_SIZE, remaining));
             if (read == -1) break;
+            touch();
+            countBytes(true, read);
+            sampleBody(true, buffer, 0, read);
+            throttle(read);
 
-            serverWriter.write(buffer, 0, read);
+            writeBody(true, buffer, read, serverWriter, serverOut);
             remaining -= read;
             totalTransferred += read;
 
@@ -393,42 +1961,195 @@ public class ProxyHandler implements Runnable {
         logStatus("HTTP_BODY_SENT: " + totalTransferred + " bytes");
     }
 
-    private void transferHttpResponse(BufferedReader serverReader, BufferedWriter clientWriter,
-                                      String statusLine) throws IOException {
-        clientWriter.write(statusLine + "\r\n");
-
-        // Read and transfer headers
-        Map<String, String> responseHeaders = new HashMap<>();
-        String line;
-        while ((line = serverReader.readLine()) != null && !line.isEmpty()) {
-            clientWriter.write(line + "\r\n");
+    /**
+     * @param serverIn поток источника сразу после заголовков ответа
+     * @param gzipAllowed клиент принимает gzip по HTTP/1.1 и ответ может иметь тело
+     */
+    private void transferHttpResponse(InputStream serverIn, HeaderBlock responseHead, BufferedWriter clientWriter,
+                                      boolean gzipAllowed) throws IOException {
+        HeadersCompletedEvent responseHeadersEvent = new HeadersCompletedEvent();
+        responseHeadersEvent.begin();
+
+        filterResponse(responseHead);
+        String statusLine = responseHead.getFirstLine();
+        List<String> headerLines = responseHead.toLines();
+        Map<String, String> responseHeaders = responseHead.asMap();
+
+        GzipChunkedOutputStream gzip = null;
+        String[] statusParts = statusLine.split(" ");
+        int statusCode = statusParts.length > 1 ? parseStatus(statusParts[1]) : -1;
+        if (gzipAllowed && responseCompressor.isCompressible(statusCode, responseHeaders)) {
+            gzip = responseCompressor.open(clientSink(clientSocket.getOutputStream(), false));
+        }
+        openHtmlScanner(statusCode, responseHeaders);
 
-            int colonIndex = line.indexOf(':');
-            if (colonIndex > 0) {
-                String key = line.substring(0, colonIndex).trim().toLowerCase();
-                String value = line.substring(colonIndex + 1).trim();
-                responseHeaders.put(key, value);
-            }
+        // Transfer headers
+        clientWriter.write(statusLine + "\r\n");
+        for (String headerLine : gzip != null ? gzipHeaders(headerLines, responseHeaders) : headerLines) {
+            clientWriter.write(headerLine + "\r\n");
         }
         clientWriter.write("\r\n");
         clientWriter.flush();
+        responseHeadersEvent.end();
+        if (responseHeadersEvent.shouldCommit()) {
+            responseHeadersEvent.connectionId = connInfo.getId();
+            responseHeadersEvent.phase = "RESPONSE";
+            responseHeadersEvent.firstLine = statusLine;
+            responseHeadersEvent.headerCount = responseHeaders.size();
+            responseHeadersEvent.commit();
+        }
 
         // Log important response headers
         String contentType = responseHeaders.getOrDefault("content-type", "unknown");
         String contentLength = responseHeaders.get("content-length");
-        logStatus(String.format("HTTP_RESPONSE_HEADERS: type=%s, length=%s",
-                contentType, contentLength != null ? contentLength : "chunked"));
+        boolean chunked = "chunked".equalsIgnoreCase(responseHeaders.getOrDefault("transfer-encoding", ""));
+        logStatus(String.format("HTTP_RESPONSE_HEADERS: type=%s, length=%s%s",
+                contentType, contentLength != null ? contentLength : "chunked", gzip != null ? ", gzip" : ""));
+
+        if (gzip != null) {
+            transferCompressedResponse(serverIn, gzip,
+                    contentLength != null && !chunked ? Long.parseLong(contentLength) : -1, chunked);
+            return;
+        }
+
+        BufferedReader serverReader = new BufferedReader(new InputStreamReader(serverIn));
 
         // Transfer response body based on transfer type
         if (contentLength != null) {
             transferResponseBody(serverReader, clientWriter, Integer.parseInt(contentLength));
-        } else if ("chunked".equalsIgnoreCase(responseHeaders.getOrDefault("transfer-encoding", ""))) {
+        } else if (chunked) {
             transferChunkedResponse(serverReader, clientWriter);
         } else {
             transferResponseUntilClosed(serverReader, clientWriter);
         }
     }
 
+    /**
+     * Заголовки сжатого ответа: длина заменяется на chunked, ETag становится
+     * слабым, к Vary добавляется Accept-Encoding
+     */
+    private static List<String> gzipHeaders(List<String> headerLines, Map<String, String> responseHeaders) {
+        List<String> result = new ArrayList<>();
+        for (String headerLine : headerLines) {
+            int colonIndex = headerLine.indexOf(':');
+            String key = colonIndex > 0 ? headerLine.substring(0, colonIndex).trim().toLowerCase() : "";
+            if (!key.equals("content-length") && !key.equals("transfer-encoding") && !key.equals("vary")
+                    && !key.equals("etag")) {
+                result.add(headerLine);
+            }
+        }
+        result.addAll(gzipHeaders(responseHeaders));
+        return result;
+    }
+
+    /**
+     * Строки, которые сжатый ответ получает вместо Content-Length,
+     * Transfer-Encoding, Vary и ETag исходного
+     */
+    private static List<String> gzipHeaders(Map<String, String> responseHeaders) {
+        List<String> result = new ArrayList<>();
+        String etag = responseHeaders.get("etag");
+        if (etag != null) {
+            result.add("ETag: " + (etag.startsWith("W/") ? etag : "W/" + etag));
+        }
+        String vary = responseHeaders.get("vary");
+        if (vary == null) {
+            result.add("Vary: Accept-Encoding");
+        } else if (vary.equals("*") || vary.toLowerCase().contains("accept-encoding")) {
+            result.add("Vary: " + vary);
+        } else {
+            result.add("Vary: " + vary + ", Accept-Encoding");
+        }
+        result.add("Content-Encoding: gzip");
+        result.add("Transfer-Encoding: chunked");
+        return result;
+    }
+
+    /**
+     * Передает тело ответа, сжимая его в gzip. Сжимаются байты источника без
+     * перекодирования, так что двоичные тела и любые кодировки не портятся.
+     * Сжатые данные выталкиваются клиенту, когда источник делает паузу.
+     * @param contentLength длина тела или -1
+     * @param chunked тело источника разбито на части
+     */
+    private void transferCompressedResponse(InputStream serverIn, GzipChunkedOutputStream gzip,
+                                            long contentLength, boolean chunked) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long totalTransferred = 0;
+        boolean complete = false;
+        try {
+            if (chunked) {
+                String chunkSizeLine;
+                while ((chunkSizeLine = readChunkLine(serverIn)) != null) {
+                    long remaining = Long.parseLong(chunkSizeLine.split(";")[0].trim(), 16);
+                    if (remaining == 0) {
+                        break;
+                    }
+                    while (remaining > 0) {
+                        int read = serverIn.read(buffer, 0, (int) Math.min(BUFFER_SIZE, remaining));
+                        if (read == -1) {
+                            throw new IOException("Chunked response truncated");
+                        }
+                        compressChunk(serverIn, gzip, buffer, read);
+                        remaining -= read;
+                        totalTransferred += read;
+                    }
+                    // Skip empty line after chunk
+                    readChunkLine(serverIn);
+                }
+            } else {
+                long remaining = contentLength;
+                while (contentLength < 0 || remaining > 0) {
+                    int read = serverIn.read(buffer, 0,
+                            contentLength < 0 ? BUFFER_SIZE : (int) Math.min(BUFFER_SIZE, remaining));
+                    if (read == -1) {
+                        break;
+                    }
+                    compressChunk(serverIn, gzip, buffer, read);
+                    remaining -= read;
+                    totalTransferred += read;
+                }
+            }
+            gzip.close();
+            complete = true;
+        } finally {
+            if (!complete) {
+                gzip.abandon();
+            }
+        }
+        clientSocket.getOutputStream().flush();
+        logStatus("HTTP_GZIP_RESPONSE_COMPLETE: " + totalTransferred + " bytes");
+    }
+
+    private void compressChunk(InputStream serverIn, GzipChunkedOutputStream gzip,
+                               byte[] buffer, int length) throws IOException {
+        touch();
+        filterBody(false, buffer, 0, length);
+        scanHtml(buffer, 0, length);
+        gzip.write(buffer, 0, length);
+        if (serverIn.available() == 0) {
+            gzip.flush();
+        }
+    }
+
+    /**
+     * Строка размера части или разделитель chunked-тела без CR LF
+     * @return строка или null, если источник закрыл соединение
+     */
+    private static String readChunkLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                return sb.length() == 0 ? null : sb.toString();
+            }
+            if (b != '\r') {
+                sb.append((char) b);
+            }
+        }
+        return sb.toString();
+    }
+
     private void transferResponseBody(BufferedReader serverReader, BufferedWriter clientWriter,
                                       int contentLength) throws IOException {
         char[] buffer = new char[BUFFER_SIZE];
@@ -438,8 +2159,13 @@ public class ProxyHandler implements Runnable {
         while (remaining > 0) {
             int read = serverReader.read(buffer, 0, Math.min(BUFFER_SIZE, remaining));
             if (read == -1) break;
+            touch();
+            countBytes(false, read);
+            sampleBody(false, buffer, 0, read);
+            scanHtml(buffer, 0, read);
+            throttle(read);
 
-            clientWriter.write(buffer, 0, read);
+            writeBody(false, buffer, read, clientWriter, clientSocket.getOutputStream());
             clientWriter.flush();
             remaining -= read;
             totalTransferred += read;
@@ -456,6 +2182,8 @@ public class ProxyHandler implements Runnable {
             throws IOException {
         String chunkSizeLine;
         int totalTransferred = 0;
+        // Часть любого размера идет через буфер фиксированной длины
+        char[] buffer = new char[BUFFER_SIZE];
 
         while ((chunkSizeLine = serverReader.readLine()) != null) {
             clientWriter.write(chunkSizeLine + "\r\n");
@@ -469,13 +2197,24 @@ public class ProxyHandler implements Runnable {
                 break;
             }
 
-            char[] buffer = new char[chunkSize];
-            int read = serverReader.read(buffer, 0, chunkSize);
-            clientWriter.write(buffer, 0, read);
+            int remaining = chunkSize;
+            while (remaining > 0) {
+                int read = serverReader.read(buffer, 0, Math.min(BUFFER_SIZE, remaining));
+                if (read == -1) {
+                    throw new IOException("Chunked response truncated");
+                }
+                touch();
+                countBytes(false, read);
+                sampleBody(false, buffer, 0, read);
+                scanHtml(buffer, 0, read);
+                throttle(read);
+                writeBody(false, buffer, read, clientWriter, clientSocket.getOutputStream());
+                remaining -= read;
+                totalTransferred += read;
+            }
             clientWriter.write("\r\n");
             clientWriter.flush();
 
-            totalTransferred += read;
             if (totalTransferred % (BUFFER_SIZE * 10) == 0) {
                 logStatus("HTTP_CHUNKED_RESPONSE_PROGRESS: " + totalTransferred + " bytes");
             }
@@ -492,7 +2231,12 @@ public class ProxyHandler implements Runnable {
         int read;
 
         while ((read = serverReader.read(buffer)) != -1) {
-            clientWriter.write(buffer, 0, read);
+            touch();
+            countBytes(false, read);
+            sampleBody(false, buffer, 0, read);
+            scanHtml(buffer, 0, read);
+            throttle(read);
+            writeBody(false, buffer, read, clientWriter, clientSocket.getOutputStream());
             clientWriter.flush();
             totalTransferred += read;
 
@@ -508,8 +2252,12 @@ public class ProxyHandler implements Runnable {
         byte[] buffer = new byte[BUFFER_SIZE];
         int bytesRead;
         long totalTransferred = 0;
+        boolean fromClient = direction.startsWith("CLIENT");
 
         while ((bytesRead = input.read(buffer)) != -1) {
+            touch();
+            countBytes(fromClient, bytesRead);
+            throttle(bytesRead);
             output.write(buffer, 0, bytesRead);
             output.flush();
             totalTransferred += bytesRead;
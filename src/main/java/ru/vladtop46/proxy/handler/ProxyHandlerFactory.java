@@ -1,22 +1,31 @@
 package ru.vladtop46.proxy.handler;
 
 import ru.vladtop46.proxy.config.ProxyConfig;
-import ru.vladtop46.proxy.security.AccessControl;
+import ru.vladtop46.proxy.reload.PolicySnapshot;
 
 import java.net.Socket;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class ProxyHandlerFactory {
-    private final AtomicReference<ProxyConfig> configRef;
-    private final AtomicReference<AccessControl> accessControlRef;
+    private final AtomicReference<PolicySnapshot> policyRef;
+    private final ProxyServices services;
 
     /**
-     * Создает фабрику обработчиков с атомарной ссылкой на конфигурацию
-     * @param configRef атомарная ссылка на конфигурацию прокси
+     * Создает фабрику обработчиков с атомарной ссылкой на снимок политики
+     * @param policyRef атомарная ссылка на текущий снимок политики
      */
-    public ProxyHandlerFactory(AtomicReference<ProxyConfig> configRef) {
-        this.configRef = configRef;
-        this.accessControlRef = new AtomicReference<>(new AccessControl(configRef.get()));
+    public ProxyHandlerFactory(AtomicReference<PolicySnapshot> policyRef) {
+        this(policyRef, new ProxyServices());
+    }
+
+    /**
+     * Создает фабрику обработчиков, подключенных к общим сервисам сервера
+     * @param policyRef атомарная ссылка на текущий снимок политики
+     * @param services общие сервисы сервера
+     */
+    public ProxyHandlerFactory(AtomicReference<PolicySnapshot> policyRef, ProxyServices services) {
+        this.policyRef = policyRef;
+        this.services = services;
     }
 
     /**
@@ -24,27 +33,38 @@ public class ProxyHandlerFactory {
      * @param config конфигурация прокси
      */
     public ProxyHandlerFactory(ProxyConfig config) {
-        this.configRef = new AtomicReference<>(config);
-        this.accessControlRef = new AtomicReference<>(new AccessControl(config));
+        this(new AtomicReference<>(PolicySnapshot.of(config)));
     }
 
     /**
-     * Обновляет AccessControl при изменении конфигурации
+     * Создает обработчик соединения с актуальной политикой
+     * @param clientSocket клиентский сокет
+     * @return обработчик соединения
      */
-    public void updateAccessControl() {
-        accessControlRef.set(new AccessControl(configRef.get()));
+    public Runnable createHandler(Socket clientSocket) {
+        return createHandler(clientSocket, policyRef.get());
     }
 
     /**
-     * Создает обработчик соединения с актуальной конфигурацией
+     * Создает обработчик с заданным снимком политики, чтобы соединение
+     * проверялось той же политикой, что и при приеме
      * @param clientSocket клиентский сокет
+     * @param policy снимок политики, прочитанный циклом приема
      * @return обработчик соединения
      */
-    public Runnable createHandler(Socket clientSocket) {
-        // Получаем актуальную конфигурацию и контроль доступа
-        ProxyConfig currentConfig = configRef.get();
-        AccessControl currentAccessControl = accessControlRef.get();
+    public Runnable createHandler(Socket clientSocket, PolicySnapshot policy) {
+        return new ProxyHandler(clientSocket, policy.getConfig(), policy.getAccessControl(),
+                services, false, policy.getFilterChain());
+    }
 
-        return new ProxyHandler(clientSocket, currentConfig, currentAccessControl);
+    /**
+     * Создает обработчик соединения, принятого SOCKS5-листенером
+     * @param clientSocket клиентский сокет
+     * @param policy снимок политики, прочитанный циклом приема
+     * @return обработчик соединения
+     */
+    public Runnable createSocksHandler(Socket clientSocket, PolicySnapshot policy) {
+        return new ProxyHandler(clientSocket, policy.getConfig(), policy.getAccessControl(),
+                services, true, policy.getFilterChain());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,188 @@
+package ru.vladtop46.proxy.handler;
+
+import ru.vladtop46.proxy.analytics.TrafficAnalytics;
+import ru.vladtop46.proxy.breaker.CircuitBreakerRegistry;
+import ru.vladtop46.proxy.cache.CachePeerGroup;
+import ru.vladtop46.proxy.cache.ResponseCache;
+import ru.vladtop46.proxy.capture.TrafficRecorder;
+import ru.vladtop46.proxy.compression.ResponseCompressor;
+import ru.vladtop46.proxy.download.RangeAccelerator;
+import ru.vladtop46.proxy.limit.AdaptiveConcurrencyLimiter;
+import ru.vladtop46.proxy.limit.AdmissionController;
+import ru.vladtop46.proxy.memory.MemoryBudget;
+import ru.vladtop46.proxy.prefetch.Prefetcher;
+import ru.vladtop46.proxy.registry.ConnectionRegistry;
+import ru.vladtop46.proxy.shaping.TrafficShaper;
+import ru.vladtop46.proxy.timeout.ConnectionReaper;
+import ru.vladtop46.proxy.upstream.ParentProxyPool;
+import ru.vladtop46.proxy.warmstart.HostTable;
+
+/**
+ * Общие сервисы сервера, которыми пользуются обработчики соединений.
+ * Любой сервис может отсутствовать (null) - обработчик тогда работает без него.
+ */
+public class ProxyServices {
+    private AdaptiveConcurrencyLimiter limiter;
+    private AdmissionController admission;
+    private ConnectionReaper reaper;
+    private TrafficShaper shaper;
+    private ConnectionRegistry registry;
+    private TrafficAnalytics analytics;
+    private ParentProxyPool upstreamPool;
+    private CircuitBreakerRegistry circuitBreakers;
+    private ResponseCache responseCache;
+    private CachePeerGroup cachePeers;
+    private RangeAccelerator rangeAccelerator;
+    private ResponseCompressor responseCompressor;
+    private TrafficRecorder trafficRecorder;
+    private MemoryBudget memoryBudget;
+    private Prefetcher prefetcher;
+    private HostTable hostTable;
+
+    public AdaptiveConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    public ProxyServices setLimiter(AdaptiveConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+        return this;
+    }
+
+    /**
+     * Допуск к обработке для потоков HTTP/2, которые приходят внутри уже принятого соединения
+     */
+    public AdmissionController getAdmission() {
+        return admission;
+    }
+
+    public ProxyServices setAdmission(AdmissionController admission) {
+        this.admission = admission;
+        return this;
+    }
+
+    public ConnectionReaper getReaper() {
+        return reaper;
+    }
+
+    public ProxyServices setReaper(ConnectionReaper reaper) {
+        this.reaper = reaper;
+        return this;
+    }
+
+    public TrafficShaper getShaper() {
+        return shaper;
+    }
+
+    public ProxyServices setShaper(TrafficShaper shaper) {
+        this.shaper = shaper;
+        return this;
+    }
+
+    public ConnectionRegistry getRegistry() {
+        return registry;
+    }
+
+    public ProxyServices setRegistry(ConnectionRegistry registry) {
+        this.registry = registry;
+        return this;
+    }
+
+    public TrafficAnalytics getAnalytics() {
+        return analytics;
+    }
+
+    public ProxyServices setAnalytics(TrafficAnalytics analytics) {
+        this.analytics = analytics;
+        return this;
+    }
+
+    public ParentProxyPool getUpstreamPool() {
+        return upstreamPool;
+    }
+
+    public ProxyServices setUpstreamPool(ParentProxyPool upstreamPool) {
+        this.upstreamPool = upstreamPool;
+        return this;
+    }
+
+    public CircuitBreakerRegistry getCircuitBreakers() {
+        return circuitBreakers;
+    }
+
+    public ProxyServices setCircuitBreakers(CircuitBreakerRegistry circuitBreakers) {
+        this.circuitBreakers = circuitBreakers;
+        return this;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    public ProxyServices setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+        return this;
+    }
+
+    public CachePeerGroup getCachePeers() {
+        return cachePeers;
+    }
+
+    public ProxyServices setCachePeers(CachePeerGroup cachePeers) {
+        this.cachePeers = cachePeers;
+        return this;
+    }
+
+    public RangeAccelerator getRangeAccelerator() {
+        return rangeAccelerator;
+    }
+
+    public ProxyServices setRangeAccelerator(RangeAccelerator rangeAccelerator) {
+        this.rangeAccelerator = rangeAccelerator;
+        return this;
+    }
+
+    public ResponseCompressor getResponseCompressor() {
+        return responseCompressor;
+    }
+
+    public ProxyServices setResponseCompressor(ResponseCompressor responseCompressor) {
+        this.responseCompressor = responseCompressor;
+        return this;
+    }
+
+    public TrafficRecorder getTrafficRecorder() {
+        return trafficRecorder;
+    }
+
+    public ProxyServices setTrafficRecorder(TrafficRecorder trafficRecorder) {
+        this.trafficRecorder = trafficRecorder;
+        return this;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public ProxyServices setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    public ProxyServices setPrefetcher(Prefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+        return this;
+    }
+
+    public HostTable getHostTable() {
+        return hostTable;
+    }
+
+    public ProxyServices setHostTable(HostTable hostTable) {
+        this.hostTable = hostTable;
+        return this;
+    }
+}
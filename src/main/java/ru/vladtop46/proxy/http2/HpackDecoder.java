@@ -0,0 +1,135 @@
+package ru.vladtop46.proxy.http2;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Декодер блоков заголовков HPACK. Один на соединение: динамическая таблица
+ * общая для всех потоков, поэтому блоки декодируются строго по порядку.
+ */
+class HpackDecoder {
+    private final HpackTable table;
+    private final int maxTableSize;
+    private final int maxHeaderListSize;
+
+    /**
+     * @param maxTableSize размер динамической таблицы, объявленный клиенту
+     * @param maxHeaderListSize предел суммарного размера заголовков одного запроса
+     */
+    HpackDecoder(int maxTableSize, int maxHeaderListSize) {
+        this.table = new HpackTable(maxTableSize);
+        this.maxTableSize = maxTableSize;
+        this.maxHeaderListSize = maxHeaderListSize;
+    }
+
+    /**
+     * @return пары имя-значение в порядке следования
+     * @throws IOException блок поврежден; это ошибка сжатия всего соединения
+     */
+    List<String[]> decode(byte[] block) throws IOException {
+        List<String[]> headers = new ArrayList<>();
+        int[] position = {0};
+        long listSize = 0;
+        while (position[0] < block.length) {
+            int b = block[position[0]] & 0xff;
+            String[] header;
+            if ((b & 0x80) != 0) {
+                // Индексированное поле
+                header = table.get(readInt(block, position, 7));
+                if (header == null) {
+                    throw new IOException("Invalid header index");
+                }
+            } else if ((b & 0xc0) == 0x40) {
+                // Литерал с добавлением в таблицу
+                header = readLiteral(block, position, 6);
+                table.add(header[0], header[1]);
+            } else if ((b & 0xe0) == 0x20) {
+                int size = readInt(block, position, 5);
+                if (size > maxTableSize) {
+                    throw new IOException("Table size update above limit: " + size);
+                }
+                table.setMaxSize(size);
+                continue;
+            } else {
+                // Литерал без индексации (0000) или никогда не индексируемый (0001)
+                header = readLiteral(block, position, 4);
+            }
+            // Блок дочитывается до конца, чтобы динамическая таблица осталась согласованной
+            listSize += header[0].length() + header[1].length() + 32;
+            if (listSize <= maxHeaderListSize) {
+                headers.add(header);
+            }
+        }
+        if (listSize > maxHeaderListSize) {
+            throw new HeaderListTooLargeException();
+        }
+        return headers;
+    }
+
+    private String[] readLiteral(byte[] block, int[] position, int prefixBits) throws IOException {
+        int index = readInt(block, position, prefixBits);
+        String name;
+        if (index > 0) {
+            String[] entry = table.get(index);
+            if (entry == null) {
+                throw new IOException("Invalid header name index");
+            }
+            name = entry[0];
+        } else {
+            name = readString(block, position);
+        }
+        return new String[]{name, readString(block, position)};
+    }
+
+    private static String readString(byte[] block, int[] position) throws IOException {
+        if (position[0] >= block.length) {
+            throw new IOException("Truncated header block");
+        }
+        boolean huffman = (block[position[0]] & 0x80) != 0;
+        int length = readInt(block, position, 7);
+        if (length > block.length - position[0]) {
+            throw new IOException("Truncated header string");
+        }
+        String value = huffman
+                ? Huffman.decode(block, position[0], length)
+                : new String(block, position[0], length, StandardCharsets.ISO_8859_1);
+        position[0] += length;
+        return value;
+    }
+
+    /**
+     * Целое с префиксом из младших prefixBits бит текущего байта
+     */
+    static int readInt(byte[] block, int[] position, int prefixBits) throws IOException {
+        int mask = (1 << prefixBits) - 1;
+        int value = block[position[0]++] & mask;
+        if (value < mask) {
+            return value;
+        }
+        int shift = 0;
+        while (true) {
+            if (position[0] >= block.length || shift > 21) {
+                throw new IOException("Invalid integer in header block");
+            }
+            int b = block[position[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    /**
+     * Заголовки запроса больше объявленного предела; соединение при этом не рвется
+     */
+    static final class HeaderListTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        HeaderListTooLargeException() {
+            super("Header list too large");
+        }
+    }
+}
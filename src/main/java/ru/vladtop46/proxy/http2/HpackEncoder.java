@@ -0,0 +1,58 @@
+package ru.vladtop46.proxy.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Кодировщик заголовков ответа без состояния: точные совпадения со
+ * статической таблицей передаются индексом, остальное - литералами без
+ * индексации. Динамическая таблица клиента не используется, поэтому блоки
+ * можно кодировать в любом порядке из разных потоков.
+ */
+final class HpackEncoder {
+    private HpackEncoder() {
+    }
+
+    /**
+     * @param headers пары имя-значение; имена в нижнем регистре
+     */
+    static byte[] encode(List<String[]> headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        for (String[] header : headers) {
+            int entry = HpackTable.staticEntryIndex(header[0], header[1]);
+            if (entry > 0) {
+                writeInt(out, 0x80, 7, entry);
+                continue;
+            }
+            int nameIndex = HpackTable.staticNameIndex(header[0]);
+            writeInt(out, 0x00, 4, nameIndex);
+            if (nameIndex == 0) {
+                writeString(out, header[0]);
+            }
+            writeString(out, header[1]);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        writeInt(out, 0x00, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int firstByte, int prefixBits, int value) {
+        int mask = (1 << prefixBits) - 1;
+        if (value < mask) {
+            out.write(firstByte | value);
+            return;
+        }
+        out.write(firstByte | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
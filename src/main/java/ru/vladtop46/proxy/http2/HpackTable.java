@@ -0,0 +1,154 @@
+package ru.vladtop46.proxy.http2;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Таблицы HPACK: статическая из RFC 7541 и динамическая таблица декодера
+ */
+final class HpackTable {
+    static final String[][] STATIC = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    // Индекс статической таблицы по имени (первое вхождение) и по паре имя-значение
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_ENTRIES = new HashMap<>();
+
+    static {
+        for (int i = STATIC.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC[i][0], i + 1);
+            STATIC_ENTRIES.put(STATIC[i][0] + "\0" + STATIC[i][1], i + 1);
+        }
+    }
+
+    private final ArrayDeque<String[]> dynamic = new ArrayDeque<>();
+    private int size;
+    private int maxSize;
+
+    HpackTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    static int staticNameIndex(String name) {
+        return STATIC_NAMES.getOrDefault(name, 0);
+    }
+
+    static int staticEntryIndex(String name, String value) {
+        return STATIC_ENTRIES.getOrDefault(name + "\0" + value, 0);
+    }
+
+    /**
+     * Запись по индексу: сначала статическая таблица, затем динамическая от новых к старым
+     * @return пара имя-значение или null для неверного индекса
+     */
+    String[] get(int index) {
+        if (index <= 0) {
+            return null;
+        }
+        if (index <= STATIC.length) {
+            return STATIC[index - 1];
+        }
+        int position = index - STATIC.length - 1;
+        if (position >= dynamic.size()) {
+            return null;
+        }
+        int i = 0;
+        for (String[] entry : dynamic) {
+            if (i++ == position) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    void add(String name, String value) {
+        int entrySize = entrySize(name, value);
+        if (entrySize > maxSize) {
+            // Слишком большая запись очищает таблицу и не добавляется
+            dynamic.clear();
+            size = 0;
+            return;
+        }
+        dynamic.addFirst(new String[]{name, value});
+        size += entrySize;
+        evict();
+    }
+
+    void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    private void evict() {
+        while (size > maxSize) {
+            String[] entry = dynamic.removeLast();
+            size -= entrySize(entry[0], entry[1]);
+        }
+    }
+
+    private static int entrySize(String name, String value) {
+        return name.length() + value.length() + 32;
+    }
+}
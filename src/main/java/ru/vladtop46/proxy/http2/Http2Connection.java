@@ -0,0 +1,925 @@
+package ru.vladtop46.proxy.http2;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.limit.AdmissionAware;
+import ru.vladtop46.proxy.memory.MemoryBudget;
+import ru.vladtop46.proxy.memory.MemoryExhaustedException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Клиентское соединение HTTP/2 без TLS (h2c).
+ * <p>
+ * Поток соединения читает кадры и раскладывает их по потокам HTTP/2. Каждый
+ * поток превращается в запрос HTTP/1.1 и обслуживается обычным обработчиком
+ * в своем потоке выполнения, поэтому к нему применяются те же политики,
+ * кеш, родительские прокси и автоматы защиты. Ответы обработчиков пишутся
+ * кадрами с учетом окон управления потоком клиента.
+ */
+public class Http2Connection {
+    /**
+     * Преамбула клиента, с которой начинается соединение HTTP/2
+     */
+    public static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int HEADER_TABLE_SIZE = 4096;
+    // Заголовки соединения HTTP/1.1, недопустимые в запросе HTTP/2
+    private static final Set<String> CONNECTION_HEADERS = Set.of("connection", "keep-alive", "proxy-connection",
+            "transfer-encoding", "upgrade", "http2-settings");
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final ProxyConfig.Http2Settings settings;
+    private final Function<Socket, Runnable> handlers;
+    private final BiConsumer<Socket, Runnable> dispatcher;
+    private final MemoryBudget.Account memory;
+    private final Runnable activity;
+    private final Consumer<String> log;
+    private final String name;
+    private final HpackDecoder decoder;
+    private final int streamWindow;
+    private final int connectionWindow;
+    private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+    // Запросы без content-length, тело которых собирается целиком; только поток чтения
+    private final Map<Integer, BufferedRequest> buffered = new HashMap<>();
+    private final Object writeLock = new Object();
+
+    // Состояние потока чтения
+    private int lastStreamId;
+    private int continuationStream;
+    private int continuationFlags;
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+    private boolean goAwayReceived;
+    private long streamsOpened;
+    private long streamsRefused;
+
+    // Окна управления потоком; под монитором this
+    private int connectionSendWindow = Http2Frame.DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindow = Http2Frame.DEFAULT_WINDOW_SIZE;
+    private int connectionReceiveWindow = Http2Frame.DEFAULT_WINDOW_SIZE;
+    private int connectionUnacked;
+    private volatile int peerMaxFrameSize = Http2Frame.DEFAULT_MAX_FRAME_SIZE;
+    private volatile boolean closed;
+
+    /**
+     * @param in поток чтения клиента; может содержать уже прочитанные байты
+     * @param handlers создает обработчик для потока HTTP/2, представленного сокетом
+     * @param dispatcher запускает обработчик потока; может поставить его в очередь
+     *                   или отклонить, записав ответ в сокет потока и закрыв его
+     * @param memory учет памяти соединения для буферизованных тел запросов или null
+     * @param activity вызывается на каждый кадр клиента для учета активности
+     * @param log журнал соединения
+     * @param name имя соединения для потоков выполнения
+     */
+    public Http2Connection(Socket socket, InputStream in, ProxyConfig.Http2Settings settings,
+                           Function<Socket, Runnable> handlers, BiConsumer<Socket, Runnable> dispatcher,
+                           MemoryBudget.Account memory, Runnable activity, Consumer<String> log,
+                           String name) throws IOException {
+        this.socket = socket;
+        this.in = in;
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+        this.settings = settings;
+        this.handlers = handlers;
+        this.dispatcher = dispatcher;
+        this.memory = memory;
+        this.activity = activity;
+        this.log = log;
+        this.name = name;
+        this.decoder = new HpackDecoder(HEADER_TABLE_SIZE, settings.getMaxHeaderListSize());
+        // До подтверждения настроек клиент считает окно потока равным 65535
+        this.streamWindow = Math.max(Http2Frame.DEFAULT_WINDOW_SIZE, settings.getInitialWindowSize());
+        this.connectionWindow = Math.max(Http2Frame.DEFAULT_WINDOW_SIZE, settings.getConnectionWindowSize());
+    }
+
+    /**
+     * Начинается ли поток с преамбулы HTTP/2. Прочитанные байты возвращаются в поток.
+     * @param in поток с поддержкой mark/reset
+     */
+    public static boolean hasPreface(InputStream in) throws IOException {
+        in.mark(PREFACE.length);
+        try {
+            // Обычный запрос HTTP/1.1 отличается уже в первых байтах, поэтому чтение не ждет лишнего
+            for (byte expected : PREFACE) {
+                if (in.read() != (expected & 0xff)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Обслуживает соединение, начатое преамбулой HTTP/2
+     */
+    public void serve() throws IOException {
+        try {
+            readPreface();
+            sendInitialSettings();
+            readFrames();
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Переходит на HTTP/2 по запросу Upgrade: h2c. Сам запрос становится потоком 1.
+     * @param requestLine стартовая строка запроса обновления
+     * @param headers заголовки запроса в нижнем регистре
+     */
+    public void serveUpgrade(String requestLine, Map<String, String> headers) throws IOException {
+        try {
+            synchronized (writeLock) {
+                out.write(("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+            }
+            sendInitialSettings();
+            byte[] clientSettings;
+            try {
+                clientSettings = Base64.getUrlDecoder().decode(headers.get("http2-settings").trim());
+            } catch (IllegalArgumentException e) {
+                throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "Invalid HTTP2-Settings");
+            }
+            applySettings(clientSettings);
+
+            StringBuilder head = new StringBuilder(requestLine).append("\r\n");
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (!CONNECTION_HEADERS.contains(header.getKey()) && !header.getKey().equals("te")) {
+                    head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                }
+            }
+            lastStreamId = 1;
+            Http2Stream stream = openStream(1, requestLine.split(" ")[0], head, false, -1);
+            stream.getInput().end();
+            start(stream);
+
+            readPreface();
+            readFrames();
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void readPreface() throws IOException {
+        byte[] preface = new byte[PREFACE.length];
+        Http2Frame.readFully(in, preface, 0, preface.length);
+        if (!Arrays.equals(preface, PREFACE)) {
+            throw new IOException("Invalid HTTP/2 connection preface");
+        }
+    }
+
+    private void sendInitialSettings() throws IOException {
+        byte[] payload = new byte[18];
+        putSetting(payload, 0, Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS, settings.getMaxConcurrentStreams());
+        putSetting(payload, 6, Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE, streamWindow);
+        putSetting(payload, 12, Http2Frame.SETTINGS_MAX_HEADER_LIST_SIZE, settings.getMaxHeaderListSize());
+        writeFrame(Http2Frame.SETTINGS, 0, 0, payload, 0, payload.length);
+        if (connectionWindow > Http2Frame.DEFAULT_WINDOW_SIZE) {
+            synchronized (this) {
+                connectionReceiveWindow = connectionWindow;
+            }
+            writeWindowUpdate(0, connectionWindow - Http2Frame.DEFAULT_WINDOW_SIZE);
+        }
+    }
+
+    private static void putSetting(byte[] payload, int offset, int id, int value) {
+        payload[offset] = (byte) (id >>> 8);
+        payload[offset + 1] = (byte) id;
+        Http2Frame.writeInt(payload, offset + 2, value);
+    }
+
+    private void readFrames() throws IOException {
+        try {
+            Http2Frame frame;
+            while ((frame = Http2Frame.read(in, Http2Frame.DEFAULT_MAX_FRAME_SIZE)) != null) {
+                activity.run();
+                if (continuationStream != 0 && (frame.type != Http2Frame.CONTINUATION
+                        || frame.streamId != continuationStream)) {
+                    throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "Expected CONTINUATION");
+                }
+                handleFrame(frame);
+            }
+        } catch (Http2Exception e) {
+            log.accept("HTTP2_PROTOCOL_ERROR: " + e.getMessage());
+            sendGoAway(e.getErrorCode(), e.getMessage());
+        }
+    }
+
+    private void handleFrame(Http2Frame frame) throws IOException {
+        switch (frame.type) {
+            case Http2Frame.DATA:
+                onData(frame);
+                break;
+            case Http2Frame.HEADERS:
+                onHeaders(frame);
+                break;
+            case Http2Frame.CONTINUATION:
+                if (continuationStream == 0) {
+                    throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "Unexpected CONTINUATION");
+                }
+                appendHeaderBlock(frame.payload, 0, frame.payload.length);
+                if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+                    int streamId = continuationStream;
+                    continuationStream = 0;
+                    onHeaderBlock(streamId, continuationFlags);
+                }
+                break;
+            case Http2Frame.RST_STREAM:
+                requireStream(frame, 4);
+                onReset(frame.streamId);
+                break;
+            case Http2Frame.SETTINGS:
+                onSettings(frame);
+                break;
+            case Http2Frame.PING:
+                if (frame.streamId != 0 || frame.payload.length != 8) {
+                    throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "Invalid PING");
+                }
+                if (!frame.hasFlag(Http2Frame.FLAG_ACK)) {
+                    writeFrame(Http2Frame.PING, Http2Frame.FLAG_ACK, 0, frame.payload, 0, 8);
+                }
+                break;
+            case Http2Frame.GOAWAY:
+                goAwayReceived = true;
+                break;
+            case Http2Frame.WINDOW_UPDATE:
+                onWindowUpdate(frame);
+                break;
+            case Http2Frame.PUSH_PROMISE:
+                throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "PUSH_PROMISE from client");
+            case Http2Frame.PRIORITY:
+            default:
+                // Приоритеты не поддерживаются, неизвестные кадры пропускаются
+                break;
+        }
+    }
+
+    private static void requireStream(Http2Frame frame, int length) throws Http2Exception {
+        if (frame.streamId == 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "Frame type " + frame.type + " on stream 0");
+        }
+        if (frame.payload.length != length) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "Frame type " + frame.type + " size");
+        }
+    }
+
+    private void onHeaders(Http2Frame frame) throws IOException {
+        if (frame.streamId == 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        int offset = 0;
+        int length = frame.payload.length;
+        if (frame.hasFlag(Http2Frame.FLAG_PADDED)) {
+            int padding = length > 0 ? frame.payload[0] & 0xff : 0;
+            offset = 1;
+            length -= 1 + padding;
+        }
+        if (frame.hasFlag(Http2Frame.FLAG_PRIORITY)) {
+            offset += 5;
+            length -= 5;
+        }
+        if (length < 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "Invalid HEADERS padding");
+        }
+        headerBlock.reset();
+        appendHeaderBlock(frame.payload, offset, length);
+        if (frame.hasFlag(Http2Frame.FLAG_END_HEADERS)) {
+            onHeaderBlock(frame.streamId, frame.flags);
+        } else {
+            continuationStream = frame.streamId;
+            continuationFlags = frame.flags;
+        }
+    }
+
+    private void appendHeaderBlock(byte[] data, int offset, int length) throws Http2Exception {
+        // Сжатый блок не может быть больше распакованного предела с запасом
+        if (headerBlock.size() + length > settings.getMaxHeaderListSize() * 2L + Http2Frame.DEFAULT_MAX_FRAME_SIZE) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "Header block too large");
+        }
+        headerBlock.write(data, offset, length);
+    }
+
+    private void onHeaderBlock(int streamId, int flags) throws IOException {
+        boolean endStream = (flags & Http2Frame.FLAG_END_STREAM) != 0;
+        List<String[]> headers = null;
+        try {
+            headers = decoder.decode(headerBlock.toByteArray());
+        } catch (HpackDecoder.HeaderListTooLargeException e) {
+            // Таблица декодера согласована, отвечаем только этому потоку
+        } catch (IOException e) {
+            throw new Http2Exception(Http2Frame.COMPRESSION_ERROR, e.getMessage());
+        }
+
+        if (streamId <= lastStreamId) {
+            // Заголовки после тела (trailers) завершают запрос; сами поля не пересылаются
+            Http2Stream stream = streams.get(streamId);
+            if (stream != null && endStream) {
+                endRequest(stream);
+            } else if (stream != null) {
+                resetStream(stream, Http2Frame.PROTOCOL_ERROR);
+            }
+            return;
+        }
+        if (streamId % 2 == 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "Even stream id from client");
+        }
+        lastStreamId = streamId;
+        if (goAwayReceived || streams.size() >= settings.getMaxConcurrentStreams()) {
+            streamsRefused++;
+            writeRst(streamId, Http2Frame.REFUSED_STREAM);
+            return;
+        }
+        if (headers == null) {
+            reject(streamId, "431", endStream);
+            return;
+        }
+
+        Map<String, String> pseudo = new HashMap<>();
+        Map<String, String> regular = new LinkedHashMap<>();
+        for (String[] header : headers) {
+            String field = header[0];
+            if (field.startsWith(":")) {
+                pseudo.put(field, header[1]);
+            } else if (CONNECTION_HEADERS.contains(field)) {
+                reject(streamId, "400", endStream);
+                return;
+            } else if (field.equals("te")) {
+                continue;
+            } else if (field.equals("cookie") && regular.containsKey("cookie")) {
+                regular.put(field, regular.get(field) + "; " + header[1]);
+            } else if (regular.containsKey(field)) {
+                regular.put(field, regular.get(field) + ", " + header[1]);
+            } else {
+                regular.put(field, header[1]);
+            }
+        }
+
+        String method = pseudo.get(":method");
+        String authority = pseudo.getOrDefault(":authority", regular.get("host"));
+        String target;
+        if ("CONNECT".equals(method)) {
+            target = authority;
+        } else if (pseudo.get(":path") != null && "http".equals(pseudo.get(":scheme")) && authority != null) {
+            target = "http://" + authority + pseudo.get(":path");
+        } else {
+            target = null;
+        }
+        if (method == null || target == null || target.indexOf(' ') >= 0) {
+            reject(streamId, "400", endStream);
+            return;
+        }
+
+        regular.remove("host");
+        StringBuilder head = new StringBuilder(method).append(' ').append(target).append(" HTTP/1.1\r\n");
+        head.append("host: ").append(authority).append("\r\n");
+        for (Map.Entry<String, String> header : regular.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+
+        long contentLength = -1;
+        if (regular.containsKey("content-length")) {
+            try {
+                contentLength = Long.parseLong(regular.get("content-length").trim());
+            } catch (NumberFormatException e) {
+                reject(streamId, "400", endStream);
+                return;
+            }
+        }
+        boolean streaming = endStream || contentLength >= 0 || "CONNECT".equals(method);
+        Http2Stream stream = openStream(streamId, method, head, !streaming, contentLength);
+        if (endStream) {
+            stream.getInput().end();
+        }
+        if (streaming) {
+            start(stream);
+        }
+    }
+
+    /**
+     * Регистрирует поток; запрос без длины тела ждет конца тела в буфере
+     */
+    private Http2Stream openStream(int streamId, String method, StringBuilder head, boolean bufferBody,
+                                   long contentLength) {
+        Http2Stream stream;
+        synchronized (this) {
+            stream = new Http2Stream(this, streamId, method, peerInitialWindow, streamWindow);
+        }
+        streams.put(streamId, stream);
+        streamsOpened++;
+        if (bufferBody) {
+            buffered.put(streamId, new BufferedRequest(head));
+        } else {
+            if (!"CONNECT".equals(method)) {
+                // Источник закрывает соединение после ответа, как и для обычного клиента
+                head.append("connection: close\r\n");
+            }
+            head.append("\r\n");
+            stream.getInput().setHead(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return stream;
+    }
+
+    private void start(Http2Stream stream) {
+        StreamSocket streamSocket = new StreamSocket(socket, this, stream);
+        dispatcher.accept(streamSocket,
+                new StreamTask(streamSocket, handlers.apply(streamSocket), "h2-" + name + "-" + stream.id));
+    }
+
+    /**
+     * Отвечает на поток статусом без тела, не запуская обработчик
+     */
+    private void reject(int streamId, String status, boolean endStream) throws IOException {
+        List<String[]> headers = new ArrayList<>();
+        headers.add(new String[]{":status", status});
+        headers.add(new String[]{"content-length", "0"});
+        writeHeaderBlock(streamId, HpackEncoder.encode(headers), true);
+        if (!endStream) {
+            writeRst(streamId, Http2Frame.NO_ERROR);
+        }
+        log.accept("HTTP2_STREAM_REJECTED: " + streamId + " " + status);
+    }
+
+    private void onData(Http2Frame frame) throws IOException {
+        if (frame.streamId == 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int length = frame.payload.length;
+        int offset = 0;
+        int dataLength = length;
+        if (frame.hasFlag(Http2Frame.FLAG_PADDED)) {
+            int padding = length > 0 ? frame.payload[0] & 0xff : 0;
+            offset = 1;
+            dataLength = length - 1 - padding;
+            if (dataLength < 0) {
+                throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "Invalid DATA padding");
+            }
+        }
+        synchronized (this) {
+            if (length > connectionReceiveWindow) {
+                throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, "Connection window exceeded");
+            }
+            connectionReceiveWindow -= length;
+        }
+
+        Http2Stream stream = streams.get(frame.streamId);
+        if (stream == null || stream.getInput().isEnded()) {
+            if (frame.streamId > lastStreamId) {
+                throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "DATA on idle stream");
+            }
+            // Поток уже закрыт: данные отбрасываются, окно соединения возвращается
+            replenish(null, length);
+            return;
+        }
+        synchronized (this) {
+            if (length > stream.receiveWindow) {
+                stream.receiveWindow = 0;
+                length = -length;
+            } else {
+                stream.receiveWindow -= length;
+            }
+        }
+        if (length < 0) {
+            replenish(null, -length);
+            resetStream(stream, Http2Frame.FLOW_CONTROL_ERROR);
+            return;
+        }
+
+        byte[] data = Arrays.copyOfRange(frame.payload, offset, offset + dataLength);
+        BufferedRequest request = buffered.get(frame.streamId);
+        if (request != null) {
+            String refusal = request.body.size() + dataLength > settings.getMaxBufferedBodyBytes() ? "413"
+                    : reserveBody(dataLength) ? null : "503";
+            if (refusal != null) {
+                dropBuffered(frame.streamId);
+                streams.remove(frame.streamId);
+                stream.abort();
+                replenish(null, length);
+                reject(frame.streamId, refusal, false);
+                return;
+            }
+            request.body.write(data, 0, dataLength);
+            // Буферизованное тело считается прочитанным сразу
+            replenish(stream, length);
+        } else {
+            stream.getInput().offer(data);
+            if (length > dataLength) {
+                replenish(stream, length - dataLength);
+            }
+        }
+        if (frame.hasFlag(Http2Frame.FLAG_END_STREAM)) {
+            endRequest(stream);
+        }
+    }
+
+    /**
+     * Клиент закончил запрос: буферизованный запрос получает длину и запускается
+     */
+    private void endRequest(Http2Stream stream) {
+        BufferedRequest request = buffered.remove(stream.id);
+        if (request == null) {
+            stream.getInput().end();
+            return;
+        }
+        request.head.append("content-length: ").append(request.body.size()).append("\r\n")
+                .append("connection: close\r\n\r\n");
+        // Память тела теперь держит поток, пока его не закроют
+        stream.setBufferedBodyBytes(request.body.size());
+        stream.getInput().setHead(request.head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        stream.getInput().offer(request.body.toByteArray());
+        stream.getInput().end();
+        start(stream);
+    }
+
+    private void onReset(int streamId) {
+        dropBuffered(streamId);
+        Http2Stream stream = streams.remove(streamId);
+        if (stream != null) {
+            stream.abort();
+            releaseBody(stream);
+        }
+    }
+
+    /**
+     * Резервирует память под часть буферизованного тела; при нехватке ждет,
+     * не читая кадры соединения дальше
+     * @return false, если память так и не освободилась
+     */
+    private boolean reserveBody(int bytes) {
+        if (memory == null) {
+            return true;
+        }
+        try {
+            memory.reserve(bytes);
+            return true;
+        } catch (MemoryExhaustedException e) {
+            log.accept("HTTP2_BODY_MEMORY: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Удаляет тело, которое еще собирается, и возвращает его память
+     */
+    private void dropBuffered(int streamId) {
+        BufferedRequest request = buffered.remove(streamId);
+        if (request != null && memory != null) {
+            memory.release(request.body.size());
+        }
+    }
+
+    private void releaseBody(Http2Stream stream) {
+        long bytes = stream.takeBufferedBodyBytes();
+        if (bytes > 0 && memory != null) {
+            memory.release(bytes);
+        }
+    }
+
+    private void onSettings(Http2Frame frame) throws IOException {
+        if (frame.streamId != 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if (frame.hasFlag(Http2Frame.FLAG_ACK)) {
+            if (frame.payload.length != 0) {
+                throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+            }
+            return;
+        }
+        applySettings(frame.payload);
+        writeFrame(Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, new byte[0], 0, 0);
+    }
+
+    private void applySettings(byte[] payload) throws Http2Exception {
+        if (payload.length % 6 != 0) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "Invalid SETTINGS length");
+        }
+        for (int i = 0; i < payload.length; i += 6) {
+            int id = (payload[i] & 0xff) << 8 | (payload[i + 1] & 0xff);
+            int value = Http2Frame.readInt(payload, i + 2);
+            if (id == Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE) {
+                if (value < 0) {
+                    throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, "Initial window too large");
+                }
+                synchronized (this) {
+                    int delta = value - peerInitialWindow;
+                    peerInitialWindow = value;
+                    for (Http2Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                    }
+                    notifyAll();
+                }
+            } else if (id == Http2Frame.SETTINGS_MAX_FRAME_SIZE) {
+                if (value < Http2Frame.DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                    throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "Invalid max frame size");
+                }
+                peerMaxFrameSize = value;
+            } else if (id == Http2Frame.SETTINGS_ENABLE_PUSH && value != 0 && value != 1) {
+                throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "Invalid enable push");
+            }
+            // Размер таблицы клиента не важен: ответы кодируются без динамической таблицы
+        }
+    }
+
+    private void onWindowUpdate(Http2Frame frame) throws IOException {
+        if (frame.payload.length != 4) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE");
+        }
+        int increment = Http2Frame.readInt(frame.payload, 0) & 0x7fffffff;
+        if (frame.streamId == 0) {
+            synchronized (this) {
+                if (increment == 0 || (long) connectionSendWindow + increment > Integer.MAX_VALUE) {
+                    throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, "Invalid connection window update");
+                }
+                connectionSendWindow += increment;
+                notifyAll();
+            }
+            return;
+        }
+        Http2Stream stream = streams.get(frame.streamId);
+        if (stream == null) {
+            return;
+        }
+        boolean overflow;
+        synchronized (this) {
+            overflow = increment == 0 || (long) stream.sendWindow + increment > Integer.MAX_VALUE;
+            if (!overflow) {
+                stream.sendWindow += increment;
+                notifyAll();
+            }
+        }
+        if (overflow) {
+            resetStream(stream, Http2Frame.FLOW_CONTROL_ERROR);
+        }
+    }
+
+    /**
+     * Обработчик прочитал часть тела запроса
+     */
+    void consumed(Http2Stream stream, int bytes) {
+        try {
+            replenish(stream, bytes);
+        } catch (IOException e) {
+            // Соединение закрыто; поток узнает об этом при следующей записи
+        }
+    }
+
+    /**
+     * Возвращает клиенту окно приема, когда прочитана половина окна
+     */
+    private void replenish(Http2Stream stream, int bytes) throws IOException {
+        int connectionIncrement = 0;
+        int streamIncrement = 0;
+        synchronized (this) {
+            connectionUnacked += bytes;
+            if (connectionUnacked >= connectionWindow / 2) {
+                connectionIncrement = connectionUnacked;
+                connectionReceiveWindow += connectionUnacked;
+                connectionUnacked = 0;
+            }
+            if (stream != null && !stream.isReset()) {
+                stream.receiveUnacked += bytes;
+                if (stream.receiveUnacked >= streamWindow / 2) {
+                    streamIncrement = stream.receiveUnacked;
+                    stream.receiveWindow += stream.receiveUnacked;
+                    stream.receiveUnacked = 0;
+                }
+            }
+        }
+        if (connectionIncrement > 0) {
+            writeWindowUpdate(0, connectionIncrement);
+        }
+        if (streamIncrement > 0 && !stream.getInput().isEnded()) {
+            writeWindowUpdate(stream.id, streamIncrement);
+        }
+    }
+
+    /**
+     * Отправляет блок заголовков ответа
+     */
+    void writeHeaders(Http2Stream stream, List<String[]> headers, boolean endStream) throws IOException {
+        if (stream.isReset()) {
+            throw new IOException("HTTP/2 stream " + stream.id + " reset");
+        }
+        writeHeaderBlock(stream.id, HpackEncoder.encode(headers), endStream);
+    }
+
+    private void writeHeaderBlock(int streamId, byte[] block, boolean endStream) throws IOException {
+        int maxFrame = peerMaxFrameSize;
+        synchronized (writeLock) {
+            // Блок и его продолжения идут подряд, без чужих кадров между ними
+            int offset = 0;
+            int type = Http2Frame.HEADERS;
+            do {
+                int length = Math.min(maxFrame, block.length - offset);
+                boolean last = offset + length == block.length;
+                int flags = (last ? Http2Frame.FLAG_END_HEADERS : 0)
+                        | (type == Http2Frame.HEADERS && endStream ? Http2Frame.FLAG_END_STREAM : 0);
+                writeFrameLocked(type, flags, streamId, block, offset, length);
+                offset += length;
+                type = Http2Frame.CONTINUATION;
+            } while (offset < block.length);
+            out.flush();
+        }
+    }
+
+    /**
+     * Отправляет тело ответа кадрами DATA, дожидаясь окон потока и соединения
+     */
+    void writeData(Http2Stream stream, byte[] data, int offset, int length, boolean endStream) throws IOException {
+        if (length == 0) {
+            if (endStream) {
+                writeFrame(Http2Frame.DATA, Http2Frame.FLAG_END_STREAM, stream.id, data, offset, 0);
+            }
+            return;
+        }
+        while (length > 0) {
+            int count = reserveSendWindow(stream, length);
+            boolean last = endStream && count == length;
+            writeFrame(Http2Frame.DATA, last ? Http2Frame.FLAG_END_STREAM : 0, stream.id, data, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private synchronized int reserveSendWindow(Http2Stream stream, int wanted) throws IOException {
+        while (!closed && !stream.isReset() && (connectionSendWindow <= 0 || stream.sendWindow <= 0)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for HTTP/2 window");
+            }
+        }
+        if (closed || stream.isReset()) {
+            throw new IOException("HTTP/2 stream " + stream.id + " reset");
+        }
+        int count = Math.min(wanted, Math.min(peerMaxFrameSize, Math.min(connectionSendWindow, stream.sendWindow)));
+        connectionSendWindow -= count;
+        stream.sendWindow -= count;
+        return count;
+    }
+
+    synchronized void wakeWriters() {
+        notifyAll();
+    }
+
+    /**
+     * Сбрасывает поток со стороны сервера
+     */
+    void resetStream(Http2Stream stream, int errorCode) throws IOException {
+        dropBuffered(stream.id);
+        streams.remove(stream.id);
+        stream.abort();
+        releaseBody(stream);
+        writeRst(stream.id, errorCode);
+    }
+
+    /**
+     * Поток закрыт извне обработчика: таймаут или принудительное закрытие
+     */
+    void cancel(Http2Stream stream) {
+        try {
+            resetStream(stream, Http2Frame.CANCEL);
+        } catch (IOException e) {
+            // Соединение с клиентом уже закрыто
+        }
+    }
+
+    /**
+     * Обработчик потока завершился. Если клиент еще передает тело запроса,
+     * поток сбрасывается с NO_ERROR, чтобы он прекратил передачу.
+     */
+    void streamClosed(Http2Stream stream) {
+        if (streams.remove(stream.id) == null) {
+            return;
+        }
+        releaseBody(stream);
+        if (!stream.isReset() && !stream.getInput().isEnded() && stream.getOutput().isFinished()) {
+            try {
+                writeRst(stream.id, Http2Frame.NO_ERROR);
+            } catch (IOException e) {
+                // Соединение с клиентом уже закрыто
+            }
+        }
+    }
+
+    private void writeRst(int streamId, int errorCode) throws IOException {
+        byte[] payload = new byte[4];
+        Http2Frame.writeInt(payload, 0, errorCode);
+        writeFrame(Http2Frame.RST_STREAM, 0, streamId, payload, 0, 4);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        Http2Frame.writeInt(payload, 0, increment);
+        writeFrame(Http2Frame.WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    private void sendGoAway(int errorCode, String message) {
+        byte[] debug = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[8 + debug.length];
+        Http2Frame.writeInt(payload, 0, lastStreamId);
+        Http2Frame.writeInt(payload, 4, errorCode);
+        System.arraycopy(debug, 0, payload, 8, debug.length);
+        try {
+            writeFrame(Http2Frame.GOAWAY, 0, 0, payload, 0, payload.length);
+        } catch (IOException e) {
+            // Соединение уже закрыто
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        synchronized (writeLock) {
+            writeFrameLocked(type, flags, streamId, payload, offset, length);
+            out.flush();
+        }
+    }
+
+    private void writeFrameLocked(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        if (closed) {
+            throw new IOException("HTTP/2 connection closed");
+        }
+        out.write(Http2Frame.header(length, type, flags, streamId));
+        out.write(payload, offset, length);
+    }
+
+    /**
+     * Соединение закрыто: оставшиеся потоки сбрасываются, их обработчики
+     * получат ошибку ввода-вывода
+     */
+    private void shutdown() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        for (Http2Stream stream : streams.values()) {
+            stream.abort();
+        }
+        streams.clear();
+        buffered.clear();
+        log.accept("HTTP2_CLOSED: streams=" + streamsOpened + ", refused=" + streamsRefused);
+    }
+
+    /**
+     * Запрос без content-length, тело которого собирается целиком
+     */
+    private static final class BufferedRequest {
+        private final StringBuilder head;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        private BufferedRequest(StringBuilder head) {
+            this.head = head;
+        }
+    }
+
+    /**
+     * Обработчик потока: поток выполнения, в котором он запущен, становится
+     * потоком обработчика сокета. Возврат слота лимита передается обработчику.
+     */
+    private static final class StreamTask implements Runnable, AdmissionAware {
+        private final StreamSocket streamSocket;
+        private final Runnable handler;
+        private final String threadName;
+
+        private StreamTask(StreamSocket streamSocket, Runnable handler, String threadName) {
+            this.streamSocket = streamSocket;
+            this.handler = handler;
+            this.threadName = threadName;
+        }
+
+        @Override
+        public void setSlotRelease(Runnable releaseSlot) {
+            if (handler instanceof AdmissionAware) {
+                ((AdmissionAware) handler).setSlotRelease(releaseSlot);
+            }
+        }
+
+        @Override
+        public void run() {
+            Thread.currentThread().setName(threadName);
+            streamSocket.setHandlerThread(Thread.currentThread());
+            handler.run();
+        }
+    }
+}
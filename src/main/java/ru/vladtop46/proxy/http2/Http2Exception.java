@@ -0,0 +1,21 @@
+package ru.vladtop46.proxy.http2;
+
+import java.io.IOException;
+
+/**
+ * Ошибка протокола HTTP/2 с кодом для RST_STREAM или GOAWAY
+ */
+class Http2Exception extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int errorCode;
+
+    Http2Exception(int errorCode, String message) {
+        super(message);
+        this.errorCode = errorCode;
+    }
+
+    int getErrorCode() {
+        return errorCode;
+    }
+}
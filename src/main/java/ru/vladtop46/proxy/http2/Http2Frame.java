@@ -0,0 +1,121 @@
+package ru.vladtop46.proxy.http2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Кадр HTTP/2: тип, флаги, номер потока и содержимое (RFC 9113, раздел 4)
+ */
+final class Http2Frame {
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int PRIORITY = 0x2;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    static final int HEADER_LENGTH = 9;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    final int type;
+    final int flags;
+    final int streamId;
+    final byte[] payload;
+
+    Http2Frame(int type, int flags, int streamId, byte[] payload) {
+        this.type = type;
+        this.flags = flags;
+        this.streamId = streamId;
+        this.payload = payload;
+    }
+
+    boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * Читает кадр целиком
+     * @return кадр или null, если соединение закрыто между кадрами
+     * @throws Http2Exception кадр длиннее допустимого
+     */
+    static Http2Frame read(InputStream in, int maxFrameSize) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        header[0] = (byte) first;
+        readFully(in, header, 1, HEADER_LENGTH - 1);
+        int length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | (header[2] & 0xff);
+        if (length > maxFrameSize) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+        }
+        int streamId = readInt(header, 5) & 0x7fffffff;
+        byte[] payload = new byte[length];
+        readFully(in, payload, 0, length);
+        return new Http2Frame(header[3] & 0xff, header[4] & 0xff, streamId, payload);
+    }
+
+    static void readFully(InputStream in, byte[] target, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(target, offset, length);
+            if (read == -1) {
+                throw new EOFException("Connection closed inside a frame");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+
+    static byte[] header(int length, int type, int flags, int streamId) {
+        byte[] header = new byte[HEADER_LENGTH];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        writeInt(header, 5, streamId);
+        return header;
+    }
+
+    static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+
+    static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,403 @@
+package ru.vladtop46.proxy.http2;
+
+import ru.vladtop46.proxy.cache.HttpHead;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Поток HTTP/2, представленный обработчику как соединение HTTP/1.1.
+ * <p>
+ * Обработчик читает из {@link Input} запрос, собранный из заголовков и кадров
+ * DATA, и пишет в {@link Output} обычный ответ HTTP/1.1, который разбирается
+ * обратно в кадры HEADERS и DATA. Окно приема потока пополняется по мере того,
+ * как обработчик читает тело запроса.
+ */
+final class Http2Stream {
+    final int id;
+    private final Http2Connection connection;
+    private final boolean connect;
+    private final boolean headRequest;
+    private final Input input;
+    private final Output output;
+    // Окна управления потоком; изменяются под монитором соединения
+    int sendWindow;
+    int receiveWindow;
+    // Прочитанные обработчиком байты, о которых клиенту еще не сообщено WINDOW_UPDATE
+    int receiveUnacked;
+    private volatile boolean reset;
+    // Память собранного заранее тела запроса; возвращается один раз при закрытии потока
+    private final AtomicLong bufferedBodyBytes = new AtomicLong();
+
+    Http2Stream(Http2Connection connection, int id, String method, int sendWindow, int receiveWindow) {
+        this.connection = connection;
+        this.id = id;
+        this.connect = "CONNECT".equals(method);
+        this.headRequest = "HEAD".equals(method);
+        this.sendWindow = sendWindow;
+        this.receiveWindow = receiveWindow;
+        this.input = new Input();
+        this.output = new Output();
+    }
+
+    Input getInput() {
+        return input;
+    }
+
+    Output getOutput() {
+        return output;
+    }
+
+    boolean isReset() {
+        return reset;
+    }
+
+    void setBufferedBodyBytes(long bytes) {
+        bufferedBodyBytes.set(bytes);
+    }
+
+    long takeBufferedBodyBytes() {
+        return bufferedBodyBytes.getAndSet(0);
+    }
+
+    /**
+     * Поток сброшен клиентом или соединение закрыто: обработчик получит ошибку
+     * при следующем чтении или записи
+     */
+    void abort() {
+        reset = true;
+        input.fail();
+        connection.wakeWriters();
+    }
+
+    /**
+     * Тело запроса, поступающее кадрами DATA. Начинается со стартовой строки и
+     * заголовков HTTP/1.1, которые не учитываются в окне потока.
+     */
+    final class Input extends InputStream {
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private byte[] headBlock;
+        private byte[] current;
+        private int position;
+        private boolean ended;
+        private boolean failed;
+
+        synchronized void setHead(byte[] head) {
+            headBlock = head;
+            chunks.addFirst(head);
+            notifyAll();
+        }
+
+        synchronized void offer(byte[] data) {
+            if (data.length > 0) {
+                chunks.addLast(data);
+                notifyAll();
+            }
+        }
+
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        synchronized boolean isEnded() {
+            return ended;
+        }
+
+        private synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int count;
+            boolean flowControlled;
+            synchronized (this) {
+                while (current == null) {
+                    if (failed) {
+                        throw new IOException("HTTP/2 stream " + id + " reset");
+                    }
+                    current = chunks.pollFirst();
+                    position = 0;
+                    if (current != null) {
+                        break;
+                    }
+                    if (ended) {
+                        return -1;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                count = Math.min(length, current.length - position);
+                System.arraycopy(current, position, target, offset, count);
+                position += count;
+                // Заголовки запроса лежат первым блоком и в окне не учитываются
+                flowControlled = current != headBlock;
+                if (position == current.length) {
+                    if (current == headBlock) {
+                        headBlock = null;
+                    }
+                    current = null;
+                }
+            }
+            if (flowControlled) {
+                connection.consumed(Http2Stream.this, count);
+            }
+            return count;
+        }
+
+        @Override
+        public synchronized int available() {
+            return current != null ? current.length - position : 0;
+        }
+    }
+
+    /**
+     * Разбирает ответ HTTP/1.1 обработчика и отправляет его кадрами HEADERS и DATA
+     */
+    final class Output extends OutputStream {
+        private static final int HEAD = 0;
+        private static final int LENGTH_BODY = 1;
+        private static final int CHUNK_SIZE = 2;
+        private static final int CHUNK_DATA = 3;
+        private static final int CHUNK_END = 4;
+        private static final int TRAILERS = 5;
+        private static final int UNTIL_CLOSE = 6;
+        private static final int DONE = 7;
+
+        private static final int MAX_HEAD_BYTES = 64 * 1024;
+
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        private int state = HEAD;
+        private long remaining;
+        private boolean headersSent;
+        private boolean finished;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] data, int offset, int length) throws IOException {
+            if (reset) {
+                throw new IOException("HTTP/2 stream " + id + " reset");
+            }
+            int end = offset + length;
+            while (offset < end) {
+                switch (state) {
+                    case HEAD:
+                        offset = readHead(data, offset, end);
+                        break;
+                    case LENGTH_BODY: {
+                        int count = (int) Math.min(remaining, end - offset);
+                        connection.writeData(Http2Stream.this, data, offset, count, false);
+                        offset += count;
+                        remaining -= count;
+                        if (remaining == 0) {
+                            complete();
+                        }
+                        break;
+                    }
+                    case CHUNK_DATA: {
+                        int count = (int) Math.min(remaining, end - offset);
+                        connection.writeData(Http2Stream.this, data, offset, count, false);
+                        offset += count;
+                        remaining -= count;
+                        if (remaining == 0) {
+                            state = CHUNK_END;
+                        }
+                        break;
+                    }
+                    case CHUNK_SIZE:
+                    case CHUNK_END:
+                    case TRAILERS:
+                        offset = readChunkLine(data, offset, end);
+                        break;
+                    case UNTIL_CLOSE:
+                        connection.writeData(Http2Stream.this, data, offset, end - offset, false);
+                        offset = end;
+                        break;
+                    default:
+                        // Ответ завершен; лишние байты обработчика отбрасываются
+                        offset = end;
+                        break;
+                }
+            }
+        }
+
+        private int readHead(byte[] data, int offset, int end) throws IOException {
+            while (offset < end) {
+                byte b = data[offset++];
+                head.write(b);
+                if (head.size() > MAX_HEAD_BYTES) {
+                    throw new IOException("Response headers too large");
+                }
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                boolean emptyLine = line.size() == 0 || line.size() == 1 && line.toByteArray()[0] == '\r';
+                line.reset();
+                if (emptyLine) {
+                    startBody(HttpHead.read(new ByteArrayInputStream(head.toByteArray())));
+                    head.reset();
+                    return offset;
+                }
+            }
+            return offset;
+        }
+
+        private void startBody(HttpHead response) throws IOException {
+            int status = response.getStatusCode();
+            if (status < 0) {
+                throw new IOException("Invalid response from handler: " + response.getFirstLine());
+            }
+            if (status >= 100 && status < 200) {
+                // Промежуточный ответ отправляется отдельным блоком заголовков
+                connection.writeHeaders(Http2Stream.this, responseHeaders(response, false), false);
+                return;
+            }
+            boolean noBody = headRequest || status == 204 || status == 304;
+            boolean chunked = response.isChunked();
+            long length = chunked ? -1 : response.getContentLength();
+            if (connect && status / 100 == 2) {
+                // Туннель: все после заголовков идет кадрами DATA до закрытия
+                headersSent = true;
+                connection.writeHeaders(Http2Stream.this, responseHeaders(response, true), false);
+                state = UNTIL_CLOSE;
+                return;
+            }
+            boolean endStream = noBody || length == 0;
+            headersSent = true;
+            connection.writeHeaders(Http2Stream.this, responseHeaders(response, chunked), endStream);
+            if (endStream) {
+                state = DONE;
+                finished = true;
+            } else if (chunked) {
+                state = CHUNK_SIZE;
+            } else if (length > 0) {
+                state = LENGTH_BODY;
+                remaining = length;
+            } else {
+                state = UNTIL_CLOSE;
+            }
+        }
+
+        private List<String[]> responseHeaders(HttpHead response, boolean dropLength) {
+            HttpHead fields = response.withoutHopByHop();
+            List<String[]> headers = new ArrayList<>();
+            headers.add(new String[]{":status", String.valueOf(response.getStatusCode())});
+            for (int i = 0; i < fields.size(); i++) {
+                String name = fields.getName(i).toLowerCase();
+                if (dropLength && name.equals("content-length")) {
+                    continue;
+                }
+                headers.add(new String[]{name, fields.getValue(i)});
+            }
+            return headers;
+        }
+
+        private int readChunkLine(byte[] data, int offset, int end) throws IOException {
+            while (offset < end) {
+                byte b = data[offset++];
+                if (b != '\n') {
+                    line.write(b);
+                    if (line.size() > 1024) {
+                        throw new IOException("Invalid chunked response");
+                    }
+                    continue;
+                }
+                String text = line.toString(StandardCharsets.ISO_8859_1).trim();
+                line.reset();
+                if (state == CHUNK_END) {
+                    state = CHUNK_SIZE;
+                } else if (state == TRAILERS) {
+                    if (text.isEmpty()) {
+                        complete();
+                        return offset;
+                    }
+                } else {
+                    int semicolon = text.indexOf(';');
+                    try {
+                        remaining = Long.parseLong(semicolon >= 0 ? text.substring(0, semicolon).trim() : text, 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid chunk size: " + text);
+                    }
+                    state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+                    return offset;
+                }
+                return offset;
+            }
+            return offset;
+        }
+
+        private void complete() throws IOException {
+            state = DONE;
+            finished = true;
+            connection.writeData(Http2Stream.this, new byte[0], 0, 0, true);
+        }
+
+        /**
+         * Обработчик закрыл соединение. Ответ до закрытия завершается, неполный
+         * ответ сбрасывает поток, а без заголовков клиент получает 502.
+         */
+        synchronized void finish() {
+            if (finished || reset) {
+                return;
+            }
+            try {
+                if (state == UNTIL_CLOSE) {
+                    complete();
+                } else if (!headersSent) {
+                    finished = true;
+                    List<String[]> headers = new ArrayList<>();
+                    headers.add(new String[]{":status", "502"});
+                    headers.add(new String[]{"content-length", "0"});
+                    connection.writeHeaders(Http2Stream.this, headers, true);
+                } else {
+                    connection.resetStream(Http2Stream.this, Http2Frame.INTERNAL_ERROR);
+                }
+            } catch (IOException e) {
+                // Соединение с клиентом уже закрыто
+            }
+        }
+
+        /**
+         * Половинное закрытие туннеля обработчиком
+         */
+        synchronized void endTunnel() throws IOException {
+            if (!finished && !reset && state == UNTIL_CLOSE) {
+                complete();
+            }
+        }
+
+        synchronized boolean isFinished() {
+            return finished;
+        }
+    }
+}
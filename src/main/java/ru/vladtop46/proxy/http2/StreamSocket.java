@@ -0,0 +1,104 @@
+package ru.vladtop46.proxy.http2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+/**
+ * Поток HTTP/2 в виде сокета для обычного обработчика соединения: адреса
+ * берутся у соединения клиента, ввод и вывод идут через кадры потока.
+ * <p>
+ * Закрытие из потока обработчика или после полного ответа завершает ответ;
+ * закрытие из другого потока (таймаут, принудительное закрытие из админки)
+ * сбрасывает поток HTTP/2. Полный ответ без обработчика пишет лимит, когда
+ * отклоняет поток ответом 503.
+ */
+final class StreamSocket extends Socket {
+    private final Socket connection;
+    private final Http2Stream stream;
+    private final Http2Connection owner;
+    private volatile Thread handlerThread;
+    private volatile boolean closed;
+
+    StreamSocket(Socket connection, Http2Connection owner, Http2Stream stream) {
+        this.connection = connection;
+        this.owner = owner;
+        this.stream = stream;
+    }
+
+    void setHandlerThread(Thread handlerThread) {
+        this.handlerThread = handlerThread;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return stream.getInput();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return stream.getOutput();
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return connection.getInetAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return connection.getPort();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return connection.getLocalAddress();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return connection.getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return connection.getRemoteSocketAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return connection.getLocalSocketAddress();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        stream.getOutput().endTunnel();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (Thread.currentThread() == handlerThread || stream.getOutput().isFinished()) {
+            stream.getOutput().finish();
+        } else {
+            owner.cancel(stream);
+        }
+        owner.streamClosed(stream);
+    }
+}
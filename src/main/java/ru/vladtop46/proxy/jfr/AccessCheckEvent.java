@@ -0,0 +1,28 @@
+package ru.vladtop46.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("ru.vladtop46.proxy.AccessCheck")
+@Label("Access Check")
+@Description("Проверка IP клиента или целевого домена по правилам доступа")
+@Category({"WebProxy", "Security"})
+@StackTrace(false)
+public class AccessCheckEvent extends Event {
+    @Label("Connection Id")
+    public String connectionId;
+
+    @Label("Kind")
+    @Description("IP или DOMAIN")
+    public String kind;
+
+    @Label("Subject")
+    public String subject;
+
+    @Label("Allowed")
+    public boolean allowed;
+}
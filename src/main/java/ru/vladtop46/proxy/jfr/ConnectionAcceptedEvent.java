@@ -0,0 +1,21 @@
+package ru.vladtop46.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("ru.vladtop46.proxy.ConnectionAccepted")
+@Label("Connection Accepted")
+@Description("Клиентское соединение принято слушающим сокетом")
+@Category({"WebProxy", "Connection"})
+@StackTrace(false)
+public class ConnectionAcceptedEvent extends Event {
+    @Label("Client Address")
+    public String clientAddress;
+
+    @Label("Allowed")
+    public boolean allowed;
+}
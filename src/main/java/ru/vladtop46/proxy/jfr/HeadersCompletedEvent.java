@@ -0,0 +1,28 @@
+package ru.vladtop46.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("ru.vladtop46.proxy.HeadersCompleted")
+@Label("Headers Completed")
+@Description("Заголовки запроса клиента или ответа сервера прочитаны полностью")
+@Category({"WebProxy", "HTTP"})
+@StackTrace(false)
+public class HeadersCompletedEvent extends Event {
+    @Label("Connection Id")
+    public String connectionId;
+
+    @Label("Phase")
+    @Description("REQUEST или RESPONSE")
+    public String phase;
+
+    @Label("First Line")
+    public String firstLine;
+
+    @Label("Header Count")
+    public int headerCount;
+}
@@ -0,0 +1,104 @@
+package ru.vladtop46.proxy.jfr;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import ru.vladtop46.proxy.logging.ProxyLogger;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * Управление записью JFR из консоли: старт, остановка и сброс в каталог логов
+ */
+public class RecordingController {
+    private static final DateTimeFormatter FILE_TIME_FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+    private static final List<Class<? extends jdk.jfr.Event>> PROXY_EVENTS = List.of(
+            ConnectionAcceptedEvent.class,
+            AccessCheckEvent.class,
+            UpstreamConnectEvent.class,
+            HeadersCompletedEvent.class,
+            TunnelClosedEvent.class,
+            WebSocketFramesEvent.class);
+
+    private final String logsDirectory;
+    private final ProxyLogger logger;
+    private Recording recording;
+
+    public RecordingController(String logsDirectory, ProxyLogger logger) {
+        this.logsDirectory = logsDirectory;
+        this.logger = logger;
+    }
+
+    /**
+     * Выполняет команду jfr: start [default|profile], stop, dump, status
+     */
+    public synchronized void handleCommand(String[] args) {
+        String action = args.length > 1 ? args[1] : "status";
+        try {
+            switch (action) {
+                case "start":
+                    start(args.length > 2 ? args[2] : "default");
+                    break;
+                case "stop":
+                    stop();
+                    break;
+                case "dump":
+                    dump();
+                    break;
+                case "status":
+                    logger.log(recording == null ? "JFR recording is not running"
+                            : "JFR recording is running since " + recording.getStartTime());
+                    break;
+                default:
+                    logger.log("Usage: jfr start [default|profile] | stop | dump | status");
+                    break;
+            }
+        } catch (Exception e) {
+            logger.log("JFR error: " + e.getMessage());
+        }
+    }
+
+    private void start(String configurationName) throws Exception {
+        if (recording != null) {
+            logger.log("JFR recording is already running");
+            return;
+        }
+        Recording newRecording = new Recording(Configuration.getConfiguration(configurationName));
+        newRecording.setName("WebProxy");
+        for (Class<? extends jdk.jfr.Event> eventClass : PROXY_EVENTS) {
+            newRecording.enable(eventClass);
+        }
+        newRecording.start();
+        recording = newRecording;
+        logger.log("JFR recording started with '" + configurationName + "' settings");
+    }
+
+    private void stop() throws Exception {
+        if (recording == null) {
+            logger.log("JFR recording is not running");
+            return;
+        }
+        Path file = dump();
+        recording.close();
+        recording = null;
+        logger.log("JFR recording stopped, saved to " + file);
+    }
+
+    private Path dump() throws Exception {
+        if (recording == null) {
+            logger.log("JFR recording is not running");
+            return null;
+        }
+        Path directory = Paths.get(logsDirectory);
+        Files.createDirectories(directory);
+        Path file = directory.resolve("proxy-" + LocalDateTime.now().format(FILE_TIME_FORMATTER) + ".jfr");
+        recording.dump(file);
+        logger.log("JFR recording dumped to " + file);
+        return file;
+    }
+}
@@ -0,0 +1,33 @@
+package ru.vladtop46.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("ru.vladtop46.proxy.TunnelClosed")
+@Label("Tunnel Closed")
+@Description("CONNECT-туннель или WebSocket-сессия закрыты; длительность - время жизни туннеля")
+@Category({"WebProxy", "Connection"})
+@StackTrace(false)
+public class TunnelClosedEvent extends Event {
+    @Label("Connection Id")
+    public String connectionId;
+
+    @Label("Connection Type")
+    public String connectionType;
+
+    @Label("Host")
+    public String host;
+
+    @Label("Bytes From Client")
+    @DataAmount
+    public long bytesFromClient;
+
+    @Label("Bytes To Client")
+    @DataAmount
+    public long bytesToClient;
+}
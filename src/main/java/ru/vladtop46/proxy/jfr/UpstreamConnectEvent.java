@@ -0,0 +1,30 @@
+package ru.vladtop46.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("ru.vladtop46.proxy.UpstreamConnect")
+@Label("Upstream Connect")
+@Description("Установка TCP-соединения с целевым сервером")
+@Category({"WebProxy", "Upstream"})
+@StackTrace(false)
+public class UpstreamConnectEvent extends Event {
+    @Label("Connection Id")
+    public String connectionId;
+
+    @Label("Connection Type")
+    public String connectionType;
+
+    @Label("Host")
+    public String host;
+
+    @Label("Port")
+    public int port;
+
+    @Label("Success")
+    public boolean success;
+}
@@ -0,0 +1,32 @@
+package ru.vladtop46.proxy.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("ru.vladtop46.proxy.WebSocketFrames")
+@Label("WebSocket Frame Batch")
+@Description("Пачка пересланных WebSocket-фреймов одного направления")
+@Category({"WebProxy", "WebSocket"})
+@StackTrace(false)
+public class WebSocketFramesEvent extends Event {
+    @Label("Connection Id")
+    public String connectionId;
+
+    @Label("Direction")
+    public String direction;
+
+    @Label("WebRTC")
+    public boolean webRtc;
+
+    @Label("Frames")
+    public int frames;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
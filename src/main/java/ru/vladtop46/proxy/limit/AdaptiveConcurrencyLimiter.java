@@ -0,0 +1,131 @@
+package ru.vladtop46.proxy.limit;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Адаптивный лимит параллельной обработки (градиентный алгоритм).
+ * Лимит сжимается, когда задержка апстрима растет относительно долгосрочной
+ * средней, и растет, пока задержка остается стабильной.
+ */
+public class AdaptiveConcurrencyLimiter {
+    // Сглаживание долгосрочной средней задержки
+    private static final double LONG_RTT_ALPHA = 0.01;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double smoothing;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile int limit;
+    private double estimatedLimit;
+    private double longRttNanos;
+    private volatile long lastRttNanos;
+
+    public AdaptiveConcurrencyLimiter(ProxyConfig.LimiterSettings settings) {
+        this.minLimit = Math.max(1, settings.getMinLimit());
+        this.maxLimit = Math.max(minLimit, settings.getMaxLimit());
+        this.smoothing = Math.min(1.0, Math.max(0.01, settings.getSmoothing()));
+        this.estimatedLimit = clamp(settings.getInitialLimit());
+        this.limit = (int) estimatedLimit;
+    }
+
+    /**
+     * Пытается занять слот обработки
+     * @return true если текущее число запросов в работе меньше лимита
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Освобождает слот, занятый через {@link #tryAcquire()}
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Учитывает наблюдаемую задержку апстрима и пересчитывает лимит
+     * @param rttNanos время от подключения к апстриму до первого ответа
+     */
+    public synchronized void recordLatency(long rttNanos) {
+        if (rttNanos <= 0) {
+            return;
+        }
+        lastRttNanos = rttNanos;
+
+        if (longRttNanos == 0) {
+            longRttNanos = rttNanos;
+            return;
+        }
+        longRttNanos = longRttNanos * (1 - LONG_RTT_ALPHA) + rttNanos * LONG_RTT_ALPHA;
+
+        // Если задержка заметно упала, долгосрочная средняя быстрее подтягивается вниз
+        if (longRttNanos / rttNanos > 2.0) {
+            longRttNanos *= 0.95;
+        }
+
+        // Не растем, пока сервер загружен меньше чем наполовину
+        int currentInFlight = inFlight.get();
+        if (currentInFlight < estimatedLimit / 2) {
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, longRttNanos / rttNanos));
+        double queueAllowance = Math.sqrt(estimatedLimit);
+        double newLimit = estimatedLimit * gradient + queueAllowance;
+        newLimit = estimatedLimit * (1 - smoothing) + newLimit * smoothing;
+
+        estimatedLimit = clamp(newLimit);
+        limit = (int) estimatedLimit;
+    }
+
+    private double clamp(double value) {
+        return Math.max(minLimit, Math.min(maxLimit, value));
+    }
+
+    /**
+     * Выученный лимит и долгосрочная средняя задержка для сохранения между запусками
+     * @return {лимит, средняя задержка в наносекундах}; задержка 0, если замеров еще не было
+     */
+    public synchronized double[] getLearnedState() {
+        return new double[] {estimatedLimit, longRttNanos};
+    }
+
+    /**
+     * Возвращает лимит, выученный до перезапуска, чтобы не набирать его заново
+     * с начального значения. Лимит ограничивается текущими minLimit и maxLimit.
+     */
+    public synchronized void restore(double learnedLimit, double learnedRttNanos) {
+        if (learnedLimit <= 0 || Double.isNaN(learnedLimit) || learnedRttNanos < 0 || Double.isNaN(learnedRttNanos)) {
+            return;
+        }
+        estimatedLimit = clamp(learnedLimit);
+        limit = (int) estimatedLimit;
+        if (longRttNanos == 0) {
+            longRttNanos = learnedRttNanos;
+        }
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getLastRttMillis() {
+        return lastRttNanos / 1_000_000;
+    }
+}
@@ -0,0 +1,14 @@
+package ru.vladtop46.proxy.limit;
+
+/**
+ * Обработчик, который может вернуть слот лимита раньше своего завершения.
+ * Лимит ограничивает установку соединений с апстримом, а туннели, WebSocket
+ * и SOCKS5-ассоциации после установки живут сколько угодно долго и не
+ * должны занимать слот все это время.
+ */
+public interface AdmissionAware {
+    /**
+     * @param releaseSlot освобождает слот соединения; повторные вызовы ничего не делают
+     */
+    void setSlotRelease(Runnable releaseSlot);
+}
@@ -0,0 +1,238 @@
+package ru.vladtop46.proxy.limit;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.logging.ProxyLogger;
+import ru.vladtop46.proxy.timeout.HashedTimerWheel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Допускает соединения к обработке в пределах адаптивного лимита.
+ * Лишние соединения ждут в ограниченной очереди, а при ее переполнении
+ * или истечении времени ожидания сразу получают 503. Срок ожидания
+ * отслеживает колесо таймеров, поэтому 503 уходит вовремя, даже если
+ * новых соединений нет и слоты не освобождаются. Обработчик
+ * {@link AdmissionAware} может вернуть слот, как только соединение с
+ * апстримом установлено.
+ */
+public class AdmissionController {
+    private static final long SHED_SUMMARY_INTERVAL_MS = 1000;
+    private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n" +
+            "Retry-After: 1\r\n" +
+            "Content-Length: 0\r\n" +
+            "Connection: close\r\n" +
+            "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private final boolean enabled;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final BlockingQueue<PendingConnection> queue;
+    private final long maxQueueTimeNanos;
+    private final ProxyLogger logger;
+    private final HashedTimerWheel wheel;
+    private final AtomicLong shedCount = new AtomicLong();
+    // Отклонения с момента последней сводки в журнале
+    private final AtomicLong shedQueueFull = new AtomicLong();
+    private final AtomicLong shedQueueTimeout = new AtomicLong();
+
+    /**
+     * @param wheel колесо таймеров для сроков ожидания в очереди и сводки отклонений
+     */
+    public AdmissionController(ProxyConfig.LimiterSettings settings, HashedTimerWheel wheel, ProxyLogger logger) {
+        this.enabled = settings.isEnabled();
+        this.limiter = new AdaptiveConcurrencyLimiter(settings);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, settings.getQueueSize()));
+        this.maxQueueTimeNanos = TimeUnit.MILLISECONDS.toNanos(settings.getMaxQueueTimeMs());
+        this.wheel = wheel;
+        this.logger = logger;
+        if (enabled) {
+            scheduleShedSummary();
+        }
+    }
+
+    /**
+     * Запускает обработчик сразу, ставит его в очередь или отклоняет соединение ответом 503
+     * @param clientSocket клиентский сокет
+     * @param handler обработчик соединения
+     */
+    public void submit(Socket clientSocket, Runnable handler) {
+        submit(clientSocket, handler, SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * @param rejection что отправить клиенту, если соединение отклонено; зависит от протокола листенера
+     */
+    public void submit(Socket clientSocket, Runnable handler, byte[] rejection) {
+        if (!enabled) {
+            new Thread(handler).start();
+            return;
+        }
+
+        drainQueue();
+        if (queue.isEmpty() && limiter.tryAcquire()) {
+            dispatch(handler);
+            return;
+        }
+
+        PendingConnection pending = new PendingConnection(clientSocket, handler, rejection, System.nanoTime());
+        if (!queue.offer(pending)) {
+            shed(clientSocket, rejection, shedQueueFull);
+            return;
+        }
+        pending.expiry = wheel.newTimeout(timeout -> expire(pending),
+                TimeUnit.NANOSECONDS.toMillis(maxQueueTimeNanos) + 1);
+        // Слот мог освободиться, пока соединение вставало в очередь
+        drainQueue();
+    }
+
+    /**
+     * Запускает ожидающие соединения, пока есть свободные слоты,
+     * и отклоняет те, что простояли в очереди дольше допустимого
+     */
+    public void drainQueue() {
+        PendingConnection pending;
+        while ((pending = queue.peek()) != null) {
+            if (pending.isExpired()) {
+                expire(pending);
+                continue;
+            }
+
+            if (!limiter.tryAcquire()) {
+                return;
+            }
+
+            pending = queue.poll();
+            if (pending == null) {
+                limiter.release();
+                return;
+            }
+            pending.cancelExpiry();
+            if (pending.isExpired()) {
+                limiter.release();
+                shed(pending.clientSocket, pending.rejection, shedQueueTimeout);
+                continue;
+            }
+            dispatch(pending.handler);
+        }
+    }
+
+    /**
+     * Отклоняет соединение, простоявшее в очереди дольше допустимого, если
+     * его еще не забрали. Вызывается и из потока колеса таймеров.
+     */
+    private void expire(PendingConnection pending) {
+        if (queue.remove(pending)) {
+            pending.cancelExpiry();
+            shed(pending.clientSocket, pending.rejection, shedQueueTimeout);
+        }
+    }
+
+    private void dispatch(Runnable handler) {
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable releaseSlot = () -> {
+            if (released.compareAndSet(false, true)) {
+                limiter.release();
+                drainQueue();
+            }
+        };
+        if (handler instanceof AdmissionAware) {
+            ((AdmissionAware) handler).setSlotRelease(releaseSlot);
+        }
+        new Thread(() -> {
+            try {
+                handler.run();
+            } finally {
+                releaseSlot.run();
+            }
+        }).start();
+    }
+
+    private void shed(Socket clientSocket, byte[] rejection, AtomicLong reason) {
+        shedCount.incrementAndGet();
+        reason.incrementAndGet();
+        try (Socket socket = clientSocket) {
+            OutputStream out = socket.getOutputStream();
+            out.write(rejection);
+            out.flush();
+        } catch (IOException e) {
+            // Клиент уже мог закрыть соединение
+        }
+    }
+
+    /**
+     * Отклонения пишутся в журнал сводкой раз в секунду: строка на каждое
+     * соединение при перегрузке забила бы журнал и тормозила бы прием
+     */
+    private void scheduleShedSummary() {
+        wheel.newTimeout(timeout -> {
+            logShedSummary();
+            scheduleShedSummary();
+        }, SHED_SUMMARY_INTERVAL_MS);
+    }
+
+    private void logShedSummary() {
+        long queueFull = shedQueueFull.getAndSet(0);
+        long queueTimeout = shedQueueTimeout.getAndSet(0);
+        if (queueFull + queueTimeout == 0) {
+            return;
+        }
+        logger.log(String.format("Load shed %d connections in the last second (queue full=%d, queue timeout=%d), "
+                        + "limit=%d, queued=%d, shed total=%d",
+                queueFull + queueTimeout, queueFull, queueTimeout, limiter.getLimit(), queue.size(),
+                shedCount.get()));
+    }
+
+    public AdaptiveConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    public String getStatus() {
+        if (!enabled) {
+            return "Concurrency limiter: disabled";
+        }
+        return String.format("Concurrency limiter: limit=%d, in-flight=%d, queued=%d, shed=%d, last rtt=%d ms",
+                limiter.getLimit(), limiter.getInFlight(), queue.size(), shedCount.get(),
+                limiter.getLastRttMillis());
+    }
+
+    private class PendingConnection {
+        private final Socket clientSocket;
+        private final Runnable handler;
+        private final byte[] rejection;
+        private final long enqueuedAt;
+        private volatile HashedTimerWheel.Timeout expiry;
+
+        private PendingConnection(Socket clientSocket, Runnable handler, byte[] rejection, long enqueuedAt) {
+            this.clientSocket = clientSocket;
+            this.handler = handler;
+            this.rejection = rejection;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        private void cancelExpiry() {
+            HashedTimerWheel.Timeout current = expiry;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - enqueuedAt > maxQueueTimeNanos;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package ru.vladtop46.proxy.listener;
+
+import ru.vladtop46.proxy.logging.ProxyLogger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Поток приема соединений на одном серверном сокете.
+ * <p>
+ * Для одного адреса может работать несколько приемщиков: каждый открывает
+ * свой сокет с {@code SO_REUSEPORT}, и ядро Linux само распределяет новые
+ * соединения между ними. Там, где опция недоступна, на адрес открывается
+ * один сокет.
+ */
+public class Acceptor implements Runnable {
+    // Раз в секунду прием прерывается, чтобы обработать очередь допуска
+    private static final int IDLE_TIMEOUT_MS = 1000;
+
+    private final String name;
+    private final ServerSocket serverSocket;
+    private final Consumer<Socket> onAccept;
+    private final Runnable onIdle;
+    private final ProxyLogger logger;
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Скорость приема: пишет только поток приемщика
+    private volatile long currentSecond;
+    private volatile long currentCount;
+    private volatile long lastSecondCount;
+    private volatile long peakPerSecond;
+
+    private Acceptor(String name, ServerSocket serverSocket, Consumer<Socket> onAccept, Runnable onIdle,
+                     ProxyLogger logger) {
+        this.name = name;
+        this.serverSocket = serverSocket;
+        this.onAccept = onAccept;
+        this.onIdle = onIdle;
+        this.logger = logger;
+        this.thread = new Thread(this, "acceptor-" + name);
+    }
+
+    /**
+     * Открывает серверный сокет для приемщика
+     * @param address адрес прослушивания
+     * @param index номер приемщика на этом адресе
+     * @param backlog длина очереди ожидающих accept соединений
+     * @param reusePort открывать сокет с SO_REUSEPORT
+     * @param onAccept обработка принятого соединения, вызывается в потоке приемщика
+     * @param onIdle вызывается, когда соединений не было в течение секунды
+     */
+    public static Acceptor open(InetSocketAddress address, int index, int backlog, boolean reusePort,
+                                Consumer<Socket> onAccept, Runnable onIdle, ProxyLogger logger) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        try {
+            serverSocket.setReuseAddress(true);
+            if (reusePort) {
+                serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            serverSocket.bind(address, backlog);
+            serverSocket.setSoTimeout(IDLE_TIMEOUT_MS);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        String name = ListenAddress.format(address) + "#" + index;
+        return new Acceptor(name, serverSocket, onAccept, onIdle, logger);
+    }
+
+    /**
+     * Поддерживает ли платформа SO_REUSEPORT для серверных сокетов
+     */
+    public static boolean isReusePortSupported() {
+        try (ServerSocket probe = new ServerSocket()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Сокет уже закрыт
+        }
+    }
+
+    /**
+     * Ждет завершения потока приемщика после {@link #stop()}
+     */
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            Socket clientSocket;
+            try {
+                clientSocket = serverSocket.accept();
+            } catch (SocketTimeoutException e) {
+                onIdle.run();
+                continue;
+            } catch (SocketException e) {
+                // Сокет закрыт при остановке
+                if (running) {
+                    errors.incrementAndGet();
+                    logger.log("Acceptor " + name + " error: " + e.getMessage());
+                }
+                continue;
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                logger.log("Acceptor " + name + " error: " + e.getMessage());
+                continue;
+            }
+
+            countAccept();
+            try {
+                onAccept.accept(clientSocket);
+            } catch (Exception e) {
+                errors.incrementAndGet();
+                logger.log("Connection error: " + e.getMessage());
+                try {
+                    clientSocket.close();
+                } catch (IOException ignored) {
+                    // Закрываем молча
+                }
+            }
+        }
+    }
+
+    private void countAccept() {
+        accepted.incrementAndGet();
+        long second = System.nanoTime() / 1_000_000_000L;
+        if (second != currentSecond) {
+            // Полная прошедшая секунда, либо ноль, если приемов не было дольше
+            lastSecondCount = second == currentSecond + 1 ? currentCount : 0;
+            currentSecond = second;
+            currentCount = 0;
+        }
+        long count = currentCount + 1;
+        currentCount = count;
+        if (count > peakPerSecond) {
+            peakPerSecond = count;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * Число соединений, принятых за последнюю завершившуюся секунду
+     */
+    public long getAcceptRate() {
+        long second = System.nanoTime() / 1_000_000_000L;
+        long bucket = currentSecond;
+        if (second == bucket) {
+            return lastSecondCount;
+        }
+        return second == bucket + 1 ? currentCount : 0;
+    }
+
+    public long getPeakAcceptRate() {
+        return peakPerSecond;
+    }
+
+    public String getStatus() {
+        return String.format("Acceptor %s: accepted=%d, rate=%d/s, peak=%d/s, errors=%d",
+                name, accepted.get(), getAcceptRate(), peakPerSecond, errors.get());
+    }
+}
@@ -0,0 +1,60 @@
+package ru.vladtop46.proxy.listener;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Разбор адреса прослушивания из конфига: {@code host:port},
+ * {@code [ipv6]:port}, {@code :port} или просто {@code port}
+ */
+public final class ListenAddress {
+    private ListenAddress() {
+    }
+
+    /**
+     * @param value адрес из конфигурации
+     * @return адрес для bind; без хоста - все интерфейсы
+     * @throws IllegalArgumentException если адрес записан неверно
+     */
+    public static InetSocketAddress parse(String value) {
+        String text = value.trim();
+        String host = null;
+        String port;
+        if (text.startsWith("[")) {
+            int end = text.indexOf(']');
+            if (end < 0 || end + 1 >= text.length() || text.charAt(end + 1) != ':') {
+                throw new IllegalArgumentException("Invalid listen address: " + value);
+            }
+            host = text.substring(1, end);
+            port = text.substring(end + 2);
+        } else {
+            int colon = text.lastIndexOf(':');
+            if (colon >= 0) {
+                host = colon > 0 ? text.substring(0, colon) : null;
+                port = text.substring(colon + 1);
+            } else {
+                port = text;
+            }
+        }
+
+        int portNumber;
+        try {
+            portNumber = Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port in listen address: " + value);
+        }
+        if (portNumber < 0 || portNumber > 65535) {
+            throw new IllegalArgumentException("Invalid port in listen address: " + value);
+        }
+        return host == null || host.isEmpty() || "*".equals(host)
+                ? new InetSocketAddress(portNumber)
+                : new InetSocketAddress(host, portNumber);
+    }
+
+    /**
+     * Короткое представление адреса для логов и статуса
+     */
+    public static String format(InetSocketAddress address) {
+        String host = address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostString();
+        return (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + address.getPort();
+    }
+}
@@ -0,0 +1,228 @@
+package ru.vladtop46.proxy.memory;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Общий бюджет памяти под буферы пересылки.
+ * <p>
+ * Соединение резервирует память под свои буферы до их выделения: буферы
+ * пересылки, заполнение кеша, накопленные тела. Учет ведется всегда, лимиты
+ * применяются только при включенном бюджете. Если бюджета не хватает,
+ * соединение не читает запрос дальше, пока другие соединения не освободят
+ * память. Крупные необязательные резервирования (тело для кеша) допускаются
+ * только ниже порога заполнения, чтобы буферам пересылки оставался запас.
+ * Записи кеша и сохраненные сегменты загрузок живут дольше соединения и
+ * учитываются отдельно, пока их не вытеснят.
+ */
+public class MemoryBudget {
+    private final AtomicInteger accounts = new AtomicInteger();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong resident = new AtomicLong();
+    private volatile ProxyConfig.MemorySettings settings;
+    // Под монитором бюджета
+    private long used;
+    private long peak;
+
+    public MemoryBudget(ProxyConfig.MemorySettings settings) {
+        this.settings = settings;
+    }
+
+    public synchronized void update(ProxyConfig.MemorySettings settings) {
+        this.settings = settings;
+        notifyAll();
+    }
+
+    public boolean isEnabled() {
+        return settings.isEnabled();
+    }
+
+    /**
+     * Учет памяти одного соединения
+     */
+    public Account open() {
+        accounts.incrementAndGet();
+        return new Account();
+    }
+
+    private synchronized boolean reserve(long bytes) throws InterruptedException {
+        ProxyConfig.MemorySettings current = settings;
+        if (!current.isEnabled() || used + bytes <= current.getMaxBytes()) {
+            add(bytes);
+            return true;
+        }
+        if (bytes > current.getMaxBytes()) {
+            return false;
+        }
+        waits.incrementAndGet();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(current.getWaitTimeoutMs());
+        while (settings.isEnabled() && used + bytes > settings.getMaxBytes()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        add(bytes);
+        return true;
+    }
+
+    /**
+     * Резервирование без ожидания, если заполнение останется ниже порога
+     */
+    private synchronized boolean reserveBelowWatermark(long bytes) {
+        ProxyConfig.MemorySettings current = settings;
+        if (current.isEnabled()
+                && (used + bytes) * 100 > current.getMaxBytes() * current.getHighWatermarkPercent()) {
+            return false;
+        }
+        add(bytes);
+        return true;
+    }
+
+    private void add(long bytes) {
+        used += bytes;
+        peak = Math.max(peak, used);
+    }
+
+    private synchronized void free(long bytes) {
+        used -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Резервирует память под объект, который хранится дольше соединения
+     * (запись кеша, сегмент загрузки). Без ожидания и только ниже порога заполнения.
+     * @return false, если памяти нет; объект тогда не сохраняется
+     */
+    public boolean tryReserveResident(long bytes) {
+        if (!reserveBelowWatermark(bytes)) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        resident.addAndGet(bytes);
+        return true;
+    }
+
+    /**
+     * Объект, зарезервированный через {@link #tryReserveResident}, вытеснен
+     */
+    public void releaseResident(long bytes) {
+        resident.addAndGet(-bytes);
+        free(bytes);
+    }
+
+    public synchronized long getUsedBytes() {
+        return used;
+    }
+
+    public String getStatus() {
+        long usedNow;
+        long peakNow;
+        synchronized (this) {
+            usedNow = used;
+            peakNow = peak;
+        }
+        ProxyConfig.MemorySettings current = settings;
+        Runtime runtime = Runtime.getRuntime();
+        String heap = String.format("heap=%d/%d MB", (runtime.totalMemory() - runtime.freeMemory()) >> 20,
+                runtime.maxMemory() >> 20);
+        if (!current.isEnabled()) {
+            return String.format("Memory budget: disabled (buffers=%d KB, cached=%d KB, peak=%d KB, "
+                            + "connections=%d, %s)",
+                    usedNow >> 10, resident.get() >> 10, peakNow >> 10, accounts.get(), heap);
+        }
+        long percent = usedNow * 100 / Math.max(1, current.getMaxBytes());
+        return String.format("Memory budget: used=%d/%d KB (%d%%), cached=%d KB, peak=%d KB, connections=%d, "
+                        + "waits=%d, rejected=%d, skipped fills=%d%s, %s",
+                usedNow >> 10, current.getMaxBytes() >> 10, percent, resident.get() >> 10, peakNow >> 10,
+                accounts.get(), waits.get(), rejected.get(), skipped.get(),
+                percent >= current.getHighWatermarkPercent() ? ", above watermark" : "", heap);
+    }
+
+    /**
+     * Память одного соединения. Резервирование и освобождение могут идти из
+     * разных потоков пересылки одного соединения.
+     */
+    public class Account {
+        private final AtomicLong reserved = new AtomicLong();
+        private volatile boolean closed;
+
+        private Account() {
+        }
+
+        /**
+         * Резервирует память, при нехватке общего бюджета ждет освобождения
+         * @throws MemoryExhaustedException память не освободилась за время ожидания
+         *         или превышен лимит соединения
+         */
+        public void reserve(long bytes) throws MemoryExhaustedException {
+            checkConnectionLimit(bytes);
+            boolean granted;
+            try {
+                granted = MemoryBudget.this.reserve(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                granted = false;
+            }
+            if (!granted) {
+                rejected.incrementAndGet();
+                throw new MemoryExhaustedException("Memory budget exhausted: " + bytes + " bytes not available");
+            }
+            reserved.addAndGet(bytes);
+        }
+
+        /**
+         * Резервирует память без ожидания, только ниже порога заполнения
+         * @return false, если памяти нет; например, ответ тогда не кешируется
+         */
+        public boolean tryReserve(long bytes) {
+            ProxyConfig.MemorySettings current = settings;
+            if ((current.isEnabled() && reserved.get() + bytes > current.getPerConnectionMaxBytes())
+                    || !reserveBelowWatermark(bytes)) {
+                skipped.incrementAndGet();
+                return false;
+            }
+            reserved.addAndGet(bytes);
+            return true;
+        }
+
+        private void checkConnectionLimit(long bytes) throws MemoryExhaustedException {
+            ProxyConfig.MemorySettings current = settings;
+            if (current.isEnabled() && reserved.get() + bytes > current.getPerConnectionMaxBytes()) {
+                rejected.incrementAndGet();
+                throw new MemoryExhaustedException("Connection memory limit exceeded: "
+                        + (reserved.get() + bytes) + " > " + current.getPerConnectionMaxBytes() + " bytes");
+            }
+        }
+
+        public void release(long bytes) {
+            reserved.addAndGet(-bytes);
+            free(bytes);
+        }
+
+        public long getReservedBytes() {
+            return reserved.get();
+        }
+
+        /**
+         * Освобождает все, что соединение не вернуло само
+         */
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            accounts.decrementAndGet();
+            long remaining = reserved.getAndSet(0);
+            if (remaining != 0) {
+                free(remaining);
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package ru.vladtop46.proxy.memory;
+
+import java.io.IOException;
+
+/**
+ * Буферы для соединения не выделены: исчерпан общий бюджет памяти или лимит соединения
+ */
+public class MemoryExhaustedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public MemoryExhaustedException(String message) {
+        super(message);
+    }
+}
@@ -1,21 +1,29 @@
 package ru.vladtop46.proxy.model;
 
 import java.net.Socket;
-import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ConnectionInfo {
+    // Последовательный счетчик вместо UUID: уникален и не требует SecureRandom
+    private static final AtomicLong ID_SEQUENCE = new AtomicLong(ThreadLocalRandom.current().nextInt() & 0xFFFFFFFL);
+
     private final String id;
     private final String clientIp;
     private final int clientPort;
-    private String targetHost;
-    private int targetPort;
-    private String connectionType;
-    private String status;
+    private final long startTime;
+    private final AtomicLong bytesFromClient = new AtomicLong();
+    private final AtomicLong bytesToClient = new AtomicLong();
+    private volatile String targetHost;
+    private volatile int targetPort;
+    private volatile String connectionType;
+    private volatile String status;
 
     public ConnectionInfo(Socket clientSocket) {
-        this.id = UUID.randomUUID().toString().substring(0, 8);
+        this.id = String.format("%08x", ID_SEQUENCE.incrementAndGet() & 0xFFFFFFFFL);
         this.clientIp = clientSocket.getInetAddress().getHostAddress();
         this.clientPort = clientSocket.getPort();
+        this.startTime = System.currentTimeMillis();
         this.status = "INITIALIZED";
     }
 
@@ -48,6 +56,35 @@ public class ConnectionInfo {
         return status;
     }
 
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getAgeMillis() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    public long getBytesFromClient() {
+        return bytesFromClient.get();
+    }
+
+    public long getBytesToClient() {
+        return bytesToClient.get();
+    }
+
+    public long getTotalBytes() {
+        return bytesFromClient.get() + bytesToClient.get();
+    }
+
+    // Счетчики трафика, пополняются потоками пересылки
+    public void addBytesFromClient(long bytes) {
+        bytesFromClient.addAndGet(bytes);
+    }
+
+    public void addBytesToClient(long bytes) {
+        bytesToClient.addAndGet(bytes);
+    }
+
     // Сеттеры
     public void setTargetHost(String targetHost) {
         this.targetHost = targetHost;
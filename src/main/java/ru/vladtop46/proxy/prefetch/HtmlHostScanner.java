@@ -0,0 +1,349 @@
+package ru.vladtop46.proxy.prefetch;
+
+/**
+ * Потоковый поиск внешних хостов в HTML за один проход.
+ * <p>
+ * Тело подается частями по мере пересылки клиенту и не накапливается:
+ * между частями сохраняется только состояние автомата и начало текущего
+ * значения атрибута. Смотрятся атрибуты href, src и rel; содержимое
+ * комментариев, script и style пропускается. Найденный абсолютный адрес
+ * сообщается слушателю вместе с тем, стоит ли заранее открывать соединение:
+ * для подсказок preconnect и подключаемых ресурсов (скрипты, стили,
+ * картинки) - да, для ссылок и dns-prefetch - только разрешение имени.
+ */
+public final class HtmlHostScanner {
+    private static final int MAX_NAME = 16;
+    private static final int MAX_VALUE = 300;
+
+    private static final int TEXT = 0;
+    private static final int TAG_NAME = 1;
+    private static final int IN_TAG = 2;
+    private static final int ATTR_NAME = 3;
+    private static final int AFTER_NAME = 4;
+    private static final int BEFORE_VALUE = 5;
+    private static final int VALUE_QUOTED = 6;
+    private static final int VALUE_UNQUOTED = 7;
+    private static final int COMMENT = 8;
+    private static final int RAW_TEXT = 9;
+
+    /**
+     * Получатель найденных хостов
+     */
+    public interface HostListener {
+        /**
+         * @param connect ресурс будет загружен страницей, соединение стоит открыть заранее
+         * @return false, чтобы остановить разбор (исчерпан бюджет страницы)
+         */
+        boolean onHost(String host, int port, boolean connect);
+    }
+
+    private final HostListener listener;
+    private final int defaultPort;
+    private final long maxChars;
+    private long scanned;
+    private boolean done;
+
+    private int state = TEXT;
+    private final StringBuilder tagName = new StringBuilder();
+    private final StringBuilder attrName = new StringBuilder();
+    private final StringBuilder value = new StringBuilder();
+    private char quote;
+    private int commentDashes;
+    // Закрывающий тег, которым кончается содержимое script или style
+    private String rawEnd;
+    private int rawMatched;
+
+    private String href;
+    private String src;
+    private String rel;
+
+    /**
+     * @param defaultPort порт для адресов без схемы ("//host/...")
+     * @param maxChars сколько символов тела просматривать; подсказки обычно в начале страницы
+     */
+    public HtmlHostScanner(HostListener listener, int defaultPort, long maxChars) {
+        this.listener = listener;
+        this.defaultPort = defaultPort;
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Разбор закончен: просмотрен лимит тела или слушатель остановил разбор
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    public void feed(char[] data, int offset, int length) {
+        if (done) {
+            return;
+        }
+        int end = offset + (int) Math.min(length, maxChars - scanned);
+        for (int i = offset; i < end && !done; i++) {
+            step(data[i]);
+        }
+        scanned += end - offset;
+        if (scanned >= maxChars) {
+            done = true;
+        }
+    }
+
+    /**
+     * То же для байтов тела: разметка и адреса, которые ищет сканер, - ASCII,
+     * поэтому байты разбираются как символы Latin-1 без декодирования
+     */
+    public void feed(byte[] data, int offset, int length) {
+        if (done) {
+            return;
+        }
+        int end = offset + (int) Math.min(length, maxChars - scanned);
+        for (int i = offset; i < end && !done; i++) {
+            step((char) (data[i] & 0xFF));
+        }
+        scanned += end - offset;
+        if (scanned >= maxChars) {
+            done = true;
+        }
+    }
+
+    private void step(char c) {
+        switch (state) {
+            case TEXT:
+                if (c == '<') {
+                    startTag();
+                }
+                break;
+            case TAG_NAME:
+                if (isSpace(c)) {
+                    state = IN_TAG;
+                } else if (c == '>') {
+                    endTag();
+                } else {
+                    append(tagName, c, MAX_NAME);
+                    if (tagName.length() == 3 && tagName.toString().equals("!--")) {
+                        state = COMMENT;
+                        commentDashes = 0;
+                    }
+                }
+                break;
+            case IN_TAG:
+                if (c == '>') {
+                    endTag();
+                } else if (!isSpace(c) && c != '/') {
+                    startAttribute(c);
+                }
+                break;
+            case ATTR_NAME:
+                if (c == '=') {
+                    startValue();
+                } else if (c == '>') {
+                    endTag();
+                } else if (isSpace(c)) {
+                    state = AFTER_NAME;
+                } else {
+                    append(attrName, c, MAX_NAME);
+                }
+                break;
+            case AFTER_NAME:
+                if (c == '=') {
+                    startValue();
+                } else if (c == '>') {
+                    endTag();
+                } else if (!isSpace(c) && c != '/') {
+                    startAttribute(c);
+                }
+                break;
+            case BEFORE_VALUE:
+                if (c == '"' || c == '\'') {
+                    quote = c;
+                    state = VALUE_QUOTED;
+                } else if (c == '>') {
+                    endTag();
+                } else if (!isSpace(c)) {
+                    value.append(c);
+                    state = VALUE_UNQUOTED;
+                }
+                break;
+            case VALUE_QUOTED:
+                if (c == quote) {
+                    endValue();
+                    state = IN_TAG;
+                } else {
+                    append(value, c, MAX_VALUE);
+                }
+                break;
+            case VALUE_UNQUOTED:
+                if (isSpace(c)) {
+                    endValue();
+                    state = IN_TAG;
+                } else if (c == '>') {
+                    endValue();
+                    endTag();
+                } else {
+                    append(value, c, MAX_VALUE);
+                }
+                break;
+            case COMMENT:
+                if (c == '>' && commentDashes >= 2) {
+                    state = TEXT;
+                }
+                commentDashes = c == '-' ? commentDashes + 1 : 0;
+                break;
+            case RAW_TEXT:
+                if (Character.toLowerCase(c) == rawEnd.charAt(rawMatched)) {
+                    rawMatched++;
+                    if (rawMatched == rawEnd.length()) {
+                        // Имя закрывающего тега дочитано, дальше - до '>'
+                        tagName.setLength(0);
+                        tagName.append('/');
+                        state = TAG_NAME;
+                    }
+                } else {
+                    rawMatched = c == '<' ? 1 : 0;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void startTag() {
+        state = TAG_NAME;
+        tagName.setLength(0);
+        href = null;
+        src = null;
+        rel = null;
+    }
+
+    private void startAttribute(char first) {
+        attrName.setLength(0);
+        attrName.append(Character.toLowerCase(first));
+        state = ATTR_NAME;
+    }
+
+    private void startValue() {
+        value.setLength(0);
+        state = BEFORE_VALUE;
+    }
+
+    private void endValue() {
+        String name = attrName.toString();
+        switch (name) {
+            case "href":
+                href = value.toString();
+                break;
+            case "src":
+                src = value.toString();
+                break;
+            case "rel":
+                rel = value.toString().toLowerCase();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void endTag() {
+        state = TEXT;
+        String tag = tagName.toString();
+        if (tag.equals("script") || tag.equals("style")) {
+            rawEnd = "</" + tag;
+            rawMatched = 0;
+            state = RAW_TEXT;
+        }
+        if (href == null && src == null) {
+            return;
+        }
+        if (rel != null && (rel.contains("preconnect") || rel.contains("dns-prefetch"))) {
+            report(href, rel.contains("preconnect"));
+        } else if (tag.equals("link")) {
+            report(href, rel != null && (rel.contains("stylesheet") || rel.contains("preload")
+                    || rel.contains("icon")));
+        } else {
+            report(src, true);
+            report(href, false);
+        }
+        href = null;
+        src = null;
+        rel = null;
+    }
+
+    /**
+     * Выделяет хост и порт из абсолютного адреса; относительные адреса пропускаются
+     */
+    private void report(String url, boolean connect) {
+        if (url == null || done) {
+            return;
+        }
+        url = url.trim();
+        int port;
+        int start;
+        if (url.regionMatches(true, 0, "http://", 0, 7)) {
+            port = 80;
+            start = 7;
+        } else if (url.regionMatches(true, 0, "https://", 0, 8)) {
+            port = 443;
+            start = 8;
+        } else if (url.startsWith("//")) {
+            port = defaultPort;
+            start = 2;
+        } else {
+            return;
+        }
+        int end = start;
+        while (end < url.length() && "/?#\\".indexOf(url.charAt(end)) < 0) {
+            end++;
+        }
+        String authority = url.substring(start, end);
+        int at = authority.lastIndexOf('@');
+        if (at >= 0) {
+            authority = authority.substring(at + 1);
+        }
+        String host = authority;
+        int colon = authority.lastIndexOf(':');
+        if (colon > 0 && authority.indexOf(']') < colon) {
+            host = authority.substring(0, colon);
+            try {
+                port = Integer.parseInt(authority.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (port <= 0 || port > 65535) {
+                return;
+            }
+        }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        host = host.toLowerCase();
+        if (!isHostName(host)) {
+            return;
+        }
+        if (!listener.onHost(host, port, connect)) {
+            done = true;
+        }
+    }
+
+    private static boolean isHostName(String host) {
+        if (host.isEmpty() || host.length() > 253) {
+            return false;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (!(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9') && c != '.' && c != '-' && c != ':') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void append(StringBuilder sb, char c, int max) {
+        if (sb.length() < max) {
+            sb.append(Character.toLowerCase(c));
+        }
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+}
@@ -0,0 +1,325 @@
+package ru.vladtop46.proxy.prefetch;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.security.AccessControl;
+import ru.vladtop46.proxy.upstream.ParentProxyPool;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Упреждающее разрешение имен и открытие соединений к хостам, на которые
+ * ссылается проходящая через прокси HTML-страница.
+ * <p>
+ * Пока страница еще передается клиенту, имена ее внешних хостов разрешаются
+ * в фоне (результат остается в кеше имен JVM), а к хостам подключаемых
+ * ресурсов открываются соединения. Когда браузер запрашивает ресурс,
+ * {@link #claim} отдает уже открытое соединение вместо нового. Работа
+ * ограничена: хостов на страницу, размер пула и очереди, число простаивающих
+ * соединений и время их жизни. Хосты, запрещенные политикой или
+ * отправляемые через родительский прокси, пропускаются.
+ */
+public class Prefetcher {
+    private static final int MAX_RECENT_HOSTS = 10000;
+
+    private final ParentProxyPool upstreamPool;
+    private final ThreadPoolExecutor pool;
+    private final ScheduledExecutorService sweeper;
+    // Хосты, имена которых недавно разрешены заранее
+    private final Map<String, WarmHost> recent = new ConcurrentHashMap<>();
+    // Заранее открытые соединения по host:port, по одному на адрес
+    private final Map<String, IdleConnection> idle = new ConcurrentHashMap<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong hostsFound = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong resolved = new AtomicLong();
+    private final AtomicLong resolveFailed = new AtomicLong();
+    private final AtomicLong dnsHits = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong openFailed = new AtomicLong();
+    private final AtomicLong connectionHits = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong savedNanos = new AtomicLong();
+    private volatile ProxyConfig.PrefetchSettings settings;
+
+    public Prefetcher(ProxyConfig.PrefetchSettings settings, ParentProxyPool upstreamPool) {
+        this.settings = settings;
+        this.upstreamPool = upstreamPool;
+        int threads = Math.max(1, settings.getThreads());
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, settings.getQueueSize())), runnable -> {
+                    Thread thread = new Thread(runnable, "prefetch-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "prefetch-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void update(ProxyConfig.PrefetchSettings settings) {
+        this.settings = settings;
+        if (!settings.isEnabled()) {
+            sweep();
+        }
+    }
+
+    public boolean isEnabled() {
+        return settings.isEnabled();
+    }
+
+    /**
+     * Разбор одной страницы; хосты уходят на прогрев по мере нахождения
+     * @param pageHost хост самой страницы, к нему браузер уже подключен
+     * @param defaultPort порт для адресов без схемы
+     * @param accessControl политика соединения, запросившего страницу
+     * @param connectTimeoutMs таймаут подключения к источнику
+     */
+    public HtmlHostScanner openScanner(String pageHost, int defaultPort, AccessControl accessControl,
+                                       int connectTimeoutMs) {
+        ProxyConfig.PrefetchSettings current = settings;
+        pages.incrementAndGet();
+        Set<String> seen = new HashSet<>();
+        return new HtmlHostScanner((host, port, connect) -> {
+            if (seen.size() >= current.getMaxHostsPerPage()) {
+                return false;
+            }
+            if (host.equals(pageHost) || !seen.add(host + ":" + port)) {
+                return true;
+            }
+            hostsFound.incrementAndGet();
+            if (!accessControl.isDomainAllowed(host)
+                    || (upstreamPool != null && upstreamPool.isEnabled() && !upstreamPool.routesDirect(host))) {
+                skipped.incrementAndGet();
+                return true;
+            }
+            submit(host, port, connect && current.isPreconnect(), connectTimeoutMs);
+            return true;
+        }, defaultPort, current.getMaxScanBytes());
+    }
+
+    private void submit(String host, int port, boolean connect, int connectTimeoutMs) {
+        boolean needResolve = !recent.containsKey(host);
+        boolean needConnect = connect && !idle.containsKey(key(host, port));
+        if (!needResolve && !needConnect) {
+            return;
+        }
+        try {
+            pool.execute(() -> warm(host, port, needConnect, connectTimeoutMs));
+        } catch (RejectedExecutionException e) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void warm(String host, int port, boolean connect, int connectTimeoutMs) {
+        ProxyConfig.PrefetchSettings current = settings;
+        WarmHost warmHost = recent.get(host);
+        if (warmHost == null && recent.size() < MAX_RECENT_HOSTS) {
+            WarmHost created = new WarmHost(System.nanoTime()
+                    + TimeUnit.SECONDS.toNanos(current.getRecentSeconds()));
+            warmHost = recent.putIfAbsent(host, created);
+            if (warmHost == null) {
+                warmHost = created;
+                long start = System.nanoTime();
+                try {
+                    InetAddress.getByName(host);
+                    created.resolveNanos = System.nanoTime() - start;
+                    created.resolved = true;
+                    resolved.incrementAndGet();
+                } catch (IOException e) {
+                    resolveFailed.incrementAndGet();
+                    return;
+                }
+            }
+        }
+        if (!connect || (warmHost != null && !warmHost.resolved)) {
+            return;
+        }
+
+        String key = key(host, port);
+        if (idle.containsKey(key) || !reserveIdleSlot(current.getMaxIdleConnections())) {
+            return;
+        }
+        long start = System.nanoTime();
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+        } catch (IOException e) {
+            idleCount.decrementAndGet();
+            openFailed.incrementAndGet();
+            closeQuietly(socket);
+            return;
+        }
+        opened.incrementAndGet();
+        IdleConnection connection = new IdleConnection(socket, System.nanoTime() - start,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(current.getIdleTimeoutMs()));
+        if (idle.putIfAbsent(key, connection) != null) {
+            idleCount.decrementAndGet();
+            closeQuietly(socket);
+        }
+    }
+
+    private boolean reserveIdleSlot(int max) {
+        while (true) {
+            int count = idleCount.get();
+            if (count >= max) {
+                return false;
+            }
+            if (idleCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Отдает заранее открытое к адресу соединение, если оно еще живо, и
+     * учитывает попадание прогретого имени
+     * @return соединение или null - тогда нужно подключаться обычным путем
+     */
+    public Socket claim(String host, int port) {
+        WarmHost warmHost = recent.get(host);
+        if (warmHost != null && warmHost.resolved && warmHost.used.compareAndSet(false, true)) {
+            dnsHits.incrementAndGet();
+            savedNanos.addAndGet(warmHost.resolveNanos);
+        }
+        IdleConnection connection = idle.remove(key(host, port));
+        if (connection == null) {
+            return null;
+        }
+        idleCount.decrementAndGet();
+        if (connection.expiresAt - System.nanoTime() <= 0 || !isAlive(connection.socket)) {
+            expired.incrementAndGet();
+            closeQuietly(connection.socket);
+            return null;
+        }
+        connectionHits.incrementAndGet();
+        savedNanos.addAndGet(connection.connectNanos);
+        return connection.socket;
+    }
+
+    /**
+     * Сервер мог закрыть простаивающее соединение: короткое чтение
+     * отличает живое соединение (таймаут) от закрытого (конец потока)
+     */
+    private static boolean isAlive(Socket socket) {
+        try {
+            socket.setSoTimeout(1);
+            socket.getInputStream().read();
+            // Сервер не должен ничего присылать до запроса
+            return false;
+        } catch (SocketTimeoutException e) {
+            try {
+                socket.setSoTimeout(0);
+                return true;
+            } catch (IOException ex) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Закрывает просроченные соединения и забывает старые хосты
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        boolean disabled = !settings.isEnabled();
+        for (Iterator<Map.Entry<String, IdleConnection>> it = idle.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, IdleConnection> entry = it.next();
+            if ((disabled || entry.getValue().expiresAt - now <= 0) && idle.remove(entry.getKey(), entry.getValue())) {
+                idleCount.decrementAndGet();
+                expired.incrementAndGet();
+                closeQuietly(entry.getValue().socket);
+            }
+        }
+        recent.values().removeIf(warmHost -> warmHost.expiresAt - now <= 0);
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Закрываем молча
+        }
+    }
+
+    public void close() {
+        sweeper.shutdownNow();
+        pool.shutdownNow();
+        for (IdleConnection connection : idle.values()) {
+            closeQuietly(connection.socket);
+        }
+        idle.clear();
+        idleCount.set(0);
+    }
+
+    public String getStatus() {
+        if (!settings.isEnabled() && pages.get() == 0) {
+            return "Prefetch: disabled";
+        }
+        long resolvedCount = resolved.get();
+        long openedCount = opened.get();
+        return String.format("Prefetch: pages=%d, hosts=%d, skipped=%d, dropped=%d, dns=%d (failed=%d, hits=%d, %.1f%%), "
+                        + "connections=%d (failed=%d, hits=%d, %.1f%%, expired=%d, idle=%d), saved=%d ms, queued=%d%s",
+                pages.get(), hostsFound.get(), skipped.get(), dropped.get(),
+                resolvedCount, resolveFailed.get(), dnsHits.get(),
+                resolvedCount > 0 ? dnsHits.get() * 100.0 / resolvedCount : 0.0,
+                openedCount, openFailed.get(), connectionHits.get(),
+                openedCount > 0 ? connectionHits.get() * 100.0 / openedCount : 0.0,
+                expired.get(), idleCount.get(), TimeUnit.NANOSECONDS.toMillis(savedNanos.get()),
+                pool.getQueue().size(), settings.isEnabled() ? "" : ", disabled");
+    }
+
+    private static final class WarmHost {
+        final long expiresAt;
+        final AtomicBoolean used = new AtomicBoolean();
+        volatile boolean resolved;
+        volatile long resolveNanos;
+
+        WarmHost(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class IdleConnection {
+        final Socket socket;
+        final long connectNanos;
+        final long expiresAt;
+
+        IdleConnection(Socket socket, long connectNanos, long expiresAt) {
+            this.socket = socket;
+            this.connectNanos = connectNanos;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package ru.vladtop46.proxy.registry;
+
+import ru.vladtop46.proxy.model.ConnectionInfo;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Реестр активных соединений. Регистрация и удаление - одна операция
+ * над ConcurrentHashMap; выборки строятся по снимку при запросе.
+ */
+public class ConnectionRegistry {
+    private final Map<String, LiveConnection> connections = new ConcurrentHashMap<>();
+    private final AtomicLong totalRegistered = new AtomicLong();
+    private final AtomicLong terminatedCount = new AtomicLong();
+
+    /**
+     * Регистрирует новое соединение
+     * @param connInfo информация о соединении
+     * @param clientSocket клиентский сокет
+     * @return запись реестра, через которую привязывается сокет апстрима
+     */
+    public LiveConnection register(ConnectionInfo connInfo, Socket clientSocket) {
+        LiveConnection connection = new LiveConnection(connInfo, clientSocket);
+        connections.put(connInfo.getId(), connection);
+        totalRegistered.incrementAndGet();
+        return connection;
+    }
+
+    public void deregister(ConnectionInfo connInfo) {
+        connections.remove(connInfo.getId());
+    }
+
+    /**
+     * Принудительно закрывает соединение с обеих сторон
+     * @param id идентификатор соединения
+     * @return true если соединение было найдено
+     */
+    public boolean terminate(String id) {
+        LiveConnection connection = connections.get(id);
+        if (connection == null) {
+            return false;
+        }
+        terminatedCount.incrementAndGet();
+        connection.terminate();
+        return true;
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    public long getTotalRegistered() {
+        return totalRegistered.get();
+    }
+
+    public long getTerminatedCount() {
+        return terminatedCount.get();
+    }
+
+    /**
+     * Возвращает соединения, отсортированные по выбранному критерию
+     * @param sortBy "bytes" или "age"
+     * @param clientIp фильтр по IP клиента или null
+     * @param limit максимальное число записей
+     */
+    public List<ConnectionInfo> top(String sortBy, String clientIp, int limit) {
+        List<ConnectionInfo> result = new ArrayList<>();
+        for (LiveConnection connection : connections.values()) {
+            if (clientIp == null || clientIp.equals(connection.connInfo.getClientIp())) {
+                result.add(connection.connInfo);
+            }
+        }
+
+        Comparator<ConnectionInfo> comparator = "age".equals(sortBy)
+                ? Comparator.comparingLong(ConnectionInfo::getStartTime)
+                : Comparator.comparingLong(ConnectionInfo::getTotalBytes).reversed();
+        result.sort(comparator);
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    /**
+     * Группирует активные соединения по целевому хосту
+     * @param clientIp фильтр по IP клиента или null
+     * @param limit максимальное число хостов
+     */
+    public List<HostSummary> topHosts(String clientIp, int limit) {
+        Map<String, HostSummary> byHost = new HashMap<>();
+        for (LiveConnection connection : connections.values()) {
+            ConnectionInfo info = connection.connInfo;
+            if (clientIp != null && !clientIp.equals(info.getClientIp())) {
+                continue;
+            }
+            String host = info.getTargetHost() != null ? info.getTargetHost() : "-";
+            HostSummary summary = byHost.computeIfAbsent(host, HostSummary::new);
+            summary.connections++;
+            summary.bytes += info.getTotalBytes();
+        }
+
+        List<HostSummary> result = new ArrayList<>(byHost.values());
+        result.sort(Comparator.comparingLong(HostSummary::getBytes).reversed());
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    /**
+     * Запись реестра: соединение и его сокеты
+     */
+    public static class LiveConnection {
+        private final ConnectionInfo connInfo;
+        private final Socket clientSocket;
+        private volatile Socket upstreamSocket;
+        private volatile boolean terminated;
+
+        private LiveConnection(ConnectionInfo connInfo, Socket clientSocket) {
+            this.connInfo = connInfo;
+            this.clientSocket = clientSocket;
+        }
+
+        public void setUpstream(Socket upstreamSocket) {
+            this.upstreamSocket = upstreamSocket;
+            if (terminated) {
+                closeQuietly(upstreamSocket);
+            }
+        }
+
+        private void terminate() {
+            terminated = true;
+            connInfo.setStatus("TERMINATED");
+            closeQuietly(clientSocket);
+            closeQuietly(upstreamSocket);
+        }
+
+        private static void closeQuietly(Socket socket) {
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Сокет уже закрыт
+            }
+        }
+    }
+
+    /**
+     * Сводка по целевому хосту
+     */
+    public static class HostSummary {
+        private final String host;
+        private int connections;
+        private long bytes;
+
+        private HostSummary(String host) {
+            this.host = host;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getConnections() {
+            return connections;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
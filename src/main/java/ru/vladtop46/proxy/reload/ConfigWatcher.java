@@ -0,0 +1,130 @@
+package ru.vladtop46.proxy.reload;
+
+import ru.vladtop46.proxy.logging.ProxyLogger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Следит за конфигурацией и файлами списков через {@link WatchService}.
+ * <p>
+ * Редакторы и компилятор списков пишут файл в несколько приемов, поэтому
+ * перезагрузка запускается только после паузы без событий. Обработчик
+ * вызывается в потоке наблюдателя и не задерживает прием соединений.
+ */
+public class ConfigWatcher {
+    private final WatchService watchService;
+    private final Runnable onChange;
+    private final long debounceMillis;
+    private final ProxyLogger logger;
+    // Каталог -> имена отслеживаемых в нем файлов
+    private final Map<Path, Set<Path>> watchedFiles = new HashMap<>();
+    private final Map<Path, WatchKey> keys = new HashMap<>();
+    private final Thread thread;
+
+    public ConfigWatcher(Runnable onChange, long debounceMillis, ProxyLogger logger) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.onChange = onChange;
+        this.debounceMillis = Math.max(0, debounceMillis);
+        this.logger = logger;
+        this.thread = new Thread(this::run, "config-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // Сервис уже закрыт
+        }
+    }
+
+    /**
+     * Заменяет набор отслеживаемых файлов; вызывается после каждой перезагрузки,
+     * так как список файлов блокировки мог измениться
+     * @param files файлы, изменение которых должно вызывать перезагрузку
+     */
+    public synchronized void watch(Collection<Path> files) {
+        Map<Path, Set<Path>> updated = new HashMap<>();
+        for (Path file : files) {
+            Path absolute = file.toAbsolutePath().normalize();
+            Path directory = absolute.getParent();
+            if (directory != null) {
+                updated.computeIfAbsent(directory, d -> new HashSet<>()).add(absolute.getFileName());
+            }
+        }
+
+        for (Map.Entry<Path, WatchKey> entry : keys.entrySet()) {
+            if (!updated.containsKey(entry.getKey())) {
+                entry.getValue().cancel();
+            }
+        }
+        keys.keySet().retainAll(updated.keySet());
+
+        for (Path directory : updated.keySet()) {
+            if (keys.containsKey(directory)) {
+                continue;
+            }
+            try {
+                keys.put(directory, directory.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+            } catch (IOException e) {
+                logger.log("Cannot watch directory " + directory + ": " + e.getMessage());
+            }
+        }
+        watchedFiles.clear();
+        watchedFiles.putAll(updated);
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                if (!isRelevant(key)) {
+                    continue;
+                }
+                // Дожидаемся, пока запись файлов закончится
+                while ((key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+                    isRelevant(key);
+                }
+                try {
+                    onChange.run();
+                } catch (Exception e) {
+                    logger.log("Config watcher error: " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Наблюдатель остановлен
+        }
+    }
+
+    private synchronized boolean isRelevant(WatchKey key) {
+        boolean relevant = false;
+        Set<Path> names = watchedFiles.get((Path) key.watchable());
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                relevant = true;
+            } else if (names != null && names.contains((Path) event.context())) {
+                relevant = true;
+            }
+        }
+        key.reset();
+        return relevant;
+    }
+}
@@ -0,0 +1,119 @@
+package ru.vladtop46.proxy.reload;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.filter.FilterChain;
+import ru.vladtop46.proxy.security.AccessControl;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Неизменяемый снимок политики: конфигурация и уже построенные по ней
+ * структуры проверки доступа и цепочка фильтров.
+ * <p>
+ * Снимок целиком собирается в потоке перезагрузки и публикуется одной
+ * атомарной заменой ссылки, поэтому цикл приема соединений и обработчики
+ * всегда видят согласованную пару конфигурации и {@link AccessControl}.
+ */
+public final class PolicySnapshot {
+    private final ProxyConfig config;
+    private final AccessControl accessControl;
+    private final FilterChain filterChain;
+    private final long generation;
+    private final long buildMillis;
+    private final long createdAt;
+    private final List<Path> sourceFiles;
+
+    private PolicySnapshot(ProxyConfig config, AccessControl accessControl, FilterChain filterChain,
+                           long generation, long buildMillis, List<Path> sourceFiles) {
+        this.config = config;
+        this.accessControl = accessControl;
+        this.filterChain = filterChain;
+        this.generation = generation;
+        this.buildMillis = buildMillis;
+        this.createdAt = System.currentTimeMillis();
+        this.sourceFiles = sourceFiles;
+    }
+
+    /**
+     * Читает конфигурацию и компилирует все списки доступа
+     * @param configPath путь к config.yml
+     * @param generation номер поколения политики
+     * @throws RuntimeException если конфигурацию не удалось прочитать
+     */
+    public static PolicySnapshot load(String configPath, long generation) {
+        long start = System.nanoTime();
+        ProxyConfig config = ProxyConfig.loadConfig(configPath);
+        return build(config, generation, Paths.get(configPath), start);
+    }
+
+    /**
+     * Строит снимок по уже загруженной конфигурации
+     * @param config конфигурация прокси
+     */
+    public static PolicySnapshot of(ProxyConfig config) {
+        return build(config, 0, null, System.nanoTime());
+    }
+
+    private static PolicySnapshot build(ProxyConfig config, long generation, Path configFile, long start) {
+        AccessControl accessControl = new AccessControl(config);
+        // Ошибка в цепочке фильтров отменяет перезагрузку, как и ошибка в конфигурации
+        FilterChain filterChain = FilterChain.build(config.getFilters().getChain());
+        long buildMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // Файлы, изменение которых должно приводить к перезагрузке
+        List<Path> files = new ArrayList<>();
+        if (configFile != null) {
+            files.add(configFile);
+        }
+        addPaths(files, config.getBlocklists().getFiles());
+        addPaths(files, config.getUrlFilter().getRuleFiles());
+        return new PolicySnapshot(config, accessControl, filterChain, generation, buildMillis,
+                Collections.unmodifiableList(files));
+    }
+
+    private static void addPaths(List<Path> target, List<String> files) {
+        if (files != null) {
+            for (String file : files) {
+                target.add(Paths.get(file));
+            }
+        }
+    }
+
+    public ProxyConfig getConfig() {
+        return config;
+    }
+
+    public AccessControl getAccessControl() {
+        return accessControl;
+    }
+
+    public FilterChain getFilterChain() {
+        return filterChain;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Время чтения конфигурации и компиляции списков, мс
+     */
+    public long getBuildMillis() {
+        return buildMillis;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Конфигурация и файлы списков, из которых собран снимок
+     */
+    public List<Path> getSourceFiles() {
+        return sourceFiles;
+    }
+}
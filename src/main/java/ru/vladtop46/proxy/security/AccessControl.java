@@ -1,17 +1,91 @@
 package ru.vladtop46.proxy.security;
 
 import ru.vladtop46.proxy.config.ProxyConfig;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class AccessControl {
     private final ProxyConfig config;
     private final List<IpRange> ipRanges = new ArrayList<>();
+    private final Set<String> blockedDomains = new HashSet<>();
+    private final List<CompiledBlocklist> compiledBlocklists = new ArrayList<>();
+    private final boolean includeSubdomains;
+    private final UrlFilter urlFilter;
+    // Отпечаток правил URL и признак того, что автомат прочитан из кеша теплого старта
+    private long urlFilterFingerprint;
+    private boolean urlFilterCached;
+    private String urlFilterCacheError;
+    private final String errorPage;
 
     public AccessControl(ProxyConfig config) {
         this.config = config;
+        this.includeSubdomains = config.getBlocklists().isIncludeSubdomains();
         initIpRanges();
+        initBlocklists();
+        this.urlFilter = initUrlFilter();
+        this.errorPage = buildErrorPage();
+    }
+
+    private UrlFilter initUrlFilter() {
+        ProxyConfig.UrlFilterSettings settings = config.getUrlFilter();
+        List<String> lines = new ArrayList<>();
+        if (settings.getRules() != null) {
+            lines.addAll(settings.getRules());
+        }
+        if (settings.getRuleFiles() != null) {
+            for (String file : settings.getRuleFiles()) {
+                try {
+                    lines.addAll(Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8));
+                } catch (Exception e) {
+                    System.err.println("Failed to read URL rules: " + file + " - " + e.getMessage());
+                }
+            }
+        }
+        if (lines.isEmpty()) {
+            return UrlFilter.empty();
+        }
+        urlFilterFingerprint = UrlFilterCache.fingerprint(lines);
+        ProxyConfig.WarmStartSettings warmStart = config.getWarmStart();
+        if (warmStart.isEnabled()) {
+            Path file = UrlFilterCache.file(warmStart.getDirectory());
+            try {
+                UrlFilter cached = UrlFilterCache.load(file, urlFilterFingerprint);
+                if (cached != null) {
+                    urlFilterCached = true;
+                    return cached;
+                }
+            } catch (IOException e) {
+                urlFilterCacheError = "URL filter cache ignored: " + file + ": " + e.getMessage();
+            }
+        }
+        return UrlFilter.compile(lines);
+    }
+
+    private void initBlocklists() {
+        if (config.getBlockedDomains() != null) {
+            for (String domain : config.getBlockedDomains()) {
+                blockedDomains.add(domain.toLowerCase());
+            }
+        }
+
+        List<String> files = config.getBlocklists().getFiles();
+        if (files != null) {
+            for (String file : files) {
+                try {
+                    compiledBlocklists.add(CompiledBlocklist.open(Paths.get(file)));
+                } catch (Exception e) {
+                    System.err.println("Failed to open compiled blocklist: " + file + " - " + e.getMessage());
+                }
+            }
+        }
     }
 
     private void initIpRanges() {
@@ -33,7 +107,13 @@ public class AccessControl {
             return true;
         }
 
-        String ip = address.getHostAddress();
+        // Диапазоны заданы для IPv4, сравниваем числа без разбора строки адреса
+        byte[] bytes = address.getAddress();
+        if (bytes.length != 4) {
+            return false;
+        }
+        long ip = ((bytes[0] & 0xFFL) << 24) | ((bytes[1] & 0xFFL) << 16)
+                | ((bytes[2] & 0xFFL) << 8) | (bytes[3] & 0xFFL);
 
         // Проверяем каждый разрешенный IP или диапазон
         for (IpRange range : ipRanges) {
@@ -46,10 +126,64 @@ public class AccessControl {
     }
 
     public boolean isDomainAllowed(String domain) {
-        return !config.getBlockedDomains().contains(domain.toLowerCase());
+        if (blockedDomains.contains(domain.toLowerCase())) {
+            return false;
+        }
+        for (CompiledBlocklist blocklist : compiledBlocklists) {
+            if (blocklist.contains(domain, includeSubdomains)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Проверяет полный URL запроса по правилам в стиле Adblock
+     * @param url URL вида scheme://host[:port]/path
+     */
+    public boolean isUrlAllowed(String url) {
+        return urlFilter.isAllowed(url);
+    }
+
+    public int getUrlRuleCount() {
+        return urlFilter.size();
+    }
+
+    public UrlFilter getUrlFilter() {
+        return urlFilter;
+    }
+
+    public long getUrlFilterFingerprint() {
+        return urlFilterFingerprint;
+    }
+
+    /**
+     * Фильтр URL прочитан из кеша теплого старта, а не скомпилирован
+     */
+    public boolean isUrlFilterCached() {
+        return urlFilterCached;
+    }
+
+    /**
+     * Почему кеш фильтра URL не удалось прочитать; null, если ошибки не было
+     */
+    public String getUrlFilterCacheError() {
+        return urlFilterCacheError;
+    }
+
+    public int getCompiledBlocklistEntries() {
+        int total = 0;
+        for (CompiledBlocklist blocklist : compiledBlocklists) {
+            total += blocklist.size();
+        }
+        return total;
     }
 
     public String getErrorPage() {
+        return errorPage;
+    }
+
+    private String buildErrorPage() {
         return String.format("""
                 HTTP/1.1 403 Forbidden
                 Content-Type: text/html; charset=UTF-8
@@ -107,12 +241,10 @@ public class AccessControl {
 
         /**
          * Проверяет, содержится ли указанный IP в этом диапазоне
-         * @param ipAddress IP адрес для проверки
+         * @param ip IPv4 адрес в числовом виде
          * @return true если IP содержится в диапазоне, иначе false
          */
-        public boolean contains(String ipAddress) {
-            long ip = ipToLong(ipAddress);
-
+        public boolean contains(long ip) {
             if (isSingleIp) {
                 return ip == networkAddress;
             } else {
@@ -0,0 +1,201 @@
+package ru.vladtop46.proxy.security;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Скомпилированный список блокировки, отображенный в память.
+ * <p>
+ * Формат файла (big-endian):
+ * <pre>
+ *   int  magic "WPBL"
+ *   int  версия
+ *   long число ключей
+ *   long размер фильтра Блума в битах (степень двойки)
+ *   int  число хеш-функций фильтра
+ *   int  резерв
+ *   long[] биты фильтра Блума
+ *   long[] отсортированные 64-битные хеши доменов
+ * </pre>
+ * Проверка домена не выделяет память: хеш считается прямо по символам строки,
+ * затем фильтр Блума отсекает большинство промахов до бинарного поиска.
+ */
+public class CompiledBlocklist {
+    public static final int MAGIC = 0x5750424C;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+
+    // Открытые файлы переиспользуются между перезагрузками конфига без копирования
+    private static final Map<Path, CompiledBlocklist> OPEN_LISTS = new ConcurrentHashMap<>();
+
+    private final Path path;
+    private final long lastModified;
+    private final long fileSize;
+    private final LongBuffer bloom;
+    private final long bloomMask;
+    private final int bloomHashes;
+    private final LongBuffer keys;
+    private final int keyCount;
+
+    private CompiledBlocklist(Path path) throws IOException {
+        this.path = path;
+        this.lastModified = Files.getLastModifiedTime(path).toMillis();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.fileSize = channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+
+            if (fileSize < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a compiled blocklist: " + path);
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException("Unsupported blocklist version " + buffer.getInt(4) + ": " + path);
+            }
+            long entries = buffer.getLong(8);
+            long bloomBits = buffer.getLong(16);
+            this.bloomHashes = buffer.getInt(24);
+            long bloomWords = bloomBits / 64;
+            if (Long.bitCount(bloomBits) != 1 || bloomBits < 64
+                    || HEADER_SIZE + (bloomWords + entries) * 8 != fileSize) {
+                throw new IOException("Corrupted blocklist: " + path);
+            }
+
+            this.bloomMask = bloomBits - 1;
+            this.keyCount = (int) entries;
+            buffer.position(HEADER_SIZE);
+            this.bloom = buffer.slice().order(ByteOrder.BIG_ENDIAN).asLongBuffer();
+            buffer.position(HEADER_SIZE + (int) (bloomWords * 8));
+            this.keys = buffer.slice().order(ByteOrder.BIG_ENDIAN).asLongBuffer();
+        }
+    }
+
+    /**
+     * Открывает файл или возвращает уже открытый, если он не менялся
+     * @param path путь к скомпилированному списку
+     */
+    public static CompiledBlocklist open(Path path) throws IOException {
+        Path normalized = path.toAbsolutePath().normalize();
+        CompiledBlocklist cached = OPEN_LISTS.get(normalized);
+        if (cached != null && cached.isCurrent()) {
+            return cached;
+        }
+        CompiledBlocklist opened = new CompiledBlocklist(normalized);
+        OPEN_LISTS.put(normalized, opened);
+        return opened;
+    }
+
+    private boolean isCurrent() {
+        try {
+            return Files.getLastModifiedTime(path).toMillis() == lastModified && Files.size(path) == fileSize;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Проверяет домен и, при необходимости, все его родительские домены
+     * @param domain имя хоста в любом регистре
+     * @param includeSubdomains блокировать поддомены записанных доменов
+     */
+    public boolean contains(String domain, boolean includeSubdomains) {
+        if (containsKey(hash(domain, 0))) {
+            return true;
+        }
+        if (includeSubdomains) {
+            for (int i = 0; i < domain.length(); i++) {
+                if (domain.charAt(i) == '.' && i + 1 < domain.length() && containsKey(hash(domain, i + 1))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean containsKey(long key) {
+        if (!mightContain(key)) {
+            return false;
+        }
+        int low = 0;
+        int high = keyCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = keys.get(mid);
+            if (value < key) {
+                low = mid + 1;
+            } else if (value > key) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean mightContain(long key) {
+        long h1 = key;
+        long h2 = Long.rotateLeft(key, 32) | 1;
+        for (int i = 0; i < bloomHashes; i++) {
+            long bit = (h1 + i * h2) & bloomMask;
+            if ((bloom.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        return keyCount;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * 64-битный хеш домена начиная с позиции from: FNV-1a по символам
+     * в нижнем регистре с финальным перемешиванием
+     */
+    public static long hash(String domain, int from) {
+        long h = 0xCBF29CE484222325L;
+        int end = domain.length();
+        // Точка в конце FQDN не влияет на имя
+        if (end > from && domain.charAt(end - 1) == '.') {
+            end--;
+        }
+        for (int i = from; i < end; i++) {
+            char c = domain.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c = (char) (c + ('a' - 'A'));
+            }
+            h ^= c;
+            h *= 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Устанавливает биты ключа в массиве фильтра Блума; используется компилятором
+     */
+    public static void addToBloom(long[] bloomWords, int bloomHashes, long key) {
+        long mask = (long) bloomWords.length * 64 - 1;
+        long h1 = key;
+        long h2 = Long.rotateLeft(key, 32) | 1;
+        for (int i = 0; i < bloomHashes; i++) {
+            long bit = (h1 + i * h2) & mask;
+            bloomWords[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+}
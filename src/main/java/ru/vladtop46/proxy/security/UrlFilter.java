@@ -0,0 +1,682 @@
+package ru.vladtop46.proxy.security;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Фильтр URL по правилам в стиле Adblock, построенный на автомате Ахо-Корасик.
+ * <p>
+ * Поддерживаются подстроки ({@code /ads/banner}), якорь начала адреса
+ * ({@code |http://example.com/ads}), якорь домена ({@code ||example.com^}),
+ * якорь конца ({@code .swf|}), разделитель {@code ^}, шаблон {@code *}
+ * и исключения {@code @@}. Правила с опциями {@code $...} и косметические
+ * правила ({@code ##}) пропускаются.
+ * <p>
+ * Из каждого правила в автомат попадает самый длинный литеральный фрагмент;
+ * полное правило проверяется только для кандидатов, найденных за один
+ * линейный проход по URL, и не больше одного раза на URL: поиск фрагментов
+ * правила начинается с первого вхождения литерала, а фрагменты между
+ * {@code *} ставятся жадно слева направо, без перебора с возвратами.
+ */
+public class UrlFilter {
+    private static final UrlFilter EMPTY = new UrlFilter(new ArrayList<>());
+
+    private final Rule[] rules;
+    // Плоское представление автомата: ребра узла отсортированы по символу
+    private final int[] edgeStart;
+    private final char[] edgeChars;
+    private final int[] edgeTargets;
+    private final int[] failure;
+    private final int[] outputStart;
+    private final int[] outputRules;
+    private final int[] dictionaryLink;
+    // Переходы из корня для ASCII без бинарного поиска: большинство шагов автомата начинаются отсюда
+    private final int[] rootTransitions = new int[128];
+    private final List<Rule> unkeyedRules;
+
+    private UrlFilter(List<Rule> parsedRules) {
+        List<Rule> keyed = new ArrayList<>();
+        this.unkeyedRules = new ArrayList<>();
+        for (Rule rule : parsedRules) {
+            if (rule.key.isEmpty()) {
+                unkeyedRules.add(rule);
+            } else {
+                keyed.add(rule);
+            }
+        }
+        this.rules = keyed.toArray(new Rule[0]);
+
+        // Строим бор на объектах, затем переводим в массивы
+        List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        List<List<Integer>> outputs = new ArrayList<>();
+        children.add(new TreeMap<>());
+        outputs.add(new ArrayList<>());
+        for (int r = 0; r < rules.length; r++) {
+            int node = 0;
+            for (char c : rules[r].key.toCharArray()) {
+                Integer next = children.get(node).get(c);
+                if (next == null) {
+                    next = children.size();
+                    children.get(node).put(c, next);
+                    children.add(new TreeMap<>());
+                    outputs.add(new ArrayList<>());
+                }
+                node = next;
+            }
+            outputs.get(node).add(r);
+        }
+
+        int nodeCount = children.size();
+        int edgeCount = nodeCount - 1;
+        this.edgeStart = new int[nodeCount + 1];
+        this.edgeChars = new char[edgeCount];
+        this.edgeTargets = new int[edgeCount];
+        int edge = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            edgeStart[node] = edge;
+            for (Map.Entry<Character, Integer> entry : children.get(node).entrySet()) {
+                edgeChars[edge] = entry.getKey();
+                edgeTargets[edge] = entry.getValue();
+                edge++;
+            }
+        }
+        edgeStart[nodeCount] = edge;
+        Arrays.fill(rootTransitions, -1);
+        for (int e = edgeStart[0]; e < edgeStart[1]; e++) {
+            if (edgeChars[e] < rootTransitions.length) {
+                rootTransitions[edgeChars[e]] = edgeTargets[e];
+            }
+        }
+
+        this.outputStart = new int[nodeCount + 1];
+        int totalOutputs = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            outputStart[node] = totalOutputs;
+            totalOutputs += outputs.get(node).size();
+        }
+        outputStart[nodeCount] = totalOutputs;
+        this.outputRules = new int[totalOutputs];
+        for (int node = 0, i = 0; node < nodeCount; node++) {
+            for (int rule : outputs.get(node)) {
+                outputRules[i++] = rule;
+            }
+        }
+
+        // Суффиксные ссылки и ссылки на ближайший узел с выходом - обходом в ширину
+        this.failure = new int[nodeCount];
+        this.dictionaryLink = new int[nodeCount];
+        Arrays.fill(dictionaryLink, -1);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int e = edgeStart[0]; e < edgeStart[1]; e++) {
+            queue.add(edgeTargets[e]);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (int e = edgeStart[node]; e < edgeStart[node + 1]; e++) {
+                int child = edgeTargets[e];
+                char c = edgeChars[e];
+                int fallback = failure[node];
+                int target;
+                while ((target = transition(fallback, c)) < 0 && fallback != 0) {
+                    fallback = failure[fallback];
+                }
+                failure[child] = target >= 0 && target != child ? target : 0;
+                int suffix = failure[child];
+                dictionaryLink[child] = outputStart[suffix] < outputStart[suffix + 1] ? suffix : dictionaryLink[suffix];
+                queue.add(child);
+            }
+        }
+    }
+
+    private UrlFilter(Rule[] rules, List<Rule> unkeyedRules, int[] edgeStart, char[] edgeChars,
+                      int[] edgeTargets, int[] failure, int[] outputStart, int[] outputRules, int[] dictionaryLink) {
+        this.rules = rules;
+        this.unkeyedRules = unkeyedRules;
+        this.edgeStart = edgeStart;
+        this.edgeChars = edgeChars;
+        this.edgeTargets = edgeTargets;
+        this.failure = failure;
+        this.outputStart = outputStart;
+        this.outputRules = outputRules;
+        this.dictionaryLink = dictionaryLink;
+        Arrays.fill(rootTransitions, -1);
+        for (int e = edgeStart[0]; e < edgeStart[1]; e++) {
+            if (edgeChars[e] < rootTransitions.length) {
+                rootTransitions[edgeChars[e]] = edgeTargets[e];
+            }
+        }
+    }
+
+    public static UrlFilter empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Компилирует правила; строки, которые нельзя применить к URL, пропускаются
+     * @param lines строки в формате Adblock
+     */
+    public static UrlFilter compile(List<String> lines) {
+        List<Rule> parsed = new ArrayList<>();
+        for (String line : lines) {
+            Rule rule = Rule.parse(line);
+            if (rule != null) {
+                parsed.add(rule);
+            }
+        }
+        return parsed.isEmpty() ? EMPTY : new UrlFilter(parsed);
+    }
+
+    public int size() {
+        return rules.length + unkeyedRules.size();
+    }
+
+    /**
+     * Записывает правила вместе с готовым автоматом, чтобы при следующем
+     * запуске не строить его заново
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(rules.length);
+        for (Rule rule : rules) {
+            rule.writeTo(out);
+        }
+        out.writeInt(unkeyedRules.size());
+        for (Rule rule : unkeyedRules) {
+            rule.writeTo(out);
+        }
+        writeInts(out, edgeStart);
+        ByteBuffer chars = ByteBuffer.allocate(edgeChars.length * 2);
+        chars.asCharBuffer().put(edgeChars);
+        out.writeInt(edgeChars.length);
+        out.write(chars.array());
+        writeInts(out, edgeTargets);
+        writeInts(out, failure);
+        writeInts(out, outputStart);
+        writeInts(out, outputRules);
+        writeInts(out, dictionaryLink);
+    }
+
+    /**
+     * Читает фильтр, записанный {@link #writeTo}
+     * @throws IOException данные повреждены или не согласованы
+     */
+    public static UrlFilter readFrom(DataInputStream in) throws IOException {
+        Rule[] rules = new Rule[checkedLength(in)];
+        for (int i = 0; i < rules.length; i++) {
+            rules[i] = Rule.readFrom(in);
+        }
+        int unkeyedCount = checkedLength(in);
+        List<Rule> unkeyed = new ArrayList<>(unkeyedCount);
+        for (int i = 0; i < unkeyedCount; i++) {
+            unkeyed.add(Rule.readFrom(in));
+        }
+        int[] edgeStart = readInts(in);
+        char[] edgeChars = new char[checkedLength(in)];
+        byte[] charBytes = new byte[edgeChars.length * 2];
+        in.readFully(charBytes);
+        ByteBuffer.wrap(charBytes).asCharBuffer().get(edgeChars);
+        int[] edgeTargets = readInts(in);
+        int[] failure = readInts(in);
+        int[] outputStart = readInts(in);
+        int[] outputRules = readInts(in);
+        int[] dictionaryLink = readInts(in);
+
+        if (!isConsistent(rules.length, edgeStart, edgeChars, edgeTargets, failure, outputStart,
+                outputRules, dictionaryLink)) {
+            throw new IOException("Inconsistent URL filter automaton");
+        }
+        return new UrlFilter(rules, unkeyed, edgeStart, edgeChars, edgeTargets, failure, outputStart,
+                outputRules, dictionaryLink);
+    }
+
+    /**
+     * Проверяет автомат, прочитанный с диска: все индексы в пределах массивов,
+     * ребра образуют дерево с корнем 0, а суффиксные ссылки и ссылки на выход
+     * ведут в узлы меньшей глубины. Иначе поиск мог бы выйти за границы
+     * массива или зациклиться.
+     */
+    private static boolean isConsistent(int ruleCount, int[] edgeStart, char[] edgeChars, int[] edgeTargets,
+                                        int[] failure, int[] outputStart, int[] outputRules, int[] dictionaryLink) {
+        int nodeCount = failure.length;
+        if (nodeCount == 0 || edgeStart.length != nodeCount + 1 || outputStart.length != nodeCount + 1
+                || dictionaryLink.length != nodeCount || edgeTargets.length != edgeChars.length
+                || edgeChars.length != nodeCount - 1 || edgeStart[0] != 0 || outputStart[0] != 0
+                || edgeStart[nodeCount] != edgeChars.length || outputStart[nodeCount] != outputRules.length) {
+            return false;
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            if (edgeStart[node] > edgeStart[node + 1] || outputStart[node] > outputStart[node + 1]) {
+                return false;
+            }
+            // Бинарный поиск перехода требует строго возрастающих символов
+            for (int e = edgeStart[node] + 1; e < edgeStart[node + 1]; e++) {
+                if (edgeChars[e - 1] >= edgeChars[e]) {
+                    return false;
+                }
+            }
+        }
+        for (int rule : outputRules) {
+            if (rule < 0 || rule >= ruleCount) {
+                return false;
+            }
+        }
+
+        // Глубина узлов обходом в ширину; в дерево каждый узел входит ровно один раз
+        int[] depth = new int[nodeCount];
+        Arrays.fill(depth, -1);
+        depth[0] = 0;
+        int[] queue = new int[nodeCount];
+        int head = 0;
+        int tail = 1;
+        while (head < tail) {
+            int node = queue[head++];
+            for (int e = edgeStart[node]; e < edgeStart[node + 1]; e++) {
+                int child = edgeTargets[e];
+                if (child <= 0 || child >= nodeCount || depth[child] >= 0) {
+                    return false;
+                }
+                depth[child] = depth[node] + 1;
+                queue[tail++] = child;
+            }
+        }
+        if (tail != nodeCount || failure[0] != 0 || dictionaryLink[0] != -1) {
+            return false;
+        }
+        for (int node = 1; node < nodeCount; node++) {
+            int suffix = failure[node];
+            int link = dictionaryLink[node];
+            if (suffix < 0 || suffix >= nodeCount || depth[suffix] >= depth[node]
+                    || link < -1 || link >= nodeCount || (link >= 0 && depth[link] >= depth[node])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Массивы пишутся и читаются целиком: поэлементное чтение миллионов чисел медленнее сборки автомата
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        buffer.asIntBuffer().put(values);
+        out.writeInt(values.length);
+        out.write(buffer.array());
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[checkedLength(in)];
+        byte[] bytes = new byte[values.length * 4];
+        in.readFully(bytes);
+        ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+        return values;
+    }
+
+    private static int checkedLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 16 * 1024 * 1024) {
+            throw new IOException("Invalid array length: " + length);
+        }
+        return length;
+    }
+
+    public int getNodeCount() {
+        return failure.length;
+    }
+
+    /**
+     * Проверяет URL: запрещен, если совпало блокирующее правило и ни одно исключение
+     * @param url полный URL запроса
+     * @return true если запрос разрешен
+     */
+    public boolean isAllowed(String url) {
+        if (size() == 0) {
+            return true;
+        }
+        // Регистр приводится посимвольно, без копирования строки
+        int hostStart = hostStart(url);
+        int hostEnd = hostEnd(url, hostStart);
+
+        boolean blocked = false;
+        // Правила, уже проверенные для этого URL; кандидатов на URL единицы,
+        // поэтому список, а не битовая карта на все правила
+        int[] checked = null;
+        int checkedCount = 0;
+        int node = 0;
+        int length = url.length();
+        for (int i = 0; i < length; i++) {
+            char c = lowerAt(url, i);
+            int next;
+            while ((next = transition(node, c)) < 0 && node != 0) {
+                node = failure[node];
+            }
+            node = next < 0 ? 0 : next;
+
+            for (int out = node; out >= 0; out = dictionaryLink[out]) {
+                for (int o = outputStart[out]; o < outputStart[out + 1]; o++) {
+                    int index = outputRules[o];
+                    Rule rule = rules[index];
+                    if (blocked && !rule.exception) {
+                        // Уже заблокировано - интересуют только исключения
+                        continue;
+                    }
+                    if (contains(checked, checkedCount, index)) {
+                        continue;
+                    }
+                    if (checked == null) {
+                        checked = new int[8];
+                    } else if (checkedCount == checked.length) {
+                        checked = Arrays.copyOf(checked, checkedCount * 2);
+                    }
+                    checked[checkedCount++] = index;
+                    // Первое вхождение литерала: раньше фрагмент правила с ним начаться не может
+                    if (rule.matches(url, hostStart, hostEnd, i + 1 - rule.key.length())) {
+                        if (rule.exception) {
+                            return true;
+                        }
+                        blocked = true;
+                    }
+                }
+            }
+        }
+
+        for (Rule rule : unkeyedRules) {
+            if ((rule.exception || !blocked) && rule.matches(url, hostStart, hostEnd, 0)) {
+                if (rule.exception) {
+                    return true;
+                }
+                blocked = true;
+            }
+        }
+        return !blocked;
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int transition(int node, char c) {
+        if (node == 0 && c < rootTransitions.length) {
+            return rootTransitions[c];
+        }
+        int low = edgeStart[node];
+        int high = edgeStart[node + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char value = edgeChars[mid];
+            if (value < c) {
+                low = mid + 1;
+            } else if (value > c) {
+                high = mid - 1;
+            } else {
+                return edgeTargets[mid];
+            }
+        }
+        return -1;
+    }
+
+    private static char lowerAt(String url, int index) {
+        char c = url.charAt(index);
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static int hostStart(String url) {
+        int scheme = url.indexOf("://");
+        return scheme >= 0 ? scheme + 3 : 0;
+    }
+
+    private static int hostEnd(String url, int hostStart) {
+        for (int i = hostStart; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '/' || c == ':' || c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return url.length();
+    }
+
+    /**
+     * Разобранное правило
+     */
+    private static final class Rule {
+        private static final int ANCHOR_NONE = 0;
+        private static final int ANCHOR_START = 1;
+        private static final int ANCHOR_DOMAIN = 2;
+
+        private final String pattern;
+        private final String key;
+        private final int startAnchor;
+        private final boolean endAnchor;
+        private final boolean exception;
+        // Фрагменты шаблона между '*' и положение литерала-ключа в них
+        private final String[] segments;
+        private final boolean leadingStar;
+        private final boolean trailingStar;
+        private final int keySegment;
+        private final int keyOffset;
+
+        private Rule(String pattern, int startAnchor, boolean endAnchor, boolean exception) {
+            this.pattern = pattern;
+            this.startAnchor = startAnchor;
+            this.endAnchor = endAnchor;
+            this.exception = exception;
+            int keyStart = longestLiteral(pattern);
+            this.key = keyStart < 0 ? "" : pattern.substring(keyStart, literalEnd(pattern, keyStart));
+
+            List<String> parts = new ArrayList<>();
+            int segment = -1;
+            int offset = 0;
+            int partStart = 0;
+            for (int i = 0; i <= pattern.length(); i++) {
+                if (i == pattern.length() || pattern.charAt(i) == '*') {
+                    if (i > partStart) {
+                        if (keyStart >= partStart && keyStart < i) {
+                            segment = parts.size();
+                            offset = keyStart - partStart;
+                        }
+                        parts.add(pattern.substring(partStart, i));
+                    }
+                    partStart = i + 1;
+                }
+            }
+            this.segments = parts.toArray(new String[0]);
+            this.leadingStar = pattern.charAt(0) == '*';
+            this.trailingStar = pattern.charAt(pattern.length() - 1) == '*';
+            this.keySegment = segment;
+            this.keyOffset = offset;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(pattern);
+            out.writeByte(startAnchor);
+            out.writeBoolean(endAnchor);
+            out.writeBoolean(exception);
+        }
+
+        static Rule readFrom(DataInputStream in) throws IOException {
+            String pattern = in.readUTF();
+            int startAnchor = in.readByte();
+            if (startAnchor < ANCHOR_NONE || startAnchor > ANCHOR_DOMAIN) {
+                throw new IOException("Invalid URL rule anchor: " + startAnchor);
+            }
+            if (pattern.isEmpty()) {
+                throw new IOException("Empty URL rule pattern");
+            }
+            return new Rule(pattern, startAnchor, in.readBoolean(), in.readBoolean());
+        }
+
+        static Rule parse(String line) {
+            String rule = line.trim();
+            if (rule.isEmpty() || rule.startsWith("!") || rule.startsWith("[")
+                    || rule.contains("##") || rule.contains("#@#") || rule.contains("#?#")
+                    || rule.indexOf('$') >= 0) {
+                return null;
+            }
+            // Регулярные выражения /.../ не поддерживаются
+            if (rule.length() > 1 && rule.startsWith("/") && rule.endsWith("/")) {
+                return null;
+            }
+
+            boolean exception = rule.startsWith("@@");
+            if (exception) {
+                rule = rule.substring(2);
+            }
+
+            int startAnchor = ANCHOR_NONE;
+            if (rule.startsWith("||")) {
+                startAnchor = ANCHOR_DOMAIN;
+                rule = rule.substring(2);
+            } else if (rule.startsWith("|")) {
+                startAnchor = ANCHOR_START;
+                rule = rule.substring(1);
+            }
+
+            boolean endAnchor = rule.endsWith("|");
+            if (endAnchor) {
+                rule = rule.substring(0, rule.length() - 1);
+            }
+
+            rule = rule.toLowerCase();
+            if (rule.isEmpty() || rule.chars().allMatch(c -> c == '*')) {
+                return null;
+            }
+            return new Rule(rule, startAnchor, endAnchor, exception);
+        }
+
+        /**
+         * Начало самого длинного литерального фрагмента или -1, если литералов нет
+         */
+        private static int longestLiteral(String pattern) {
+            int best = -1;
+            int bestLength = 0;
+            int start = 0;
+            for (int i = 0; i <= pattern.length(); i++) {
+                if (i == pattern.length() || pattern.charAt(i) == '*' || pattern.charAt(i) == '^') {
+                    if (i - start > bestLength) {
+                        best = start;
+                        bestLength = i - start;
+                    }
+                    start = i + 1;
+                }
+            }
+            return best;
+        }
+
+        private static int literalEnd(String pattern, int start) {
+            int end = start;
+            while (end < pattern.length() && pattern.charAt(end) != '*' && pattern.charAt(end) != '^') {
+                end++;
+            }
+            return end;
+        }
+
+        /**
+         * Проверяет правило целиком. Фрагменты ставятся слева направо в самое
+         * левое возможное место: так у следующих фрагментов остается больше
+         * места, и перебирать другие положения не нужно.
+         * @param keyFrom первое вхождение литерала-ключа в URL
+         */
+        boolean matches(String url, int hostStart, int hostEnd, int keyFrom) {
+            int end = 0;
+            for (int s = 0; s < segments.length; s++) {
+                int from = s == keySegment ? Math.max(end, keyFrom - keyOffset) : end;
+                if (s == 0 && leadingStar && startAnchor == ANCHOR_DOMAIN) {
+                    // Якорь домена с '*' в начале: совпадение все равно не раньше хоста
+                    from = Math.max(from, hostStart);
+                }
+                end = s == 0 && !leadingStar && startAnchor != ANCHOR_NONE
+                        ? placeAnchored(url, hostStart, hostEnd, from)
+                        : place(url, s, from);
+                if (end < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Первый фрагмент при якоре начала адреса или домена
+         * @return конец фрагмента или -1
+         */
+        private int placeAnchored(String url, int hostStart, int hostEnd, int from) {
+            if (startAnchor == ANCHOR_START) {
+                return from == 0 ? endAt(url, 0, 0) : -1;
+            }
+            // Начало хоста или начало любого его поддомена
+            if (hostStart >= from) {
+                int end = endAt(url, 0, hostStart);
+                if (end >= 0) {
+                    return end;
+                }
+            }
+            for (int i = Math.max(hostStart, from - 1); i < hostEnd; i++) {
+                if (url.charAt(i) == '.') {
+                    int end = endAt(url, 0, i + 1);
+                    if (end >= 0) {
+                        return end;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Ставит фрагмент в самое левое место не раньше from
+         * @return конец фрагмента или -1
+         */
+        private int place(String url, int s, int from) {
+            String segment = segments[s];
+            char first = segment.charAt(0);
+            for (int i = from; i <= url.length(); i++) {
+                if (first != '^' && (i == url.length() || lowerAt(url, i) != first)) {
+                    continue;
+                }
+                int end = endAt(url, s, i);
+                if (end >= 0) {
+                    return end;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Сопоставляет фрагмент с позиции start; последний фрагмент при якоре
+         * конца должен закончиться концом адреса
+         * @return конец фрагмента или -1
+         */
+        private int endAt(String url, int s, int start) {
+            String segment = segments[s];
+            int u = start;
+            for (int p = 0; p < segment.length(); p++) {
+                char pc = segment.charAt(p);
+                if (pc == '^') {
+                    if (u == url.length()) {
+                        // Разделитель в конце совпадает с концом адреса
+                        continue;
+                    }
+                    if (!isSeparator(url.charAt(u))) {
+                        return -1;
+                    }
+                } else if (u >= url.length() || lowerAt(url, u) != pc) {
+                    return -1;
+                }
+                u++;
+            }
+            boolean last = s == segments.length - 1;
+            return last && endAnchor && !trailingStar && u != url.length() ? -1 : u;
+        }
+
+        private static boolean isSeparator(char c) {
+            return !(Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == '%');
+        }
+    }
+}
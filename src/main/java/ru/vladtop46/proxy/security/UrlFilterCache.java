@@ -0,0 +1,88 @@
+package ru.vladtop46.proxy.security;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Скомпилированный фильтр URL на диске между запусками.
+ * <p>
+ * Файл помечен отпечатком исходных строк правил: если правила не менялись,
+ * готовый автомат читается с диска вместо повторной сборки, которая для
+ * десятков тысяч правил занимает секунды. Любое расхождение или
+ * повреждение файла означает обычную компиляцию.
+ */
+public final class UrlFilterCache {
+    private static final int MAGIC = 0x57505546;
+    private static final int VERSION = 1;
+    private static final String FILE_NAME = "urlfilter.bin";
+
+    private UrlFilterCache() {
+    }
+
+    /**
+     * Файл кеша в каталоге состояния
+     */
+    public static Path file(String directory) {
+        return Paths.get(directory, FILE_NAME);
+    }
+
+    /**
+     * Отпечаток набора правил (FNV-1a по строкам с разделителями)
+     */
+    public static long fingerprint(List<String> lines) {
+        long hash = 0xcbf29ce484222325L;
+        for (String line : lines) {
+            for (int i = 0; i < line.length(); i++) {
+                hash = (hash ^ line.charAt(i)) * 0x100000001b3L;
+            }
+            hash = (hash ^ '\n') * 0x100000001b3L;
+        }
+        return hash ^ lines.size();
+    }
+
+    /**
+     * @return фильтр для этих правил или null, если файла нет или он собран по другим правилам
+     * @throws IOException файл поврежден
+     */
+    public static UrlFilter load(Path file, long fingerprint) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != fingerprint) {
+                return null;
+            }
+            return UrlFilter.readFrom(in);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (RuntimeException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Записывает фильтр через временный файл, чтобы читатель не увидел его наполовину
+     */
+    public static void save(Path file, long fingerprint, UrlFilter filter) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(fingerprint);
+                filter.writeTo(out);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
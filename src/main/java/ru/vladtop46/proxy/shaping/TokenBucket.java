@@ -0,0 +1,94 @@
+package ru.vladtop46.proxy.shaping;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Корзина токенов в форме GCRA: все состояние - одно "теоретическое время
+ * опустошения", которое обновляется через CAS без блокировок.
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    // Сколько долга может накопить приоритетный трафик сверх емкости корзины
+    private static final long MAX_DEBT_NANOS = NANOS_PER_SECOND;
+
+    private final AtomicLong drainedAt = new AtomicLong(System.nanoTime());
+    private volatile double nanosPerByte;
+    private volatile long burstNanos;
+
+    /**
+     * @param bytesPerSecond скорость пополнения, 0 - без ограничения
+     * @param burstBytes емкость корзины
+     */
+    public TokenBucket(long bytesPerSecond, long burstBytes) {
+        setRate(bytesPerSecond, burstBytes);
+    }
+
+    /**
+     * Меняет скорость корзины; накопленное состояние сохраняется
+     */
+    public void setRate(long bytesPerSecond, long burstBytes) {
+        if (bytesPerSecond <= 0) {
+            this.nanosPerByte = 0;
+            this.burstNanos = 0;
+            return;
+        }
+        this.nanosPerByte = (double) NANOS_PER_SECOND / bytesPerSecond;
+        this.burstNanos = (long) (Math.max(1, burstBytes) * nanosPerByte);
+    }
+
+    public boolean isUnlimited() {
+        return nanosPerByte == 0;
+    }
+
+    /**
+     * Резервирует токены под отправку
+     * @param bytes объем данных
+     * @return сколько наносекунд нужно подождать перед отправкой
+     */
+    public long reserve(long bytes) {
+        double rate = nanosPerByte;
+        if (rate == 0) {
+            return 0;
+        }
+        long cost = (long) (bytes * rate);
+        long burst = burstNanos;
+        while (true) {
+            long now = System.nanoTime();
+            long current = drainedAt.get();
+            long updated = Math.max(current, now) + cost;
+            if (drainedAt.compareAndSet(current, updated)) {
+                return Math.max(0, updated - now - burst);
+            }
+        }
+    }
+
+    /**
+     * Списывает токены без ожидания; используется приоритетным трафиком,
+     * чтобы вытеснять фоновый на общих уровнях иерархии
+     */
+    public void consume(long bytes) {
+        double rate = nanosPerByte;
+        if (rate == 0) {
+            return;
+        }
+        long cost = (long) (bytes * rate);
+        long burst = burstNanos;
+        while (true) {
+            long now = System.nanoTime();
+            long current = drainedAt.get();
+            long updated = Math.min(Math.max(current, now) + cost, now + burst + MAX_DEBT_NANOS);
+            if (updated <= current || drainedAt.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true если корзина полностью заполнена и ее можно выбросить
+     */
+    public boolean isFull(long now) {
+        return drainedAt.get() <= now;
+    }
+}
@@ -0,0 +1,186 @@
+package ru.vladtop46.proxy.shaping;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Иерархическое ограничение полосы: общая корзина, корзина клиента и корзина
+ * типа соединения. WebRTC и WebSocket идут со строгим приоритетом: на общих
+ * уровнях они списывают токены без ожидания, а фоновый HTTP/HTTPS трафик
+ * ждет, пока долг не будет погашен. Корзина клиента живет, пока у него есть
+ * открытые потоки, и выбрасывается только без потоков и полностью заполненной.
+ */
+public class TrafficShaper {
+    // Как часто чистить корзины неактивных клиентов
+    private static final int CLEANUP_EVERY = 1024;
+
+    private final TokenBucket globalBucket = new TokenBucket(0, 0);
+    private final Map<String, TokenBucket> typeBuckets = new ConcurrentHashMap<>();
+    private final Map<String, ClientBucket> clientBuckets = new ConcurrentHashMap<>();
+    private final AtomicInteger clientBucketCreations = new AtomicInteger();
+    private final AtomicLong delayedWrites = new AtomicLong();
+    private final AtomicLong totalDelayNanos = new AtomicLong();
+    private volatile ProxyConfig.ShapingSettings settings;
+
+    public TrafficShaper(ProxyConfig.ShapingSettings settings) {
+        for (String type : new String[]{"HTTP", "HTTPS", "WEBSOCKET", "WEBRTC"}) {
+            typeBuckets.put(type, new TokenBucket(0, 0));
+        }
+        update(settings);
+    }
+
+    /**
+     * Применяет новые лимиты к существующим корзинам без разрыва соединений
+     * @param settings новые настройки ограничения полосы
+     */
+    public void update(ProxyConfig.ShapingSettings settings) {
+        this.settings = settings;
+        long burst = settings.getBurstBytes();
+        globalBucket.setRate(settings.getGlobalBytesPerSecond(), burst);
+        typeBuckets.get("HTTP").setRate(settings.getHttpBytesPerSecond(), burst);
+        typeBuckets.get("HTTPS").setRate(settings.getHttpsBytesPerSecond(), burst);
+        typeBuckets.get("WEBSOCKET").setRate(settings.getWebSocketBytesPerSecond(), burst);
+        typeBuckets.get("WEBRTC").setRate(settings.getWebRtcBytesPerSecond(), burst);
+        for (ClientBucket client : clientBuckets.values()) {
+            client.bucket.setRate(settings.getPerClientBytesPerSecond(), burst);
+        }
+    }
+
+    /**
+     * Создает поток с ограничением полосы для одного направления пересылки
+     * @param clientIp IP клиента
+     * @param connectionType HTTP, HTTPS, WEBSOCKET или WEBRTC
+     * @return поток, который нужно вызывать перед каждой записью и закрыть по окончании пересылки
+     */
+    public Flow openFlow(String clientIp, String connectionType) {
+        ProxyConfig.ShapingSettings current = settings;
+        if (!current.isEnabled()) {
+            return null;
+        }
+        boolean priority = current.isStrictPriority() &&
+                ("WEBRTC".equals(connectionType) || "WEBSOCKET".equals(connectionType));
+        return new Flow(clientIp, acquireClientBucket(clientIp),
+                typeBuckets.getOrDefault(connectionType, typeBuckets.get("HTTP")), priority);
+    }
+
+    /**
+     * Берет корзину клиента и учитывает в ней новый поток. Счетчик меняется
+     * внутри compute, поэтому очистка не может выбросить корзину между
+     * поиском и учетом потока.
+     */
+    private TokenBucket acquireClientBucket(String clientIp) {
+        if (!clientBuckets.containsKey(clientIp) && clientBucketCreations.incrementAndGet() % CLEANUP_EVERY == 0) {
+            removeIdleClients();
+        }
+        ProxyConfig.ShapingSettings current = settings;
+        return clientBuckets.compute(clientIp, (ip, client) -> {
+            if (client == null) {
+                client = new ClientBucket(new TokenBucket(current.getPerClientBytesPerSecond(),
+                        current.getBurstBytes()));
+            }
+            client.flows++;
+            return client;
+        }).bucket;
+    }
+
+    private void releaseClientBucket(String clientIp) {
+        clientBuckets.computeIfPresent(clientIp, (ip, client) -> {
+            client.flows--;
+            return client;
+        });
+    }
+
+    /**
+     * Выбрасывает корзины клиентов без открытых потоков, которые успели заполниться
+     */
+    private void removeIdleClients() {
+        long now = System.nanoTime();
+        for (String clientIp : clientBuckets.keySet()) {
+            clientBuckets.computeIfPresent(clientIp,
+                    (ip, client) -> client.flows <= 0 && client.bucket.isFull(now) ? null : client);
+        }
+    }
+
+    public String getStatus() {
+        if (!settings.isEnabled()) {
+            return "Traffic shaper: disabled";
+        }
+        return String.format("Traffic shaper: clients=%d, delayed writes=%d, total delay=%d ms",
+                clientBuckets.size(), delayedWrites.get(), TimeUnit.NANOSECONDS.toMillis(totalDelayNanos.get()));
+    }
+
+    /**
+     * Ограничитель одного направления пересылки
+     */
+    public class Flow {
+        private final String clientIp;
+        private final TokenBucket clientBucket;
+        private final TokenBucket typeBucket;
+        private final boolean priority;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Flow(String clientIp, TokenBucket clientBucket, TokenBucket typeBucket, boolean priority) {
+            this.clientIp = clientIp;
+            this.clientBucket = clientBucket;
+            this.typeBucket = typeBucket;
+            this.priority = priority;
+        }
+
+        /**
+         * Отпускает корзину клиента; повторные вызовы ничего не делают
+         */
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                releaseClientBucket(clientIp);
+            }
+        }
+
+        /**
+         * Блокирует поток пересылки, пока отправка указанного объема не уложится в лимиты
+         * @param bytes объем данных, который будет записан
+         */
+        public void acquire(int bytes) {
+            long waitNanos = typeBucket.reserve(bytes);
+            if (priority) {
+                clientBucket.consume(bytes);
+                globalBucket.consume(bytes);
+            } else {
+                waitNanos = Math.max(waitNanos, clientBucket.reserve(bytes));
+                waitNanos = Math.max(waitNanos, globalBucket.reserve(bytes));
+            }
+
+            if (waitNanos > 0) {
+                delayedWrites.incrementAndGet();
+                totalDelayNanos.addAndGet(waitNanos);
+                long deadline = System.nanoTime() + waitNanos;
+                long remaining = waitNanos;
+                while (remaining > 0) {
+                    LockSupport.parkNanos(remaining);
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    remaining = deadline - System.nanoTime();
+                }
+            }
+        }
+    }
+
+    /**
+     * Корзина клиента и число его открытых потоков; счетчик меняется только внутри compute
+     */
+    private static final class ClientBucket {
+        final TokenBucket bucket;
+        int flows;
+
+        ClientBucket(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package ru.vladtop46.proxy.socks;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Разбор и формирование сообщений SOCKS5 (RFC 1928) на управляющем соединении.
+ * Поддерживается только метод без аутентификации: доступ ограничивается
+ * тем же белым списком IP, что и для HTTP-прокси.
+ */
+public final class Socks5Protocol {
+    public static final int VERSION = 5;
+
+    public static final int METHOD_NO_AUTH = 0x00;
+    public static final int METHOD_NO_ACCEPTABLE = 0xFF;
+
+    public static final int CMD_CONNECT = 0x01;
+    public static final int CMD_BIND = 0x02;
+    public static final int CMD_UDP_ASSOCIATE = 0x03;
+
+    public static final int ATYP_IPV4 = 0x01;
+    public static final int ATYP_DOMAIN = 0x03;
+    public static final int ATYP_IPV6 = 0x04;
+
+    public static final int REP_SUCCEEDED = 0x00;
+    public static final int REP_GENERAL_FAILURE = 0x01;
+    public static final int REP_NOT_ALLOWED = 0x02;
+    public static final int REP_NETWORK_UNREACHABLE = 0x03;
+    public static final int REP_HOST_UNREACHABLE = 0x04;
+    public static final int REP_CONNECTION_REFUSED = 0x05;
+    public static final int REP_TTL_EXPIRED = 0x06;
+    public static final int REP_COMMAND_NOT_SUPPORTED = 0x07;
+    public static final int REP_ADDRESS_TYPE_NOT_SUPPORTED = 0x08;
+
+    private Socks5Protocol() {
+    }
+
+    /**
+     * Читает приветствие клиента и выбирает метод аутентификации
+     * @return true если клиент согласен работать без аутентификации
+     * @throws IOException если это не SOCKS5 или соединение оборвалось
+     */
+    public static boolean negotiate(InputStream in, OutputStream out) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported SOCKS version: " + version);
+        }
+        int methodCount = data.readUnsignedByte();
+        boolean noAuthOffered = false;
+        for (int i = 0; i < methodCount; i++) {
+            if (data.readUnsignedByte() == METHOD_NO_AUTH) {
+                noAuthOffered = true;
+            }
+        }
+        out.write(new byte[]{VERSION, (byte) (noAuthOffered ? METHOD_NO_AUTH : METHOD_NO_ACCEPTABLE)});
+        out.flush();
+        return noAuthOffered;
+    }
+
+    /**
+     * Ответ соединению, которое отклоняется до разбора: выбор метода без
+     * аутентификации и сразу ответ с кодом ошибки на будущий запрос.
+     * Клиент читает их по очереди, как при обычном обмене.
+     * @param reply код ответа REP_*
+     */
+    public static byte[] rejection(int reply) {
+        return new byte[]{VERSION, METHOD_NO_AUTH, VERSION, (byte) reply, 0, ATYP_IPV4, 0, 0, 0, 0, 0, 0};
+    }
+
+    /**
+     * Читает запрос клиента после выбора метода. При неизвестном типе адреса
+     * длина адреса неизвестна, поэтому запрос дальше не читается: хост - null,
+     * порт - 0, и клиенту нужно сразу ответить REP_ADDRESS_TYPE_NOT_SUPPORTED.
+     * @throws IOException если запрос поврежден или соединение оборвалось
+     */
+    public static Request readRequest(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported SOCKS version: " + version);
+        }
+        int command = data.readUnsignedByte();
+        data.readUnsignedByte(); // RSV
+        int addressType = data.readUnsignedByte();
+
+        String host;
+        switch (addressType) {
+            case ATYP_IPV4: {
+                byte[] address = new byte[4];
+                data.readFully(address);
+                host = InetAddress.getByAddress(address).getHostAddress();
+                break;
+            }
+            case ATYP_IPV6: {
+                byte[] address = new byte[16];
+                data.readFully(address);
+                host = InetAddress.getByAddress(address).getHostAddress();
+                break;
+            }
+            case ATYP_DOMAIN: {
+                byte[] name = new byte[data.readUnsignedByte()];
+                data.readFully(name);
+                host = new String(name, StandardCharsets.US_ASCII);
+                break;
+            }
+            default:
+                return new Request(command, addressType, null, 0);
+        }
+        int port = data.readUnsignedShort();
+        return new Request(command, addressType, host, port);
+    }
+
+    /**
+     * Отправляет ответ на запрос
+     * @param reply код ответа REP_*
+     * @param bound адрес, связанный с запросом, или null
+     */
+    public static void writeReply(OutputStream out, int reply, InetSocketAddress bound) throws IOException {
+        InetAddress address = bound != null ? bound.getAddress() : null;
+        byte[] addressBytes = address != null ? address.getAddress() : new byte[4];
+        int port = bound != null ? bound.getPort() : 0;
+
+        byte[] message = new byte[6 + addressBytes.length];
+        message[0] = VERSION;
+        message[1] = (byte) reply;
+        message[2] = 0;
+        message[3] = (byte) (address == null || address instanceof Inet4Address ? ATYP_IPV4 : ATYP_IPV6);
+        System.arraycopy(addressBytes, 0, message, 4, addressBytes.length);
+        message[4 + addressBytes.length] = (byte) (port >>> 8);
+        message[5 + addressBytes.length] = (byte) port;
+        out.write(message);
+        out.flush();
+    }
+
+    /**
+     * Запрос клиента: команда и адрес назначения
+     */
+    public static final class Request {
+        private final int command;
+        private final int addressType;
+        private final String host;
+        private final int port;
+
+        private Request(int command, int addressType, String host, int port) {
+            this.command = command;
+            this.addressType = addressType;
+            this.host = host;
+            this.port = port;
+        }
+
+        public int getCommand() {
+            return command;
+        }
+
+        public int getAddressType() {
+            return addressType;
+        }
+
+        /**
+         * Имя хоста или IP в текстовом виде; null для неизвестного типа адреса
+         */
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public String toString() {
+            String name = switch (command) {
+                case CMD_CONNECT -> "CONNECT";
+                case CMD_BIND -> "BIND";
+                case CMD_UDP_ASSOCIATE -> "UDP_ASSOCIATE";
+                default -> "CMD_" + command;
+            };
+            return name + " " + host + ":" + port;
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package ru.vladtop46.proxy.socks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Ретранслятор UDP для одной ассоциации SOCKS5 UDP ASSOCIATE.
+ * <p>
+ * Один поток обслуживает два канала: со стороны клиента пакеты приходят
+ * с заголовком SOCKS5, наружу уходят без него. Все пакеты проходят через
+ * один прямой буфер, в котором перед данными оставлено место под заголовок,
+ * поэтому ответ клиенту собирается без копирования полезной нагрузки.
+ * Адреса назначения и заголовки ответов кешируются, так что в устойчивом
+ * потоке (голос, видео) на пакет не выделяется память. Имена разрешаются
+ * в отдельных потоках, чтобы медленный DNS не останавливал ретрансляцию;
+ * пока имя разрешается, пакеты на него отбрасываются.
+ */
+public class UdpAssociation implements Runnable, Closeable {
+    // Максимальный заголовок: RSV(2) FRAG(1) ATYP(1) IPv6(16) PORT(2)
+    private static final int HEADER_ROOM = 22;
+    private static final int MAX_DATAGRAM = 65535;
+    private static final int DESTINATION_CACHE_SIZE = 8;
+    // Через сколько повторить разрешение имени после неудачи
+    private static final long RESOLVE_RETRY_MS = 1000;
+
+    private final DatagramChannel clientChannel;
+    private final DatagramChannel remoteChannel;
+    private final Selector selector;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(HEADER_ROOM + MAX_DATAGRAM);
+    private final InetAddress clientAddress;
+    private final PacketListener listener;
+    private final Consumer<SelectionKey> readyHandler = this::onReady;
+    private final SelectionKey clientKey;
+
+    private final Destination[] destinations = new Destination[DESTINATION_CACHE_SIZE];
+    private int nextDestinationSlot;
+    private final Queue<Resolution> resolutions = new ConcurrentLinkedQueue<>();
+    private int pendingResolutions;
+
+    private SocketAddress clientPeer;
+    private SocketAddress lastSender;
+    private final byte[] lastSenderHeader = new byte[HEADER_ROOM];
+    private int lastSenderHeaderLength;
+
+    private volatile boolean closed;
+    private long droppedPackets;
+
+    /**
+     * Обратные вызовы ретранслятора; кроме {@link #resolve} вызываются в его потоке
+     */
+    public interface PacketListener {
+        /**
+         * Проверка нового адреса назначения; запрет кешируется
+         */
+        boolean isDestinationAllowed(String host, int port);
+
+        /**
+         * Разрешает имя допущенного назначения; вызывается в отдельном потоке
+         * @throws IOException если имя не разрешилось; попытка повторится позже
+         */
+        InetSocketAddress resolve(String host, int port) throws IOException;
+
+        /**
+         * Пакет переслан
+         * @param fromClient направление: от клиента наружу или обратно
+         * @param bytes размер полезной нагрузки
+         */
+        void onPacket(boolean fromClient, int bytes);
+    }
+
+    private UdpAssociation(DatagramChannel clientChannel, DatagramChannel remoteChannel, Selector selector,
+                           InetAddress clientAddress, PacketListener listener) throws IOException {
+        this.clientChannel = clientChannel;
+        this.remoteChannel = remoteChannel;
+        this.selector = selector;
+        this.clientAddress = clientAddress;
+        this.listener = listener;
+        this.clientKey = clientChannel.register(selector, SelectionKey.OP_READ);
+        remoteChannel.register(selector, SelectionKey.OP_READ);
+        for (int i = 0; i < destinations.length; i++) {
+            destinations[i] = new Destination();
+        }
+    }
+
+    /**
+     * Открывает каналы ассоциации
+     * @param localAddress адрес, на котором клиент достучался до прокси по TCP
+     * @param clientAddress IP клиента; пакеты с других адресов отбрасываются
+     * @param listener проверка доступа и учет трафика
+     */
+    public static UdpAssociation open(InetAddress localAddress, InetAddress clientAddress,
+                                      PacketListener listener) throws IOException {
+        DatagramChannel clientChannel = null;
+        DatagramChannel remoteChannel = null;
+        Selector selector = null;
+        try {
+            clientChannel = DatagramChannel.open(localAddress instanceof Inet4Address
+                    ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+            clientChannel.bind(new InetSocketAddress(localAddress, 0));
+            clientChannel.configureBlocking(false);
+            remoteChannel = DatagramChannel.open();
+            remoteChannel.bind(null);
+            remoteChannel.configureBlocking(false);
+            selector = Selector.open();
+            return new UdpAssociation(clientChannel, remoteChannel, selector, clientAddress, listener);
+        } catch (IOException e) {
+            closeQuietly(clientChannel);
+            closeQuietly(remoteChannel);
+            closeQuietly(selector);
+            throw e;
+        }
+    }
+
+    /**
+     * Адрес, на который клиент должен отправлять пакеты (BND.ADDR/BND.PORT)
+     */
+    public InetSocketAddress getClientFacingAddress() throws IOException {
+        return (InetSocketAddress) clientChannel.getLocalAddress();
+    }
+
+    public long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                selector.select(readyHandler);
+                applyResolutions();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // Каналы закрыты вместе с ассоциацией
+        } finally {
+            close();
+        }
+    }
+
+    private void onReady(SelectionKey key) {
+        try {
+            if (key == clientKey) {
+                while (relayFromClient()) {
+                    // Вычитываем все накопившиеся пакеты
+                }
+            } else {
+                while (relayToClient()) {
+                    // Вычитываем все накопившиеся пакеты
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                droppedPackets++;
+            }
+        }
+    }
+
+    /**
+     * Клиент -> назначение: снимаем заголовок SOCKS5 и отправляем данные
+     * @return false если пакетов больше нет
+     */
+    private boolean relayFromClient() throws IOException {
+        buffer.clear();
+        SocketAddress sender = clientChannel.receive(buffer);
+        if (sender == null) {
+            return false;
+        }
+        int end = buffer.position();
+
+        if (clientPeer == null) {
+            if (!clientAddress.equals(((InetSocketAddress) sender).getAddress())) {
+                droppedPackets++;
+                return true;
+            }
+            clientPeer = sender;
+        } else if (!clientPeer.equals(sender)) {
+            droppedPackets++;
+            return true;
+        }
+
+        // Фрагментация не поддерживается: такие пакеты отбрасываются по RFC 1928
+        if (end < 4 || buffer.get(2) != 0) {
+            droppedPackets++;
+            return true;
+        }
+        int addressLength = addressLength(buffer.get(3), end);
+        int dataStart = 4 + addressLength + 2;
+        if (addressLength < 0 || dataStart > end) {
+            droppedPackets++;
+            return true;
+        }
+
+        Destination destination = lookupDestination(addressLength);
+        if (destination.address == null) {
+            if (destination.retryAt != 0 && System.currentTimeMillis() >= destination.retryAt) {
+                startResolution(destination);
+            }
+            droppedPackets++;
+            return true;
+        }
+
+        buffer.limit(end).position(dataStart);
+        remoteChannel.send(buffer, destination.address);
+        listener.onPacket(true, end - dataStart);
+        return true;
+    }
+
+    /**
+     * Назначение -> клиент: дописываем заголовок перед данными и отправляем
+     * @return false если пакетов больше нет
+     */
+    private boolean relayToClient() throws IOException {
+        buffer.clear().position(HEADER_ROOM);
+        SocketAddress sender = remoteChannel.receive(buffer);
+        if (sender == null) {
+            return false;
+        }
+        int end = buffer.position();
+        if (clientPeer == null) {
+            droppedPackets++;
+            return true;
+        }
+
+        if (!sender.equals(lastSender)) {
+            lastSenderHeaderLength = writeHeader((InetSocketAddress) sender, lastSenderHeader);
+            lastSender = sender;
+        }
+        int start = HEADER_ROOM - lastSenderHeaderLength;
+        for (int i = 0; i < lastSenderHeaderLength; i++) {
+            buffer.put(start + i, lastSenderHeader[i]);
+        }
+        buffer.limit(end).position(start);
+        clientChannel.send(buffer, clientPeer);
+        listener.onPacket(false, end - HEADER_ROOM);
+        return true;
+    }
+
+    /**
+     * Длина поля адреса в заголовке пакета клиента или -1
+     */
+    private int addressLength(byte addressType, int end) {
+        switch (addressType) {
+            case Socks5Protocol.ATYP_IPV4:
+                return 4;
+            case Socks5Protocol.ATYP_IPV6:
+                return 16;
+            case Socks5Protocol.ATYP_DOMAIN:
+                return end > 4 ? 1 + (buffer.get(4) & 0xFF) : -1;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Ищет адрес назначения по сырым байтам заголовка; при промахе проверяет
+     * доступ и запускает разрешение имени, вытесняя записи по кругу
+     */
+    private Destination lookupDestination(int addressLength) {
+        // ATYP + адрес + порт
+        int rawLength = 1 + addressLength + 2;
+        for (Destination destination : destinations) {
+            if (destination.matches(buffer, rawLength)) {
+                return destination;
+            }
+        }
+
+        Destination destination = destinations[nextDestinationSlot];
+        nextDestinationSlot = (nextDestinationSlot + 1) % destinations.length;
+        destination.store(buffer, rawLength);
+        destination.host = decodeHost(buffer.get(3), addressLength);
+        int portOffset = 4 + addressLength;
+        destination.port = ((buffer.get(portOffset) & 0xFF) << 8) | (buffer.get(portOffset + 1) & 0xFF);
+        // Запрет кешируется до вытеснения записи, неразрешенное имя - нет
+        if (destination.host != null && listener.isDestinationAllowed(destination.host, destination.port)) {
+            startResolution(destination);
+        }
+        return destination;
+    }
+
+    private String decodeHost(byte addressType, int addressLength) {
+        if (addressType == Socks5Protocol.ATYP_DOMAIN) {
+            byte[] name = new byte[addressLength - 1];
+            buffer.get(5, name);
+            return new String(name, StandardCharsets.US_ASCII);
+        }
+        byte[] address = new byte[addressLength];
+        buffer.get(4, address);
+        try {
+            return InetAddress.getByAddress(address).getHostAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Разрешает имя записи в отдельном потоке; одновременных разрешений
+     * не больше, чем записей в кеше, остальные повторятся позже
+     */
+    private void startResolution(Destination destination) {
+        destination.retryAt = System.currentTimeMillis() + RESOLVE_RETRY_MS;
+        if (pendingResolutions >= destinations.length) {
+            return;
+        }
+        pendingResolutions++;
+        Resolution resolution = new Resolution(destination, destination.generation);
+        String host = destination.host;
+        int port = destination.port;
+        Thread resolver = new Thread(() -> {
+            try {
+                InetSocketAddress resolved = listener.resolve(host, port);
+                resolution.address = resolved.isUnresolved() ? null : resolved;
+            } catch (IOException e) {
+                // Повторим после RESOLVE_RETRY_MS
+            }
+            resolutions.add(resolution);
+            selector.wakeup();
+        }, "udp-resolve");
+        resolver.setDaemon(true);
+        resolver.start();
+    }
+
+    /**
+     * Переносит готовые результаты разрешения в кеш; результат для уже
+     * вытесненной записи отбрасывается
+     */
+    private void applyResolutions() {
+        Resolution resolution;
+        while ((resolution = resolutions.poll()) != null) {
+            pendingResolutions--;
+            Destination destination = resolution.destination;
+            if (destination.generation == resolution.generation && resolution.address != null) {
+                destination.address = resolution.address;
+                destination.retryAt = 0;
+            }
+        }
+    }
+
+    private static int writeHeader(InetSocketAddress sender, byte[] header) {
+        byte[] address = sender.getAddress().getAddress();
+        header[0] = 0;
+        header[1] = 0;
+        header[2] = 0;
+        header[3] = (byte) (address.length == 4 ? Socks5Protocol.ATYP_IPV4 : Socks5Protocol.ATYP_IPV6);
+        System.arraycopy(address, 0, header, 4, address.length);
+        header[4 + address.length] = (byte) (sender.getPort() >>> 8);
+        header[5 + address.length] = (byte) sender.getPort();
+        return 6 + address.length;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        selector.wakeup();
+        closeQuietly(clientChannel);
+        closeQuietly(remoteChannel);
+        closeQuietly(selector);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Уже закрыт
+        }
+    }
+
+    /**
+     * Запись кеша назначений: сырые байты ATYP+адрес+порт и готовый адрес.
+     * Без адреса запись либо запрещена (retryAt == 0), либо ждет разрешения
+     * имени до retryAt
+     */
+    private static final class Destination {
+        // ATYP(1) + длина имени(1) + имя(255) + порт(2)
+        private final byte[] raw = new byte[259];
+        private int rawLength;
+        private int generation;
+        private String host;
+        private int port;
+        private InetSocketAddress address;
+        private long retryAt;
+
+        private boolean matches(ByteBuffer packet, int length) {
+            if (rawLength != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (raw[i] != packet.get(3 + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void store(ByteBuffer packet, int length) {
+            packet.get(3, raw, 0, length);
+            rawLength = length;
+            generation++;
+            address = null;
+            retryAt = 0;
+        }
+    }
+
+    /**
+     * Результат разрешения имени для записи кеша данного поколения
+     */
+    private static final class Resolution {
+        private final Destination destination;
+        private final int generation;
+        private InetSocketAddress address;
+
+        private Resolution(Destination destination, int generation) {
+            this.destination = destination;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package ru.vladtop46.proxy.timeout;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.logging.ProxyLogger;
+import ru.vladtop46.proxy.model.ConnectionInfo;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Закрывает соединения, превысившие таймаут рукопожатия, простоя или общего
+ * времени жизни. Все соединения обслуживаются одним колесом таймеров.
+ */
+public class ConnectionReaper {
+    private final HashedTimerWheel wheel;
+    private final ProxyConfig.TimeoutSettings settings;
+    private final ProxyLogger logger;
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicLong reapedHandshake = new AtomicLong();
+    private final AtomicLong reapedIdle = new AtomicLong();
+    private final AtomicLong reapedLifetime = new AtomicLong();
+
+    public ConnectionReaper(ProxyConfig.TimeoutSettings settings, ProxyLogger logger) {
+        this.settings = settings;
+        this.logger = logger;
+        this.wheel = new HashedTimerWheel(settings.getTickMs(), settings.getWheelSize(), logger);
+    }
+
+    /**
+     * Начинает отслеживание нового клиентского соединения в фазе рукопожатия
+     * @param connInfo информация о соединении
+     * @param clientSocket клиентский сокет
+     * @return дескриптор отслеживаемого соединения
+     */
+    public WatchedConnection watch(ConnectionInfo connInfo, Socket clientSocket) {
+        WatchedConnection connection = new WatchedConnection(connInfo, clientSocket);
+        activeCount.incrementAndGet();
+        connection.schedule(toTicks(settings.getHandshakeTimeoutMs()));
+        return connection;
+    }
+
+    /**
+     * Колесо таймеров, общее для остальных таймаутов прокси
+     */
+    public HashedTimerWheel getWheel() {
+        return wheel;
+    }
+
+    public String getStatus() {
+        return String.format("Connection reaper: watched=%d, reaped handshake=%d, idle=%d, lifetime=%d",
+                activeCount.get(), reapedHandshake.get(), reapedIdle.get(), reapedLifetime.get());
+    }
+
+    public long getReapedIdle() {
+        return reapedIdle.get();
+    }
+
+    public long getReapedLifetime() {
+        return reapedLifetime.get();
+    }
+
+    public long getReapedHandshake() {
+        return reapedHandshake.get();
+    }
+
+    private long toTicks(long millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        long tickMillis = Math.max(1, wheel.getTickMillis());
+        return Math.max(1, (millis + tickMillis - 1) / tickMillis);
+    }
+
+    /**
+     * Отслеживаемое соединение. Методы {@link #touch()} вызываются из потоков
+     * пересылки на каждом чтении, поэтому только пишут volatile-поле.
+     */
+    public class WatchedConnection implements HashedTimerWheel.TimerTask {
+        private final ConnectionInfo connInfo;
+        private final Socket clientSocket;
+        private final long handshakeDeadlineTick;
+        private volatile Socket upstreamSocket;
+        private volatile boolean handshakeDone;
+        private volatile long idleTicks;
+        private volatile long lifetimeDeadlineTick;
+        private volatile long lastActivityTick;
+        private volatile boolean closed;
+        private volatile HashedTimerWheel.Timeout timeout;
+
+        private WatchedConnection(ConnectionInfo connInfo, Socket clientSocket) {
+            this.connInfo = connInfo;
+            this.clientSocket = clientSocket;
+            long now = wheel.currentTick();
+            long handshakeTicks = toTicks(settings.getHandshakeTimeoutMs());
+            this.handshakeDeadlineTick = handshakeTicks > 0 ? now + handshakeTicks : Long.MAX_VALUE;
+            this.lifetimeDeadlineTick = Long.MAX_VALUE;
+            this.lastActivityTick = now;
+        }
+
+        /**
+         * Отмечает активность на соединении
+         */
+        public void touch() {
+            lastActivityTick = wheel.currentTick();
+        }
+
+        /**
+         * Привязывает сокет апстрима, который будет закрыт вместе с клиентским
+         */
+        public void setUpstream(Socket upstreamSocket) {
+            this.upstreamSocket = upstreamSocket;
+            if (closed) {
+                closeQuietly(upstreamSocket);
+            }
+        }
+
+        /**
+         * Завершает фазу рукопожатия и включает таймауты для типа соединения
+         * @param connectionType HTTP, HTTPS или WEBSOCKET
+         */
+        public void activate(String connectionType) {
+            long idleMillis;
+            long lifetimeMillis;
+            switch (connectionType) {
+                case "HTTPS":
+                case "SOCKS5":
+                case "SOCKS5_UDP":
+                case "HTTP2":
+                    idleMillis = settings.getTunnelIdleTimeoutMs();
+                    lifetimeMillis = settings.getTunnelMaxLifetimeMs();
+                    break;
+                case "WEBSOCKET":
+                    idleMillis = settings.getWebSocketIdleTimeoutMs();
+                    lifetimeMillis = settings.getWebSocketMaxLifetimeMs();
+                    break;
+                default:
+                    idleMillis = settings.getHttpIdleTimeoutMs();
+                    lifetimeMillis = settings.getHttpMaxLifetimeMs();
+                    break;
+            }
+
+            long now = wheel.currentTick();
+            long lifetimeTicks = toTicks(lifetimeMillis);
+            this.idleTicks = toTicks(idleMillis);
+            this.lifetimeDeadlineTick = lifetimeTicks > 0 ? now + lifetimeTicks : Long.MAX_VALUE;
+            this.lastActivityTick = now;
+            this.handshakeDone = true;
+
+            // Таймаут рукопожатия больше не нужен, планируем ближайший из новых
+            HashedTimerWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+            schedule(nextDeadline(now) - now);
+        }
+
+        /**
+         * Прекращает отслеживание при штатном закрытии соединения
+         */
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            activeCount.decrementAndGet();
+            HashedTimerWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        @Override
+        public void run(HashedTimerWheel.Timeout expired) {
+            if (closed || expired != timeout) {
+                return;
+            }
+
+            long now = wheel.currentTick();
+            if (!handshakeDone && now >= handshakeDeadlineTick) {
+                reap("HANDSHAKE_TIMEOUT", reapedHandshake);
+            } else if (now >= lifetimeDeadlineTick) {
+                reap("LIFETIME_EXCEEDED", reapedLifetime);
+            } else if (handshakeDone && idleTicks > 0 && now - lastActivityTick >= idleTicks) {
+                reap("IDLE_TIMEOUT", reapedIdle);
+            } else {
+                long next = nextDeadline(now);
+                if (next != Long.MAX_VALUE) {
+                    schedule(next - now);
+                }
+            }
+        }
+
+        private long nextDeadline(long now) {
+            long next = handshakeDone ? Long.MAX_VALUE : handshakeDeadlineTick;
+            next = Math.min(next, lifetimeDeadlineTick);
+            if (handshakeDone && idleTicks > 0) {
+                next = Math.min(next, lastActivityTick + idleTicks);
+            }
+            return next == Long.MAX_VALUE ? next : Math.max(next, now + 1);
+        }
+
+        private void schedule(long ticks) {
+            if (ticks <= 0 || closed) {
+                return;
+            }
+            timeout = wheel.newTimeout(this, ticks * wheel.getTickMillis());
+        }
+
+        private void reap(String reason, AtomicLong counter) {
+            counter.incrementAndGet();
+            logger.log(String.format("%s [%s] REAPED: %s", connInfo.getLogPrefix(),
+                    connInfo.getConnectionType(), reason));
+            close();
+            // Закрытие сокетов прерывает блокирующие чтения в потоках пересылки
+            closeQuietly(clientSocket);
+            closeQuietly(upstreamSocket);
+        }
+
+        private void closeQuietly(Socket socket) {
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Сокет уже закрыт
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package ru.vladtop46.proxy.timeout;
+
+import ru.vladtop46.proxy.logging.ProxyLogger;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Хешированное колесо таймеров: один поток обслуживает таймауты всех соединений.
+ * Добавление и отмена таймаута не берут блокировок, срабатывание имеет
+ * точность в один тик.
+ */
+public class HashedTimerWheel {
+    private final long tickNanos;
+    private final int mask;
+    private final Queue<Timeout>[] buckets;
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final Thread worker;
+    private final ProxyLogger logger;
+    private final long startTime;
+    private volatile long currentTick;
+    private volatile boolean running = true;
+
+    /**
+     * Задача, выполняемая при срабатывании таймаута в потоке колеса
+     */
+    public interface TimerTask {
+        void run(Timeout timeout);
+    }
+
+    /**
+     * @param tickMillis длительность одного тика
+     * @param wheelSize число ячеек колеса (округляется до степени двойки)
+     * @param logger журнал ошибок задач таймаутов
+     */
+    public HashedTimerWheel(long tickMillis, int wheelSize, ProxyLogger logger) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) * 2 - 1);
+        this.mask = size - 1;
+        this.logger = logger;
+        this.buckets = newBuckets(size);
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::workerLoop, "timer-wheel");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Queue<Timeout>[] newBuckets(int size) {
+        return (Queue<Timeout>[]) new Queue<?>[size];
+    }
+
+    /**
+     * Планирует выполнение задачи через указанное время
+     * @param task задача
+     * @param delayMillis задержка в миллисекундах
+     * @return дескриптор таймаута для отмены
+     */
+    public Timeout newTimeout(TimerTask task, long delayMillis) {
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        Timeout timeout = new Timeout(task, deadline);
+        pendingTimeouts.add(timeout);
+        pendingCount.incrementAndGet();
+        return timeout;
+    }
+
+    /**
+     * Номер текущего тика; дешевая грубая отметка времени для учета активности
+     */
+    public long currentTick() {
+        return currentTick;
+    }
+
+    public long getTickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    public long getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void workerLoop() {
+        long tick = 0;
+        while (running) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+
+            transferPendingTimeouts(tick);
+            expireBucket(buckets[(int) (tick & mask)]);
+            tick++;
+            currentTick = tick;
+        }
+    }
+
+    private void transferPendingTimeouts(long tick) {
+        // Ограничиваем объем переноса за тик, чтобы не задерживать срабатывания
+        for (int i = 0; i < 100_000; i++) {
+            Timeout timeout = pendingTimeouts.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.cancelled) {
+                pendingCount.decrementAndGet();
+                continue;
+            }
+
+            long expiryTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (expiryTick - tick) / buckets.length;
+            long targetTick = Math.max(expiryTick, tick);
+            buckets[(int) (targetTick & mask)].add(timeout);
+        }
+    }
+
+    private void expireBucket(Queue<Timeout> bucket) {
+        int size = bucket.size();
+        for (int i = 0; i < size; i++) {
+            Timeout timeout = bucket.poll();
+            if (timeout.cancelled) {
+                pendingCount.decrementAndGet();
+            } else if (timeout.remainingRounds <= 0) {
+                pendingCount.decrementAndGet();
+                expire(timeout);
+            } else {
+                timeout.remainingRounds--;
+                bucket.add(timeout);
+            }
+        }
+    }
+
+    private void expire(Timeout timeout) {
+        try {
+            timeout.task.run(timeout);
+        } catch (Throwable t) {
+            logger.log("Timer task failed: " + t);
+        }
+    }
+
+    /**
+     * Запланированный таймаут
+     */
+    public static final class Timeout {
+        private final TimerTask task;
+        private final long deadline;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+
+        private Timeout(TimerTask task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Отменяет таймаут; ячейка колеса освобождается при следующем обходе
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package ru.vladtop46.proxy.tls;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.logging.ProxyLogger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * TLS на порту прокси: рукопожатия принятых соединений выполняются в
+ * ограниченном пуле, а не в потоке приема и не в обработчике.
+ * <p>
+ * Соединение оборачивается в {@link SSLSocket} (внутри - {@code SSLEngine}),
+ * поэтому обработчики работают с ним как с обычным сокетом. Сессии
+ * хранятся в кеше контекста и возобновляются без полного рукопожатия: в
+ * TLS 1.2 по идентификатору сессии или билету, в TLS 1.3 по PSK. При
+ * переполнении очереди рукопожатий новые соединения закрываются сразу.
+ */
+public class TlsHandshaker {
+    private final ProxyLogger logger;
+    private final ThreadPoolExecutor pool;
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong handshakeNanos = new AtomicLong();
+    // Идентификаторы уже встречавшихся сессий, от давних к недавним
+    private final Map<String, Boolean> knownSessions = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile ProxyConfig.TlsSettings settings;
+    private volatile SSLContext context;
+    // Версия хранилища ключей, из которой собран контекст
+    private volatile String keystoreVersion;
+
+    // Скорость рукопожатий: окно в одну секунду
+    private final Object rateLock = new Object();
+    private long currentSecond;
+    private long currentCount;
+    private long lastSecondCount;
+    private long peakPerSecond;
+
+    /**
+     * @throws IOException хранилище ключей не удалось прочитать
+     * @throws GeneralSecurityException в хранилище нет подходящего ключа
+     */
+    public TlsHandshaker(ProxyConfig.TlsSettings settings, ProxyLogger logger)
+            throws IOException, GeneralSecurityException {
+        this.settings = settings;
+        this.logger = logger;
+        this.context = createContext(settings);
+        this.keystoreVersion = keystoreVersion(settings);
+        int threads = Math.max(1, settings.getHandshakeThreads());
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, settings.getHandshakeQueueSize())), runnable -> {
+                    Thread thread = new Thread(runnable, "tls-handshake-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    private static SSLContext createContext(ProxyConfig.TlsSettings settings)
+            throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(settings.getKeystoreType());
+        char[] storePassword = settings.getKeystorePassword().toCharArray();
+        try (InputStream in = Files.newInputStream(Paths.get(settings.getKeystoreFile()))) {
+            keyStore.load(in, storePassword);
+        }
+        String keyPassword = settings.getKeyPassword();
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, keyPassword == null || keyPassword.isEmpty()
+                ? storePassword : keyPassword.toCharArray());
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(Math.max(0, settings.getSessionCacheSize()));
+        sessions.setSessionTimeout(Math.max(0, settings.getSessionTimeoutSeconds()));
+        return context;
+    }
+
+    private static String keystoreVersion(ProxyConfig.TlsSettings settings) {
+        Path path = Paths.get(settings.getKeystoreFile());
+        long modified;
+        try {
+            modified = Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            modified = -1;
+        }
+        return settings.getKeystoreFile() + "|" + settings.getKeystoreType() + "|"
+                + settings.getKeystorePassword() + "|" + settings.getKeyPassword() + "|" + modified;
+    }
+
+    /**
+     * Применяет настройки; замененное хранилище ключей (новый сертификат)
+     * перечитывается, кеш сессий при этом начинается заново. Адреса
+     * прослушивания и размер пула не меняются до перезапуска.
+     */
+    public void update(ProxyConfig.TlsSettings settings) {
+        this.settings = settings;
+        String version = keystoreVersion(settings);
+        if (version.equals(keystoreVersion)) {
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(Math.max(0, settings.getSessionCacheSize()));
+            sessions.setSessionTimeout(Math.max(0, settings.getSessionTimeoutSeconds()));
+            return;
+        }
+        try {
+            context = createContext(settings);
+            keystoreVersion = version;
+            logger.log("TLS keystore reloaded: " + settings.getKeystoreFile());
+        } catch (IOException | GeneralSecurityException e) {
+            logger.log("TLS keystore reload failed, keeping previous certificate: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ставит рукопожатие в очередь пула и сразу возвращается
+     * @param socket принятое соединение
+     * @param onReady получает защищенный сокет после рукопожатия, вызывается в потоке пула
+     */
+    public void handshake(Socket socket, Consumer<Socket> onReady) {
+        try {
+            pool.execute(() -> complete(socket, onReady));
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            closeQuietly(socket);
+        }
+    }
+
+    private void complete(Socket socket, Consumer<Socket> onReady) {
+        ProxyConfig.TlsSettings current = settings;
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        SSLSocket tls;
+        try {
+            socket.setSoTimeout(current.getHandshakeTimeoutMs());
+            tls = (SSLSocket) context.getSocketFactory().createSocket(socket,
+                    socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+            tls.setUseClientMode(false);
+            String[] protocols = supportedProtocols(tls, current);
+            if (protocols.length > 0) {
+                tls.setEnabledProtocols(protocols);
+            }
+            tls.startHandshake();
+            tls.setSoTimeout(0);
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            closeQuietly(socket);
+            return;
+        }
+
+        handshakes.incrementAndGet();
+        handshakeNanos.addAndGet(System.nanoTime() - start);
+        countHandshake();
+        if (isResumed(tls.getSession(), startMillis, current)) {
+            resumed.incrementAndGet();
+        }
+        onReady.accept(tls);
+    }
+
+    /**
+     * Возобновленная сессия либо уже встречалась по идентификатору (кеш
+     * сессий TLS 1.2), либо создана до начала рукопожатия: при возобновлении
+     * по билету или PSK идентификатор новый, но время создания берется из
+     * билета исходной сессии.
+     */
+    private boolean isResumed(SSLSession session, long startMillis, ProxyConfig.TlsSettings current) {
+        boolean known = false;
+        byte[] id = session.getId();
+        if (id != null && id.length > 0) {
+            String key = Base64.getEncoder().encodeToString(id);
+            int limit = Math.max(1, current.getSessionCacheSize());
+            synchronized (knownSessions) {
+                known = knownSessions.put(key, Boolean.TRUE) != null;
+                Iterator<String> eldest = knownSessions.keySet().iterator();
+                while (knownSessions.size() > limit && eldest.hasNext()) {
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+        return known || session.getCreationTime() < startMillis;
+    }
+
+    private static String[] supportedProtocols(SSLSocket socket, ProxyConfig.TlsSettings settings) {
+        if (settings.getProtocols() == null || settings.getProtocols().isEmpty()) {
+            return new String[0];
+        }
+        return Arrays.stream(socket.getSupportedProtocols())
+                .filter(settings.getProtocols()::contains)
+                .toArray(String[]::new);
+    }
+
+    private void countHandshake() {
+        synchronized (rateLock) {
+            long second = System.nanoTime() / 1_000_000_000L;
+            if (second != currentSecond) {
+                lastSecondCount = second == currentSecond + 1 ? currentCount : 0;
+                currentSecond = second;
+                currentCount = 0;
+            }
+            currentCount++;
+            peakPerSecond = Math.max(peakPerSecond, currentCount);
+        }
+    }
+
+    /**
+     * Число рукопожатий за последнюю завершившуюся секунду
+     */
+    public long getHandshakeRate() {
+        synchronized (rateLock) {
+            long second = System.nanoTime() / 1_000_000_000L;
+            if (second == currentSecond) {
+                return lastSecondCount;
+            }
+            return second == currentSecond + 1 ? currentCount : 0;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Закрываем молча
+        }
+    }
+
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    public String getStatus() {
+        long total = handshakes.get();
+        long resumedCount = resumed.get();
+        long peak;
+        synchronized (rateLock) {
+            peak = peakPerSecond;
+        }
+        return String.format("TLS: handshakes=%d, rate=%d/s, peak=%d/s, resumed=%d (%.1f%%), failed=%d, "
+                        + "rejected=%d, avg=%.2f ms, pool active=%d, queued=%d",
+                total, getHandshakeRate(), peak, resumedCount,
+                total > 0 ? resumedCount * 100.0 / total : 0.0, failed.get(), rejected.get(),
+                total > 0 ? handshakeNanos.get() / 1e6 / total : 0.0, pool.getActiveCount(), pool.getQueue().size());
+    }
+}
@@ -0,0 +1,127 @@
+package ru.vladtop46.proxy.tools;
+
+import ru.vladtop46.proxy.security.CompiledBlocklist;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Компилирует текстовые списки хостов в формат {@link CompiledBlocklist}.
+ * <p>
+ * Понимает строки вида {@code example.com}, {@code 0.0.0.0 example.com}
+ * (формат hosts) и {@code ||example.com^} (Adblock); комментарии
+ * {@code #} и {@code !} пропускаются.
+ * <p>
+ * Запуск: {@code java -cp WebProxy.jar ru.vladtop46.proxy.tools.BlocklistCompiler out.wpbl in1.txt [in2.txt ...]}
+ */
+public class BlocklistCompiler {
+    // ~1% ложных срабатываний при 7 хеш-функциях
+    private static final int BLOOM_BITS_PER_ENTRY = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BlocklistCompiler <output.wpbl> <hosts.txt> [more host lists...]");
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        long[] keys = new long[1024];
+        int count = 0;
+        for (int i = 1; i < args.length; i++) {
+            try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[i]), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String domain = parseLine(line);
+                    if (domain == null) {
+                        continue;
+                    }
+                    if (count == keys.length) {
+                        keys = Arrays.copyOf(keys, keys.length * 2);
+                    }
+                    keys[count++] = CompiledBlocklist.hash(domain, 0);
+                }
+            }
+        }
+
+        int unique = sortUnique(keys, count);
+        write(Paths.get(args[0]), keys, unique);
+        System.out.printf("Compiled %d domains (%d lines) into %s in %d ms%n",
+                unique, count, args[0], (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Извлекает домен из строки списка
+     * @return домен или null для пустых строк, комментариев и нераспознанных правил
+     */
+    static String parseLine(String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#") || trimmed.startsWith("!")) {
+            return null;
+        }
+
+        int comment = trimmed.indexOf('#');
+        if (comment > 0) {
+            trimmed = trimmed.substring(0, comment).trim();
+        }
+
+        if (trimmed.startsWith("||")) {
+            int end = trimmed.indexOf('^');
+            trimmed = end > 2 ? trimmed.substring(2, end) : trimmed.substring(2);
+        } else {
+            String[] parts = trimmed.split("\\s+");
+            trimmed = parts.length > 1 ? parts[1] : parts[0];
+        }
+
+        if (trimmed.isEmpty() || trimmed.indexOf('/') >= 0 || trimmed.indexOf('*') >= 0
+                || "localhost".equals(trimmed) || "0.0.0.0".equals(trimmed)) {
+            return null;
+        }
+        return trimmed.toLowerCase();
+    }
+
+    private static int sortUnique(long[] keys, int count) {
+        Arrays.sort(keys, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || keys[unique - 1] != keys[i]) {
+                keys[unique++] = keys[i];
+            }
+        }
+        return unique;
+    }
+
+    private static void write(Path output, long[] keys, int count) throws IOException {
+        long bloomBits = Long.highestOneBit(Math.max(64L, (long) count * BLOOM_BITS_PER_ENTRY) * 2 - 1);
+        long[] bloom = new long[(int) (bloomBits / 64)];
+        for (int i = 0; i < count; i++) {
+            CompiledBlocklist.addToBloom(bloom, BLOOM_HASHES, keys[i]);
+        }
+
+        // Пишем во временный файл и переименовываем, чтобы сервер не увидел файл наполовину
+        Path temp = output.resolveSibling(output.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(CompiledBlocklist.MAGIC);
+            out.writeInt(CompiledBlocklist.VERSION);
+            out.writeLong(count);
+            out.writeLong(bloomBits);
+            out.writeInt(BLOOM_HASHES);
+            out.writeInt(0);
+            for (long word : bloom) {
+                out.writeLong(word);
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeLong(keys[i]);
+            }
+        }
+        Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,143 @@
+package ru.vladtop46.proxy.tools;
+
+import ru.vladtop46.proxy.filter.FilterChain;
+import ru.vladtop46.proxy.filter.FilterContext;
+import ru.vladtop46.proxy.filter.HeaderBlock;
+import ru.vladtop46.proxy.filter.HttpFilter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Замер стоимости цепочки фильтров: разбор заголовков запроса с цепочками
+ * разного состава и передача тела с фильтром тел и без него.
+ * <p>
+ * Запуск: {@code java -cp WebProxy.jar ru.vladtop46.proxy.tools.FilterChainBenchmark [iterations]}
+ */
+public class FilterChainBenchmark {
+    private static final byte[] REQUEST = ("GET http://example.com/static/app.js?v=42 HTTP/1.1\r\n"
+            + "Host: example.com\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) Gecko/20100101 Firefox/120.0\r\n"
+            + "Accept: */*\r\n"
+            + "Accept-Language: ru-RU,ru;q=0.8,en-US;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Referer: http://example.com/index.html\r\n"
+            + "Cookie: session=0123456789abcdef; theme=dark\r\n"
+            + "Proxy-Connection: keep-alive\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    private static final int BODY_BYTES = 1024 * 1024;
+    private static final int CHUNK = 8192;
+    // Результат замера, чтобы JIT не выбросил работу
+    private static volatile int sink;
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        FilterContext context = new FilterContext(null);
+
+        System.out.printf("%-34s %12s%n", "request headers", "ns/request");
+        benchmarkHeaders("BufferedReader + HashMap (before)", null, context, iterations);
+        benchmarkHeaders("HeaderBlock, empty chain", FilterChain.EMPTY, context, iterations);
+        benchmarkHeaders("HeaderBlock, remove-request-header",
+                FilterChain.build(List.of("remove-request-header Cookie")), context, iterations);
+        benchmarkHeaders("HeaderBlock, read-only filter", new FilterChain(List.of(new HttpFilter() {
+            @Override
+            public void onRequestHeaders(FilterContext context, HeaderBlock headers) {
+                if (headers.contains("x-debug")) {
+                    context.reject(400, "Bad Request");
+                }
+            }
+        })), context, iterations);
+        benchmarkHeaders("HeaderBlock, route",
+                FilterChain.build(List.of("route example.com backend.local:8080")), context, iterations);
+
+        int bodies = Math.max(1, iterations / 1000);
+        System.out.printf("%n%-34s %12s%n", "1 MB body in 8 KB chunks", "MB/s");
+        benchmarkBody("empty chain", FilterChain.EMPTY, context, bodies);
+        benchmarkBody("pass-through body filter", new FilterChain(List.of(new HttpFilter() {
+            @Override
+            public void onBodyChunk(FilterContext context, boolean fromClient, byte[] data, int offset, int length) {
+            }
+        })), context, bodies);
+    }
+
+    private static void benchmarkHeaders(String name, FilterChain chain, FilterContext context, int iterations)
+            throws IOException {
+        // Прогрев, затем замер
+        runHeaders(chain, context, iterations);
+        long start = System.nanoTime();
+        sink = runHeaders(chain, context, iterations);
+        double nanosPerRequest = (double) (System.nanoTime() - start) / iterations;
+        System.out.printf("%-34s %12.1f%n", name, nanosPerRequest);
+    }
+
+    /**
+     * Та же работа, что делает обработчик: разбор, фильтры, карта заголовков
+     */
+    private static int runHeaders(FilterChain chain, FilterContext context, int iterations) throws IOException {
+        int total = 0;
+        for (int i = 0; i < iterations; i++) {
+            // Как в обработчике: заголовки читаются из буферизованного потока сокета
+            InputStream in = new BufferedInputStream(new ByteArrayInputStream(REQUEST));
+            Map<String, String> headers;
+            if (chain == null) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+                total += reader.readLine().length();
+                headers = readHeaders(reader);
+            } else {
+                HeaderBlock block = HeaderBlock.read(in);
+                if (!chain.isEmpty() && chain.hasRequestFilters()) {
+                    chain.requestHeaders(context, block);
+                }
+                total += block.getFirstLine().length();
+                headers = block.asMap();
+            }
+            // Обработчик берет из карты отдельные заголовки
+            String host = headers.get("host");
+            total += host != null ? host.length() : 0;
+        }
+        return total;
+    }
+
+    private static Map<String, String> readHeaders(BufferedReader reader) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            int colonIndex = line.indexOf(':');
+            if (colonIndex > 0) {
+                headers.put(line.substring(0, colonIndex).trim().toLowerCase(), line.substring(colonIndex + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static void benchmarkBody(String name, FilterChain chain, FilterContext context, int bodies) {
+        byte[] source = new byte[BODY_BYTES];
+        byte[] target = new byte[BODY_BYTES];
+        runBody(chain, context, source, target, bodies);
+        long start = System.nanoTime();
+        runBody(chain, context, source, target, bodies);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-34s %12.0f%n", name, (double) bodies * BODY_BYTES / (1024 * 1024) / seconds);
+    }
+
+    private static void runBody(FilterChain chain, FilterContext context, byte[] source, byte[] target, int bodies) {
+        byte[] buffer = new byte[CHUNK];
+        for (int n = 0; n < bodies; n++) {
+            for (int offset = 0; offset < BODY_BYTES; offset += CHUNK) {
+                System.arraycopy(source, offset, buffer, 0, CHUNK);
+                if (chain.hasBodyFilters()) {
+                    chain.bodyChunk(context, false, buffer, 0, CHUNK);
+                }
+                System.arraycopy(buffer, 0, target, offset, CHUNK);
+            }
+        }
+    }
+}
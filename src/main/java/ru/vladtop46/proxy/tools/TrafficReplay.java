@@ -0,0 +1,515 @@
+package ru.vladtop46.proxy.tools;
+
+import ru.vladtop46.proxy.capture.CaptureFormat;
+import ru.vladtop46.proxy.capture.CaptureRecord;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Воспроизводит записанный трафик через локальный прокси.
+ * <p>
+ * Запросы из файла записи ({@code capture} в конфиге) отправляются на прокси
+ * с исходными интервалами между началами. Все они направляются к встроенному
+ * источнику-заглушке, который отвечает записанным кодом и объемом, выдерживая
+ * записанные время до ответа и длительность передачи, поэтому одновременность
+ * запросов повторяет исходную. CONNECT-туннели и WebSocket воспроизводятся
+ * объемом данных в каждую сторону. В конце выводятся задержки и пропускная
+ * способность.
+ * <p>
+ * Запуск: {@code java -cp WebProxy.jar ru.vladtop46.proxy.tools.TrafficReplay capture.wpcap 127.0.0.1:8080 [speed] [limit]}
+ * <p>
+ * speed 1 - исходный темп, 4 - в четыре раза быстрее, 0 - без пауз. Прокси
+ * должен пропускать соединения к 127.0.0.1.
+ */
+public class TrafficReplay {
+    private static final String REPLAY_HEADER = "x-replay-id";
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int SOCKET_TIMEOUT_MS = 120_000;
+    // Заголовки, которые задаются заново для заглушки
+    private static final Set<String> REPLACED_HEADERS = Set.of("host", "content-length", "transfer-encoding",
+            "connection", "proxy-connection", "keep-alive", "upgrade", "http2-settings", "expect", "te",
+            "sec-websocket-key", "sec-websocket-version", "sec-websocket-extensions", REPLAY_HEADER);
+
+    private final List<CaptureRecord> records;
+    private final String proxyHost;
+    private final int proxyPort;
+    private final double speed;
+    private final Queue<Result> results = new ConcurrentLinkedQueue<>();
+    private ServerSocket origin;
+
+    private TrafficReplay(List<CaptureRecord> records, String proxyHost, int proxyPort, double speed) {
+        this.records = records;
+        this.proxyHost = proxyHost;
+        this.proxyPort = proxyPort;
+        this.speed = speed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TrafficReplay <capture.wpcap> <proxy host:port> [speed] [limit]");
+            System.exit(1);
+        }
+        int colon = args[1].lastIndexOf(':');
+        if (colon < 0) {
+            System.err.println("Proxy address must be host:port");
+            System.exit(1);
+        }
+        double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        int limit = args.length > 3 ? Integer.parseInt(args[3]) : Integer.MAX_VALUE;
+
+        List<CaptureRecord> records = load(args[0], limit);
+        if (records.isEmpty()) {
+            System.out.println("No records in " + args[0]);
+            return;
+        }
+        TrafficReplay replay = new TrafficReplay(records, args[1].substring(0, colon),
+                Integer.parseInt(args[1].substring(colon + 1)), speed);
+        replay.run();
+    }
+
+    private static List<CaptureRecord> load(String file, int limit) throws IOException {
+        List<CaptureRecord> records = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(file)), 64 * 1024)) {
+            CaptureFormat.Reader reader = new CaptureFormat.Reader(in);
+            CaptureRecord record;
+            while (records.size() < limit && (record = reader.next()) != null) {
+                records.add(record);
+            }
+        }
+        // Записи попадают в файл по завершении, воспроизводятся по началу
+        records.sort(Comparator.comparingLong(CaptureRecord::getStartMicros));
+        return records;
+    }
+
+    private void run() throws Exception {
+        origin = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::acceptOrigin, "replay-origin");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        ExecutorService clients = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "replay-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long capturedSpan = records.get(records.size() - 1).getStartMicros() - records.get(0).getStartMicros();
+        System.out.printf("Replaying %d records (captured span %.1f s) via %s:%d at speed %s, stub origin port %d%n",
+                records.size(), capturedSpan / 1e6, proxyHost, proxyPort, speed == 0 ? "max" : speed,
+                origin.getLocalPort());
+
+        long base = records.get(0).getStartMicros();
+        long start = System.nanoTime();
+        for (int i = 0; i < records.size(); i++) {
+            CaptureRecord record = records.get(i);
+            sleepUntil(start + scaled(record.getStartMicros() - base));
+            int id = i;
+            clients.execute(() -> results.add(replay(id, record)));
+        }
+        clients.shutdown();
+        clients.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+        origin.close();
+        report(elapsed);
+    }
+
+    /**
+     * Интервал записи в наносекундах с учетом ускорения
+     */
+    private long scaled(long micros) {
+        if (speed <= 0 || micros <= 0) {
+            return 0;
+        }
+        return (long) (micros * 1000 / speed);
+    }
+
+    private static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private Result replay(int id, CaptureRecord record) {
+        Result result = new Result(record);
+        long start = System.nanoTime();
+        try (Socket socket = new Socket(proxyHost, proxyPort)) {
+            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE);
+            InputStream in = new BufferedInputStream(socket.getInputStream(), CHUNK_SIZE);
+            String authority = "127.0.0.1:" + origin.getLocalPort();
+
+            switch (record.getKind()) {
+                case CONNECT:
+                    out.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n")
+                            .getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                    String head = readHead(in, result, start);
+                    if (result.status != 200) {
+                        throw new IOException("Tunnel refused: " + head.split("\r\n")[0]);
+                    }
+                    out.write(("REPLAY " + id + "\n").getBytes(StandardCharsets.ISO_8859_1));
+                    writeBody(out, record.getRequestBody(), record.getBytesUp(), 0);
+                    out.flush();
+                    result.received = drain(in);
+                    break;
+                case WEBSOCKET:
+                    out.write(requestHead(record, id, authority, "GET",
+                            "Upgrade: websocket\r\nConnection: Upgrade\r\n"
+                                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n"));
+                    out.flush();
+                    readHead(in, result, start);
+                    if (result.status != 101) {
+                        throw new IOException("WebSocket upgrade refused: " + result.status);
+                    }
+                    writeFrames(out, record.getBytesUp(), true);
+                    out.flush();
+                    result.received = drain(in);
+                    break;
+                default:
+                    long bodyLength = record.getBytesUp();
+                    out.write(requestHead(record, id, authority, record.getMethod(),
+                            (bodyLength > 0 ? "Content-Length: " + bodyLength + "\r\n" : "")
+                                    + "Connection: close\r\n"));
+                    writeBody(out, record.getRequestBody(), bodyLength, 0);
+                    out.flush();
+                    readHead(in, result, start);
+                    result.received = drain(in);
+                    break;
+            }
+            result.ok = true;
+        } catch (IOException e) {
+            result.error = e.getMessage();
+        }
+        result.totalNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static byte[] requestHead(CaptureRecord record, int id, String authority, String method, String extra) {
+        StringBuilder head = new StringBuilder(method).append(" http://").append(authority)
+                .append(pathOf(record.getTarget())).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(authority).append("\r\n");
+        for (Map.Entry<String, String> header : record.getHeaders().entrySet()) {
+            if (!REPLACED_HEADERS.contains(header.getKey()) && !header.getKey().startsWith("proxy-")) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        head.append(REPLAY_HEADER).append(": ").append(id).append("\r\n").append(extra).append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Путь из записанной цели запроса: абсолютной формы или пути
+     */
+    private static String pathOf(String target) {
+        if (target.startsWith("/")) {
+            return target;
+        }
+        int scheme = target.indexOf("://");
+        int slash = target.indexOf('/', scheme >= 0 ? scheme + 3 : 0);
+        return slash >= 0 ? target.substring(slash) : "/";
+    }
+
+    /**
+     * Читает заголовок ответа и отмечает время первого байта
+     */
+    private static String readHead(InputStream in, Result result, long start) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("Connection closed before response");
+        }
+        result.firstByteNanos = System.nanoTime() - start;
+        int matched = 0;
+        while (b != -1) {
+            head.write(b);
+            matched = b == '\n' ? (matched == 1 ? 2 : 1) : (b == '\r' ? matched : 0);
+            if (matched == 2) {
+                break;
+            }
+            b = in.read();
+        }
+        String text = head.toString(StandardCharsets.ISO_8859_1);
+        String[] parts = text.split(" ", 3);
+        try {
+            result.status = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : -1;
+        } catch (NumberFormatException e) {
+            result.status = -1;
+        }
+        return text;
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    private void acceptOrigin() {
+        while (!origin.isClosed()) {
+            try {
+                Socket socket = origin.accept();
+                Thread thread = new Thread(() -> serveOrigin(socket), "replay-origin-conn");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // Заглушка закрыта по окончании воспроизведения
+            }
+        }
+    }
+
+    private void serveOrigin(Socket socket) {
+        try (socket) {
+            socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+            InputStream in = new BufferedInputStream(socket.getInputStream(), CHUNK_SIZE);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE);
+            String firstLine = readLine(in);
+            if (firstLine == null) {
+                return;
+            }
+            if (firstLine.startsWith("REPLAY ")) {
+                // Туннель: объем данных в каждую сторону и длительность
+                CaptureRecord record = records.get(Integer.parseInt(firstLine.substring(7).trim()));
+                skip(in, record.getBytesUp());
+                long transferNanos = scaled(record.getDurationMicros() - Math.max(0, record.getResponseMicros()));
+                writeBody(out, record.getResponseBody(), record.getBytesDown(), transferNanos);
+                out.flush();
+                return;
+            }
+
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+            String id = headers.get(REPLAY_HEADER);
+            if (id == null) {
+                out.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                return;
+            }
+            CaptureRecord record = records.get(Integer.parseInt(id));
+            long transferNanos = scaled(Math.max(0, record.getDurationMicros() - Math.max(0, record.getResponseMicros())));
+
+            if ("websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+                out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                        + "Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                skipFrames(in, record.getBytesUp());
+                sleepUntil(System.nanoTime() + transferNanos / 2);
+                writeFrames(out, record.getBytesDown(), false);
+                out.write(new byte[]{(byte) 0x88, 0});
+                out.flush();
+                return;
+            }
+
+            skip(in, parseLength(headers.get("content-length")));
+            sleepUntil(System.nanoTime() + scaled(record.getResponseMicros()));
+            int status = record.getStatus() >= 200 ? record.getStatus() : 200;
+            boolean noBody = "HEAD".equals(firstLine.split(" ")[0]) || status == 204 || status == 304;
+            long length = noBody ? 0 : record.getBytesDown();
+            out.write(("HTTP/1.1 " + status + " Replay\r\nContent-Type: application/octet-stream\r\n"
+                    + "Content-Length: " + length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            writeBody(out, record.getResponseBody(), length, transferNanos);
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            // Клиент воспроизведения получит ошибку со своей стороны
+        }
+    }
+
+    private static long parseLength(String value) {
+        try {
+            return value == null ? 0 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return b == -1 && line.size() == 0 ? null : line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void skip(InputStream in, long length) throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        while (length > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (read == -1) {
+                throw new EOFException();
+            }
+            length -= read;
+        }
+    }
+
+    /**
+     * Пишет тело: записанное начало, дальше заполнитель; передача растягивается
+     * на заданное время, чтобы повторить скорость источника
+     */
+    private static void writeBody(OutputStream out, byte[] sample, long length, long durationNanos)
+            throws IOException {
+        byte[] filler = new byte[CHUNK_SIZE];
+        ThreadLocalRandom.current().nextBytes(filler);
+        long start = System.nanoTime();
+        long written = 0;
+        if (sample.length > 0) {
+            int count = (int) Math.min(sample.length, length);
+            out.write(sample, 0, count);
+            written = count;
+        }
+        while (written < length) {
+            int count = (int) Math.min(filler.length, length - written);
+            out.write(filler, 0, count);
+            written += count;
+            if (durationNanos > 0) {
+                out.flush();
+                sleepUntil(start + (long) ((double) durationNanos * written / length));
+            }
+        }
+    }
+
+    /**
+     * Отправляет объем данных кадрами WebSocket; клиентские кадры маскируются
+     */
+    private static void writeFrames(OutputStream out, long length, boolean masked) throws IOException {
+        byte[] payload = new byte[CHUNK_SIZE];
+        while (length > 0) {
+            int count = (int) Math.min(payload.length, length);
+            out.write(0x82);
+            if (count < 126) {
+                out.write((masked ? 0x80 : 0) | count);
+            } else {
+                out.write((masked ? 0x80 : 0) | 126);
+                out.write(count >>> 8);
+                out.write(count & 0xFF);
+            }
+            if (masked) {
+                // Нулевая маска оставляет данные как есть
+                out.write(new byte[4]);
+            }
+            out.write(payload, 0, count);
+            length -= count;
+        }
+    }
+
+    private static void skipFrames(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            int first = in.read();
+            int second = in.read();
+            if (first == -1 || second == -1) {
+                throw new EOFException();
+            }
+            long payload = second & 0x7F;
+            if (payload == 126) {
+                payload = (in.read() & 0xFF) << 8 | (in.read() & 0xFF);
+            } else if (payload == 127) {
+                payload = 0;
+                for (int i = 0; i < 8; i++) {
+                    payload = payload << 8 | (in.read() & 0xFF);
+                }
+            }
+            if ((second & 0x80) != 0) {
+                skip(in, 4);
+            }
+            skip(in, payload);
+            length -= payload;
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        List<Result> all = new ArrayList<>(results);
+        Map<CaptureRecord.Kind, List<Result>> byKind = new EnumMap<>(CaptureRecord.Kind.class);
+        long received = 0;
+        int errors = 0;
+        int statusMismatches = 0;
+        for (Result result : all) {
+            byKind.computeIfAbsent(result.record.getKind(), kind -> new ArrayList<>()).add(result);
+            received += result.received;
+            if (!result.ok) {
+                errors++;
+            } else if (result.record.getKind() == CaptureRecord.Kind.HTTP && result.record.getStatus() >= 200
+                    && result.status != result.record.getStatus()) {
+                statusMismatches++;
+            }
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Replayed %d records in %.2f s: %.1f req/s, %.2f MB/s received, errors=%d, status mismatches=%d%n",
+                all.size(), seconds, all.size() / seconds, received / seconds / (1024 * 1024), errors, statusMismatches);
+        System.out.printf("%-10s %7s %7s %10s %10s %10s %10s %10s %10s %12s%n", "kind", "count", "errors",
+                "ttfb p50", "ttfb p90", "ttfb p99", "total p50", "total p90", "total p99", "captured p50");
+        for (Map.Entry<CaptureRecord.Kind, List<Result>> entry : byKind.entrySet()) {
+            List<Result> kindResults = entry.getValue();
+            long[] ttfb = kindResults.stream().filter(r -> r.ok).mapToLong(r -> r.firstByteNanos).sorted().toArray();
+            long[] total = kindResults.stream().filter(r -> r.ok).mapToLong(r -> r.totalNanos).sorted().toArray();
+            long[] captured = kindResults.stream().mapToLong(r -> r.record.getDurationMicros() * 1000).sorted().toArray();
+            long kindErrors = kindResults.stream().filter(r -> !r.ok).count();
+            System.out.printf("%-10s %7d %7d %10s %10s %10s %10s %10s %10s %12s%n", entry.getKey(),
+                    kindResults.size(), kindErrors, millis(ttfb, 0.5), millis(ttfb, 0.9), millis(ttfb, 0.99),
+                    millis(total, 0.5), millis(total, 0.9), millis(total, 0.99), millis(captured, 0.5));
+        }
+        all.stream().filter(r -> !r.ok).limit(5).forEach(r -> System.out.printf("  error: %s %s - %s%n",
+                r.record.getMethod(), r.record.getTarget(), r.error));
+    }
+
+    private static String millis(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return "-";
+        }
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1);
+        return String.format("%.1f ms", sorted[Math.max(0, index)] / 1e6);
+    }
+
+    private static final class Result {
+        private final CaptureRecord record;
+        private boolean ok;
+        private int status = -1;
+        private long firstByteNanos;
+        private long totalNanos;
+        private long received;
+        private String error;
+
+        private Result(CaptureRecord record) {
+            this.record = record;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package ru.vladtop46.proxy.tools;
+
+import ru.vladtop46.proxy.security.UrlFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Замер стоимости проверки одного URL в зависимости от числа правил.
+ * <p>
+ * Запуск: {@code java -cp WebProxy.jar ru.vladtop46.proxy.tools.UrlFilterBenchmark [iterations]}
+ */
+public class UrlFilterBenchmark {
+    private static final int[] RULE_COUNTS = {0, 100, 1_000, 10_000, 50_000, 100_000};
+    private static final int URL_COUNT = 1_000;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        Random random = new Random(42);
+        List<String> urls = generateUrls(random);
+
+        System.out.printf("%10s %12s %10s %12s %10s%n", "rules", "compile ms", "nodes", "ns/request", "blocked");
+        for (int ruleCount : RULE_COUNTS) {
+            List<String> rules = generateRules(random, ruleCount);
+
+            long compileStart = System.nanoTime();
+            UrlFilter filter = UrlFilter.compile(rules);
+            long compileMillis = (System.nanoTime() - compileStart) / 1_000_000;
+
+            // Прогрев, затем замер
+            run(filter, urls, iterations);
+            long start = System.nanoTime();
+            int blocked = run(filter, urls, iterations);
+            double nanosPerRequest = (double) (System.nanoTime() - start) / iterations;
+
+            System.out.printf("%10d %12d %10d %12.1f %10d%n",
+                    ruleCount, compileMillis, filter.getNodeCount(), nanosPerRequest, blocked);
+        }
+    }
+
+    private static int run(UrlFilter filter, List<String> urls, int iterations) {
+        int blocked = 0;
+        for (int i = 0; i < iterations; i++) {
+            if (!filter.isAllowed(urls.get(i % urls.size()))) {
+                blocked++;
+            }
+        }
+        return blocked;
+    }
+
+    private static List<String> generateUrls(Random random) {
+        List<String> urls = new ArrayList<>(URL_COUNT);
+        for (int i = 0; i < URL_COUNT; i++) {
+            urls.add(String.format("https://%s.%s.com/%s/%s?id=%d",
+                    word(random), word(random), word(random), word(random), random.nextInt(100_000)));
+        }
+        return urls;
+    }
+
+    private static List<String> generateRules(Random random, int count) {
+        List<String> rules = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            switch (i % 4) {
+                case 0:
+                    rules.add("||" + word(random) + "." + word(random) + ".com^");
+                    break;
+                case 1:
+                    rules.add("/" + word(random) + "/" + word(random) + "_ad.");
+                    break;
+                case 2:
+                    rules.add("|https://" + word(random) + ".net/" + word(random));
+                    break;
+                default:
+                    rules.add(word(random) + "*" + word(random) + ".js|");
+                    break;
+            }
+        }
+        return rules;
+    }
+
+    private static String word(Random random) {
+        int length = 3 + random.nextInt(6);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,106 @@
+package ru.vladtop46.proxy.upstream;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Кольцо согласованного хеширования с виртуальными узлами.
+ * <p>
+ * Кольцо неизменяемо: при изменении набора узлов строится новое. При
+ * выпадении узла его ключи переходят к следующим по кольцу узлам, а ключи
+ * остальных узлов остаются на месте.
+ */
+public class ConsistentHashRing<T> {
+    private final List<T> nodes;
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * @param nodes узлы кольца
+     * @param nodeKey строковый идентификатор узла, от которого берутся хеши виртуальных узлов
+     * @param virtualNodes число виртуальных узлов на один узел
+     */
+    public ConsistentHashRing(List<T> nodes, Function<T, String> nodeKey, int virtualNodes) {
+        this.nodes = List.copyOf(nodes);
+        int replicas = Math.max(1, virtualNodes);
+        long[] hashes = new long[this.nodes.size() * replicas];
+        int[] indexes = new int[hashes.length];
+
+        Integer[] order = new Integer[hashes.length];
+        for (int n = 0, p = 0; n < this.nodes.size(); n++) {
+            String key = nodeKey.apply(this.nodes.get(n));
+            for (int r = 0; r < replicas; r++, p++) {
+                hashes[p] = hash(key + "#" + r);
+                indexes[p] = n;
+                order[p] = p;
+            }
+        }
+        // Виртуальные узлы упорядочиваются по хешу; построение кольца не на горячем пути
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+
+        this.points = new long[hashes.length];
+        this.owners = new int[hashes.length];
+        for (int i = 0; i < order.length; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = indexes[order[i]];
+        }
+    }
+
+    public boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    /**
+     * Узел, владеющий ключом
+     */
+    public T get(String key) {
+        return get(key, node -> true);
+    }
+
+    /**
+     * Первый подходящий узел по часовой стрелке от хеша ключа
+     * @param usable фильтр узлов, например только здоровые
+     * @return узел или null, если подходящих нет
+     */
+    public T get(String key, Predicate<T> usable) {
+        if (points.length == 0) {
+            return null;
+        }
+        int start = Arrays.binarySearch(points, hash(key));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        int lastOwner = -1;
+        for (int i = 0; i < points.length; i++) {
+            int owner = owners[(start + i) % points.length];
+            if (owner == lastOwner) {
+                continue;
+            }
+            lastOwner = owner;
+            T node = nodes.get(owner);
+            if (usable.test(node)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 64-битный FNV-1a с финальным перемешиванием
+     */
+    static long hash(String key) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
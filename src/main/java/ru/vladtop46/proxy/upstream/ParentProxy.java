@@ -0,0 +1,103 @@
+package ru.vladtop46.proxy.upstream;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Родительский прокси из пула: адрес, число незавершенных соединений
+ * и состояние здоровья
+ */
+public class ParentProxy {
+    private final String name;
+    private final String host;
+    private final int port;
+    private volatile InetSocketAddress address;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong totalConnections = new AtomicLong();
+    private final AtomicLong totalFailures = new AtomicLong();
+    private volatile boolean healthy = true;
+
+    ParentProxy(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.name = host + ":" + port;
+        this.address = new InetSocketAddress(host, port);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Адрес для подключения; имя разрешается заново при активной проверке
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    void refreshAddress() {
+        InetSocketAddress resolved = new InetSocketAddress(host, port);
+        if (!resolved.isUnresolved()) {
+            address = resolved;
+        }
+    }
+
+    public void acquire() {
+        outstanding.incrementAndGet();
+        totalConnections.incrementAndGet();
+    }
+
+    public void release() {
+        outstanding.decrementAndGet();
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @return true если прокси был выведен из ротации и теперь возвращен
+     */
+    boolean recordSuccess() {
+        consecutiveFailures.set(0);
+        if (!healthy) {
+            healthy = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true если этой ошибкой прокси выведен из ротации
+     */
+    boolean recordFailure(int maxFailures) {
+        totalFailures.incrementAndGet();
+        if (consecutiveFailures.incrementAndGet() >= maxFailures && healthy) {
+            healthy = false;
+            return true;
+        }
+        return false;
+    }
+
+    public long getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    public long getTotalFailures() {
+        return totalFailures.get();
+    }
+}
@@ -0,0 +1,246 @@
+package ru.vladtop46.proxy.upstream;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.listener.ListenAddress;
+import ru.vladtop46.proxy.logging.ProxyLogger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Пул родительских прокси с выбором по наименьшему числу незавершенных
+ * соединений или согласованным хешированием по хосту назначения.
+ * <p>
+ * Прокси выводится из ротации после {@code maxFailures} ошибок подряд
+ * (и по трафику, и по активной проверке) и возвращается после первой
+ * успешной проверки. Состояние прокси переживает перезагрузку конфига,
+ * если прокси остался в списке.
+ */
+public class ParentProxyPool {
+    private static final String STRATEGY_CONSISTENT_HASH = "consistent-hash";
+    private static final String ROUTE_DIRECT = "direct";
+
+    private final ProxyLogger logger;
+    private final AtomicInteger roundRobin = new AtomicInteger();
+    private volatile State state;
+    private Thread healthChecker;
+    private volatile boolean running;
+
+    public ParentProxyPool(ProxyConfig.UpstreamSettings settings, ProxyLogger logger) {
+        this.logger = logger;
+        this.state = new State(settings, new HashMap<>(), logger);
+    }
+
+    /**
+     * Применяет новые настройки, сохраняя состояние прокси, оставшихся в списке
+     */
+    public void update(ProxyConfig.UpstreamSettings settings) {
+        Map<String, ParentProxy> existing = new HashMap<>();
+        for (ParentProxy parent : state.parents) {
+            existing.put(parent.getName(), parent);
+        }
+        state = new State(settings, existing, logger);
+    }
+
+    public synchronized void start() {
+        if (healthChecker != null) {
+            return;
+        }
+        running = true;
+        healthChecker = new Thread(this::runHealthChecks, "upstream-health");
+        healthChecker.setDaemon(true);
+        healthChecker.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (healthChecker != null) {
+            healthChecker.interrupt();
+            healthChecker = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        State current = state;
+        return current.settings.isEnabled() && !current.parents.isEmpty();
+    }
+
+    /**
+     * Решает, идет ли хост напрямую: самый длинный совпавший суффикс из
+     * directDomains/parentDomains, иначе маршрут по умолчанию
+     */
+    public boolean routesDirect(String host) {
+        State current = state;
+        String domain = host.toLowerCase();
+        int directMatch = longestSuffixMatch(domain, current.directDomains);
+        int parentMatch = longestSuffixMatch(domain, current.parentDomains);
+        if (directMatch == parentMatch) {
+            return ROUTE_DIRECT.equalsIgnoreCase(current.settings.getDefaultRoute());
+        }
+        return directMatch > parentMatch;
+    }
+
+    private static int longestSuffixMatch(String domain, List<String> suffixes) {
+        int best = -1;
+        for (String suffix : suffixes) {
+            if (suffix.length() > best && (domain.equals(suffix)
+                    || domain.endsWith(suffix) && domain.charAt(domain.length() - suffix.length() - 1) == '.')) {
+                best = suffix.length();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Выбирает здоровый родительский прокси для хоста
+     * @param host хост назначения
+     * @param exclude прокси, который уже не удалось использовать, или null
+     * @return прокси или null, если здоровых нет
+     */
+    public ParentProxy select(String host, ParentProxy exclude) {
+        State current = state;
+        if (STRATEGY_CONSISTENT_HASH.equalsIgnoreCase(current.settings.getStrategy())) {
+            return current.ring.get(host.toLowerCase(), parent -> parent.isHealthy() && parent != exclude);
+        }
+
+        // Наименьшее число незавершенных соединений; равные выбираются по кругу
+        List<ParentProxy> parents = current.parents;
+        int size = parents.size();
+        int offset = Math.floorMod(roundRobin.getAndIncrement(), Math.max(1, size));
+        ParentProxy best = null;
+        for (int i = 0; i < size; i++) {
+            ParentProxy parent = parents.get((offset + i) % size);
+            if (!parent.isHealthy() || parent == exclude) {
+                continue;
+            }
+            if (best == null || parent.getOutstanding() < best.getOutstanding()) {
+                best = parent;
+            }
+        }
+        return best;
+    }
+
+    public int getConnectTimeoutMs() {
+        return state.settings.getConnectTimeoutMs();
+    }
+
+    /**
+     * Ошибка соединения через прокси по реальному трафику
+     */
+    public void recordFailure(ParentProxy parent, String reason) {
+        if (parent.recordFailure(Math.max(1, state.settings.getMaxFailures()))) {
+            logger.log("Parent proxy " + parent.getName() + " ejected: " + reason);
+        }
+    }
+
+    public void recordSuccess(ParentProxy parent) {
+        if (parent.recordSuccess()) {
+            logger.log("Parent proxy " + parent.getName() + " reinstated");
+        }
+    }
+
+    private void runHealthChecks() {
+        while (running) {
+            State current = state;
+            if (current.settings.isEnabled()) {
+                for (ParentProxy parent : current.parents) {
+                    if (!running) {
+                        return;
+                    }
+                    checkParent(parent, current.settings.getHealthCheckTimeoutMs());
+                }
+            }
+            try {
+                Thread.sleep(Math.max(100, current.settings.getHealthCheckIntervalMs()));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Активная проверка: прокси должен принять TCP-соединение за отведенное время
+     */
+    private void checkParent(ParentProxy parent, int timeoutMs) {
+        if (!parent.isHealthy()) {
+            // Выведенный прокси мог сменить адрес
+            parent.refreshAddress();
+        }
+        try (Socket socket = new Socket()) {
+            socket.connect(parent.getAddress(), timeoutMs);
+            recordSuccess(parent);
+        } catch (IOException e) {
+            recordFailure(parent, "health check failed: " + e.getMessage());
+        }
+    }
+
+    public String getStatus() {
+        State current = state;
+        if (!isEnabled()) {
+            return "Upstream proxies: disabled";
+        }
+        StringBuilder sb = new StringBuilder("Upstream proxies (").append(current.settings.getStrategy()).append("):");
+        for (ParentProxy parent : current.parents) {
+            sb.append(String.format(" %s[%s, outstanding=%d, total=%d, failures=%d]",
+                    parent.getName(), parent.isHealthy() ? "up" : "ejected", parent.getOutstanding(),
+                    parent.getTotalConnections(), parent.getTotalFailures()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Неизменяемый набор прокси и правил, заменяется целиком при перезагрузке
+     */
+    private static final class State {
+        private final ProxyConfig.UpstreamSettings settings;
+        private final List<ParentProxy> parents;
+        private final ConsistentHashRing<ParentProxy> ring;
+        private final List<String> directDomains;
+        private final List<String> parentDomains;
+
+        private State(ProxyConfig.UpstreamSettings settings, Map<String, ParentProxy> existing, ProxyLogger logger) {
+            this.settings = settings;
+            List<ParentProxy> list = new ArrayList<>();
+            if (settings.getProxies() != null) {
+                for (String value : settings.getProxies()) {
+                    try {
+                        InetSocketAddress address = ListenAddress.parse(value);
+                        String name = address.getHostString() + ":" + address.getPort();
+                        ParentProxy parent = existing.get(name);
+                        list.add(parent != null ? parent : new ParentProxy(address.getHostString(), address.getPort()));
+                    } catch (IllegalArgumentException e) {
+                        logger.log("Invalid parent proxy address: " + value);
+                    }
+                }
+            }
+            this.parents = List.copyOf(list);
+            this.ring = new ConsistentHashRing<>(parents, ParentProxy::getName, settings.getVirtualNodes());
+            this.directDomains = normalize(settings.getDirectDomains());
+            this.parentDomains = normalize(settings.getParentDomains());
+        }
+
+        private static List<String> normalize(List<String> domains) {
+            List<String> result = new ArrayList<>();
+            if (domains != null) {
+                for (String domain : domains) {
+                    String value = domain.trim().toLowerCase();
+                    if (value.startsWith("*.")) {
+                        value = value.substring(2);
+                    } else if (value.startsWith(".")) {
+                        value = value.substring(1);
+                    }
+                    if (!value.isEmpty()) {
+                        result.add(value);
+                    }
+                }
+            }
+            return List.copyOf(result);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package ru.vladtop46.proxy.upstream;
+
+import java.io.IOException;
+
+/**
+ * Родительский прокси ответил на CONNECT отказом. Сам прокси при этом
+ * исправен, поэтому такая ошибка не выводит его из ротации.
+ */
+public class ParentRefusedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    public ParentRefusedException(String parent, int statusCode, String statusLine) {
+        super("Parent proxy " + parent + " refused tunnel: " + statusLine);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -0,0 +1,263 @@
+package ru.vladtop46.proxy.warmstart;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Адреса и задержка подключения для хостов, к которым ходит прокси.
+ * <p>
+ * Каждое прямое подключение к источнику обновляет адрес, по которому оно
+ * удалось (а с ним и семейство адресов), и сглаженное время подключения.
+ * При теплом старте таблица заполняется из снимка: пока имя хоста не
+ * разрешено заново, подключение идет сразу по сохраненному адресу, без
+ * ожидания DNS.
+ */
+public class HostTable {
+    // Вес нового замера в сглаженном времени подключения
+    private static final double ALPHA = 0.2;
+    // Сколько записей просматривать при вытеснении
+    private static final int EVICTION_SAMPLE = 16;
+
+    private final Map<String, Entry> hosts = new ConcurrentHashMap<>();
+    private final AtomicLong restoredConnects = new AtomicLong();
+    private final AtomicLong restoredFallbacks = new AtomicLong();
+    private volatile int capacity;
+
+    /**
+     * @param capacity сколько хостов помнить; в снимок попадают самые частые из них
+     */
+    public HostTable(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Учитывает удачное прямое подключение
+     * @param address адрес, к которому подключились
+     * @param connectNanos время подключения вместе с разрешением имени
+     */
+    public void recordConnect(String host, InetAddress address, long connectNanos) {
+        String key = host.toLowerCase();
+        Entry entry = hosts.get(key);
+        if (entry == null) {
+            if (hosts.size() >= capacity * 2) {
+                evictOne();
+            }
+            entry = hosts.computeIfAbsent(key, k -> new Entry());
+        }
+        synchronized (entry) {
+            entry.address = address;
+            entry.connects++;
+            entry.connectNanos = entry.connectNanos == 0
+                    ? connectNanos
+                    : (long) (entry.connectNanos * (1 - ALPHA) + connectNanos * ALPHA);
+            entry.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Вытесняет самый редкий хост из небольшой выборки
+     */
+    private void evictOne() {
+        String victim = null;
+        long fewest = Long.MAX_VALUE;
+        int seen = 0;
+        for (Iterator<Map.Entry<String, Entry>> it = hosts.entrySet().iterator();
+             it.hasNext() && seen < EVICTION_SAMPLE; seen++) {
+            Map.Entry<String, Entry> candidate = it.next();
+            if (candidate.getValue().connects < fewest) {
+                fewest = candidate.getValue().connects;
+                victim = candidate.getKey();
+            }
+        }
+        if (victim != null) {
+            hosts.remove(victim);
+        }
+    }
+
+    /**
+     * Адрес из снимка для хоста, имя которого после старта еще не
+     * разрешалось; после обновления имени возвращается null
+     */
+    public InetAddress restoredAddress(String host) {
+        Entry entry = hosts.get(host.toLowerCase());
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            if (!entry.pendingRefresh || entry.address == null) {
+                return null;
+            }
+            restoredConnects.incrementAndGet();
+            return entry.address;
+        }
+    }
+
+    /**
+     * Подключение по сохраненному адресу не удалось: адрес устарел
+     */
+    public void forgetRestored(String host) {
+        Entry entry = hosts.get(host.toLowerCase());
+        if (entry != null) {
+            synchronized (entry) {
+                entry.pendingRefresh = false;
+            }
+            restoredFallbacks.incrementAndGet();
+        }
+    }
+
+    /**
+     * Самые частые хосты, по убыванию числа подключений
+     */
+    public List<HostState> hottest(int limit) {
+        List<HostState> result = new ArrayList<>();
+        for (Map.Entry<String, Entry> item : hosts.entrySet()) {
+            Entry entry = item.getValue();
+            synchronized (entry) {
+                if (entry.address != null) {
+                    result.add(new HostState(item.getKey(), entry.address, entry.connects,
+                            entry.connectNanos, entry.lastUsed));
+                }
+            }
+        }
+        result.sort((a, b) -> Long.compare(b.getConnects(), a.getConnects()));
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    /**
+     * Заполняет таблицу из снимка; хосты, уже встреченные после старта, не трогаются
+     */
+    public void restore(HostState state) {
+        Entry entry = new Entry();
+        entry.address = state.getAddress();
+        entry.connects = state.getConnects();
+        entry.connectNanos = state.getConnectNanos();
+        entry.lastUsed = state.getLastUsed();
+        entry.pendingRefresh = true;
+        hosts.putIfAbsent(state.getHost(), entry);
+    }
+
+    /**
+     * Применяет свежий результат разрешения имени восстановленного хоста
+     * @param addresses все адреса хоста; из них берется адрес прежнего семейства
+     * @return адрес хоста изменился по сравнению со снимком
+     */
+    public boolean refreshed(String host, InetAddress[] addresses) {
+        Entry entry = hosts.get(host);
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            boolean wasPending = entry.pendingRefresh;
+            entry.pendingRefresh = false;
+            if (!wasPending || entry.address == null) {
+                return false;
+            }
+            InetAddress sameFamily = null;
+            for (InetAddress address : addresses) {
+                if (address.equals(entry.address)) {
+                    return false;
+                }
+                if (sameFamily == null && (address instanceof Inet6Address) == (entry.address instanceof Inet6Address)) {
+                    sameFamily = address;
+                }
+            }
+            entry.address = sameFamily != null ? sameFamily : addresses[0];
+            return true;
+        }
+    }
+
+    /**
+     * Имя восстановленного хоста не разрешилось: сохраненный адрес больше не используется
+     */
+    public void refreshFailed(String host) {
+        Entry entry = hosts.get(host);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.pendingRefresh = false;
+            }
+        }
+    }
+
+    public int size() {
+        return hosts.size();
+    }
+
+    public String getStatus() {
+        int pending = 0;
+        long totalNanos = 0;
+        int measured = 0;
+        for (Entry entry : hosts.values()) {
+            synchronized (entry) {
+                if (entry.pendingRefresh) {
+                    pending++;
+                }
+                if (entry.connectNanos > 0) {
+                    totalNanos += entry.connectNanos;
+                    measured++;
+                }
+            }
+        }
+        return String.format("Hosts: known=%d, pending refresh=%d, restored-address connects=%d, fallbacks=%d, "
+                        + "avg connect=%.1f ms",
+                hosts.size(), pending, restoredConnects.get(), restoredFallbacks.get(),
+                measured > 0 ? totalNanos / 1e6 / measured : 0.0);
+    }
+
+    private static final class Entry {
+        InetAddress address;
+        long connects;
+        long connectNanos;
+        long lastUsed;
+        // Адрес взят из снимка и еще не подтвержден разрешением имени
+        boolean pendingRefresh;
+    }
+
+    /**
+     * Состояние хоста для снимка
+     */
+    public static final class HostState {
+        private final String host;
+        private final InetAddress address;
+        private final long connects;
+        private final long connectNanos;
+        private final long lastUsed;
+
+        public HostState(String host, InetAddress address, long connects, long connectNanos, long lastUsed) {
+            this.host = host;
+            this.address = address;
+            this.connects = connects;
+            this.connectNanos = connectNanos;
+            this.lastUsed = lastUsed;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        public long getConnects() {
+            return connects;
+        }
+
+        public long getConnectNanos() {
+            return connectNanos;
+        }
+
+        public long getLastUsed() {
+            return lastUsed;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package ru.vladtop46.proxy.warmstart;
+
+import ru.vladtop46.proxy.config.ProxyConfig;
+import ru.vladtop46.proxy.limit.AdaptiveConcurrencyLimiter;
+import ru.vladtop46.proxy.logging.ProxyLogger;
+import ru.vladtop46.proxy.security.AccessControl;
+import ru.vladtop46.proxy.security.UrlFilterCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Снимок выученного состояния для быстрого перезапуска.
+ * <p>
+ * При остановке сохраняются адреса и время подключения самых частых хостов
+ * и выученный адаптивный лимит, а скомпилированный фильтр URL - в отдельный
+ * файл того же каталога (его читает сборка политики, см.
+ * {@link UrlFilterCache}). При запуске снимок читается в фоне, пока прокси
+ * уже принимает соединения: лимит восстанавливается сразу, хосты получают
+ * сохраненные адреса, а затем их имена разрешаются заново пулом потоков.
+ */
+public class WarmStart {
+    private static final int MAGIC = 0x57505753;
+    private static final int VERSION = 1;
+    private static final String FILE_NAME = "warmstart.bin";
+
+    private final HostTable hosts;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final ProxyLogger logger;
+    private volatile ProxyConfig.WarmStartSettings settings;
+    private volatile String lastLoad = "not loaded";
+    private volatile String lastRefresh = "";
+
+    public WarmStart(ProxyConfig.WarmStartSettings settings, HostTable hosts, AdaptiveConcurrencyLimiter limiter,
+                     ProxyLogger logger) {
+        this.settings = settings;
+        this.hosts = hosts;
+        this.limiter = limiter;
+        this.logger = logger;
+    }
+
+    public void update(ProxyConfig.WarmStartSettings settings) {
+        this.settings = settings;
+        hosts.setCapacity(settings.getMaxHosts());
+    }
+
+    private Path file() {
+        return Paths.get(settings.getDirectory(), FILE_NAME);
+    }
+
+    /**
+     * Запускает чтение снимка в фоновом потоке и сразу возвращается
+     */
+    public void loadInBackground() {
+        if (!settings.isEnabled()) {
+            return;
+        }
+        Thread loader = new Thread(this::load, "warm-start-load");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    private void load() {
+        ProxyConfig.WarmStartSettings current = settings;
+        Path file = file();
+        long start = System.nanoTime();
+        long savedAt;
+        double learnedLimit;
+        double learnedRtt;
+        List<HostTable.HostState> states = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unknown format");
+            }
+            savedAt = in.readLong();
+            learnedLimit = in.readDouble();
+            learnedRtt = in.readDouble();
+            int count = in.readInt();
+            if (count < 0 || count > 1_000_000) {
+                throw new IOException("invalid host count " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                String host = in.readUTF();
+                byte[] address = new byte[in.readUnsignedByte()];
+                in.readFully(address);
+                states.add(new HostTable.HostState(host, InetAddress.getByAddress(host, address),
+                        in.readLong(), in.readLong(), in.readLong()));
+            }
+        } catch (NoSuchFileException e) {
+            lastLoad = "no snapshot";
+            logger.log("Warm-start snapshot not found: " + file);
+            return;
+        } catch (IOException e) {
+            lastLoad = "failed: " + e.getMessage();
+            logger.log("Warm-start snapshot ignored: " + file + ": " + e.getMessage());
+            return;
+        }
+
+        long ageSeconds = (System.currentTimeMillis() - savedAt) / 1000;
+        if (ageSeconds > current.getMaxAgeSeconds()) {
+            lastLoad = "expired (" + ageSeconds + " s old)";
+            logger.log(String.format("Warm-start snapshot is %d s old (max %d s), ignored",
+                    ageSeconds, current.getMaxAgeSeconds()));
+            return;
+        }
+        limiter.restore(learnedLimit, learnedRtt);
+        for (HostTable.HostState state : states) {
+            hosts.restore(state);
+        }
+        long loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        lastLoad = String.format("loaded in %d ms (hosts=%d, limit=%d, age=%d s)",
+                loadMillis, states.size(), (int) learnedLimit, ageSeconds);
+        logger.log("Warm-start snapshot " + lastLoad);
+        refresh(states, current.getRefreshThreads());
+    }
+
+    /**
+     * Разрешает имена восстановленных хостов заново, начиная с самых частых
+     */
+    private void refresh(List<HostTable.HostState> states, int threads) {
+        if (states.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        AtomicInteger changed = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "warm-start-dns-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (HostTable.HostState state : states) {
+            pool.execute(() -> {
+                try {
+                    if (hosts.refreshed(state.getHost(), InetAddress.getAllByName(state.getHost()))) {
+                        changed.incrementAndGet();
+                    }
+                } catch (UnknownHostException e) {
+                    hosts.refreshFailed(state.getHost());
+                    failed.incrementAndGet();
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(5, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+        }
+        lastRefresh = String.format("DNS refresh: %d hosts in %d ms (changed=%d, failed=%d)", states.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), changed.get(), failed.get());
+        logger.log("Warm-start " + lastRefresh);
+    }
+
+    /**
+     * Сохраняет снимок; вызывается один раз при остановке сервера
+     * @param accessControl политика, чей фильтр URL сохраняется
+     */
+    public void save(AccessControl accessControl) {
+        ProxyConfig.WarmStartSettings current = settings;
+        if (!current.isEnabled()) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<HostTable.HostState> states = hosts.hottest(current.getMaxHosts());
+        double[] learned = limiter.getLearnedState();
+        try {
+            writeSnapshot(file(), states, learned);
+            String urlFilter = "";
+            // Фильтр, прочитанный из кеша, на диске уже есть
+            if (accessControl.getUrlRuleCount() > 0 && !accessControl.isUrlFilterCached()) {
+                UrlFilterCache.save(UrlFilterCache.file(current.getDirectory()),
+                        accessControl.getUrlFilterFingerprint(), accessControl.getUrlFilter());
+                urlFilter = ", url filter=" + accessControl.getUrlRuleCount() + " rules";
+            }
+            logger.log(String.format("Warm-start snapshot saved in %d ms: hosts=%d, limit=%d%s",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), states.size(),
+                    (int) learned[0], urlFilter));
+        } catch (IOException e) {
+            logger.log("Cannot save warm-start snapshot: " + e.getMessage());
+        }
+    }
+
+    private static void writeSnapshot(Path file, List<HostTable.HostState> states, double[] learned)
+            throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, FILE_NAME, ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeDouble(learned[0]);
+                out.writeDouble(learned[1]);
+                out.writeInt(states.size());
+                for (HostTable.HostState state : states) {
+                    byte[] address = state.getAddress().getAddress();
+                    out.writeUTF(state.getHost());
+                    out.writeByte(address.length);
+                    out.write(address);
+                    out.writeLong(state.getConnects());
+                    out.writeLong(state.getConnectNanos());
+                    out.writeLong(state.getLastUsed());
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    public String getStatus() {
+        if (!settings.isEnabled()) {
+            return "Warm start: disabled";
+        }
+        return "Warm start: " + lastLoad + (lastRefresh.isEmpty() ? "" : ", " + lastRefresh);
+    }
+}